@@ -0,0 +1,134 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * A small harness for the benchmarks in this directory. Each case is run for
+ * a number of untimed rounds to let the JIT settle, then timed over more
+ * rounds, and the median round is reported. Slow cases get fewer rounds so
+ * that the big payloads don't take forever. Numbers from a desktop JVM are
+ * only good for comparing one approach with another, not for predicting how
+ * long something takes on a phone.
+ *
+ * memory reports how much a case allocates, which is what turns into GC
+ * churn, and how much of that is still reachable from what it returns.
+ */
+public class Benchmark{
+  private static final int WARMUP_ROUNDS = 50;
+  private static final int TIMED_ROUNDS = 30;
+  private static final int MIN_ROUNDS = 5;
+  private static final long WARMUP_BUDGET_NS = 2000L * 1000 * 1000;
+  private static final long TIMED_BUDGET_NS = 3000L * 1000 * 1000;
+
+  /** Something to time. Returns a value so the work can't be optimized away. */
+  public interface Case{
+    public Object run() throws Exception;
+  }
+
+  private static volatile Object sink;
+
+  /**
+   * Times the case, which does opsPerRound operations each time it's run,
+   * and prints the median time per operation.
+   */
+  public static void time(String name, int opsPerRound, Case toTime) throws Exception{
+    long warmupStart = System.nanoTime();
+    for(int i = 0; i < WARMUP_ROUNDS; i++){
+      sink = toTime.run();
+      if(i + 1 >= MIN_ROUNDS && System.nanoTime() - warmupStart > WARMUP_BUDGET_NS){
+        break;
+      }
+    }
+    long[] rounds = new long[TIMED_ROUNDS];
+    int count = 0;
+    long timedStart = System.nanoTime();
+    while(count < TIMED_ROUNDS &&
+      (count < MIN_ROUNDS || System.nanoTime() - timedStart < TIMED_BUDGET_NS))
+    {
+      long start = System.nanoTime();
+      sink = toTime.run();
+      rounds[count++] = System.nanoTime() - start;
+    }
+    Arrays.sort(rounds, 0, count);
+    System.out.println(String.format("%-50s %12.2f us/op  (min %.2f, max %.2f)",
+      name,
+      rounds[count / 2] / 1000.0 / opsPerRound,
+      rounds[0] / 1000.0 / opsPerRound,
+      rounds[count - 1] / 1000.0 / opsPerRound));
+  }
+
+  private static final int MEMORY_ROUNDS = 5;
+
+  /**
+   * Prints how many bytes one run of the case allocates and how many of
+   * them are retained by its result. Allocations are counted by the JVM for
+   * the current thread where it supports that. Retained bytes are the
+   * difference in used heap after a GC with and without the result around.
+   */
+  public static void memory(String name, Case toMeasure) throws Exception{
+    long allocated = -1;
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if(threads instanceof com.sun.management.ThreadMXBean){
+      final com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean)threads;
+      final long id = Thread.currentThread().getId();
+      for(int i = 0; i < MEMORY_ROUNDS; i++){
+        long before = counter.getThreadAllocatedBytes(id);
+        sink = toMeasure.run();
+        long used = counter.getThreadAllocatedBytes(id) - before;
+        allocated = allocated < 0 ? used : Math.min(allocated, used);
+      }
+    }
+
+    sink = null;
+    long baseline = usedAfterGC();
+    sink = toMeasure.run();
+    long retained = usedAfterGC() - baseline;
+    sink = null;
+
+    System.out.println(String.format("%-50s %12s allocated  %12s retained",
+      name, allocated < 0 ? "?" : formatBytes(allocated), formatBytes(retained)));
+  }
+
+  private static long usedAfterGC() throws InterruptedException{
+    final Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    // A single gc() is only a hint, keep going until it stops shrinking.
+    for(int i = 0; i < 10; i++){
+      System.gc();
+      Thread.sleep(20);
+      long now = runtime.totalMemory() - runtime.freeMemory();
+      if(now >= used){
+        break;
+      }
+      used = now;
+    }
+    return used;
+  }
+
+  private static String formatBytes(long bytes){
+    if(Math.abs(bytes) >= 1024 * 1024){
+      return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+    return String.format("%.1f KB", bytes / 1024.0);
+  }
+}
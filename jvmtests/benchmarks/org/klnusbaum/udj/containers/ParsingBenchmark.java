@@ -0,0 +1,142 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.containers;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import org.klnusbaum.udj.Benchmark;
+import org.klnusbaum.udj.network.JSONStreamReader;
+
+/**
+ * Compares turning server responses into containers the way ServerConnection
+ * used to, reading the whole body into a byte buffer, then a String, then an
+ * org.json tree, with the streaming decoders reading straight off the body.
+ * Both start from the raw bytes of the response in an InputStream, and both
+ * their time and how much they allocate are reported, since avoiding those
+ * intermediate copies is the point of streaming.
+ */
+public class ParsingBenchmark{
+
+  private static final int[] SIZES = new int[]{10, 1000, 100000};
+  private static final String CHARSET = "UTF-8";
+
+  /** The two ways of decoding one kind of response. */
+  private interface Decoder{
+    public Object fromTree(String json) throws Exception;
+    public Object fromStream(JSONStreamReader reader) throws Exception;
+  }
+
+  /** What ServerConnection.readResponse did with the body. */
+  private static String readFully(InputStream in) throws Exception{
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while((read = in.read(buffer)) != -1){
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return new String(out.toByteArray(), CHARSET);
+  }
+
+  /** What ServerConnection.getStreamReader does with the body. */
+  private static JSONStreamReader streamReader(InputStream in) throws Exception{
+    return new JSONStreamReader(new BufferedReader(new InputStreamReader(in, CHARSET)));
+  }
+
+  private static void compare(String name, String payload, final Decoder decoder)
+    throws Exception
+  {
+    final byte[] body = payload.getBytes(CHARSET);
+    System.out.println(name + ", " + body.length / 1024 + " KB body");
+    Benchmark.Case buffered = new Benchmark.Case(){
+      public Object run() throws Exception{
+        return decoder.fromTree(readFully(new ByteArrayInputStream(body)));
+      }
+    };
+    Benchmark.Case streamed = new Benchmark.Case(){
+      public Object run() throws Exception{
+        JSONStreamReader reader = streamReader(new ByteArrayInputStream(body));
+        try{
+          return decoder.fromStream(reader);
+        }
+        finally{
+          reader.close();
+        }
+      }
+    };
+    Benchmark.time("  buffered", 1, buffered);
+    Benchmark.time("  streamed", 1, streamed);
+    Benchmark.memory("  buffered", buffered);
+    Benchmark.memory("  streamed", streamed);
+  }
+
+  public static void main(String[] args) throws Exception{
+    for(int size: SIZES){
+      compare("LibraryEntry (" + size + ")", Payloads.library(size), new Decoder(){
+        public Object fromTree(String json) throws Exception{
+          return LibraryEntry.fromJSONArray(new JSONArray(json));
+        }
+        public Object fromStream(JSONStreamReader reader) throws Exception{
+          return LibraryEntry.fromJSONStream(reader);
+        }
+      });
+    }
+
+    for(int size: SIZES){
+      compare("Player (" + size + ")", Payloads.players(size), new Decoder(){
+        public Object fromTree(String json) throws Exception{
+          return Player.fromJSONArray(new JSONArray(json));
+        }
+        public Object fromStream(JSONStreamReader reader) throws Exception{
+          return Player.fromJSONStream(reader);
+        }
+      });
+    }
+
+    for(int voters: SIZES){
+      compare("ActivePlaylistEntry (" + voters + " voters)", Payloads.playlistEntry(0, voters),
+        new Decoder(){
+          public Object fromTree(String json) throws Exception{
+            return ActivePlaylistEntry.valueOf(new JSONObject(json), Payloads.MY_USER_ID);
+          }
+          public Object fromStream(JSONStreamReader reader) throws Exception{
+            return ActivePlaylistEntry.valueOf(reader, Payloads.MY_USER_ID);
+          }
+        });
+    }
+
+    for(int size: SIZES){
+      compare("ActivePlaylist (" + size + ")", Payloads.activePlaylist(size, 2), new Decoder(){
+        public Object fromTree(String json) throws Exception{
+          return ActivePlaylist.valueOf(new JSONObject(json), Payloads.MY_USER_ID);
+        }
+        public Object fromStream(JSONStreamReader reader) throws Exception{
+          return ActivePlaylist.valueOf(reader, Payloads.MY_USER_ID);
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.containers;
+
+/**
+ * Synthetic server responses shaped like the real ones, for the parsing
+ * benchmarks. A handful of artists, albums and users repeat throughout, as
+ * they would in a real library or crowd.
+ */
+class Payloads{
+  static final String MY_USER_ID = "u7";
+
+  private Payloads(){}
+
+  static String libraryEntry(int i){
+    return "{\"id\": \"" + i + "\", \"title\": \"Song number " + i + "\", " +
+      "\"artist\": \"Artist " + (i % 200) + "\", \"album\": \"Album " + (i % 1000) + "\", " +
+      "\"duration\": " + (120 + i % 300) + "}";
+  }
+
+  static String user(int i){
+    return "{\"id\": \"u" + i + "\", \"username\": \"user" + i + "\", " +
+      "\"first_name\": \"First" + i + "\", \"last_name\": \"Last" + i + "\"}";
+  }
+
+  static String library(int size){
+    StringBuilder json = new StringBuilder(size * 110).append('[');
+    for(int i = 0; i < size; i++){
+      if(i > 0){
+        json.append(", ");
+      }
+      json.append(libraryEntry(i));
+    }
+    return json.append(']').toString();
+  }
+
+  static String players(int size){
+    StringBuilder json = new StringBuilder(size * 230).append('[');
+    for(int i = 0; i < size; i++){
+      if(i > 0){
+        json.append(", ");
+      }
+      json.append("{\"id\": \"").append(i).append("\", \"name\": \"Player ").append(i)
+        .append("\", \"owner\": ").append(user(i % 500))
+        .append(", \"has_password\": ").append(i % 2 == 0)
+        .append(", \"location\": {\"latitude\": ").append(40.0 + i % 100 / 100.0)
+        .append(", \"longitude\": ").append(-88.0 - i % 100 / 100.0).append("}}");
+    }
+    return json.append(']').toString();
+  }
+
+  /**
+   * A playlist entry with the given number of up and down voters. The
+   * current user, if they voted at all, is the last of the downvoters so
+   * that finding their vote means looking through every voter.
+   */
+  static String playlistEntry(int i, int voters){
+    StringBuilder json = new StringBuilder(voters * 80 + 300);
+    json.append("{\"song\": ").append(libraryEntry(i)).append(", \"upvoters\": [");
+    for(int v = 0; v < voters; v++){
+      if(v > 0){
+        json.append(", ");
+      }
+      json.append(user(1000 + v));
+    }
+    json.append("], \"downvoters\": [");
+    for(int v = 0; v < voters; v++){
+      if(v > 0){
+        json.append(", ");
+      }
+      json.append(user(v == voters - 1 ? 7 : 2000 + v));
+    }
+    return json.append("], \"adder\": ").append(user(i % 50))
+      .append(", \"time_added\": \"2012-06-01T12:00:00\"}").toString();
+  }
+
+  static String playlistEntries(int size, int voters){
+    StringBuilder json = new StringBuilder().append('[');
+    for(int i = 0; i < size; i++){
+      if(i > 0){
+        json.append(", ");
+      }
+      json.append(playlistEntry(i, voters));
+    }
+    return json.append(']').toString();
+  }
+
+  static String activePlaylist(int size, int voters){
+    return "{\"state\": \"playing\", \"volume\": 5, \"current_song\": " +
+      playlistEntry(size, voters) + ", \"active_playlist\": " +
+      playlistEntries(size, voters) + "}";
+  }
+}
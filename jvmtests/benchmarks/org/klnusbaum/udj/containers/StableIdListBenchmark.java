@@ -0,0 +1,141 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.containers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.klnusbaum.udj.Benchmark;
+
+/**
+ * Compares StableIdList.update with the n*m id bookkeeping that
+ * StringIdableAdapter.updateList used to do, for playlists of the size we
+ * expect to refresh every few seconds.
+ */
+public class StableIdListBenchmark{
+
+  /**
+   * The old updateList, minus notifyDataSetChanged: assign ids to new items,
+   * then scan the whole new list for every id we know about to find the
+   * ones that went away.
+   */
+  private static class QuadraticIdList{
+    private final Map<String, Long> idMap = new ConcurrentHashMap<String, Long>();
+    private long currentAvailableMapId = 0;
+    private List<ActivePlaylistEntry> itemList;
+
+    public QuadraticIdList(List<ActivePlaylistEntry> items){
+      itemList = items;
+      for(ActivePlaylistEntry item: items){
+        idMap.put(item.getId(), currentAvailableMapId++);
+      }
+    }
+
+    private boolean listContainsId(String s){
+      for(StringIdable st: itemList){
+        if(s.equals(st.getId())){
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public void update(List<ActivePlaylistEntry> newItems){
+      for(ActivePlaylistEntry item: newItems){
+        if(!idMap.keySet().contains(item.getId())){
+          idMap.put(item.getId(), currentAvailableMapId++);
+        }
+      }
+      itemList = newItems;
+      for(String s: idMap.keySet()){
+        if(!listContainsId(s)){
+          idMap.remove(s);
+        }
+      }
+    }
+  }
+
+  private static final StableIdList.ContentComparator<ActivePlaylistEntry> COMPARATOR =
+    new StableIdList.ContentComparator<ActivePlaylistEntry>(){
+      public boolean isSameContent(ActivePlaylistEntry oldItem, ActivePlaylistEntry newItem){
+        return oldItem.hasSameContent(newItem);
+      }
+    };
+
+  private static final int UPDATES_PER_ROUND = 100;
+
+  private static List<ActivePlaylistEntry> playlist(int size, int firstId){
+    User adder = new User("adder");
+    List<ActivePlaylistEntry> entries = new ArrayList<ActivePlaylistEntry>(size);
+    for(int i = 0; i < size; i++){
+      String id = String.valueOf(firstId + i);
+      entries.add(new ActivePlaylistEntry(
+        new LibraryEntry(id, "Title " + id, "Artist", "Album", 200),
+        i % 7, i % 3, ActivePlaylistEntry.NO_VOTE, adder));
+    }
+    return entries;
+  }
+
+  private static void compare(String label, int size, final List<ActivePlaylistEntry> before,
+    final List<ActivePlaylistEntry> after) throws Exception
+  {
+    Benchmark.time("StableIdList " + label + " (" + size + ")", UPDATES_PER_ROUND,
+      new Benchmark.Case(){
+        public Object run(){
+          StableIdList<ActivePlaylistEntry> list =
+            new StableIdList<ActivePlaylistEntry>(before, COMPARATOR);
+          boolean changed = false;
+          for(int i = 0; i < UPDATES_PER_ROUND; i++){
+            changed |= list.update((i & 1) == 0 ? after : before);
+          }
+          return changed;
+        }
+      });
+    Benchmark.time("old updateList " + label + " (" + size + ")", UPDATES_PER_ROUND,
+      new Benchmark.Case(){
+        public Object run(){
+          QuadraticIdList list = new QuadraticIdList(before);
+          for(int i = 0; i < UPDATES_PER_ROUND; i++){
+            list.update((i & 1) == 0 ? after : before);
+          }
+          return list;
+        }
+      });
+  }
+
+  public static void main(String[] args) throws Exception{
+    for(int size: new int[]{50, 500}){
+      List<ActivePlaylistEntry> original = playlist(size, 0);
+
+      compare("unchanged", size, original, playlist(size, 0));
+
+      List<ActivePlaylistEntry> reordered = playlist(size, 0);
+      Collections.reverse(reordered);
+      compare("reversed", size, original, reordered);
+
+      List<ActivePlaylistEntry> churned = playlist(size, 0);
+      churned.subList(0, size / 10).clear();
+      churned.addAll(playlist(size / 10, size));
+      compare("10% replaced", size, original, churned);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.auth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.http.auth.AuthenticationException;
+
+public class AuthTokenCacheTest extends TestCase{
+
+  /**
+   * Hands out "ticket-1", "ticket-2", ... taking a little while about it so
+   * that concurrent callers overlap.
+   */
+  private static class FakeSource implements AuthTokenCache.TokenSource{
+    final AtomicInteger fetches = new AtomicInteger();
+    final AtomicInteger invalidations = new AtomicInteger();
+
+    public String fetch(){
+      try{
+        Thread.sleep(20);
+      }
+      catch(InterruptedException e){
+        Thread.currentThread().interrupt();
+      }
+      return "ticket-" + fetches.incrementAndGet();
+    }
+
+    public void invalidate(String authToken){
+      invalidations.incrementAndGet();
+    }
+  }
+
+  /**
+   * Rejects the given ticket and accepts any other, returning the ticket it
+   * was called with.
+   */
+  private static class RejectingCall implements AuthTokenCache.AuthenticatedCall<String>{
+    private final String expired;
+
+    public RejectingCall(String expired){
+      this.expired = expired;
+    }
+
+    public String call(String authToken) throws AuthenticationException{
+      if(expired.equals(authToken)){
+        throw new AuthenticationException("expired");
+      }
+      return authToken;
+    }
+  }
+
+  public void testCachesTicket() throws Exception{
+    FakeSource source = new FakeSource();
+    assertEquals("ticket-1", AuthTokenCache.getAuthToken("cached", source));
+    assertEquals("ticket-1", AuthTokenCache.getAuthToken("cached", source));
+    assertEquals(1, source.fetches.get());
+  }
+
+  public void testRetriesOnceWithNewTicket() throws Exception{
+    FakeSource source = new FakeSource();
+    assertEquals("ticket-2", AuthTokenCache.withToken(
+      "retry", source, new RejectingCall("ticket-1")));
+    assertEquals(2, source.fetches.get());
+    assertEquals(1, source.invalidations.get());
+  }
+
+  public void testGivesUpAfterSecondRejection() throws Exception{
+    FakeSource source = new FakeSource();
+    final AtomicInteger calls = new AtomicInteger();
+    try{
+      AuthTokenCache.withToken("rejected", source,
+        new AuthTokenCache.AuthenticatedCall<String>(){
+          public String call(String authToken) throws AuthenticationException{
+            calls.incrementAndGet();
+            throw new AuthenticationException("rejected");
+          }
+        });
+      fail("Expected an AuthenticationException");
+    }
+    catch(AuthenticationException e){
+      // expected
+    }
+    assertEquals(2, calls.get());
+    assertEquals(2, source.fetches.get());
+  }
+
+  /**
+   * 32 requests all go out with the same expired ticket and all get
+   * rejected. Only one of them should invalidate it and only one new ticket
+   * should be fetched, which all of them then use.
+   */
+  public void testConcurrentExpiryRefreshesOnce() throws Exception{
+    final int threads = 32;
+    final String key = "concurrent";
+    final FakeSource source = new FakeSource();
+    assertEquals("ticket-1", AuthTokenCache.getAuthToken(key, source));
+
+    final CountDownLatch allRejected = new CountDownLatch(threads);
+    final AuthTokenCache.AuthenticatedCall<String> call =
+      new AuthTokenCache.AuthenticatedCall<String>(){
+        public String call(String authToken) throws AuthenticationException{
+          if("ticket-1".equals(authToken)){
+            // Make sure every request has used the old ticket before any of
+            // them gets to refresh it.
+            allRejected.countDown();
+            try{
+              allRejected.await();
+            }
+            catch(InterruptedException e){
+              Thread.currentThread().interrupt();
+            }
+            throw new AuthenticationException("expired");
+          }
+          return authToken;
+        }
+      };
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<String>> results = new ArrayList<Future<String>>(threads);
+    for(int i = 0; i < threads; i++){
+      results.add(executor.submit(new Callable<String>(){
+        public String call() throws Exception{
+          return AuthTokenCache.withToken(key, source, call);
+        }
+      }));
+    }
+    for(Future<String> result: results){
+      assertEquals("ticket-2", result.get(10, TimeUnit.SECONDS));
+    }
+    executor.shutdown();
+
+    assertEquals("one initial fetch and one refresh", 2, source.fetches.get());
+    assertEquals(1, source.invalidations.get());
+  }
+}
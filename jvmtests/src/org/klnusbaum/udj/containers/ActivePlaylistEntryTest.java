@@ -0,0 +1,126 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.containers;
+
+import java.io.StringReader;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import org.klnusbaum.udj.network.JSONStreamReader;
+
+public class ActivePlaylistEntryTest extends TestCase{
+
+  private static String user(String id){
+    return "{\"id\": \"" + id + "\", \"username\": \"u" + id + "\", " +
+      "\"first_name\": \"F\", \"last_name\": \"L\"}";
+  }
+
+  private static String playlistEntry(String id, String upvoters, String downvoters){
+    return "{\"song\": {\"id\": \"" + id + "\", \"title\": \"t" + id + "\", " +
+      "\"artist\": \"a\", \"album\": \"b\", \"duration\": 10}, " +
+      "\"upvoters\": [" + upvoters + "], \"downvoters\": [" + downvoters + "], " +
+      "\"time_added\": \"2012-06-01T12:00:00\", \"adder\": " + user("3") + "}";
+  }
+
+  private static final String PLAYLIST =
+    "{\"volume\": 7, \"current_song\": " + playlistEntry("1", user("2"), "") +
+    ", \"active_playlist\": [" +
+    playlistEntry("2", user("5") + ", " + user("6"), user("8")) + ", " +
+    playlistEntry("3", "", user("9") + ", " + user("5")) + ", " +
+    playlistEntry("4", "", "") + "], \"state\": \"paused\"}";
+
+  private static ActivePlaylistEntry entry(int upvotes, int downvotes, int myVote){
+    return new ActivePlaylistEntry(
+      new LibraryEntry("1", "title", "artist", "album", 100),
+      upvotes, downvotes, myVote, new User("5"));
+  }
+
+  public void testWithMyVoteLeavesOriginalAlone(){
+    ActivePlaylistEntry original = entry(3, 1, ActivePlaylistEntry.DOWNVOTE);
+    ActivePlaylistEntry voted = original.withMyVote(ActivePlaylistEntry.UPVOTE);
+
+    assertEquals(4, voted.getUpvoteCount());
+    assertEquals(0, voted.getDownvoteCount());
+    assertEquals(ActivePlaylistEntry.UPVOTE, voted.getMyVote());
+
+    assertEquals(3, original.getUpvoteCount());
+    assertEquals(1, original.getDownvoteCount());
+    assertEquals(ActivePlaylistEntry.DOWNVOTE, original.getMyVote());
+  }
+
+  public void testTakingBackVote(){
+    ActivePlaylistEntry voted = entry(2, 0, ActivePlaylistEntry.UPVOTE)
+      .withMyVote(ActivePlaylistEntry.NO_VOTE);
+    assertEquals(1, voted.getUpvoteCount());
+    assertEquals(0, voted.getDownvoteCount());
+  }
+
+  public void testAsCurrentSong(){
+    ActivePlaylistEntry original = entry(0, 0, ActivePlaylistEntry.NO_VOTE);
+    ActivePlaylistEntry current = original.asCurrentSong();
+    assertTrue(current.isCurrentSong());
+    assertFalse(original.isCurrentSong());
+    assertEquals(original.getId(), current.getId());
+  }
+
+  public void testStreamMatchesJSONObject() throws Exception{
+    ActivePlaylist streamed = ActivePlaylist.valueOf(
+      new JSONStreamReader(new StringReader(PLAYLIST)), "5");
+    ActivePlaylist parsed = ActivePlaylist.valueOf(new JSONObject(PLAYLIST), "5");
+    assertEquals("paused", streamed.playbackState);
+    assertEquals(7, streamed.volume);
+    assertEquals(4, streamed.entries.size());
+    assertEquals(parsed.entries.size(), streamed.entries.size());
+    for(int i = 0; i < parsed.entries.size(); i++){
+      assertTrue(parsed.entries.get(i).hasSameContent(streamed.entries.get(i)));
+    }
+
+    List<ActivePlaylistEntry> entries = streamed.entries;
+    assertTrue(entries.get(0).isCurrentSong());
+    assertEquals(ActivePlaylistEntry.UPVOTE, entries.get(1).getMyVote());
+    assertEquals(2, entries.get(1).getUpvoteCount());
+    assertEquals(1, entries.get(1).getDownvoteCount());
+    assertEquals(ActivePlaylistEntry.DOWNVOTE, entries.get(2).getMyVote());
+    assertEquals(ActivePlaylistEntry.NO_VOTE, entries.get(3).getMyVote());
+    assertEquals("3", entries.get(3).getAdder().getId());
+  }
+
+  public void testStreamWithoutUser() throws Exception{
+    ActivePlaylist streamed = ActivePlaylist.valueOf(
+      new JSONStreamReader(new StringReader(PLAYLIST)), null);
+    for(ActivePlaylistEntry entry: streamed.entries){
+      assertEquals(ActivePlaylistEntry.NO_VOTE, entry.getMyVote());
+    }
+  }
+
+  public void testStreamMissingField() throws Exception{
+    try{
+      ActivePlaylist.valueOf(new JSONStreamReader(new StringReader(
+        "{\"state\": \"playing\", \"volume\": 1, \"active_playlist\": []}")), "5");
+      fail("Expected a JSONException");
+    }
+    catch(JSONException e){
+      // expected
+    }
+  }
+}
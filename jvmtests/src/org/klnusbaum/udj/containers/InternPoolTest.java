@@ -0,0 +1,146 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.containers;
+
+import junit.framework.TestCase;
+
+public class InternPoolTest extends TestCase{
+
+  /** A pool of strings keyed by themselves, like Interner's. */
+  private static InternPool<String, String> stringPool(int maxSize){
+    return new InternPool<String, String>("Test", maxSize){
+      protected long sizeOf(String value){
+        return value.length();
+      }
+    };
+  }
+
+  /**
+   * A string equal to the given one that isn't the constant from the class
+   * file, which the VM would never collect.
+   */
+  private static String fresh(String value){
+    return new String(value.toCharArray());
+  }
+
+  /** Collects garbage until the pool is down to the given size. */
+  private static void collectUntil(InternPool<?, ?> pool, int size)
+    throws InterruptedException
+  {
+    for(int i = 0; i < 50 && pool.getSize() > size; ++i){
+      System.gc();
+      Thread.sleep(10);
+    }
+  }
+
+  public void testReturnsCanonical(){
+    InternPool<String, String> pool = stringPool(10);
+    String first = fresh("Abbey Road");
+    assertSame(first, pool.intern(first, first));
+    String second = fresh("Abbey Road");
+    assertSame(first, pool.intern(second, second));
+    assertEquals(1, pool.getHitCount());
+    assertEquals(1, pool.getMissCount());
+    assertEquals(0.5f, pool.getHitRatio());
+    assertEquals(1, pool.getSize());
+  }
+
+  public void testNulls(){
+    InternPool<String, String> pool = stringPool(10);
+    assertNull(pool.intern(null, null));
+    assertEquals(0, pool.getMissCount());
+    assertEquals(0f, pool.getHitRatio());
+  }
+
+  public void testDifferentValueReplaces(){
+    InternPool<String, String> pool = new InternPool<String, String>("Test", 10){
+      protected boolean isSameValue(String existing, String value){
+        return existing.equals(value);
+      }
+    };
+    String old = fresh("old");
+    pool.intern("1", old);
+    String replacement = fresh("new");
+    assertSame(replacement, pool.intern("1", replacement));
+    assertSame(replacement, pool.intern("1", fresh("new")));
+    assertEquals(1, pool.getSize());
+    assertEquals(1, pool.getHitCount());
+  }
+
+  public void testEvictsLeastRecentlyUsed(){
+    InternPool<String, String> pool = stringPool(2);
+    String a = fresh("a");
+    String b = fresh("b");
+    String c = fresh("c");
+    pool.intern(a, a);
+    pool.intern(b, b);
+    pool.intern(fresh("a"), fresh("a"));
+    pool.intern(c, c);
+    assertEquals(2, pool.getSize());
+    assertSame(a, pool.intern(fresh("a"), fresh("a")));
+    String newB = fresh("b");
+    assertSame(newB, pool.intern(newB, newB));
+  }
+
+  public void testRetainedSize(){
+    InternPool<String, String> pool = stringPool(10);
+    String a = fresh("abc");
+    String b = fresh("de");
+    pool.intern(a, a);
+    pool.intern(b, b);
+    pool.intern(fresh("abc"), fresh("abc"));
+    assertEquals(5, pool.getRetainedSize());
+  }
+
+  public void testValueThatIsItsOwnKeyIsCollected() throws Exception{
+    InternPool<String, String> pool = stringPool(10);
+    String kept = fresh("kept");
+    pool.intern(kept, kept);
+    for(int i = 0; i < 5; ++i){
+      String dropped = fresh("dropped" + i);
+      pool.intern(dropped, dropped);
+    }
+    assertEquals(6, pool.getSize());
+    assertEquals(4 + 5 * 8, pool.getRetainedSize());
+
+    collectUntil(pool, 1);
+    assertEquals(1, pool.getSize());
+    assertEquals(4, pool.getRetainedSize());
+    assertSame(kept, pool.intern(fresh("kept"), fresh("kept")));
+  }
+
+  public void testCollectedValueIsReplaced() throws Exception{
+    InternPool<String, Object> pool = new InternPool<String, Object>("Test", 10);
+    String key = fresh("1");
+    pool.intern(key, new Object());
+    collectUntil(pool, 0);
+    assertEquals(0, pool.getSize());
+    Object value = new Object();
+    assertSame(value, pool.intern(key, value));
+    assertEquals(0, pool.getHitCount());
+  }
+
+  public void testStats(){
+    InternPool<String, String> pool = stringPool(10);
+    String a = fresh("abc");
+    pool.intern(a, a);
+    pool.intern(fresh("abc"), fresh("abc"));
+    assertEquals("Test[hits=1, misses=1, size=1/10, retained=3]", pool.toString());
+  }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.containers;
+
+import junit.framework.TestCase;
+
+public class InternerTest extends TestCase{
+
+  @Override
+  protected void setUp(){
+    Interner.clear();
+  }
+
+  @Override
+  protected void tearDown(){
+    Interner.clear();
+  }
+
+  private static String fresh(String value){
+    return new String(value.toCharArray());
+  }
+
+  public void testStrings(){
+    String first = fresh("The Beatles");
+    assertSame(first, Interner.intern(first));
+    assertSame(first, Interner.intern(fresh("The Beatles")));
+    assertNull(Interner.intern((String)null));
+    InternPool<String, String> pool = Interner.getStringPool();
+    assertEquals(1, pool.getHitCount());
+    assertEquals(0.5f, pool.getHitRatio());
+    assertEquals(40 + 2 * "The Beatles".length(), pool.getRetainedSize());
+  }
+
+  public void testUsers(){
+    User first = new User(fresh("1"), "alice", "Alice", "A");
+    assertSame(first, Interner.intern(first));
+    assertSame(first, Interner.intern(new User(fresh("1"), "alice", "Alice", "A")));
+    User renamed = new User(fresh("1"), "alice", "Alicia", "A");
+    assertSame(renamed, Interner.intern(renamed));
+    assertEquals(1, Interner.getUserPool().getHitCount());
+    assertEquals(1, Interner.getUserPool().getSize());
+  }
+
+  public void testUnusedStringsAreCollected() throws Exception{
+    String kept = Interner.intern(fresh("Revolver"));
+    for(int i = 0; i < 100; ++i){
+      Interner.intern(fresh("Album " + i));
+    }
+    InternPool<String, String> pool = Interner.getStringPool();
+    long retained = pool.getRetainedSize();
+    assertEquals(101, pool.getSize());
+
+    for(int i = 0; i < 50 && pool.getSize() > 1; ++i){
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertEquals(1, pool.getSize());
+    assertEquals(40 + 2 * kept.length(), pool.getRetainedSize());
+    assertTrue(pool.getRetainedSize() < retained);
+    assertSame(kept, Interner.intern(fresh("Revolver")));
+  }
+
+  public void testStats(){
+    Interner.intern(fresh("Help!"));
+    String stats = Interner.getStats();
+    assertTrue(stats, stats.startsWith("Strings[hits=0, misses=1, size=1/"));
+    assertTrue(stats, stats.contains("Users[hits=0, misses=0, size=0/"));
+  }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.containers;
+
+import java.io.StringReader;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import org.klnusbaum.udj.network.JSONStreamReader;
+
+/**
+ * The streaming decoders have to build exactly what the org.json ones do.
+ */
+public class LibraryEntryTest extends TestCase{
+
+  private static final String LIBRARY =
+    "[{\"id\": \"1\", \"title\": \"Hey \\\"Jude\\\"\", \"artist\": \"The Beatles\", " +
+    "\"album\": \"Past Masters\", \"duration\": 431, \"genre\": \"Rock\", " +
+    "\"extra\": {\"nested\": [1, 2]}}, " +
+    "{\"duration\": 240, \"album\": \"Homogenic\", \"artist\": \"Bj\\u00f6rk\", " +
+    "\"title\": \"J\\u00f3ga\", \"id\": \"2\"}]";
+
+  private static JSONStreamReader reader(String json){
+    return new JSONStreamReader(new StringReader(json));
+  }
+
+  public void testStreamMatchesJSONArray() throws Exception{
+    List<LibraryEntry> streamed = LibraryEntry.fromJSONStream(reader(LIBRARY));
+    List<LibraryEntry> parsed = LibraryEntry.fromJSONArray(new JSONArray(LIBRARY));
+    assertEquals(2, streamed.size());
+    assertEquals(parsed.size(), streamed.size());
+    for(int i = 0; i < parsed.size(); i++){
+      LibraryEntry expected = parsed.get(i);
+      LibraryEntry actual = streamed.get(i);
+      assertEquals(expected.getId(), actual.getId());
+      assertEquals(expected.getTitle(), actual.getTitle());
+      assertEquals(expected.getArtist(), actual.getArtist());
+      assertEquals(expected.getAlbum(), actual.getAlbum());
+      assertEquals(expected.getDuration(), actual.getDuration());
+    }
+    assertEquals("Hey \"Jude\"", streamed.get(0).getTitle());
+    assertEquals("Bj\u00f6rk", streamed.get(1).getArtist());
+  }
+
+  public void testRecentlyPlayed() throws Exception{
+    List<LibraryEntry> streamed = LibraryEntry.fromRecentlyPlayedJSONStream(reader(
+      "[{\"time_played\": \"2012-06-01\", \"song\": {\"id\": \"7\", \"title\": \"t\", " +
+      "\"artist\": \"a\", \"album\": \"b\", \"duration\": 1}}]"));
+    assertEquals(1, streamed.size());
+    assertEquals("7", streamed.get(0).getId());
+  }
+
+  public void testMissingField() throws Exception{
+    try{
+      LibraryEntry.fromJSONStream(reader(
+        "[{\"id\": \"1\", \"title\": \"t\", \"artist\": \"a\", \"duration\": 1}]"));
+      fail("Expected a JSONException");
+    }
+    catch(JSONException e){
+      // expected
+    }
+  }
+}
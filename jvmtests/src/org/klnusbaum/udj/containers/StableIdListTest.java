@@ -0,0 +1,122 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.containers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class StableIdListTest extends TestCase{
+
+  private static final StableIdList.ContentComparator<ActivePlaylistEntry> COMPARATOR =
+    new StableIdList.ContentComparator<ActivePlaylistEntry>(){
+      public boolean isSameContent(ActivePlaylistEntry oldItem, ActivePlaylistEntry newItem){
+        return oldItem.hasSameContent(newItem);
+      }
+    };
+
+  /**
+   * Builds a playlist the way a refresh does, with brand new objects every
+   * time.
+   */
+  private static List<ActivePlaylistEntry> playlist(String... ids){
+    List<ActivePlaylistEntry> entries = new ArrayList<ActivePlaylistEntry>();
+    for(String id: ids){
+      entries.add(entry(id, 1));
+    }
+    return entries;
+  }
+
+  private static ActivePlaylistEntry entry(String id, int upvotes){
+    return new ActivePlaylistEntry(
+      new LibraryEntry(id, "title " + id, "artist", "album", 200),
+      upvotes, 0, ActivePlaylistEntry.NO_VOTE, new User("adder"));
+  }
+
+  private static StableIdList<ActivePlaylistEntry> list(List<ActivePlaylistEntry> entries){
+    return new StableIdList<ActivePlaylistEntry>(entries, COMPARATOR);
+  }
+
+  public void testUnchangedListIsNotAChange(){
+    StableIdList<ActivePlaylistEntry> list = list(playlist("a", "b", "c"));
+    assertFalse(list.update(playlist("a", "b", "c")));
+  }
+
+  public void testReorderIsAChange(){
+    StableIdList<ActivePlaylistEntry> list = list(playlist("a", "b", "c"));
+    assertTrue(list.update(playlist("a", "c", "b")));
+  }
+
+  public void testEditIsAChange(){
+    StableIdList<ActivePlaylistEntry> list = list(playlist("a", "b", "c"));
+    List<ActivePlaylistEntry> edited = playlist("a", "b", "c");
+    edited.set(1, entry("b", 2));
+    assertTrue(list.update(edited));
+
+    List<ActivePlaylistEntry> voted = playlist("a", "b", "c");
+    voted.set(1, entry("b", 2).withMyVote(ActivePlaylistEntry.UPVOTE));
+    assertTrue(list.update(voted));
+
+    List<ActivePlaylistEntry> playing = playlist("a", "b", "c");
+    playing.set(0, playing.get(0).asCurrentSong());
+    assertTrue(list.update(playing));
+  }
+
+  public void testAddAndRemoveAreChanges(){
+    StableIdList<ActivePlaylistEntry> list = list(playlist("a", "b"));
+    assertTrue(list.update(playlist("a", "b", "c")));
+    assertTrue(list.update(playlist("a", "c")));
+    assertTrue(list.update(null));
+    assertFalse(list.update(null));
+    assertTrue(list.update(playlist("a")));
+  }
+
+  public void testIdsAreStable(){
+    StableIdList<ActivePlaylistEntry> list = list(playlist("a", "b", "c"));
+    long a = list.getItemId(0);
+    long b = list.getItemId(1);
+    long c = list.getItemId(2);
+
+    List<ActivePlaylistEntry> reordered = playlist("c", "d", "a");
+    list.update(reordered);
+    assertEquals(c, list.getItemId(0));
+    assertEquals(a, list.getItemId(2));
+    long d = list.getItemId(1);
+    assertTrue(d != a && d != b && d != c);
+
+    // b was dropped, so it comes back with a new id.
+    list.update(playlist("b"));
+    assertTrue(list.getItemId(0) != b);
+  }
+
+  public void testLargeReversal(){
+    String[] ids = new String[500];
+    for(int i = 0; i < ids.length; i++){
+      ids[i] = String.valueOf(i);
+    }
+    StableIdList<ActivePlaylistEntry> list = list(playlist(ids));
+    long first = list.getItemId(0);
+    List<ActivePlaylistEntry> reversed = playlist(ids);
+    Collections.reverse(reversed);
+    assertTrue(list.update(reversed));
+    assertEquals(first, list.getItemId(ids.length - 1));
+  }
+}
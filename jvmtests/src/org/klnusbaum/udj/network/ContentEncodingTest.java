@@ -0,0 +1,173 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+
+public class ContentEncodingTest extends TestCase{
+
+  private static final URI URI_1 =
+    URI.create("https://example.com/udj/0_6/players/1/active_playlist");
+
+  private static byte[] body(int length){
+    byte[] body = new byte[length];
+    for(int i = 0; i < length; i++){
+      body[i] = (byte)('a' + (i / 7) % 26);
+    }
+    return body;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException{
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[333];
+    int read;
+    while((read = in.read(buffer)) != -1){
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  private static byte[] gzip(byte[] body) throws IOException{
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    gzip.write(body);
+    gzip.close();
+    return out.toByteArray();
+  }
+
+  private static byte[] deflate(byte[] body, boolean zlibWrapped) throws IOException{
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DeflaterOutputStream deflate = new DeflaterOutputStream(
+      out, new Deflater(Deflater.DEFAULT_COMPRESSION, !zlibWrapped));
+    deflate.write(body);
+    deflate.close();
+    return out.toByteArray();
+  }
+
+  private static HttpResponse response(byte[] content, String encoding) throws Exception{
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    BasicHttpEntity entity = new BasicHttpEntity();
+    entity.setContent(new ByteArrayInputStream(content));
+    entity.setContentLength(content.length);
+    if(encoding != null){
+      entity.setContentEncoding(encoding);
+    }
+    response.setEntity(entity);
+    new ContentEncoding.ResponseInterceptor().process(response, new BasicHttpContext());
+    return response;
+  }
+
+  @Override
+  protected void tearDown() throws Exception{
+    RequestMetrics.reset();
+  }
+
+  public void testAsksForCompression() throws Exception{
+    HttpGet request = new HttpGet(URI_1);
+    new ContentEncoding.RequestInterceptor().process(request, new BasicHttpContext());
+    assertEquals("gzip, deflate", request.getFirstHeader("Accept-Encoding").getValue());
+  }
+
+  public void testKeepsExistingAcceptEncoding() throws Exception{
+    HttpGet request = new HttpGet(URI_1);
+    request.addHeader("Accept-Encoding", "identity");
+    new ContentEncoding.RequestInterceptor().process(request, new BasicHttpContext());
+    assertEquals(1, request.getHeaders("Accept-Encoding").length);
+    assertEquals("identity", request.getFirstHeader("Accept-Encoding").getValue());
+  }
+
+  public void testGzip() throws Exception{
+    byte[] body = body(10000);
+    HttpResponse response = response(gzip(body), "gzip");
+    assertNull(response.getEntity().getContentEncoding());
+    assertEquals(-1, response.getEntity().getContentLength());
+    assertTrue(Arrays.equals(body, readFully(response.getEntity().getContent())));
+  }
+
+  public void testZlibDeflate() throws Exception{
+    byte[] body = body(10000);
+    HttpResponse response = response(deflate(body, true), "deflate");
+    assertTrue(Arrays.equals(body, readFully(response.getEntity().getContent())));
+  }
+
+  public void testRawDeflate() throws Exception{
+    byte[] body = body(10000);
+    HttpResponse response = response(deflate(body, false), "Deflate");
+    assertTrue(Arrays.equals(body, readFully(response.getEntity().getContent())));
+  }
+
+  public void testEmptyDeflate() throws Exception{
+    HttpResponse response = response(deflate(new byte[0], true), "deflate");
+    assertEquals(0, readFully(response.getEntity().getContent()).length);
+  }
+
+  public void testUncompressedLeftAlone() throws Exception{
+    byte[] body = body(100);
+    HttpResponse response = response(body, null);
+    assertEquals(100, response.getEntity().getContentLength());
+    assertTrue(Arrays.equals(body, readFully(response.getEntity().getContent())));
+
+    response = response(body, "identity");
+    assertEquals("identity", response.getEntity().getContentEncoding().getValue());
+    assertTrue(Arrays.equals(body, readFully(response.getEntity().getContent())));
+  }
+
+  public void testWriteTo() throws Exception{
+    byte[] body = body(10000);
+    HttpResponse response = response(gzip(body), "gzip");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    response.getEntity().writeTo(out);
+    assertTrue(Arrays.equals(body, out.toByteArray()));
+  }
+
+  public void testCountsCompressedBytes() throws Exception{
+    byte[] body = body(10000);
+    byte[] compressed = gzip(body);
+    RequestMetrics.begin("GET", URI_1);
+    RequestMetrics.responseReceived(200);
+    HttpResponse response = response(compressed, "gzip");
+    InputStream in = new RequestMetrics.MeteredInputStream(
+      response.getEntity().getContent());
+    assertTrue(Arrays.equals(body, readFully(in)));
+
+    RequestMetrics.EndpointStats stats =
+      RequestMetrics.getStats("GET /players/*/active_playlist");
+    assertEquals(body.length, stats.bodyBytes.getSum());
+    assertEquals(compressed.length, stats.wireBytes.getSum());
+    assertTrue(stats.getCompressionRatio() > 1);
+  }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+/**
+ * Runs hedged requests against a stub server on localhost that stalls some
+ * of the requests it gets, like a server with the odd busy thread.
+ */
+public class HedgedRequestTest extends TestCase{
+
+  private static final String ENDPOINT = "GET /players/*/active_playlist";
+  /** Samples HedgedRequest wants before it will hedge. */
+  private static final int WARM_UP = 20;
+  /** How long a stalled request takes to answer, if it isn't abandoned. */
+  private static final long STALL = 3000; // ms
+
+  private StubServer server;
+  /** Every stallEvery'th request the server gets is stalled, 0 for none. */
+  private volatile int stallEvery = 0;
+  private final CountDownLatch release = new CountDownLatch(1);
+  private DefaultHttpClient client;
+  private URI uri;
+
+  private final HedgedRequest.Sender sender = new HedgedRequest.Sender(){
+    public HttpResponse send(HttpUriRequest request, RequestBudget budget)
+      throws IOException
+    {
+      return client.execute(request);
+    }
+  };
+
+  @Override
+  protected void setUp() throws Exception{
+    RequestMetrics.reset();
+    server = new StubServer(new StubServer.Responder(){
+      public void respond(HttpExchange exchange, int number) throws IOException{
+        if(stallEvery > 0 && number % stallEvery == 0){
+          try{
+            release.await(STALL, TimeUnit.MILLISECONDS);
+          }
+          catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+          }
+        }
+        StubServer.send(exchange, 200, "[" + number + "]");
+      }
+    });
+    uri = server.uri("/udj/0_6/players/1/active_playlist");
+    client = StubServer.newClient();
+  }
+
+  @Override
+  protected void tearDown() throws Exception{
+    release.countDown();
+    client.getConnectionManager().shutdown();
+    server.stop();
+    RequestMetrics.detach();
+    RequestMetrics.reset();
+  }
+
+  /** Makes one hedged request and reads its body the way ServerConnection does. */
+  private String get() throws IOException{
+    HttpResponse response =
+      new HedgedRequest(new HttpGet(uri), RequestBudget.PLAYLIST, null, sender).execute();
+    InputStream in = new RequestMetrics.MeteredInputStream(response.getEntity().getContent());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[64];
+    int read;
+    while((read = in.read(buffer)) != -1){
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toString("UTF-8");
+  }
+
+  private void warmUp() throws IOException{
+    for(int i = 0; i < WARM_UP; i++){
+      get();
+    }
+  }
+
+  private RequestMetrics.EndpointStats stats(){
+    return RequestMetrics.getStats(ENDPOINT);
+  }
+
+  public void testNotHedgedWithoutHistory() throws Exception{
+    stallEvery = 1;
+    release.countDown();
+    assertEquals("[1]", get());
+    assertEquals(1, server.getRequestCount());
+    assertEquals(0, stats().getHedgeCount());
+  }
+
+  public void testNotHedgedWhenFast() throws Exception{
+    warmUp();
+    for(int i = 0; i < 20; i++){
+      get();
+    }
+    assertEquals(0, stats().getHedgeCount());
+    assertEquals(40, server.getRequestCount());
+    assertTrue(stats().getErrors().isEmpty());
+  }
+
+  /**
+   * Without hedging one request in ten would take STALL, with it none of
+   * them should take much more than the hedge delay.
+   */
+  public void testTailLatency() throws Exception{
+    warmUp();
+    stallEvery = 10;
+    final int requests = 50;
+    long slowest = 0;
+    for(int i = 0; i < requests; i++){
+      long start = System.nanoTime();
+      get();
+      slowest = Math.max(slowest, (System.nanoTime() - start) / 1000000);
+    }
+
+    RequestMetrics.EndpointStats stats = stats();
+    assertTrue("slowest request took " + slowest + "ms", slowest < STALL / 3);
+    assertTrue(stats.getHedgeWinCount() >= requests / 10);
+    assertTrue(stats.getHedgeCount() >= stats.getHedgeWinCount());
+    // The stalled attempts were aborted because their hedges won, which
+    // isn't a failure.
+    assertTrue(stats.getErrors().toString(), stats.getErrors().isEmpty());
+  }
+
+  public void testBodyRecordedWithWinningAttempt() throws Exception{
+    warmUp();
+    int downloads = stats().download.getCount();
+    int parses = stats().parse.getCount();
+    // Only the very next request is stalled, not its hedge.
+    stallEvery = server.getRequestCount() + 1;
+    String body = get();
+
+    RequestMetrics.EndpointStats stats = stats();
+    assertEquals(1, stats.getHedgeWinCount());
+    assertEquals("[" + (stallEvery + 1) + "]", body);
+    assertEquals(downloads + 1, stats.download.getCount());
+    assertEquals(parses + 1, stats.parse.getCount());
+    // Parse time is measured from the winning attempt's response, so it
+    // should be tiny rather than include the stall.
+    assertTrue(stats.parse.getMax() < STALL / 3);
+    assertTrue(stats.getErrors().isEmpty());
+  }
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+
+public class JSONStreamReaderTest extends TestCase{
+
+  private static JSONStreamReader reader(String json){
+    return new JSONStreamReader(new StringReader(json));
+  }
+
+  /** Returns a string of the given length that has no characters needing escaping. */
+  private static String repeat(char c, int length){
+    StringBuilder builder = new StringBuilder(length);
+    for(int i = 0; i < length; i++){
+      builder.append(c);
+    }
+    return builder.toString();
+  }
+
+  public void testObject() throws Exception{
+    JSONStreamReader reader = reader(
+      "{\"id\": \"12\", \"duration\": 215, \"rating\": -1.5e2, " +
+      "\"active\": true, \"adder\": null}");
+    reader.beginObject();
+    assertEquals("id", reader.nextName());
+    assertEquals("12", reader.nextString());
+    assertEquals("duration", reader.nextName());
+    assertEquals(215, reader.nextInt());
+    assertEquals("rating", reader.nextName());
+    assertEquals(-150.0, reader.nextDouble());
+    assertEquals("active", reader.nextName());
+    assertTrue(reader.nextBoolean());
+    assertEquals("adder", reader.nextName());
+    assertEquals(JSONStreamReader.Token.NULL, reader.peek());
+    reader.nextNull();
+    assertFalse(reader.hasNext());
+    reader.endObject();
+    assertEquals(JSONStreamReader.Token.END_DOCUMENT, reader.peek());
+  }
+
+  public void testArray() throws Exception{
+    JSONStreamReader reader = reader(" [ 1 ,2,\n3 ] ");
+    reader.beginArray();
+    int sum = 0;
+    while(reader.hasNext()){
+      sum += reader.nextInt();
+    }
+    reader.endArray();
+    assertEquals(6, sum);
+    assertEquals(JSONStreamReader.Token.END_DOCUMENT, reader.peek());
+  }
+
+  public void testEmptyContainers() throws Exception{
+    JSONStreamReader reader = reader("[[], {}]");
+    reader.beginArray();
+    reader.beginArray();
+    assertFalse(reader.hasNext());
+    reader.endArray();
+    reader.beginObject();
+    assertFalse(reader.hasNext());
+    reader.endObject();
+    assertFalse(reader.hasNext());
+    reader.endArray();
+  }
+
+  public void testEscapes() throws Exception{
+    JSONStreamReader reader = reader(
+      "[\"a\\\"b\", \"c\\\\d\", \"e\\/f\", \"\\t\\b\\n\\r\\f\"]");
+    reader.beginArray();
+    assertEquals("a\"b", reader.nextString());
+    assertEquals("c\\d", reader.nextString());
+    assertEquals("e/f", reader.nextString());
+    assertEquals("\t\b\n\r\f", reader.nextString());
+    reader.endArray();
+  }
+
+  public void testUnicodeEscapes() throws Exception{
+    JSONStreamReader reader = reader(
+      "{\"caf\\u00e9\": \"Bj\\u00F6rk \\u266b\", \"pair\": \"\\ud83c\\udfb5\"}");
+    reader.beginObject();
+    assertEquals("caf\u00e9", reader.nextName());
+    assertEquals("Bj\u00f6rk \u266b", reader.nextString());
+    assertEquals("pair", reader.nextName());
+    assertEquals("\ud83c\udfb5", reader.nextString());
+    reader.endObject();
+  }
+
+  public void testInvalidUnicodeEscape() throws Exception{
+    JSONStreamReader reader = reader("[\"\\u00zz\"]");
+    reader.beginArray();
+    try{
+      reader.nextString();
+      fail("Expected a JSONException");
+    }
+    catch(JSONException e){
+      // expected
+    }
+  }
+
+  /**
+   * The reader works through a 1024 char buffer, so strings, escapes and
+   * literals that straddle the end of it have to be stitched back together.
+   */
+  public void testValuesCrossingBufferBoundary() throws Exception{
+    String longString = repeat('x', 3000);
+    for(int offset = 1015; offset < 1030; offset++){
+      String padding = repeat(' ', offset);
+      String json = padding + "[\"" + longString + "\", \"ab\\u00e9\\ncd\", 1234567, true]";
+      JSONStreamReader reader = reader(json);
+      reader.beginArray();
+      assertEquals(longString, reader.nextString());
+      assertEquals("ab\u00e9\ncd", reader.nextString());
+      assertEquals(1234567, reader.nextInt());
+      assertTrue(reader.nextBoolean());
+      reader.endArray();
+      assertEquals(JSONStreamReader.Token.END_DOCUMENT, reader.peek());
+    }
+  }
+
+  public void testEscapeSplitAcrossBuffers() throws Exception{
+    // Put the backslash, the u, and then each digit of the escape in turn on
+    // the last character of the first buffer.
+    for(int split = 0; split < 6; split++){
+      String prefix = repeat('y', 1021 - split);
+      JSONStreamReader reader = reader("[\"" + prefix + "\\u266b\"]");
+      reader.beginArray();
+      assertEquals(prefix + "\u266b", reader.nextString());
+      reader.endArray();
+    }
+  }
+
+  public void testSkipNestedValue() throws Exception{
+    JSONStreamReader reader = reader(
+      "{\"skip\": {\"a\": [1, {\"b\": [[], {}, \"]}\"]}], \"c\": null}," +
+      " \"keep\": \"yes\", \"last\": [true, false]}");
+    reader.beginObject();
+    assertEquals("skip", reader.nextName());
+    reader.skipValue();
+    assertEquals("keep", reader.nextName());
+    assertEquals("yes", reader.nextString());
+    assertEquals("last", reader.nextName());
+    reader.skipValue();
+    assertFalse(reader.hasNext());
+    reader.endObject();
+    assertEquals(JSONStreamReader.Token.END_DOCUMENT, reader.peek());
+  }
+
+  public void testSkipScalarValues() throws Exception{
+    JSONStreamReader reader = reader("[1, \"two\", null, false, 5]");
+    reader.beginArray();
+    reader.skipValue();
+    reader.skipValue();
+    reader.skipValue();
+    reader.skipValue();
+    assertEquals(5, reader.nextInt());
+    reader.endArray();
+  }
+
+  public void testTruncatedInput() throws Exception{
+    String[] truncated = new String[]{
+      "",
+      "[",
+      "[1,",
+      "{",
+      "{\"name\"",
+      "{\"name\":",
+      "{\"name\": \"val",
+      "[\"esc\\",
+      "[\"esc\\u00",
+      "{\"a\": [1, {\"b\": 2}"
+    };
+    for(String json: truncated){
+      try{
+        readAll(reader(json));
+        fail("Expected a JSONException for " + json);
+      }
+      catch(JSONException e){
+        // expected
+      }
+    }
+  }
+
+  public void testTrailingGarbage() throws Exception{
+    try{
+      readAll(reader("[1] 2"));
+      fail("Expected a JSONException");
+    }
+    catch(JSONException e){
+      // expected
+    }
+  }
+
+  public void testCancelled() throws Exception{
+    RequestCanceller canceller = new RequestCanceller();
+    JSONStreamReader reader = new JSONStreamReader(new StringReader("[1, 2, 3]"), canceller);
+    reader.beginArray();
+    assertTrue(reader.hasNext());
+    assertEquals(1, reader.nextInt());
+    canceller.cancel();
+    try{
+      reader.hasNext();
+      fail("Expected an InterruptedIOException");
+    }
+    catch(InterruptedIOException e){
+      // expected
+    }
+  }
+
+  /** Reads the whole document, skipping over every value. */
+  private static void readAll(JSONStreamReader reader) throws IOException, JSONException{
+    reader.skipValue();
+    reader.peek();
+    if(reader.peek() != JSONStreamReader.Token.END_DOCUMENT){
+      throw new JSONException("Expected end of document");
+    }
+  }
+}
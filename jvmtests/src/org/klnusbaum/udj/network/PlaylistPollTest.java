@@ -0,0 +1,138 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Polls a stub server for the active playlist the way PlaylistFragment
+ * does, with the conditional GET ServerConnection sends.
+ */
+public class PlaylistPollTest extends TestCase{
+
+  private StubServer server;
+  private DefaultHttpClient client;
+  private URI uri;
+  /** What the stub server is currently serving. */
+  private volatile String serverETag = "\"v1\"";
+  private volatile int serverStatus = 200;
+
+  private final PollInterval interval = new PollInterval();
+  /** The ETag of the last playlist we got, like RESTProcessor keeps. */
+  private String eTag;
+
+  @Override
+  protected void setUp() throws Exception{
+    server = new StubServer(new StubServer.Responder(){
+      public void respond(HttpExchange exchange, int number) throws IOException{
+        String current = serverETag;
+        if(serverStatus != 200){
+          StubServer.send(exchange, serverStatus, "{\"detail\": \"broken\"}");
+        }
+        else if(current.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))){
+          StubServer.send(exchange, 304, null);
+        }
+        else{
+          StubServer.send(exchange, 200, "{\"version\": " + current + "}", "ETag", current);
+        }
+      }
+    });
+    client = StubServer.newClient();
+    uri = server.uri("/udj/0_6/players/1/active_playlist");
+  }
+
+  @Override
+  protected void tearDown() throws Exception{
+    client.getConnectionManager().shutdown();
+    server.stop();
+  }
+
+  /** Polls once, returning how long to wait before polling again. */
+  private long poll() throws IOException{
+    HashSet<Header> headers = new HashSet<Header>();
+    ConditionalGet.addIfNoneMatch(eTag, headers);
+    HttpGet get = new HttpGet(uri);
+    for(Header header: headers){
+      get.addHeader(header);
+    }
+    HttpResponse resp = client.execute(get);
+    try{
+      if(ConditionalGet.isNotModified(eTag, resp)){
+        return interval.unchanged();
+      }
+      if(resp.getStatusLine().getStatusCode() != 200){
+        return interval.failed();
+      }
+      eTag = resp.getFirstHeader("ETag").getValue();
+      return interval.changed();
+    }
+    finally{
+      if(resp.getEntity() != null){
+        EntityUtils.toString(resp.getEntity());
+      }
+    }
+  }
+
+  public void testFirstPollSendsNoValidator() throws Exception{
+    assertEquals(PollInterval.MIN_INTERVAL, poll());
+    assertNull(server.getRequestHeaders(1).getFirst("If-None-Match"));
+    assertEquals("\"v1\"", eTag);
+  }
+
+  public void testNotModifiedIsUnchanged() throws Exception{
+    poll();
+    assertEquals(4500, poll());
+    assertEquals("\"v1\"", server.getRequestHeaders(2).getFirst("If-None-Match"));
+    assertEquals(6750, poll());
+    assertEquals("\"v1\"", server.getRequestHeaders(3).getFirst("If-None-Match"));
+  }
+
+  public void testChangeResetsInterval() throws Exception{
+    poll();
+    poll();
+    poll();
+    serverETag = "\"v2\"";
+    assertEquals(PollInterval.MIN_INTERVAL, poll());
+    assertEquals("\"v1\"", server.getRequestHeaders(4).getFirst("If-None-Match"));
+    assertEquals("\"v2\"", eTag);
+    assertEquals(4500, poll());
+    assertEquals("\"v2\"", server.getRequestHeaders(5).getFirst("If-None-Match"));
+  }
+
+  public void testErrorBacksOffFaster() throws Exception{
+    poll();
+    serverStatus = 500;
+    assertEquals(6000, poll());
+    assertEquals(12000, poll());
+    serverStatus = 200;
+    assertEquals(18000, poll());
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import junit.framework.TestCase;
+
+public class PollIntervalTest extends TestCase{
+
+  public void testStartsAtMinimum(){
+    assertEquals(3000, new PollInterval().get());
+  }
+
+  public void testUnchangedBacksOff(){
+    PollInterval interval = new PollInterval();
+    assertEquals(4500, interval.unchanged());
+    assertEquals(6750, interval.unchanged());
+    assertEquals(6750, interval.get());
+  }
+
+  public void testFailedBacksOffFaster(){
+    PollInterval interval = new PollInterval();
+    assertEquals(6000, interval.failed());
+    assertEquals(12000, interval.failed());
+  }
+
+  public void testCapped(){
+    PollInterval interval = new PollInterval();
+    for(int i = 0; i < 20; ++i){
+      interval.unchanged();
+    }
+    assertEquals(PollInterval.MAX_INTERVAL, interval.get());
+    assertEquals(PollInterval.MAX_INTERVAL, interval.failed());
+  }
+
+  public void testChangedResets(){
+    PollInterval interval = new PollInterval();
+    interval.failed();
+    interval.unchanged();
+    assertEquals(PollInterval.MIN_INTERVAL, interval.changed());
+    interval.unchanged();
+    interval.reset();
+    assertEquals(PollInterval.MIN_INTERVAL, interval.get());
+  }
+}
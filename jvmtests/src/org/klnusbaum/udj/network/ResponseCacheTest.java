@@ -0,0 +1,306 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+public class ResponseCacheTest extends TestCase{
+
+  private static final URI URI_1 = URI.create("https://example.com/players/1/available_music/artists");
+
+  private File directory;
+  private ResponseCache cache;
+
+  private StubServer server;
+  private DefaultHttpClient client;
+  /** What the stub server is currently serving. */
+  private volatile String serverBody = "[\"The Beatles\"]";
+  private volatile String serverETag = "\"v1\"";
+  private volatile String serverLastModified = null;
+  private volatile String serverCacheControl = null;
+
+  @Override
+  protected void setUp() throws Exception{
+    directory = File.createTempFile("responsecache", "");
+    directory.delete();
+    cache = new ResponseCache(directory, 1024 * 1024);
+  }
+
+  @Override
+  protected void tearDown() throws Exception{
+    if(server != null){
+      client.getConnectionManager().shutdown();
+      server.stop();
+    }
+    cache.clear();
+    directory.delete();
+  }
+
+  private static byte[] body(int length){
+    byte[] body = new byte[length];
+    for(int i = 0; i < length; i++){
+      body[i] = (byte)('a' + i % 26);
+    }
+    return body;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException{
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[333];
+    int read;
+    while((read = in.read(buffer)) != -1){
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  private InputStream tee(byte[] body, RequestCanceller canceller){
+    return cache.cacheWhileReading(
+      URI_1,
+      new ResponseCache.Entry("\"v1\"", null, "UTF-8"),
+      new ByteArrayInputStream(body),
+      canceller);
+  }
+
+  public void testStoredOnceFullyRead() throws Exception{
+    byte[] body = body(10000);
+    InputStream in = tee(body, null);
+    assertNull(cache.get(URI_1));
+    assertTrue(Arrays.equals(body, readFully(in)));
+
+    ResponseCache.Entry entry = cache.get(URI_1);
+    assertNotNull(entry);
+    assertEquals("\"v1\"", entry.eTag);
+    assertNull(entry.lastModified);
+    assertEquals("UTF-8", entry.charset);
+    assertTrue(Arrays.equals(body, readFully(cache.openBody(URI_1))));
+  }
+
+  public void testRestReadOnClose() throws Exception{
+    byte[] body = body(10000);
+    InputStream in = tee(body, null);
+    in.read(new byte[100]);
+    in.close();
+    assertTrue(Arrays.equals(body, readFully(cache.openBody(URI_1))));
+  }
+
+  public void testNotStoredWhenCancelled() throws Exception{
+    RequestCanceller canceller = new RequestCanceller();
+    InputStream in = tee(body(10000), canceller);
+    in.read(new byte[100]);
+    canceller.cancel();
+    in.close();
+    assertNull(cache.get(URI_1));
+    assertEquals(0, cache.getSize());
+  }
+
+  public void testNotStoredWhenReadFails() throws Exception{
+    InputStream failing = new InputStream(){
+      private int count = 0;
+
+      public int read() throws IOException{
+        if(++count > 500){
+          throw new IOException("Connection reset");
+        }
+        return 'x';
+      }
+    };
+    InputStream in = cache.cacheWhileReading(
+      URI_1, new ResponseCache.Entry(null, "yesterday", null), failing, null);
+    try{
+      readFully(in);
+      fail("Expected an IOException");
+    }
+    catch(IOException e){
+      // expected
+    }
+    in.close();
+    assertNull(cache.get(URI_1));
+    assertEquals(0, directory.list().length);
+  }
+
+  public void testReplacesOldEntry() throws Exception{
+    readFully(tee(body(5000), null));
+    long firstSize = cache.getSize();
+    byte[] second = body(200);
+    readFully(cache.cacheWhileReading(
+      URI_1, new ResponseCache.Entry("\"v2\"", null, null), new ByteArrayInputStream(second), null));
+    assertEquals("\"v2\"", cache.get(URI_1).eTag);
+    assertTrue(Arrays.equals(second, readFully(cache.openBody(URI_1))));
+    assertTrue(cache.getSize() < firstSize);
+    assertEquals(1, directory.list().length);
+  }
+
+  public void testEvictsToStayUnderMaxSize() throws Exception{
+    cache = new ResponseCache(directory, 15000);
+    for(int i = 0; i < 5; i++){
+      URI uri = URI.create("https://example.com/players/1/available_music/artists/" + i);
+      readFully(cache.cacheWhileReading(
+        uri, new ResponseCache.Entry(null, null, null), new ByteArrayInputStream(body(5000)), null));
+    }
+    assertTrue(cache.getSize() <= 15000);
+    assertTrue(cache.getSize() > 0);
+  }
+
+  public void testIsCacheable(){
+    assertTrue(cache.isCacheable(URI_1));
+    assertTrue(cache.isCacheable(URI.create("https://example.com/players/1/recently_played")));
+    assertFalse(cache.isCacheable(URI.create("https://example.com/players/1/active_playlist")));
+  }
+
+  /**
+   * Starts a server that answers with a 304 when it's sent validators
+   * matching what it's serving, and with the whole body otherwise.
+   */
+  private URI startServer() throws IOException{
+    server = new StubServer(new StubServer.Responder(){
+      public void respond(HttpExchange exchange, int number) throws IOException{
+        String eTag = serverETag;
+        String lastModified = serverLastModified;
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if((eTag != null && eTag.equals(ifNoneMatch)) ||
+          (eTag == null && lastModified != null && lastModified.equals(ifModifiedSince)))
+        {
+          StubServer.send(exchange, 304, null);
+          return;
+        }
+        String[] headers = new String[]{"Content-Type", "application/json; charset=UTF-8"};
+        if(eTag != null){
+          headers = append(headers, "ETag", eTag);
+        }
+        if(lastModified != null){
+          headers = append(headers, "Last-Modified", lastModified);
+        }
+        if(serverCacheControl != null){
+          headers = append(headers, "Cache-Control", serverCacheControl);
+        }
+        StubServer.send(exchange, 200, serverBody, headers);
+      }
+    });
+    client = StubServer.newClient();
+    return server.uri("/udj/0_6/players/1/available_music/artists");
+  }
+
+  private static String[] append(String[] headers, String name, String value){
+    String[] appended = Arrays.copyOf(headers, headers.length + 2);
+    appended[headers.length] = name;
+    appended[headers.length + 1] = value;
+    return appended;
+  }
+
+  /** Does a get through the cache the way ServerConnection does. */
+  private String cachedGet(URI uri) throws IOException{
+    HashSet<Header> headers = new HashSet<Header>();
+    ResponseCache.Entry cached = cache.addValidators(uri, headers);
+    HttpGet get = new HttpGet(uri);
+    for(Header header: headers){
+      get.addHeader(header);
+    }
+    HttpResponse resp = client.execute(get);
+    InputStream body;
+    if(cache.isNotModified(cached, resp)){
+      if(resp.getEntity() != null){
+        resp.getEntity().consumeContent();
+      }
+      body = cache.openRevalidated(uri);
+    }
+    else{
+      assertEquals(200, resp.getStatusLine().getStatusCode());
+      body = cache.storeWhileReading(uri, resp, resp.getEntity().getContent(), null);
+    }
+    return new String(readFully(body), "UTF-8");
+  }
+
+  public void testFirstGetIsStored() throws Exception{
+    URI uri = startServer();
+    assertEquals(serverBody, cachedGet(uri));
+    assertNull(server.getRequestHeaders(1).getFirst("If-None-Match"));
+    assertNull(server.getRequestHeaders(1).getFirst("If-Modified-Since"));
+    assertEquals(1, cache.getMissCount());
+    assertEquals(0, cache.getHitCount());
+    assertEquals("\"v1\"", cache.get(uri).eTag);
+    assertEquals("UTF-8", cache.get(uri).charset);
+  }
+
+  public void testNotModifiedServedFromStore() throws Exception{
+    URI uri = startServer();
+    String first = cachedGet(uri);
+    assertEquals(first, cachedGet(uri));
+    assertEquals("\"v1\"", server.getRequestHeaders(2).getFirst("If-None-Match"));
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getRevalidateCount());
+  }
+
+  public void testIfModifiedSince() throws Exception{
+    serverETag = null;
+    serverLastModified = "Fri, 01 Jun 2012 12:00:00 GMT";
+    URI uri = startServer();
+    String first = cachedGet(uri);
+    assertEquals(first, cachedGet(uri));
+    assertNull(server.getRequestHeaders(2).getFirst("If-None-Match"));
+    assertEquals(serverLastModified, server.getRequestHeaders(2).getFirst("If-Modified-Since"));
+    assertEquals(1, cache.getRevalidateCount());
+    assertEquals(1, cache.getHitCount());
+  }
+
+  public void testChangedResponseReplacesEntry() throws Exception{
+    URI uri = startServer();
+    cachedGet(uri);
+    serverBody = "[\"The Beatles\", \"The Kinks\"]";
+    serverETag = "\"v2\"";
+    assertEquals(serverBody, cachedGet(uri));
+    assertEquals("\"v1\"", server.getRequestHeaders(2).getFirst("If-None-Match"));
+    assertEquals(2, cache.getMissCount());
+    assertEquals(0, cache.getHitCount());
+    assertEquals("\"v2\"", cache.get(uri).eTag);
+
+    assertEquals(serverBody, cachedGet(uri));
+    assertEquals("\"v2\"", server.getRequestHeaders(3).getFirst("If-None-Match"));
+    assertEquals(1, cache.getHitCount());
+  }
+
+  public void testNoStoreNotKept() throws Exception{
+    serverCacheControl = "private, no-store";
+    URI uri = startServer();
+    cachedGet(uri);
+    assertNull(cache.get(uri));
+    cachedGet(uri);
+    assertNull(server.getRequestHeaders(2).getFirst("If-None-Match"));
+    assertEquals(2, cache.getMissCount());
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * An HTTP server on localhost for tests to point a real HttpClient at. Each
+ * request is answered by the test's Responder on a thread of its own, and
+ * the headers of every request are kept so tests can check what was sent.
+ */
+class StubServer{
+
+  interface Responder{
+    /**
+     * Answers the request, which is the number'th one the server has got,
+     * counting from one.
+     */
+    void respond(HttpExchange exchange, int number) throws IOException;
+  }
+
+  private final HttpServer server;
+  private final ExecutorService threads = Executors.newCachedThreadPool();
+  private final AtomicInteger received = new AtomicInteger();
+  private final List<Headers> requestHeaders = new ArrayList<Headers>();
+
+  public StubServer(final Responder responder) throws IOException{
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(threads);
+    server.createContext("/", new HttpHandler(){
+      public void handle(HttpExchange exchange) throws IOException{
+        synchronized(requestHeaders){
+          requestHeaders.add(exchange.getRequestHeaders());
+        }
+        responder.respond(exchange, received.incrementAndGet());
+      }
+    });
+    server.start();
+  }
+
+  /** A uri on this server with the given path. */
+  public URI uri(String path){
+    return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+  }
+
+  public int getRequestCount(){
+    return received.get();
+  }
+
+  /** The headers of the number'th request, counting from one. */
+  public Headers getRequestHeaders(int number){
+    synchronized(requestHeaders){
+      return requestHeaders.get(number - 1);
+    }
+  }
+
+  public void stop(){
+    server.stop(0);
+    threads.shutdownNow();
+  }
+
+  /** A client that can have several requests to this server going at once. */
+  public static DefaultHttpClient newClient(){
+    HttpParams params = new BasicHttpParams();
+    ConnManagerParams.setMaxTotalConnections(params, 20);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(10));
+    SchemeRegistry schemes = new SchemeRegistry();
+    schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    return new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemes), params);
+  }
+
+  /** Sends a response with the given status, headers and body. */
+  public static void send(HttpExchange exchange, int status, String body, String... headers)
+    throws IOException
+  {
+    for(int i = 0; i + 1 < headers.length; i += 2){
+      exchange.getResponseHeaders().add(headers[i], headers[i + 1]);
+    }
+    if(body == null){
+      exchange.sendResponseHeaders(status, -1);
+      exchange.close();
+      return;
+    }
+    byte[] bytes = body.getBytes("UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+}
@@ -48,15 +48,31 @@ public class ArtistSearchLoader extends MusicSearchLoader{
   }
 
   @Override
-  protected MusicSearchResult doSearch(String playerId, String authToken) throws
+  protected String getQuery(){
+    return artistQuery;
+  }
+
+  @Override
+  protected String getResource(String query, int limit){
+    if(query == null || query.equals("")){
+      return null;
+    }
+    return "artist:" + query;
+  }
+
+  @Override
+  protected List<LibraryEntry> doSearch(
+    String playerId, String authToken, String query, int limit) throws
     JSONException, ParseException, IOException, AuthenticationException, PlayerInactiveException,
     NoLongerInPlayerException, KickedException
   {
-    if(artistQuery != null && artistQuery != ""){
-        List<LibraryEntry> list =
-          ServerConnection.getSongsByArtists(artistQuery, playerId, authToken);
-        return new MusicSearchResult(list);
-    }
-    return new MusicSearchResult(null, MusicSearchError.NO_SEARCH_ERROR);
+    return ServerConnection.getSongsByArtists(query, playerId, authToken);
+  }
+
+  @Override
+  protected List<LibraryEntry> getLocalResults(
+    LibraryIndex index, String playerId, String query)
+  {
+    return index.getByArtist(playerId, query);
   }
 }
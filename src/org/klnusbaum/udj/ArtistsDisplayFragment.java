@@ -66,6 +66,12 @@ public class ArtistsDisplayFragment extends ListFragment
     setListAdapter(artistsAdapter);
   }
 
+  @Override
+  public void setUserVisibleHint(boolean isVisibleToUser){
+    super.setUserVisibleHint(isVisibleToUser);
+    PriorityLoader.updatePriority(this, ARTISTS_LOADER_TAG);
+  }
+
   @Override
   public void onActivityCreated(Bundle savedInstanceState){
     super.onActivityCreated(savedInstanceState);
@@ -81,7 +87,9 @@ public class ArtistsDisplayFragment extends ListFragment
   {
     Log.d(TAG, "In creation of loader");
     if(id == ARTISTS_LOADER_TAG){
-      return new ArtistsLoader(getActivity(), getAccount());
+      ArtistsLoader loader = new ArtistsLoader(getActivity(), getAccount());
+      loader.setPriority(PriorityLoader.getPriority(this));
+      return loader;
     }
     return null;
   }
@@ -18,15 +18,10 @@
  */
 package org.klnusbaum.udj;
 
-import android.support.v4.content.AsyncTaskLoader;
-
 import android.content.Context;
-import android.util.Log;
-import android.accounts.OperationCanceledException;
-import android.accounts.AuthenticatorException;
-import android.accounts.AccountManager;
 import android.accounts.Account;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.io.IOException;
 
@@ -38,10 +33,11 @@ import org.apache.http.ParseException;
 import org.klnusbaum.udj.exceptions.NoLongerInPlayerException;
 import org.klnusbaum.udj.exceptions.KickedException;
 import org.klnusbaum.udj.exceptions.PlayerInactiveException;
+import org.klnusbaum.udj.network.PlayerSession;
 import org.klnusbaum.udj.network.ServerConnection;
 
 public class ArtistsLoader
-  extends AsyncTaskLoader<ArtistsLoader.ArtistsResult>
+  extends SessionLoader<ArtistsLoader.ArtistsResult>
 {
 
   public enum ArtistsError{
@@ -70,87 +66,30 @@ public class ArtistsLoader
 
   }
 
-  private Account account;
+  /** The list of artists hardly ever changes while we're in a player. */
+  static final long MAX_AGE = 10 * 60 * 1000;
+
+  static final PlayerSession.Fetcher<List<String>> FETCHER =
+    new PlayerSession.Fetcher<List<String>>(){
+      public List<String> fetch(String playerId, String authToken) throws
+        JSONException, ParseException, IOException, AuthenticationException,
+        PlayerInactiveException, NoLongerInPlayerException, KickedException
+      {
+        return ServerConnection.getArtists(playerId, authToken);
+      }
+    };
 
   public ArtistsLoader(Context context, Account account){
-    super(context);
-    this.account = account;
+    super(context, account);
   }
 
   public ArtistsResult loadInBackground(){
-
-    return attemptLoad(true);
-  }
-
-  private ArtistsResult attemptLoad(boolean attemptReauth){
-    AccountManager am = AccountManager.get(getContext());
-    String authToken = "";
-    try{
-      authToken = am.blockingGetAuthToken(account, "", true);
-    }
-    catch(IOException e){
-      //TODO this might actually be an auth error
-      return new ArtistsResult(null, 
-        ArtistsError.AUTHENTICATION_ERROR);
-    }
-    catch(AuthenticatorException e){
-      return new ArtistsResult(null, 
-        ArtistsError.AUTHENTICATION_ERROR);
-    }
-    catch(OperationCanceledException e){
-      return new ArtistsResult(null, 
-        ArtistsError.AUTHENTICATION_ERROR);
-    }
-
-    try{
-      String playerId = am.getUserData(account, Constants.LAST_PLAYER_ID_DATA);
-      return getArtists(playerId, authToken);
-    }
-    catch(JSONException e){
-      return new ArtistsResult(null, 
-        ArtistsError.SERVER_ERROR);
-    }
-    catch(ParseException e){
-      return new ArtistsResult(null, ArtistsError.SERVER_ERROR);
+    PlayerSession.Result<List<String>> loaded =
+      loadResource(PlayerSession.ARTISTS, MAX_AGE, FETCHER);
+    if(loaded.error != PlayerSession.Error.NO_ERROR){
+      return new ArtistsResult(null, ArtistsError.valueOf(loaded.error.name()));
     }
-    catch(IOException e){
-      return new ArtistsResult(null, ArtistsError.SERVER_ERROR);
-    }
-    catch(AuthenticationException e){
-      if(attemptReauth){
-        Log.d(TAG, "soft auth failure");
-        am.invalidateAuthToken(Constants.ACCOUNT_TYPE, authToken);
-        return attemptLoad(false);
-      }
-      else{
-        Log.d(TAG, "hard auth failure");
-        return new ArtistsResult(null, ArtistsError.AUTHENTICATION_ERROR);
-      }
-    }
-    catch(PlayerInactiveException e){
-      return new ArtistsResult(null, ArtistsError.PLAYER_INACTIVE_ERROR);
-    }
-    catch (NoLongerInPlayerException e) {
-      return new ArtistsResult(null, ArtistsError.NO_LONGER_IN_PLAYER_ERROR);
-    }
-    catch (KickedException e){
-      return new ArtistsResult(null, ArtistsError.KICKED_ERROR);
-    }
-
-  }
-
-  @Override
-  protected void onStartLoading(){
-    forceLoad();
-  }
-
-  protected ArtistsResult getArtists(String playerId, String authToken) throws
-    JSONException, ParseException, IOException, AuthenticationException,
-    PlayerInactiveException, NoLongerInPlayerException, KickedException
-  {
-    List<String> list =
-        ServerConnection.getArtists(playerId, authToken);
-    return new ArtistsResult(list);
+    return new ArtistsResult(
+      loaded.value != null ? new ArrayList<String>(loaded.value) : null);
   }
 }
-
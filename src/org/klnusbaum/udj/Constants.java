@@ -53,6 +53,9 @@ public class Constants{
 
   public static final String PLAYER_VOLUME_DATA = "org.klnusbaum.udj.PlayerVolume";
 
+  public static final String LIBRARY_INDEX_ENABLED_DATA =
+    "org.klnusbaum.udj.LibraryIndexEnabled";
+
   /** Constants use for passing account related info in intents */
   public static final String ACCOUNT_EXTRA = "org.klnusbaum.udj.account";
   public static final String PLAYER_ID_EXTRA = "org.klnusbaum.udj.PlayerId";
@@ -68,6 +71,14 @@ public class Constants{
   public static final String PLAYER_JOIN_ERROR_EXTRA = "org.klnusbaum.udj.PlayerJoinError";
   public static final String PLAYER_EXTRA = "org.klnusbaum.udj.Player";
   public static final String PLAYER_PASSWORD_EXTRA = "org.klnusbaum.udj.PlayerPassword";
+  public static final String FORCE_REFRESH_EXTRA = "org.klnusbaum.udj.ForceRefresh";
+  /**
+   * Set along with FORCE_REFRESH_EXTRA when the user asked for the refresh,
+   * as opposed to a poll or a reload we started ourselves.
+   */
+  public static final String USER_REFRESH_EXTRA = "org.klnusbaum.udj.UserRefresh";
+  /** The id of the PlaylistOverlay mutation a playlist action was made for. */
+  public static final String MUTATION_ID_EXTRA = "org.klnusbaum.udj.MutationId";
 
 
   /** Constants for actions used throughout */
@@ -111,4 +122,6 @@ public class Constants{
   public static final String BROADCAST_SET_CURRENT_COMPLETE = "org.klnusbaum.udj.SetCurrentComplete";
   public static final String BROADCAST_REMOVE_SONG_COMPLETE = "org.klnusbaum.udj.RemoveSongComplete";
 
+  public static final String ACTION_RETRY_ACTIONS = "org.klnusbaum.udj.RetryActions";
+
 }
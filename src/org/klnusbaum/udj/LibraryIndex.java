@@ -0,0 +1,344 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.klnusbaum.udj.containers.LibraryEntry;
+
+/**
+ * A local, full text searchable copy of the parts of a player's library we've
+ * already seen. Every search, artist and random result that comes back from
+ * the server is added to it so that later searches can be answered right away
+ * (or at all when we're offline) while the real query is still in flight.
+ *
+ * Songs are stored in a regular table keyed by player and library id, with an
+ * FTS3 table alongside it holding the searchable text. Each player keeps at
+ * most MAX_ENTRIES_PER_PLAYER songs, dropping the ones seen least recently,
+ * and players we haven't seen anything from in PLAYER_EXPIRY are dropped
+ * entirely.
+ */
+public class LibraryIndex extends SQLiteOpenHelper{
+  private static final String TAG = "LibraryIndex";
+
+  private static final String DATABASE_NAME = "library_index.db";
+  private static final int DATABASE_VERSION = 1;
+
+  private static final String LIBRARY_TABLE = "library";
+  private static final String SEARCH_TABLE = "library_search";
+
+  private static final String ID_COLUMN = "_id";
+  private static final String PLAYER_ID_COLUMN = "player_id";
+  private static final String LIB_ID_COLUMN = "lib_id";
+  private static final String TITLE_COLUMN = "title";
+  private static final String ARTIST_COLUMN = "artist";
+  private static final String ALBUM_COLUMN = "album";
+  private static final String DURATION_COLUMN = "duration";
+  private static final String LAST_SEEN_COLUMN = "last_seen";
+
+  public static final int MAX_ENTRIES_PER_PLAYER = 20000;
+  public static final int MAX_RESULTS = 200;
+  private static final long PLAYER_EXPIRY = 30L * 24 * 60 * 60 * 1000;
+
+  private static final String[] RESULT_COLUMNS = new String[]{
+    "l." + LIB_ID_COLUMN,
+    "l." + TITLE_COLUMN,
+    "l." + ARTIST_COLUMN,
+    "l." + ALBUM_COLUMN,
+    "l." + DURATION_COLUMN
+  };
+
+  private static LibraryIndex instance;
+
+  private final int maxEntriesPerPlayer;
+
+  public static synchronized LibraryIndex get(Context context){
+    if(instance == null){
+      instance = new LibraryIndex(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private LibraryIndex(Context context){
+    this(context, DATABASE_NAME, MAX_ENTRIES_PER_PLAYER);
+  }
+
+  /**
+   * For tests. A null name gives an in memory database.
+   */
+  LibraryIndex(Context context, String name, int maxEntriesPerPlayer){
+    super(context, name, null, DATABASE_VERSION);
+    this.maxEntriesPerPlayer = maxEntriesPerPlayer;
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db){
+    db.execSQL("CREATE TABLE " + LIBRARY_TABLE + "(" +
+      ID_COLUMN + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+      PLAYER_ID_COLUMN + " TEXT NOT NULL, " +
+      LIB_ID_COLUMN + " TEXT NOT NULL, " +
+      TITLE_COLUMN + " TEXT, " +
+      ARTIST_COLUMN + " TEXT, " +
+      ALBUM_COLUMN + " TEXT, " +
+      DURATION_COLUMN + " INTEGER, " +
+      LAST_SEEN_COLUMN + " INTEGER NOT NULL, " +
+      "UNIQUE(" + PLAYER_ID_COLUMN + ", " + LIB_ID_COLUMN + "));");
+    db.execSQL("CREATE INDEX library_last_seen ON " + LIBRARY_TABLE + "(" +
+      PLAYER_ID_COLUMN + ", " + LAST_SEEN_COLUMN + ");");
+    db.execSQL("CREATE VIRTUAL TABLE " + SEARCH_TABLE + " USING fts3(" +
+      TITLE_COLUMN + ", " + ARTIST_COLUMN + ", " + ALBUM_COLUMN + ");");
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion){
+    db.execSQL("DROP TABLE IF EXISTS " + SEARCH_TABLE);
+    db.execSQL("DROP TABLE IF EXISTS " + LIBRARY_TABLE);
+    onCreate(db);
+  }
+
+  /**
+   * Adds or refreshes the given songs for a player and then applies the
+   * eviction policy.
+   */
+  public void addEntries(String playerId, List<LibraryEntry> entries){
+    if(playerId == null || entries == null || entries.size() == 0){
+      return;
+    }
+    long now = System.currentTimeMillis();
+    try{
+      SQLiteDatabase db = getWritableDatabase();
+      SQLiteStatement findExisting = db.compileStatement(
+        "SELECT " + ID_COLUMN + " FROM " + LIBRARY_TABLE + " WHERE " +
+        PLAYER_ID_COLUMN + "=? AND " + LIB_ID_COLUMN + "=?");
+      db.beginTransaction();
+      try{
+        for(LibraryEntry entry: entries){
+          findExisting.bindString(1, playerId);
+          findExisting.bindString(2, entry.getId());
+          long rowId;
+          try{
+            rowId = findExisting.simpleQueryForLong();
+          }
+          catch(SQLException e){
+            rowId = -1;
+          }
+
+          ContentValues libraryValues = new ContentValues();
+          libraryValues.put(TITLE_COLUMN, entry.title);
+          libraryValues.put(ARTIST_COLUMN, entry.artist);
+          libraryValues.put(ALBUM_COLUMN, entry.album);
+          libraryValues.put(DURATION_COLUMN, entry.duration);
+          libraryValues.put(LAST_SEEN_COLUMN, now);
+          ContentValues searchValues = new ContentValues();
+          searchValues.put(TITLE_COLUMN, entry.title);
+          searchValues.put(ARTIST_COLUMN, entry.artist);
+          searchValues.put(ALBUM_COLUMN, entry.album);
+
+          if(rowId == -1){
+            libraryValues.put(PLAYER_ID_COLUMN, playerId);
+            libraryValues.put(LIB_ID_COLUMN, entry.getId());
+            rowId = db.insert(LIBRARY_TABLE, null, libraryValues);
+            searchValues.put("docid", rowId);
+            db.insert(SEARCH_TABLE, null, searchValues);
+          }
+          else{
+            String[] rowArgs = new String[]{String.valueOf(rowId)};
+            db.update(LIBRARY_TABLE, libraryValues, ID_COLUMN + "=?", rowArgs);
+            db.update(SEARCH_TABLE, searchValues, "docid=?", rowArgs);
+          }
+        }
+        evict(db, playerId, now);
+        db.setTransactionSuccessful();
+      }
+      finally{
+        db.endTransaction();
+        findExisting.close();
+      }
+    }
+    catch(SQLException e){
+      Log.e(TAG, "Couldn't add entries to the library index", e);
+    }
+  }
+
+  /**
+   * Returns the songs for a player whose title, artist or album contain
+   * words starting with each of the words in the query.
+   */
+  public List<LibraryEntry> search(String playerId, String query){
+    String match = toMatchExpression(query, null);
+    if(playerId == null || match == null){
+      return null;
+    }
+    return query(match, playerId);
+  }
+
+  /**
+   * Returns the songs we know about for a particular artist on a player.
+   */
+  public List<LibraryEntry> getByArtist(String playerId, String artist){
+    String match = toMatchExpression(artist, ARTIST_COLUMN);
+    if(playerId == null || match == null){
+      return null;
+    }
+    List<LibraryEntry> candidates = query(match, playerId);
+    if(candidates == null){
+      return null;
+    }
+    List<LibraryEntry> toReturn = new ArrayList<LibraryEntry>();
+    for(LibraryEntry entry: candidates){
+      if(artist.equalsIgnoreCase(entry.artist)){
+        toReturn.add(entry);
+      }
+    }
+    return toReturn;
+  }
+
+  public void removePlayer(String playerId){
+    try{
+      SQLiteDatabase db = getWritableDatabase();
+      db.beginTransaction();
+      try{
+        String[] args = new String[]{playerId};
+        db.delete(SEARCH_TABLE, "docid IN (SELECT " + ID_COLUMN + " FROM " +
+          LIBRARY_TABLE + " WHERE " + PLAYER_ID_COLUMN + "=?)", args);
+        db.delete(LIBRARY_TABLE, PLAYER_ID_COLUMN + "=?", args);
+        db.setTransactionSuccessful();
+      }
+      finally{
+        db.endTransaction();
+      }
+    }
+    catch(SQLException e){
+      Log.e(TAG, "Couldn't remove player from the library index", e);
+    }
+  }
+
+  public void clear(){
+    try{
+      SQLiteDatabase db = getWritableDatabase();
+      db.beginTransaction();
+      try{
+        db.delete(SEARCH_TABLE, null, null);
+        db.delete(LIBRARY_TABLE, null, null);
+        db.setTransactionSuccessful();
+      }
+      finally{
+        db.endTransaction();
+      }
+    }
+    catch(SQLException e){
+      Log.e(TAG, "Couldn't clear the library index", e);
+    }
+  }
+
+  private List<LibraryEntry> query(String match, String playerId){
+    Cursor cursor = null;
+    try{
+      SQLiteDatabase db = getReadableDatabase();
+      cursor = db.query(
+        LIBRARY_TABLE + " l JOIN " + SEARCH_TABLE + " s ON s.docid = l." + ID_COLUMN,
+        RESULT_COLUMNS,
+        SEARCH_TABLE + " MATCH ? AND l." + PLAYER_ID_COLUMN + "=?",
+        new String[]{match, playerId},
+        null,
+        null,
+        "l." + TITLE_COLUMN + " COLLATE NOCASE",
+        String.valueOf(MAX_RESULTS));
+      List<LibraryEntry> toReturn = new ArrayList<LibraryEntry>(cursor.getCount());
+      while(cursor.moveToNext()){
+        toReturn.add(new LibraryEntry(
+          cursor.getString(0),
+          cursor.getString(1),
+          cursor.getString(2),
+          cursor.getString(3),
+          cursor.getInt(4)));
+      }
+      return toReturn;
+    }
+    catch(SQLException e){
+      Log.e(TAG, "Couldn't query the library index", e);
+      return null;
+    }
+    finally{
+      if(cursor != null){
+        cursor.close();
+      }
+    }
+  }
+
+  /**
+   * Trims the given player down to maxEntriesPerPlayer and drops every
+   * entry, for any player, that hasn't been seen within PLAYER_EXPIRY.
+   */
+  private void evict(SQLiteDatabase db, String playerId, long now){
+    SQLiteStatement countEntries = db.compileStatement(
+      "SELECT COUNT(*) FROM " + LIBRARY_TABLE + " WHERE " + PLAYER_ID_COLUMN + "=?");
+    countEntries.bindString(1, playerId);
+    long count = countEntries.simpleQueryForLong();
+    countEntries.close();
+    if(count > maxEntriesPerPlayer){
+      String oldest = "SELECT " + ID_COLUMN + " FROM " + LIBRARY_TABLE +
+        " WHERE " + PLAYER_ID_COLUMN + "=? ORDER BY " + LAST_SEEN_COLUMN +
+        " LIMIT " + (count - maxEntriesPerPlayer);
+      String[] args = new String[]{playerId};
+      db.delete(SEARCH_TABLE, "docid IN (" + oldest + ")", args);
+      db.delete(LIBRARY_TABLE, ID_COLUMN + " IN (" + oldest + ")", args);
+    }
+
+    String[] expiredArgs = new String[]{String.valueOf(now - PLAYER_EXPIRY)};
+    db.delete(SEARCH_TABLE, "docid IN (SELECT " + ID_COLUMN + " FROM " +
+      LIBRARY_TABLE + " WHERE " + LAST_SEEN_COLUMN + "<?)", expiredArgs);
+    db.delete(LIBRARY_TABLE, LAST_SEEN_COLUMN + "<?", expiredArgs);
+  }
+
+  /**
+   * Turns a user's query into an FTS3 match expression where every word is
+   * treated as a prefix, optionally restricted to a single column. Anything
+   * that isn't a letter or digit is dropped so the user can't accidentally
+   * write FTS syntax.
+   */
+  private static String toMatchExpression(String query, String column){
+    if(query == null){
+      return null;
+    }
+    StringBuilder match = new StringBuilder();
+    for(String word: query.split("[^\\p{L}\\p{N}]+")){
+      if(word.length() > 0){
+        if(match.length() > 0){
+          match.append(' ');
+        }
+        if(column != null){
+          match.append(column).append(':');
+        }
+        match.append(word).append('*');
+      }
+    }
+    return match.length() > 0 ? match.toString() : null;
+  }
+}
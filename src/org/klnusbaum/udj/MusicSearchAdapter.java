@@ -29,6 +29,7 @@ import android.view.LayoutInflater;
 import android.widget.Toast;
 import android.content.Intent;
 import android.accounts.Account;
+import android.accounts.AccountManager;
 import android.app.SearchManager;
 import android.graphics.Color;
 import android.text.Html;
@@ -36,6 +37,8 @@ import android.text.Html;
 import java.util.List;
 
 import org.klnusbaum.udj.containers.LibraryEntry;
+import org.klnusbaum.udj.containers.User;
+import org.klnusbaum.udj.network.PlaylistOverlay;
 import org.klnusbaum.udj.network.PlaylistSyncService;
 
 public class MusicSearchAdapter extends StringIdableAdapter<LibraryEntry>{
@@ -72,6 +75,11 @@ public class MusicSearchAdapter extends StringIdableAdapter<LibraryEntry>{
     return LIB_ENTRY_VIEW_TYPE;
   }
 
+  @Override
+  protected boolean isSameContent(LibraryEntry oldItem, LibraryEntry newItem){
+    return oldItem.hasSameContent(newItem);
+  }
+
   public View getView(int position, View convertView, ViewGroup parent){
     //TODO should probably enforce view type
     final LibraryEntry libEntry = getLibraryEntry(position);
@@ -117,6 +125,10 @@ public class MusicSearchAdapter extends StringIdableAdapter<LibraryEntry>{
             PlaylistSyncService.class);
           addSongIntent.putExtra(Constants.ACCOUNT_EXTRA, account);
           addSongIntent.putExtra(Constants.LIB_ID_EXTRA, libEntry.getId());
+          String userId = AccountManager.get(context).getUserData(
+            account, Constants.USER_ID_DATA);
+          addSongIntent.putExtra(Constants.MUTATION_ID_EXTRA,
+            PlaylistOverlay.add(libEntry, new User(userId)));
           context.startService(addSongIntent);
           libEntry.setIsAdded(true);
           notifyDataSetChanged();
@@ -18,15 +18,14 @@
  */
 package org.klnusbaum.udj;
 
-import android.support.v4.content.AsyncTaskLoader;
-
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
-import android.accounts.OperationCanceledException;
-import android.accounts.AuthenticatorException;
 import android.accounts.AccountManager;
 import android.accounts.Account;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.io.IOException;
 
@@ -36,12 +35,13 @@ import org.apache.http.auth.AuthenticationException;
 import org.apache.http.ParseException;
 
 import org.klnusbaum.udj.containers.LibraryEntry;
+import org.klnusbaum.udj.network.PlayerSession;
 import org.klnusbaum.udj.exceptions.NoLongerInPlayerException;
 import org.klnusbaum.udj.exceptions.PlayerInactiveException;
 import org.klnusbaum.udj.exceptions.KickedException;
 
 public abstract class MusicSearchLoader 
-  extends AsyncTaskLoader<MusicSearchLoader.MusicSearchResult>
+  extends SessionLoader<MusicSearchLoader.MusicSearchResult>
 {
 
   public enum MusicSearchError{
@@ -55,18 +55,54 @@ public abstract class MusicSearchLoader
   };
   private static final String TAG = "MusicSearchLoader";
 
+  /**
+   * How many more results to ask for each time the list nears its end.
+   *
+   * The server's search API takes a limit but no offset, so for now every
+   * page asks for all of the results before it again along with the new
+   * ones. That's only meant to last until the API grows an offset, at which
+   * point loadMore should fetch just the next page and append it.
+   */
+  public static final int PAGE_SIZE = 50;
+  /**
+   * The most results we'll ever hold on to for one search, since each page
+   * costs more than the last. Past this the user is told to refine their
+   * query instead, see MusicSearchResult.isCapped.
+   */
+  public static final int MAX_RESULTS = 500;
+
   public static class MusicSearchResult{
     private List<LibraryEntry> res;
     private MusicSearchError error;
+    private boolean hasMore;
+    private boolean capped;
 
     public MusicSearchResult(List<LibraryEntry> res){
       this.res = res;
       this.error = MusicSearchError.NO_ERROR;
+      this.hasMore = false;
     }
 
     public MusicSearchResult(List<LibraryEntry> res, MusicSearchError error){
       this.res = res;
       this.error = error;
+      this.hasMore = false;
+    }
+
+    /**
+     * Whether the server probably has more results than the ones we got,
+     * in which case MusicSearchLoader.loadMore will fetch them.
+     */
+    public boolean hasMore(){
+      return hasMore;
+    }
+
+    /**
+     * Whether the server probably has more results but we've stopped asking
+     * for them because we're at MAX_RESULTS.
+     */
+    public boolean isCapped(){
+      return capped;
     }
 
     public List<LibraryEntry> getResults(){
@@ -78,79 +114,177 @@ public abstract class MusicSearchLoader
     }
   }
 
-  private Account account;
+  private Handler mainHandler;
+  private volatile int limit;
+  private boolean hasMore;
+  private boolean loadingMore;
 
   public MusicSearchLoader(Context context, Account account){
-    super(context);
-    this.account = account;
+    super(context, account);
+    this.mainHandler = new Handler(Looper.getMainLooper());
+    this.limit = PAGE_SIZE;
+    this.hasMore = false;
+    this.loadingMore = false;
   }
 
   public MusicSearchResult loadInBackground(){
-    return attemptSearch(true);
-  }
+    final int currentLimit = limit;
+    final String currentQuery = getQuery();
+    String resource = getResource(currentQuery, currentLimit);
+    if(resource == null){
+      return new MusicSearchResult(null, MusicSearchError.NO_SEARCH_ERROR);
+    }
 
-  private MusicSearchResult attemptSearch(boolean attemptReauth){
     AccountManager am = AccountManager.get(getContext());
-    String authToken = "";
-    try{
-      authToken = am.blockingGetAuthToken(account, "", true);
+    String playerId = am.getUserData(account, Constants.LAST_PLAYER_ID_DATA);
+    LibraryIndex index = null;
+    if(Utils.isLibraryIndexEnabled(am, account)){
+      index = LibraryIndex.get(getContext());
+      if(currentLimit == PAGE_SIZE){
+        deliverLocalResults(getLocalResults(index, playerId, currentQuery));
+      }
     }
-    catch(IOException e){
-      //TODO this might actually be an auth error
-      return new MusicSearchResult(null, 
-        MusicSearchError.AUTHENTICATION_ERROR);
+
+    PlayerSession.Result<List<LibraryEntry>> loaded = loadResource(resource, getMaxAge(),
+      new PlayerSession.Fetcher<List<LibraryEntry>>(){
+        public List<LibraryEntry> fetch(String playerId, String authToken) throws
+          JSONException, ParseException, IOException, AuthenticationException,
+          PlayerInactiveException, NoLongerInPlayerException, KickedException
+        {
+          return doSearch(playerId, authToken, currentQuery, currentLimit);
+        }
+      });
+    if(loaded.error != PlayerSession.Error.NO_ERROR){
+      return new MusicSearchResult(null, MusicSearchError.valueOf(loaded.error.name()));
     }
-    catch(AuthenticatorException e){
-      return new MusicSearchResult(null, 
-        MusicSearchError.AUTHENTICATION_ERROR);
+
+    List<LibraryEntry> results = loaded.value;
+    if(index != null && !loaded.fromCache && results != null){
+      index.addEntries(playerId, results);
     }
-    catch(OperationCanceledException e){
-      return new MusicSearchResult(null, 
-        MusicSearchError.AUTHENTICATION_ERROR);
+    MusicSearchResult result = new MusicSearchResult(
+      results != null ? new ArrayList<LibraryEntry>(results) : null);
+    if(isPaged() && results != null){
+      result.hasMore = results.size() >= currentLimit && currentLimit < MAX_RESULTS;
+      result.capped = results.size() >= MAX_RESULTS;
     }
+    return result;
+  }
 
-    try{
+  /**
+   * Adds results that were just fetched from the server to the library
+   * index, if it's enabled, for results loaded without one of these
+   * loaders, like prefetched ones.
+   */
+  static void addToIndex(Context context, Account account,
+    PlayerSession.Result<List<LibraryEntry>> loaded)
+  {
+    AccountManager am = AccountManager.get(context);
+    if(loaded.error == PlayerSession.Error.NO_ERROR && !loaded.fromCache &&
+      loaded.value != null && Utils.isLibraryIndexEnabled(am, account))
+    {
       String playerId = am.getUserData(account, Constants.LAST_PLAYER_ID_DATA);
-      return doSearch(playerId, authToken);
+      LibraryIndex.get(context).addEntries(playerId, loaded.value);
     }
-    catch(JSONException e){
-      return new MusicSearchResult(null, 
-        MusicSearchError.SERVER_ERROR);
-    }
-    catch(ParseException e){
-      return new MusicSearchResult(null, MusicSearchError.SERVER_ERROR);
+  }
+
+  /**
+   * Asks the server for another page of results, if it has any. The results
+   * we already have stay up until the bigger result set comes in. Must be
+   * called from the main thread.
+   */
+  public void loadMore(){
+    if(!hasMore || loadingMore){
+      return;
     }
-    catch(IOException e){
-      return new MusicSearchResult(null, MusicSearchError.SERVER_ERROR);
+    loadingMore = true;
+    limit = Math.min(limit + PAGE_SIZE, MAX_RESULTS);
+    Log.d(TAG, "Loading more results, limit now " + limit);
+    onContentChanged();
+  }
+
+  /**
+   * Starts the search over from its first page, for when whatever it's
+   * searching for has changed. Must be called from the main thread.
+   */
+  protected void restartSearch(){
+    limit = PAGE_SIZE;
+    hasMore = false;
+    loadingMore = false;
+    onContentChanged();
+  }
+
+  @Override
+  public void deliverResult(MusicSearchResult result){
+    loadingMore = false;
+    hasMore = result.hasMore();
+    super.deliverResult(result);
+  }
+
+  /**
+   * Hands results from the local library index to whoever is listening while
+   * the server query is still running. The server's results replace them once
+   * they come in.
+   */
+  private void deliverLocalResults(List<LibraryEntry> localResults){
+    if(localResults == null || localResults.size() == 0){
+      return;
     }
-    catch(AuthenticationException e){
-      if(attemptReauth){
-        Log.d(TAG, "soft auth failure");
-        am.invalidateAuthToken(Constants.ACCOUNT_TYPE, authToken);
-        return attemptSearch(false);
-      }
-      else{
-        Log.d(TAG, "hard auth failure");
-        return new MusicSearchResult(null, MusicSearchError.AUTHENTICATION_ERROR);
+    final MusicSearchResult localResult = new MusicSearchResult(localResults);
+    mainHandler.post(new Runnable(){
+      public void run(){
+        if(isStarted()){
+          deliverResult(localResult);
+        }
       }
-    }
-    catch(PlayerInactiveException e){
-      return new MusicSearchResult(null, MusicSearchError.PLAYER_INACTIVE_ERROR);
-    }
-    catch (NoLongerInPlayerException e) {
-      return new MusicSearchResult(null, MusicSearchError.NO_LONGER_IN_PLAYER_ERROR);
-    }
-    catch (KickedException e){
-      return new MusicSearchResult(null, MusicSearchError.KICKED_ERROR);
-    }
+    });
   }
 
-  @Override
-  protected void onStartLoading(){
-    forceLoad();
+  /**
+   * How long results for this search are reused before asking the server
+   * again.
+   */
+  protected long getMaxAge(){
+    return 2 * 60 * 1000;
+  }
+
+  /**
+   * What this search is for. It's read once at the start of each load and
+   * handed to getResource, getLocalResults and doSearch, so they all agree
+   * even if the query changes while the load is running. Searches that
+   * don't take a query return null.
+   */
+  protected String getQuery(){
+    return null;
+  }
+
+  /**
+   * Looks up whatever results the local library index already has for this
+   * search. Returns null if the index can't help.
+   */
+  protected List<LibraryEntry> getLocalResults(
+    LibraryIndex index, String playerId, String query)
+  {
+    return null;
+  }
+
+  /**
+   * Whether doSearch honors its limit. Searches that always return every
+   * result never have more to load.
+   */
+  protected boolean isPaged(){
+    return false;
   }
 
-  protected abstract MusicSearchResult doSearch(String playerId, String authToken) throws
+  /**
+   * Names what this search fetches from the PlayerSession, which has to
+   * differ for anything that would give different results. Returns null if
+   * there's nothing to search for.
+   */
+  protected abstract String getResource(String query, int limit);
+
+  protected abstract List<LibraryEntry> doSearch(
+    String playerId, String authToken, String query, int limit) throws
     JSONException, ParseException, IOException, AuthenticationException,
     PlayerInactiveException, NoLongerInPlayerException, KickedException;
 }
@@ -43,9 +43,14 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.LayoutInflater;
 
+import java.io.File;
+
 
 import org.klnusbaum.udj.Constants;
+import org.klnusbaum.udj.network.CircuitBreaker;
 import org.klnusbaum.udj.network.PlaylistSyncService;
+import org.klnusbaum.udj.network.RequestMetrics;
+import org.klnusbaum.udj.network.ServerConnection;
 
 import com.viewpagerindicator.TitlePageIndicator;
 
@@ -71,12 +76,26 @@ public class PlayerActivity extends PlayerExceptionListenerActivity {
     }
   };
 
+  /**
+   * Lets the user know when we've stopped talking to the server for a bit,
+   * since what they're seeing may be out of date until we start again.
+   */
+  private CircuitBreaker.Listener circuitBreakerListener = new CircuitBreaker.Listener(){
+    public void onStateChanged(CircuitBreaker breaker, CircuitBreaker.State state){
+      if(state == CircuitBreaker.State.OPEN){
+        Toast.makeText(
+          PlayerActivity.this, R.string.server_busy_message, Toast.LENGTH_LONG).show();
+      }
+    }
+  };
+
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
 
     setContentView(R.layout.player);
     setSupportProgressBarIndeterminateVisibility(false);
+    ServerConnection.installResponseCache(this);
 
     pagerAdapter = new PlayerPagerAdapter(getSupportFragmentManager(), account);
     pager = (ViewPager)findViewById(R.id.player_pager);
@@ -93,12 +112,18 @@ public class PlayerActivity extends PlayerExceptionListenerActivity {
       playbackStateChangedListener,
       new IntentFilter(Constants.BROADCAST_PLAYBACK_CHANGED)
     );
+    CircuitBreaker.registerListener(circuitBreakerListener);
   }
 
   @Override
   protected void onPause(){
     super.onPause();
     unregisterReceiver(playbackStateChangedListener);
+    CircuitBreaker.unregisterListener(circuitBreakerListener);
+    if(RequestMetrics.isDumpEnabled()){
+      RequestMetrics.dump(new File(getFilesDir(), RequestMetrics.DUMP_FILE));
+      Log.d(TAG, "Loader queue waits:\n" + PriorityLoader.getQueueWaitStats());
+    }
   }
 
   public void onBackPressed(){
@@ -178,6 +203,10 @@ public class PlayerActivity extends PlayerExceptionListenerActivity {
     menu.add(getString(R.string.search))
       .setIcon(R.drawable.ab_search_dark)
       .setShowAsAction(MenuItem.SHOW_AS_ACTION_ALWAYS);
+    menu.add(getString(R.string.offline_search))
+      .setCheckable(true)
+      .setChecked(Utils.isLibraryIndexEnabled(am, account))
+      .setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
     return true;
   }
 
@@ -199,6 +228,12 @@ public class PlayerActivity extends PlayerExceptionListenerActivity {
       volumeFragment.setArguments(volumeArguments);
       volumeFragment.show(getSupportFragmentManager(), VOLUME_FRAGMENT_TAG);
     }
+    else if(item.getTitle().equals(getString(R.string.offline_search))){
+      Utils.setLibraryIndexEnabled(
+        this, AccountManager.get(this), account, !item.isChecked());
+      invalidateOptionsMenu();
+      return true;
+    }
     return false;
   }
 
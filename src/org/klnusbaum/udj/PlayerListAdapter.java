@@ -65,6 +65,11 @@ public class PlayerListAdapter extends StringIdableAdapter<Player>{
     return PLAYER_ENTRY_VIEW_TYPE;
   }
 
+  @Override
+  protected boolean isSameContent(Player oldItem, Player newItem){
+    return oldItem.hasSameContent(newItem);
+  }
+
   public View getView(int position, View convertView, ViewGroup parent){
     //TODO should probably enforce view type
     Player player = getPlayer(position);
@@ -21,6 +21,7 @@ package org.klnusbaum.udj;
 
 import org.klnusbaum.udj.auth.AuthActivity;
 import org.klnusbaum.udj.containers.Player;
+import org.klnusbaum.udj.network.NearbyPlayersCache;
 import org.klnusbaum.udj.network.PlayerCommService;
 import org.klnusbaum.udj.network.PlayerCommService.PlayerJoinError;
 
@@ -79,16 +80,43 @@ public class PlayerListFragment extends PullToRefreshListFragment implements
     "org.klnusbaum.udj.PlayerSearchType";
   private static final int ACCOUNT_CREATION_REQUEST_CODE = 0;
 
+  /**
+   * Coarse updates come from the network provider, which is cheap, so we
+   * listen to it the whole time we're showing nearby players.
+   */
+  private static final long COARSE_MIN_TIME = 30 * 1000; // ms
+  private static final float COARSE_MIN_DISTANCE = 50; // m
+  /**
+   * GPS is only turned on when we don't have a fix at least this accurate,
+   * and turned off again as soon as we do.
+   */
+  private static final float FINE_ACCURACY_NEEDED = 100; // m
+  private static final long FINE_MIN_TIME = 5 * 1000; // ms
+  private static final float FINE_MIN_DISTANCE = 20; // m
+
 
 
   private PlayerListAdapter playerAdapter;
   private LocationManager lm;
   private Location lastKnown = null;
+  /** The location the players currently shown were searched for. */
+  private Location searchedLocation = null;
+  private boolean fineUpdatesRunning = false;
   private Account account = null;
   private AccountManager am;
   private SearchType searchType;
   private String nameQuery;
 
+  private LocationListener fineLocationListener = new LocationListener(){
+    public void onLocationChanged(Location location){
+      PlayerListFragment.this.onLocationChanged(location);
+    }
+
+    public void onProviderDisabled(String provider){}
+    public void onProviderEnabled(String provider){}
+    public void onStatusChanged(String provider, int status, Bundle extras){}
+  };
+
   private BroadcastReceiver playerJoinedReceiver = new BroadcastReceiver(){
     public void onReceive(Context context, Intent intent){
       Log.d(TAG, "Recieved player broadcats");
@@ -151,21 +179,50 @@ public class PlayerListFragment extends PullToRefreshListFragment implements
       lm = (LocationManager)getActivity().getSystemService(
         Context.LOCATION_SERVICE);
       List<String> providers = lm.getProviders(false);
-      if(providers.contains(LocationManager.GPS_PROVIDER)){
-        lm.requestLocationUpdates(LocationManager.GPS_PROVIDER,0, 50, this);
-        if(lastKnown == null){
-          lastKnown = lm.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+      for(String provider: providers){
+        Location providerLast = lm.getLastKnownLocation(provider);
+        if(providerLast != null && Utils.isBetterLocation(providerLast, lastKnown)){
+          lastKnown = providerLast;
         }
       }
       if(providers.contains(LocationManager.NETWORK_PROVIDER)){
-        lm.requestLocationUpdates(LocationManager.NETWORK_PROVIDER,0, 50, this);
-        if(lastKnown == null){
-          lastKnown = lm.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
-        }
+        lm.requestLocationUpdates(
+          LocationManager.NETWORK_PROVIDER, COARSE_MIN_TIME, COARSE_MIN_DISTANCE, this);
+      }
+      if(needsFineLocation()){
+        startFineUpdates();
       }
     }
   }
 
+  /**
+   * Whether we need GPS to get a good enough fix, either because the one we
+   * have isn't accurate enough or because there's no network provider.
+   */
+  private boolean needsFineLocation(){
+    return !lm.getProviders(false).contains(LocationManager.NETWORK_PROVIDER) ||
+      !lm.isProviderEnabled(LocationManager.NETWORK_PROVIDER) ||
+      lastKnown == null || !lastKnown.hasAccuracy() ||
+      lastKnown.getAccuracy() > FINE_ACCURACY_NEEDED;
+  }
+
+  private void startFineUpdates(){
+    if(!fineUpdatesRunning && lm.getProviders(false).contains(LocationManager.GPS_PROVIDER)){
+      Log.d(TAG, "Starting fine location updates");
+      lm.requestLocationUpdates(
+        LocationManager.GPS_PROVIDER, FINE_MIN_TIME, FINE_MIN_DISTANCE, fineLocationListener);
+      fineUpdatesRunning = true;
+    }
+  }
+
+  private void stopFineUpdates(){
+    if(fineUpdatesRunning){
+      Log.d(TAG, "Stopping fine location updates");
+      lm.removeUpdates(fineLocationListener);
+      fineUpdatesRunning = false;
+    }
+  }
+
   public void onActivityResult(
     final int requestCode, final int resultCode, final Intent data)
   {
@@ -243,11 +300,25 @@ public class PlayerListFragment extends PullToRefreshListFragment implements
     super.onStop();
     if(searchType == SearchType.LOCATION_SEARCH){
       lm.removeUpdates(this);
+      stopFineUpdates();
     }
   }
 
   public void onLocationChanged(Location location){
+    if(!Utils.isBetterLocation(location, lastKnown)){
+      return;
+    }
     lastKnown = location;
+    if(!needsFineLocation()){
+      stopFineUpdates();
+    }
+    // Only search again once we've moved far enough for the players around
+    // us to plausibly have changed.
+    if(account != null && isResumed() && (searchedLocation == null ||
+      searchedLocation.distanceTo(location) > NearbyPlayersCache.MOVEMENT_THRESHOLD))
+    {
+      refreshList();
+    }
   }
 
   public void onProviderDisabled(String provider){}
@@ -320,10 +391,14 @@ public class PlayerListFragment extends PullToRefreshListFragment implements
     int id, Bundle args)
   {
     if(searchType == SearchType.LOCATION_SEARCH){
-      return new PlayersLoader(
+      searchedLocation = lastKnown;
+      PlayersLoader loader = new PlayersLoader(
         getActivity(), 
         account,
         lastKnown);
+      loader.setForceRefresh(
+        args != null && args.getBoolean(Constants.FORCE_REFRESH_EXTRA, false));
+      return loader;
     }
     else if(searchType == SearchType.NAME_SEARCH){
       return new PlayersLoader(
@@ -376,7 +451,9 @@ public class PlayerListFragment extends PullToRefreshListFragment implements
 
   @Override
   public void onRefresh(PullToRefreshBase<ListView> listView){
-    refreshList();
+    Bundle args = new Bundle();
+    args.putBoolean(Constants.FORCE_REFRESH_EXTRA, true);
+    getLoaderManager().restartLoader(0, args, this);
   }
 
   private void showProgress(){
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.klnusbaum.udj.containers.LibraryEntry;
+import org.klnusbaum.udj.network.PlayerSession;
+import org.klnusbaum.udj.network.RequestCanceller;
+import org.klnusbaum.udj.network.ServerConnection;
+
+/**
+ * Fetches everything the player screen's tabs need as soon as we've joined a
+ * player, all at once, instead of each tab fetching its own data the first
+ * time the user swipes to it. Everything goes into the PlayerSession under
+ * the same resources and with the same fetchers the tabs' loaders use, so
+ * each tab's loader finds its data already there, or joins the request
+ * that's still fetching it.
+ *
+ * Prefetches run on the PriorityLoader background pool, so their waits for
+ * a thread show up in its queue wait stats, and each gets a RequestCanceller
+ * of its own, so leaving the player aborts whatever is still going.
+ */
+public class PlayerPrefetcher{
+  private static final String TAG = "PlayerPrefetcher";
+
+  /** The cancellers of the prefetches that haven't finished yet. */
+  private static final List<RequestCanceller> running = new ArrayList<RequestCanceller>();
+
+  private static class Prefetch<T> implements Runnable{
+    private final PlayerSession session;
+    protected final Account account;
+    private final String resource;
+    private final long maxAge;
+    private final PlayerSession.Fetcher<T> fetcher;
+    public final RequestCanceller canceller = new RequestCanceller();
+
+    public Prefetch(PlayerSession session, Account account, String resource,
+      long maxAge, PlayerSession.Fetcher<T> fetcher)
+    {
+      this.session = session;
+      this.account = account;
+      this.resource = resource;
+      this.maxAge = maxAge;
+      this.fetcher = fetcher;
+    }
+
+    public void run(){
+      try{
+        if(canceller.isCanceled()){
+          return;
+        }
+        ServerConnection.setRequestCanceller(canceller);
+        try{
+          // Whatever goes wrong here, the tab will run into it again and
+          // deal with it when it loads.
+          PlayerSession.Result<T> loaded =
+            session.load(account, resource, maxAge, false, fetcher, null);
+          onLoaded(loaded);
+          Log.d(TAG, "Prefetched " + resource + ": " + loaded.error);
+        }
+        finally{
+          ServerConnection.setRequestCanceller(null);
+        }
+      }
+      finally{
+        synchronized(running){
+          running.remove(canceller);
+        }
+      }
+    }
+
+    /** Called on the prefetching thread with whatever was loaded. */
+    protected void onLoaded(PlayerSession.Result<T> loaded){}
+
+    public String toString(){
+      return "Prefetch " + resource;
+    }
+  }
+
+  /** Prefetches songs, which the tabs' loaders also add to the index. */
+  private static class MusicPrefetch extends Prefetch<List<LibraryEntry>>{
+    private final Context context;
+
+    public MusicPrefetch(Context context, PlayerSession session, Account account,
+      String resource, long maxAge, PlayerSession.Fetcher<List<LibraryEntry>> fetcher)
+    {
+      super(session, account, resource, maxAge, fetcher);
+      this.context = context;
+    }
+
+    @Override
+    protected void onLoaded(PlayerSession.Result<List<LibraryEntry>> loaded){
+      MusicSearchLoader.addToIndex(context, account, loaded);
+    }
+  }
+
+  /**
+   * Starts fetching the data for every tab of the given player. Called once
+   * we've successfully joined it.
+   */
+  public static void prefetch(Context context, Account account, String playerId){
+    final Context appContext = context.getApplicationContext();
+    final PlayerSession session = PlayerSession.get(appContext);
+    cancel();
+    session.onJoined(playerId);
+    execute(new Prefetch<PlaylistLoader.Playlist>(session, account,
+      PlayerSession.PLAYLIST, PlaylistLoader.MAX_AGE,
+      PlaylistLoader.newFetcher(appContext, account)));
+    execute(new Prefetch<List<String>>(session, account,
+      PlayerSession.ARTISTS, ArtistsLoader.MAX_AGE, ArtistsLoader.FETCHER));
+    execute(new MusicPrefetch(appContext, session, account,
+      PlayerSession.RECENTLY_PLAYED, RecentlyPlayedLoader.MAX_AGE,
+      RecentlyPlayedLoader.FETCHER));
+    execute(new MusicPrefetch(appContext, session, account,
+      PlayerSession.RANDOM, RandomSearchLoader.MAX_AGE, RandomSearchLoader.FETCHER));
+  }
+
+  /**
+   * Aborts any prefetches that are still running or waiting for a thread,
+   * for when the user leaves the player.
+   */
+  public static void cancel(){
+    List<RequestCanceller> toCancel;
+    synchronized(running){
+      toCancel = new ArrayList<RequestCanceller>(running);
+      running.clear();
+    }
+    for(RequestCanceller canceller: toCancel){
+      canceller.cancel();
+    }
+    if(!toCancel.isEmpty()){
+      Log.d(TAG, "Canceled " + toCancel.size() + " prefetches");
+    }
+  }
+
+  /**
+   * Prefetching runs at background priority, so it never holds up a tab the
+   * user is actually looking at.
+   */
+  private static void execute(Prefetch<?> prefetch){
+    synchronized(running){
+      running.add(prefetch.canceller);
+    }
+    PriorityLoader.execute(prefetch, PriorityLoader.Priority.BACKGROUND);
+  }
+}
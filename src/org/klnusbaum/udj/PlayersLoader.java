@@ -20,8 +20,6 @@
 package org.klnusbaum.udj;
 
 
-import android.support.v4.content.AsyncTaskLoader;
-
 import android.location.Location;
 import android.util.Log;
 import android.content.Context;
@@ -37,11 +35,13 @@ import org.apache.http.auth.AuthenticationException;
 
 import org.json.JSONException;
 
+import org.klnusbaum.udj.auth.AuthTokenCache;
+import org.klnusbaum.udj.network.NearbyPlayersCache;
 import org.klnusbaum.udj.network.ServerConnection;
 import org.klnusbaum.udj.containers.Player;
 
 public class PlayersLoader extends 
-  AsyncTaskLoader<PlayersLoader.PlayersLoaderResult>
+  PriorityLoader<PlayersLoader.PlayersLoaderResult>
 {
   public enum PlayerLoaderError{
     NO_ERROR, NO_CONNECTION, SERVER_ERROR, NO_LOCATION, 
@@ -72,6 +72,7 @@ public class PlayersLoader extends
   private String searchQuery;
   private List<Player> players;
   private boolean locationSearch;
+  private volatile boolean forceRefresh = false;
 
     
   public PlayersLoader(Context context, Account account, Location location){
@@ -94,6 +95,19 @@ public class PlayersLoader extends
     locationSearch = false;
   }
 
+  /**
+   * Makes the next load go to the server even if we've got players cached
+   * for the current location.
+   */
+  public void setForceRefresh(boolean forceRefresh){
+    this.forceRefresh = forceRefresh;
+  }
+
+  @Override
+  protected Priority getLoadPriority(){
+    return forceRefresh ? Priority.USER_INITIATED : super.getLoadPriority();
+  }
+
   @Override
   protected void onStartLoading(){
     if(takeContentChanged() || players==null){
@@ -108,26 +122,53 @@ public class PlayersLoader extends
     else if(location == null && locationSearch){
       return new PlayersLoaderResult(null, PlayerLoaderError.NO_LOCATION);
     }
-    else if(!Utils.isNetworkAvailable(getContext())){
+
+    if(locationSearch && !forceRefresh){
+      List<Player> cached = NearbyPlayersCache.get(location);
+      if(cached != null){
+        Log.d(TAG, "Using cached players for " + NearbyPlayersCache.getCell(location));
+        return new PlayersLoaderResult(cached, PlayerLoaderError.NO_ERROR);
+      }
+    }
+
+    if(!Utils.isNetworkAvailable(getContext())){
       return new PlayersLoaderResult(null, PlayerLoaderError.NO_CONNECTION);
     }
     else{
-      return doSearch(true);
+      return doSearch();
     }
   }
 
-  private PlayersLoaderResult doSearch(boolean attemptReauth){
-    String authToken = "";
+  private PlayersLoaderResult doSearch(){
     try{
-      authToken = am.blockingGetAuthToken(account, "", true); 
-      if(locationSearch){
-        Log.d(TAG, "Doing location search");
-        return doLocationSearch(authToken);
-      }
-      else{
-        Log.d(TAG, "Doing name search");
-        return doNameSearch(authToken);
-      }
+      return AuthTokenCache.withToken(am, account,
+        new AuthTokenCache.AuthenticatedCall<PlayersLoaderResult>(){
+          public PlayersLoaderResult call(String authToken)
+            throws AuthenticationException
+          {
+            try{
+              if(locationSearch){
+                Log.d(TAG, "Doing location search");
+                return doLocationSearch(authToken);
+              }
+              else{
+                Log.d(TAG, "Doing name search");
+                return doNameSearch(authToken);
+              }
+            }
+            catch(IOException e){
+              Log.e(TAG, "IO exception");
+              Log.d(TAG, e.getMessage());
+            }
+            catch(JSONException e){
+              Log.e(TAG, "Json exception");
+              Log.e(TAG, e.getMessage());
+              //TODO notify the user
+            }
+            return new PlayersLoaderResult(
+              null, PlayerLoaderError.AUTHENTICATION_ERROR);
+          }
+        });
     }
     catch(IOException e){
       Log.e(TAG, "IO exception");
@@ -141,21 +182,9 @@ public class PlayersLoader extends
       Log.e(TAG, "Operation cancelced exception");
       //TODO notify user
     }
-    catch(JSONException e){
-      Log.e(TAG, "Json exception");
-      Log.e(TAG, e.getMessage());
-      //TODO notify the user
-    }
     catch(AuthenticationException e){
-      if(attemptReauth){
-        Log.e(TAG, "Soft auth fail");
-        am.invalidateAuthToken(Constants.ACCOUNT_TYPE, authToken);
-        return doSearch(false);
-      }
-      else{
-        //TODO notify user
-        Log.e(TAG, "Hard auth fail");
-      }
+      //TODO notify user
+      Log.e(TAG, "Hard auth fail");
     }
     return new PlayersLoaderResult(
       null, PlayerLoaderError.AUTHENTICATION_ERROR);
@@ -166,6 +195,7 @@ public class PlayersLoader extends
   {
     List<Player> players = 
       ServerConnection.getNearbyPlayers(location, authToken);
+    NearbyPlayersCache.put(location, players);
     return new PlayersLoaderResult(players, PlayerLoaderError.NO_ERROR);
   }
 
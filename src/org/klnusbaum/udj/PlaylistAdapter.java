@@ -20,6 +20,7 @@ package org.klnusbaum.udj;
 
 import org.klnusbaum.udj.containers.ActivePlaylistEntry;
 import org.klnusbaum.udj.containers.User;
+import org.klnusbaum.udj.network.PlaylistOverlay;
 import org.klnusbaum.udj.network.PlaylistSyncService;
 
 import android.accounts.Account;
@@ -70,15 +71,6 @@ public class PlaylistAdapter extends StringIdableAdapter<ActivePlaylistEntry>{
     return null;
   }
 
-  public synchronized void setNewCurrentSong(ActivePlaylistEntry toSet){
-    if(getPlaylistEntry(0).isCurrentSong()){
-      removeItem(0);
-    }
-    removeItem(toSet);
-    toSet.setCurrentSong(true);
-    addItem(0,toSet);
-  }
-
   public int getViewTypeCount(){
     return 2;
   }
@@ -92,6 +84,11 @@ public class PlaylistAdapter extends StringIdableAdapter<ActivePlaylistEntry>{
 
 
 
+  @Override
+  protected boolean isSameContent(ActivePlaylistEntry oldItem, ActivePlaylistEntry newItem){
+    return oldItem.hasSameContent(newItem);
+  }
+
   @Override
   public View getView(int position, View convertView, ViewGroup parent) {
     final ActivePlaylistEntry currentEntry = getPlaylistEntry(position);
@@ -123,8 +120,8 @@ public class PlaylistAdapter extends StringIdableAdapter<ActivePlaylistEntry>{
 
     final TextView upCount = (TextView) view.findViewById(R.id.upcount);
     final TextView downCount = (TextView) view.findViewById(R.id.downcount);
-    upCount.setText(String.valueOf(currentEntry.getUpvoters().size()));
-    downCount.setText(String.valueOf(currentEntry.getDownvoters().size()));
+    upCount.setText(String.valueOf(currentEntry.getUpvoteCount()));
+    downCount.setText(String.valueOf(currentEntry.getDownvoteCount()));
 
     view.setOnLongClickListener(new View.OnLongClickListener(){
       public boolean onLongClick(View v){
@@ -164,29 +161,23 @@ public class PlaylistAdapter extends StringIdableAdapter<ActivePlaylistEntry>{
 
     upButton.setOnClickListener(new View.OnClickListener(){
       public void onClick(View v){
-        currentEntry.removeFromDownvoters(me);
-        currentEntry.addToUpvoters(me);
         upVoteSong(libId);
-        notifyDataSetChanged();
       }
     });
 
     downButton.setOnClickListener(new View.OnClickListener(){
       public void onClick(View v){
-        currentEntry.addToDownvoters(me);
-        currentEntry.removeFromUpvoters(me);
         downVoteSong(libId);
-        notifyDataSetChanged();
       }
     });
 
     /* Reset buttons from previous view*/
     upButton.setEnabled(true);
     downButton.setEnabled(true);
-    if(currentEntry.getUpvoters().contains(me)){
+    if(currentEntry.getMyVote() == ActivePlaylistEntry.UPVOTE){
       upButton.setEnabled(false);
     }
-    else if(currentEntry.getDownvoters().contains(me)){
+    else if(currentEntry.getMyVote() == ActivePlaylistEntry.DOWNVOTE){
       downButton.setEnabled(false);
     }
 
@@ -194,13 +185,17 @@ public class PlaylistAdapter extends StringIdableAdapter<ActivePlaylistEntry>{
   }
 
   private void upVoteSong(String libId) {
-    voteOnSong(libId, 1);
+    voteOnSong(libId, ActivePlaylistEntry.UPVOTE);
   }
 
   private void downVoteSong(String libId) {
-    voteOnSong(libId, -1);
+    voteOnSong(libId, ActivePlaylistEntry.DOWNVOTE);
   }
 
+  /**
+   * The vote shows up straight away through the PlaylistOverlay, which the
+   * fragment reapplies to the playlist whenever it changes.
+   */
   private void voteOnSong(String libId, int voteType) {
     Intent voteIntent = new Intent(Intent.ACTION_INSERT,
         Constants.VOTES_URI, context,
@@ -208,6 +203,7 @@ public class PlaylistAdapter extends StringIdableAdapter<ActivePlaylistEntry>{
     voteIntent.putExtra(Constants.ACCOUNT_EXTRA, account);
     voteIntent.putExtra(Constants.VOTE_WEIGHT_EXTRA, voteType);
     voteIntent.putExtra(Constants.LIB_ID_EXTRA, libId);
+    voteIntent.putExtra(Constants.MUTATION_ID_EXTRA, PlaylistOverlay.vote(libId, voteType));
     context.startService(voteIntent);
   }
 }
@@ -18,8 +18,11 @@
  */
 package org.klnusbaum.udj;
 
+import org.klnusbaum.udj.network.PollInterval;
+import org.klnusbaum.udj.network.PlaylistOverlay;
 import org.klnusbaum.udj.network.PlaylistSyncService;
 import org.klnusbaum.udj.containers.ActivePlaylistEntry;
+import org.klnusbaum.udj.containers.Interner;
 
 
 import android.content.IntentFilter;
@@ -29,6 +32,7 @@ import android.accounts.AccountManager;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
 import android.support.v4.widget.CursorAdapter;
@@ -42,6 +46,8 @@ import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.Toast;
 
+import java.util.List;
+
 import com.handmark.pulltorefresh.extras.listfragment.PullToRefreshListFragment;
 import com.handmark.pulltorefresh.library.PullToRefreshBase;
 import com.handmark.pulltorefresh.library.PullToRefreshBase.OnRefreshListener;
@@ -53,7 +59,8 @@ import com.handmark.pulltorefresh.library.PullToRefreshListView;
  */
 public class PlaylistFragment extends PullToRefreshListFragment implements
     LoaderManager.LoaderCallbacks<PlaylistLoader.PlaylistResult>,
-    OnRefreshListener<ListView>
+    OnRefreshListener<ListView>,
+    PlaylistOverlay.Listener
 {
 
   private BroadcastReceiver playlistUpdateReceiver = new BroadcastReceiver(){
@@ -64,6 +71,18 @@ public class PlaylistFragment extends PullToRefreshListFragment implements
 
   private static final String TAG = "PlaylistFragment";
   private static final int PLAYLIST_LOADER_ID = 0;
+
+  /**
+   * The server doesn't offer any way to push playlist changes to us, so we
+   * poll for them with conditional GETs.
+   */
+  private Handler pollHandler = new Handler();
+  private PollInterval pollInterval = new PollInterval();
+  private Runnable pollPlaylist = new Runnable(){
+    public void run(){
+      updatePlaylist();
+    }
+  };
   private Account account;
   private AccountManager am;
   private String userId;
@@ -72,9 +91,16 @@ public class PlaylistFragment extends PullToRefreshListFragment implements
    */
   PlaylistAdapter playlistAdapter;
 
+  /**
+   * The last playlist the server gave us, before any of the user's
+   * outstanding changes are applied to it.
+   */
+  private List<ActivePlaylistEntry> lastSnapshot;
+  private long lastFetchedAt;
+
   @Override
   public void onRefresh(PullToRefreshBase<ListView> listView){
-    updatePlaylist();
+    reloadPlaylist(true);
   }
 
   @Override
@@ -92,7 +118,19 @@ public class PlaylistFragment extends PullToRefreshListFragment implements
   }
 
   public void updatePlaylist() {
-    getLoaderManager().restartLoader(PLAYLIST_LOADER_ID, null, this);
+    reloadPlaylist(false);
+  }
+
+  /**
+   * Fetches the playlist from the server again. Only a refresh the user
+   * asked for jumps ahead of other loads, polls and reloads after the
+   * user's changes go through wait their turn at this tab's priority.
+   */
+  private void reloadPlaylist(boolean userInitiated){
+    Bundle args = new Bundle();
+    args.putBoolean(Constants.FORCE_REFRESH_EXTRA, true);
+    args.putBoolean(Constants.USER_REFRESH_EXTRA, userInitiated);
+    getLoaderManager().restartLoader(PLAYLIST_LOADER_ID, args, this);
   }
 
   @Override
@@ -104,10 +142,14 @@ public class PlaylistFragment extends PullToRefreshListFragment implements
     updateFilters.addAction(Constants.BROADCAST_SET_CURRENT_COMPLETE);
     updateFilters.addAction(Constants.BROADCAST_REMOVE_SONG_COMPLETE);
     getActivity().registerReceiver(playlistUpdateReceiver, updateFilters);
+    PlaylistOverlay.registerListener(this);
+    showPlaylist();
   }
 
   public void onPause(){
     super.onPause();
+    pollHandler.removeCallbacks(pollPlaylist);
+    PlaylistOverlay.unregisterListener(this);
     try{
       getActivity().unregisterReceiver(playlistUpdateReceiver);
     }
@@ -117,6 +159,73 @@ public class PlaylistFragment extends PullToRefreshListFragment implements
   }
 
 
+  @Override
+  public void setUserVisibleHint(boolean isVisibleToUser){
+    super.setUserVisibleHint(isVisibleToUser);
+    PriorityLoader.updatePriority(this, PLAYLIST_LOADER_ID);
+    if(!isVisibleToUser){
+      pollHandler.removeCallbacks(pollPlaylist);
+    }
+    else if(isResumed()){
+      pollInterval.reset();
+      updatePlaylist();
+    }
+  }
+
+  /**
+   * Works out how long to wait before polling again based on what the last
+   * poll told us, and schedules it. Nothing is scheduled while we're not
+   * on screen.
+   */
+  private void scheduleNextPoll(PlaylistLoader.PlaylistResult data){
+    pollHandler.removeCallbacks(pollPlaylist);
+    long delay;
+    if(data.error != PlaylistLoader.PlaylistLoadError.NO_ERROR){
+      delay = pollInterval.failed();
+    }
+    else if(data.changed){
+      delay = pollInterval.changed();
+    }
+    else{
+      delay = pollInterval.unchanged();
+    }
+    if(isResumed() && getUserVisibleHint()){
+      pollHandler.postDelayed(pollPlaylist, delay);
+    }
+  }
+
+  public void onOverlayChanged(){
+    showPlaylist();
+  }
+
+  public void onRolledBack(PlaylistOverlay.Mutation mutation){
+    if(!isAdded()){
+      return;
+    }
+    int message;
+    switch(mutation.type){
+      case VOTE:
+        message = R.string.vote_failed_title;
+        break;
+      case ADD:
+        message = R.string.song_add_failed_title;
+        break;
+      case REMOVE:
+        message = R.string.song_remove_failed_title;
+        break;
+      default:
+        message = R.string.song_set_failed_title;
+    }
+    Toast.makeText(getActivity(), message, Toast.LENGTH_SHORT).show();
+  }
+
+  /** Shows the last playlist we got with the user's changes applied. */
+  private void showPlaylist(){
+    if(lastSnapshot != null){
+      playlistAdapter.updateList(PlaylistOverlay.apply(lastSnapshot, lastFetchedAt));
+    }
+  }
+
   public void onListItemClick(ListView l, View v, int position, long id) {
     l.showContextMenuForChild(v);
   }
@@ -204,8 +313,9 @@ public class PlaylistFragment extends PullToRefreshListFragment implements
       PlaylistSyncService.class);
     setSongIntent.putExtra(Constants.ACCOUNT_EXTRA, account);
     setSongIntent.putExtra(Constants.LIB_ID_EXTRA, toSet.getSong().getId());
+    setSongIntent.putExtra(Constants.MUTATION_ID_EXTRA,
+      PlaylistOverlay.setCurrent(toSet.getSong().getId()));
     getActivity().startService(setSongIntent);
-    playlistAdapter.setNewCurrentSong(toSet);
   }
 
   private void removeSong(int position) {
@@ -218,15 +328,22 @@ public class PlaylistFragment extends PullToRefreshListFragment implements
       PlaylistSyncService.class);
     removeSongIntent.putExtra(Constants.ACCOUNT_EXTRA, account);
     removeSongIntent.putExtra(Constants.LIB_ID_EXTRA, toRemove.getSong().getId());
+    removeSongIntent.putExtra(Constants.MUTATION_ID_EXTRA,
+      PlaylistOverlay.remove(toRemove.getSong().getId()));
     getActivity().startService(removeSongIntent);
-    playlistAdapter.removeItem(toRemove);
   }
 
   public Loader<PlaylistLoader.PlaylistResult> onCreateLoader(int id, Bundle args) {
     switch (id) {
     case PLAYLIST_LOADER_ID:
       Log.d(TAG, "Starting playlist loader");
-      return new PlaylistLoader(getActivity(), account);
+      PlaylistLoader loader = new PlaylistLoader(getActivity(), account);
+      loader.setForceRefresh(
+        args != null && args.getBoolean(Constants.FORCE_REFRESH_EXTRA, false));
+      loader.setUserInitiated(
+        args != null && args.getBoolean(Constants.USER_REFRESH_EXTRA, false));
+      loader.setPriority(PriorityLoader.getPriority(this));
+      return loader;
     default:
       return null;
     }
@@ -240,7 +357,12 @@ public class PlaylistFragment extends PullToRefreshListFragment implements
       getPullToRefreshListView().onRefreshComplete();
       Log.d(TAG, "Playlist loader returned");
       if(data.error == PlaylistLoader.PlaylistLoadError.NO_ERROR){
-        playlistAdapter.updateList(data.playlistEntries);
+        lastSnapshot = data.playlistEntries;
+        lastFetchedAt = data.fetchedAt;
+        showPlaylist();
+        if(Log.isLoggable(TAG, Log.DEBUG)){
+          Log.d(TAG, "Interning: " + Interner.getStats());
+        }
       }
       else if(data.error == PlaylistLoader.PlaylistLoadError.PLAYER_INACTIVE_ERROR){
         Utils.handleInactivePlayer(getActivity(), account);
@@ -251,6 +373,7 @@ public class PlaylistFragment extends PullToRefreshListFragment implements
       else if(data.error == PlaylistLoader.PlaylistLoadError.KICKED_ERROR){
         Utils.handleKickedFromPlayer(getActivity(), account);
       }
+      scheduleNextPoll(data);
       if (isResumed()) {
         setListShown(true);
       } else if (isVisible()) {
@@ -19,14 +19,13 @@
 
 package org.klnusbaum.udj;
 
-import android.support.v4.content.AsyncTaskLoader;
+import android.os.SystemClock;
 import android.util.Log;
-import android.accounts.OperationCanceledException;
-import android.accounts.AuthenticatorException;
 import android.accounts.AccountManager;
 import android.accounts.Account;
 import android.content.Context;
 
+import org.klnusbaum.udj.network.PlayerSession;
 import org.klnusbaum.udj.network.ServerConnection;
 import org.klnusbaum.udj.network.RESTProcessor;
 import org.klnusbaum.udj.containers.ActivePlaylistEntry;
@@ -34,17 +33,17 @@ import org.klnusbaum.udj.exceptions.KickedException;
 import org.klnusbaum.udj.exceptions.NoLongerInPlayerException;
 import org.klnusbaum.udj.exceptions.PlayerInactiveException;
 
-import org.json.JSONObject;
 import org.json.JSONException;
 
 import org.apache.http.ParseException;
 import org.apache.http.auth.AuthenticationException;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 
-public class PlaylistLoader extends AsyncTaskLoader<PlaylistLoader.PlaylistResult>{
+public class PlaylistLoader extends SessionLoader<PlaylistLoader.PlaylistResult>{
   private static final String TAG = "PlaylistLoader";
   public enum PlaylistLoadError{
     NO_ERROR,
@@ -58,6 +57,10 @@ public class PlaylistLoader extends AsyncTaskLoader<PlaylistLoader.PlaylistResul
   public static class PlaylistResult{
     public List<ActivePlaylistEntry> playlistEntries;
     public PlaylistLoadError error;
+    /** False if the server told us the playlist hasn't changed since last time. */
+    public boolean changed = true;
+    /** When the request for the playlist was started, in elapsedRealtime. */
+    public long fetchedAt;
 
     public PlaylistResult(List<ActivePlaylistEntry> playlistEntries){
       this.playlistEntries = playlistEntries;
@@ -70,76 +73,84 @@ public class PlaylistLoader extends AsyncTaskLoader<PlaylistLoader.PlaylistResul
     }
   }
 
-  private Account account;
+  /**
+   * How long a playlist we already have is shown without asking the server
+   * again. Only loads that aren't forced use it, like when the screen is
+   * rotated or the tab comes back into view. Polls and refreshes always go
+   * to the server.
+   */
+  static final long MAX_AGE = 5 * 1000;
+
+  /** What we keep in the session for the playlist. */
+  static class Playlist{
+    public final List<ActivePlaylistEntry> entries;
+    public final boolean notModified;
+    public final long fetchedAt;
+
+    public Playlist(List<ActivePlaylistEntry> entries, boolean notModified, long fetchedAt){
+      this.entries = entries;
+      this.notModified = notModified;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+
   private Context context;
 
   public PlaylistLoader(Context context, Account account){
-    super(context);
-    this.account = account;
+    super(context, account);
     this.context = context;
   }
 
-  public PlaylistResult loadInBackground(){
-    return attemptLoad(true);
+  /**
+   * Fetches the playlist into the session, for this loader and for the
+   * PlayerPrefetcher.
+   */
+  static PlayerSession.Fetcher<Playlist> newFetcher(
+    final Context context, final Account account)
+  {
+    return new PlayerSession.Fetcher<Playlist>(){
+      public Playlist fetch(String playerId, String authToken) throws
+        JSONException, ParseException, IOException, AuthenticationException,
+        PlayerInactiveException, NoLongerInPlayerException, KickedException
+      {
+        return fetchPlaylist(context, account, playerId, authToken);
+      }
+    };
   }
 
-  private PlaylistResult attemptLoad(boolean attemptReauth){
-    AccountManager am = AccountManager.get(getContext());
-    String authToken = "";
-    try{
-      authToken = am.blockingGetAuthToken(account, "", true);
-    }
-    catch(IOException e){
-      //TODO this might actually be an auth error
-      return new PlaylistResult(null, PlaylistLoadError.AUTHENTICATION_ERROR);
-    }
-    catch(AuthenticatorException e){
-      return new PlaylistResult(null, PlaylistLoadError.AUTHENTICATION_ERROR);
-    }
-    catch(OperationCanceledException e){
-      return new PlaylistResult(null, PlaylistLoadError.AUTHENTICATION_ERROR);
-    }
-
-    try{
-      String playerId = am.getUserData(account, Constants.LAST_PLAYER_ID_DATA);
-      JSONObject serverResult = ServerConnection.getActivePlaylist(playerId, authToken);
-      List<ActivePlaylistEntry> toReturn = RESTProcessor.processActivePlaylist(serverResult, am, account, context);
-      return new PlaylistResult(toReturn);
-    }
-    catch(JSONException e){
-      return new PlaylistResult(null, PlaylistLoadError.SERVER_ERROR);
-    }
-    catch(ParseException e){
-      return new PlaylistResult(null, PlaylistLoadError.SERVER_ERROR);
-    }
-    catch(IOException e){
-      return new PlaylistResult(null, PlaylistLoadError.SERVER_ERROR);
-    }
-    catch(AuthenticationException e){
-      if(attemptReauth){
-        Log.d(TAG, "soft auth failure");
-        am.invalidateAuthToken(Constants.ACCOUNT_TYPE, authToken);
-        return attemptLoad(false);
-      }
-      else{
-        Log.d(TAG, "hard auth failure");
-        return new PlaylistResult(null, PlaylistLoadError.AUTHENTICATION_ERROR);
-      }
-    }
-    catch(PlayerInactiveException e){
-      return new PlaylistResult(null, PlaylistLoadError.PLAYER_INACTIVE_ERROR);
-    }
-    catch (NoLongerInPlayerException e) {
-      return new PlaylistResult(null, PlaylistLoadError.NO_LONGER_IN_PLAYER_ERROR);
-    }
-    catch (KickedException e){
-      return new PlaylistResult(null, PlaylistLoadError.KICKED_ERROR);
+  public PlaylistResult loadInBackground(){
+    PlayerSession.Result<Playlist> loaded = loadResource(
+      PlayerSession.PLAYLIST, MAX_AGE, newFetcher(context, account));
+    if(loaded.error != PlayerSession.Error.NO_ERROR){
+      return new PlaylistResult(null, PlaylistLoadError.valueOf(loaded.error.name()));
     }
+    List<ActivePlaylistEntry> entries = loaded.value.entries;
+    PlaylistResult result = new PlaylistResult(
+      entries != null ? new ArrayList<ActivePlaylistEntry>(entries) : null);
+    result.changed = !loaded.fromCache && !loaded.value.notModified;
+    result.fetchedAt = loaded.value.fetchedAt;
+    return result;
   }
 
-  @Override
-  protected void onStartLoading(){
-    forceLoad();
+  private static Playlist fetchPlaylist(
+    Context context, Account account, String playerId, String authToken) throws
+    JSONException, ParseException, IOException, AuthenticationException,
+    PlayerInactiveException, NoLongerInPlayerException, KickedException
+  {
+    AccountManager am = AccountManager.get(context);
+    String userId = am.getUserData(account, Constants.USER_ID_DATA);
+    long fetchedAt = SystemClock.elapsedRealtime();
+    ServerConnection.ActivePlaylistResult serverResult = ServerConnection.getActivePlaylist(
+      playerId, authToken, RESTProcessor.getActivePlaylistETag(playerId), userId);
+    List<ActivePlaylistEntry> entries = RESTProcessor.processActivePlaylistUpdate(
+      playerId, serverResult, am, account, context);
+    if(entries == null){
+      Log.d(TAG, "Playlist snapshot out of date, doing full fetch");
+      fetchedAt = SystemClock.elapsedRealtime();
+      serverResult = ServerConnection.getActivePlaylist(playerId, authToken, null, userId);
+      entries = RESTProcessor.processActivePlaylistUpdate(
+        playerId, serverResult, am, account, context);
+    }
+    return new Playlist(entries, serverResult.notModified(), fetchedAt);
   }
-
 }
@@ -0,0 +1,332 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.app.Fragment;
+import android.support.v4.content.Loader;
+import android.util.Log;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.klnusbaum.udj.network.RequestCanceller;
+import org.klnusbaum.udj.network.RequestMetrics;
+import org.klnusbaum.udj.network.ServerConnection;
+
+/**
+ * A loader that does its work on our own thread pools instead of the one
+ * shared by every AsyncTaskLoader in the process. Loads are run by priority:
+ * whatever the user just asked for goes first, then whatever is on screen,
+ * and anything running in the background (prefetching, tabs that aren't
+ * showing) gets threads of its own so it can never hold up the first two.
+ *
+ * Otherwise this behaves like AsyncTaskLoader: forceLoad cancels whatever
+ * load is in progress and starts a new one, results of canceled loads go to
+ * onCanceled, and a new load never starts until a canceled one that's still
+ * running has finished.
+ *
+ * Each load gets its own RequestCanceller, so cancelling a load, or the
+ * loader being reset, aborts whatever request it's waiting on and stops
+ * parsing the response, and its connection is freed up for a load somebody
+ * still wants.
+ */
+public abstract class PriorityLoader<D> extends Loader<D>{
+  private static final String TAG = "PriorityLoader";
+
+  /** In order, from most to least urgent. */
+  public enum Priority{
+    USER_INITIATED,
+    VISIBLE,
+    BACKGROUND
+  }
+
+  private static final int FOREGROUND_THREADS = 3;
+  private static final int BACKGROUND_THREADS = 2;
+
+  /**
+   * A unit of work on one of our pools. Tasks are ordered by priority and
+   * then by the order they were queued in.
+   */
+  private static abstract class Task implements Runnable, Comparable<Task>{
+    private static final AtomicLong nextSequence = new AtomicLong();
+
+    public final Priority priority;
+    private final long sequence = nextSequence.getAndIncrement();
+    private final long queuedAt = SystemClock.elapsedRealtime();
+
+    public Task(Priority priority){
+      this.priority = priority;
+    }
+
+    public int compareTo(Task other){
+      if(priority != other.priority){
+        return priority.ordinal() - other.priority.ordinal();
+      }
+      return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+
+    public final void run(){
+      long waited = SystemClock.elapsedRealtime() - queuedAt;
+      queueWait[priority.ordinal()].record(waited);
+      if(Log.isLoggable(TAG, Log.DEBUG)){
+        Log.d(TAG, this + " waited " + waited + "ms at " + priority);
+      }
+      execute();
+    }
+
+    protected abstract void execute();
+  }
+
+  private final class LoadTask extends Task{
+    public final RequestCanceller canceller = new RequestCanceller();
+
+    public LoadTask(Priority priority){
+      super(priority);
+    }
+
+    protected void execute(){
+      D result = null;
+      if(!canceller.isCanceled()){
+        ServerConnection.setRequestCanceller(canceller);
+        try{
+          result = loadInBackground();
+        }
+        finally{
+          ServerConnection.setRequestCanceller(null);
+        }
+      }
+      final D data = result;
+      mainHandler.post(new Runnable(){
+        public void run(){
+          dispatchComplete(LoadTask.this, data);
+        }
+      });
+    }
+
+    public String toString(){
+      return PriorityLoader.this.getClass().getSimpleName();
+    }
+  }
+
+  private static final RequestMetrics.Histogram[] queueWait =
+    new RequestMetrics.Histogram[Priority.values().length];
+  static{
+    for(int i = 0; i < queueWait.length; i++){
+      queueWait[i] = new RequestMetrics.Histogram();
+    }
+  }
+
+  private static final ThreadPoolExecutor foregroundExecutor =
+    newExecutor("PriorityLoader", FOREGROUND_THREADS,
+      Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE);
+  private static final ThreadPoolExecutor backgroundExecutor =
+    newExecutor("PriorityLoader-bg", BACKGROUND_THREADS,
+      Process.THREAD_PRIORITY_BACKGROUND);
+
+  private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  private volatile Priority priority = Priority.VISIBLE;
+  private LoadTask task;
+  private LoadTask cancellingTask;
+
+  public PriorityLoader(Context context){
+    super(context);
+  }
+
+  /**
+   * Does the actual loading, on one of our pools.
+   */
+  public abstract D loadInBackground();
+
+  /**
+   * Called on the main thread with the result of a load that was canceled
+   * or superseded before it could be delivered.
+   */
+  public void onCanceled(D data){}
+
+  /**
+   * Sets the priority future loads run at. A load that's still waiting for a
+   * thread is moved to its new place in line straight away.
+   */
+  public void setPriority(Priority priority){
+    this.priority = priority;
+    if(task == null || task.priority == getLoadPriority()){
+      return;
+    }
+    if(cancellingTask != null){
+      // Still waiting on a canceled load, so it hasn't been queued yet.
+      task = new LoadTask(getLoadPriority());
+    }
+    else if(executorFor(task.priority).remove(task)){
+      task = new LoadTask(getLoadPriority());
+      executorFor(task.priority).execute(task);
+    }
+  }
+
+  public Priority getPriority(){
+    return priority;
+  }
+
+  /**
+   * The priority the next load should run at. Subclasses can override this
+   * to bump loads the user explicitly asked for.
+   */
+  protected Priority getLoadPriority(){
+    return priority;
+  }
+
+  /**
+   * Cancels the current load, aborting any request it's in the middle of.
+   * Returns true if the load was already running, in which case its result
+   * will be handed to onCanceled once it's done.
+   */
+  public boolean cancelLoad(){
+    if(task == null){
+      return false;
+    }
+    final LoadTask toCancel = task;
+    task = null;
+    toCancel.canceller.cancel();
+    if(cancellingTask != null || executorFor(toCancel.priority).remove(toCancel)){
+      // It never got to run.
+      return false;
+    }
+    cancellingTask = toCancel;
+    return true;
+  }
+
+  @Override
+  protected void onForceLoad(){
+    super.onForceLoad();
+    cancelLoad();
+    task = new LoadTask(getLoadPriority());
+    executePendingTask();
+  }
+
+  @Override
+  protected void onReset(){
+    super.onReset();
+    cancelLoad();
+  }
+
+  private void executePendingTask(){
+    if(cancellingTask == null && task != null){
+      executorFor(task.priority).execute(task);
+    }
+  }
+
+  private void dispatchComplete(LoadTask completed, D data){
+    if(completed == cancellingTask){
+      cancellingTask = null;
+      onCanceled(data);
+      executePendingTask();
+    }
+    else if(completed != task || isAbandoned()){
+      onCanceled(data);
+    }
+    else{
+      task = null;
+      deliverResult(data);
+    }
+  }
+
+  /**
+   * The priority loads belonging to the given fragment should run at,
+   * depending on whether it's the page of a pager that's showing.
+   */
+  public static Priority getPriority(Fragment fragment){
+    return fragment.getUserVisibleHint() ? Priority.VISIBLE : Priority.BACKGROUND;
+  }
+
+  /**
+   * Moves the fragment's loader with the given id to the priority matching
+   * the fragment's current visibility. Pages of a pager call this when the
+   * user swipes to or away from them.
+   */
+  public static void updatePriority(Fragment fragment, int loaderId){
+    if(!fragment.isAdded()){
+      return;
+    }
+    final Loader<?> loader = fragment.getLoaderManager().getLoader(loaderId);
+    if(loader instanceof PriorityLoader){
+      ((PriorityLoader<?>)loader).setPriority(getPriority(fragment));
+    }
+  }
+
+  /**
+   * Runs some work that isn't tied to a loader, like prefetching, on our
+   * pools at the given priority.
+   */
+  public static void execute(final Runnable work, Priority priority){
+    executorFor(priority).execute(new Task(priority){
+      protected void execute(){
+        work.run();
+      }
+
+      public String toString(){
+        return work.toString();
+      }
+    });
+  }
+
+  /** How long loads have waited for a thread, by priority. */
+  public static String getQueueWaitStats(){
+    final StringBuilder stats = new StringBuilder();
+    for(Priority p: Priority.values()){
+      stats.append(p).append(": ").append(queueWait[p.ordinal()]).append('\n');
+    }
+    return stats.toString();
+  }
+
+  private static ThreadPoolExecutor executorFor(Priority priority){
+    return priority == Priority.BACKGROUND ? backgroundExecutor : foregroundExecutor;
+  }
+
+  /**
+   * A fixed size pool. The threads stay around once started, since letting
+   * core threads time out isn't available on all the versions we support.
+   */
+  private static ThreadPoolExecutor newExecutor(
+    final String name, int threads, final int threadPriority)
+  {
+    final ThreadFactory threadFactory = new ThreadFactory(){
+      private final AtomicInteger count = new AtomicInteger(1);
+
+      public Thread newThread(final Runnable r){
+        return new Thread(new Runnable(){
+          public void run(){
+            Process.setThreadPriority(threadPriority);
+            r.run();
+          }
+        }, name + " #" + count.getAndIncrement());
+      }
+    };
+    return new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+      new PriorityBlockingQueue<Runnable>(), threadFactory);
+  }
+}
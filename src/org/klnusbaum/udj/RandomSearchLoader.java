@@ -30,6 +30,7 @@ import org.json.JSONException;
 import org.apache.http.auth.AuthenticationException;
 import org.apache.http.ParseException;
 
+import org.klnusbaum.udj.network.PlayerSession;
 import org.klnusbaum.udj.network.ServerConnection;
 import org.klnusbaum.udj.containers.LibraryEntry;
 import org.klnusbaum.udj.exceptions.NoLongerInPlayerException;
@@ -38,18 +39,43 @@ import org.klnusbaum.udj.exceptions.KickedException;
 
 public class RandomSearchLoader extends MusicSearchLoader{
 
+  private static final int RANDOM_COUNT = 40;
+  /**
+   * The same random songs are shown until the user asks for new ones by
+   * refreshing.
+   */
+  static final long MAX_AGE = 10 * 60 * 1000;
+
+  static final PlayerSession.Fetcher<List<LibraryEntry>> FETCHER =
+    new PlayerSession.Fetcher<List<LibraryEntry>>(){
+      public List<LibraryEntry> fetch(String playerId, String authToken) throws
+        JSONException, ParseException, IOException, AuthenticationException,
+        PlayerInactiveException, NoLongerInPlayerException, KickedException
+      {
+        return ServerConnection.getRandomMusic(RANDOM_COUNT, playerId, authToken);
+      }
+    };
 
   public RandomSearchLoader(Context context, Account account){
     super(context, account);
   }
 
   @Override
-  protected MusicSearchResult doSearch(String playerId, String authToken) throws
+  protected String getResource(String query, int limit){
+    return PlayerSession.RANDOM;
+  }
+
+  @Override
+  protected long getMaxAge(){
+    return MAX_AGE;
+  }
+
+  @Override
+  protected List<LibraryEntry> doSearch(
+    String playerId, String authToken, String query, int limit) throws
     JSONException, ParseException, IOException,
     AuthenticationException, PlayerInactiveException, NoLongerInPlayerException, KickedException
   {
-    List<LibraryEntry> list =
-        ServerConnection.getRandomMusic(40, playerId, authToken);
-    return new MusicSearchResult(list);
+    return FETCHER.fetch(playerId, authToken);
   }
 }
@@ -30,6 +30,7 @@ import org.json.JSONException;
 import org.apache.http.auth.AuthenticationException;
 import org.apache.http.ParseException;
 
+import org.klnusbaum.udj.network.PlayerSession;
 import org.klnusbaum.udj.network.ServerConnection;
 import org.klnusbaum.udj.containers.LibraryEntry;
 import org.klnusbaum.udj.exceptions.NoLongerInPlayerException;
@@ -38,18 +39,41 @@ import org.klnusbaum.udj.exceptions.KickedException;
 
 public class RecentlyPlayedLoader extends MusicSearchLoader{
 
+  private static final int RECENTLY_PLAYED_COUNT = 40;
+  static final long MAX_AGE = 60 * 1000;
+
+  static final PlayerSession.Fetcher<List<LibraryEntry>> FETCHER =
+    new PlayerSession.Fetcher<List<LibraryEntry>>(){
+      public List<LibraryEntry> fetch(String playerId, String authToken) throws
+        JSONException, ParseException, IOException, AuthenticationException,
+        PlayerInactiveException, NoLongerInPlayerException, KickedException
+      {
+        return ServerConnection.getRecentlyPlayedLibEntries(
+          RECENTLY_PLAYED_COUNT, playerId, authToken);
+      }
+    };
+
   public RecentlyPlayedLoader(Context context, Account account){
     super(context, account);
   }
 
   @Override
-  protected MusicSearchResult doSearch(String playerId, String authToken) throws
+  protected String getResource(String query, int limit){
+    return PlayerSession.RECENTLY_PLAYED;
+  }
+
+  @Override
+  protected long getMaxAge(){
+    return MAX_AGE;
+  }
+
+  @Override
+  protected List<LibraryEntry> doSearch(
+    String playerId, String authToken, String query, int limit) throws
     JSONException, ParseException, IOException,
     AuthenticationException, PlayerInactiveException, NoLongerInPlayerException,
     KickedException
   {
-    List<LibraryEntry> list =
-        ServerConnection.getRecentlyPlayedLibEntries(40, playerId, authToken);
-    return new MusicSearchResult(list);
+    return FETCHER.fetch(playerId, authToken);
   }
 }
@@ -21,9 +21,17 @@ package org.klnusbaum.udj;
 import android.support.v4.app.FragmentManager;
 
 import android.os.Bundle;
+import android.os.Handler;
 import android.content.Intent;
 import android.util.Log;
 import android.app.SearchManager;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.KeyEvent;
+import android.widget.EditText;
+import android.widget.TextView;
+
+import com.actionbarsherlock.app.ActionBar;
 
 /**
  * An Activity which displays the results of a library search.
@@ -31,7 +39,26 @@ import android.app.SearchManager;
 public class RegularSearchActivity extends PlayerExceptionListenerActivity{
 
   private static final String TAG = "MusicActivity";
+  /**
+   * How long to wait after the last keystroke before searching, so we
+   * don't send a request for every letter typed.
+   */
+  private static final long SEARCH_DEBOUNCE = 300;
+  /** Queries shorter than this match too much of the library to be useful. */
+  private static final int MIN_QUERY_LENGTH = 2;
+
   private RegularSearchFragment searchFrag;
+  private Handler handler = new Handler();
+  private String pendingQuery;
+
+  private Runnable searchRunnable = new Runnable(){
+    public void run(){
+      if(pendingQuery != null){
+        search(pendingQuery);
+        pendingQuery = null;
+      }
+    }
+  };
 
   @Override
   public void onCreate(Bundle savedInstanceState){
@@ -39,10 +66,66 @@ public class RegularSearchActivity extends PlayerExceptionListenerActivity{
 
     //TODO before calling fragment, to get ID and give that to it.
     FragmentManager fm = getSupportFragmentManager();
-    if(fm.findFragmentById(android.R.id.content) == null){
+    searchFrag = (RegularSearchFragment)fm.findFragmentById(android.R.id.content);
+    if(searchFrag == null){
       searchFrag = new RegularSearchFragment();
       fm.beginTransaction().add(android.R.id.content, searchFrag).commit();
     }
+    setupInstantSearch();
+  }
+
+  @Override
+  protected void onPause(){
+    super.onPause();
+    handler.removeCallbacks(searchRunnable);
+    pendingQuery = null;
+  }
+
+  /**
+   * Puts a search box in the action bar that searches as the user types.
+   */
+  private void setupInstantSearch(){
+    ActionBar actionBar = getSupportActionBar();
+    actionBar.setCustomView(R.layout.collapsible_searchtext);
+    actionBar.setDisplayShowCustomEnabled(true);
+    EditText searchText = (EditText)actionBar.getCustomView();
+    searchText.setText(getIntent().getStringExtra(SearchManager.QUERY));
+    searchText.addTextChangedListener(new TextWatcher(){
+      public void afterTextChanged(Editable s){
+        handler.removeCallbacks(searchRunnable);
+        String query = s.toString().trim();
+        if(query.length() >= MIN_QUERY_LENGTH){
+          pendingQuery = query;
+          handler.postDelayed(searchRunnable, SEARCH_DEBOUNCE);
+        }
+        else{
+          pendingQuery = null;
+        }
+      }
+
+      public void beforeTextChanged(CharSequence s, int start, int count, int after){
+      }
+
+      public void onTextChanged(CharSequence s, int start, int before, int count){
+      }
+    });
+    searchText.setOnEditorActionListener(new TextView.OnEditorActionListener(){
+      public boolean onEditorAction(TextView v, int actionId, KeyEvent event){
+        handler.removeCallbacks(searchRunnable);
+        pendingQuery = null;
+        String query = v.getText().toString().trim();
+        if(query.length() > 0){
+          search(query);
+        }
+        return true;
+      }
+    });
+  }
+
+  private void search(String query){
+    Log.d(TAG, "Instant search for " + query);
+    getIntent().putExtra(SearchManager.QUERY, query);
+    searchFrag.setQuery(query);
   }
 
   protected void onNewIntent(Intent intent){
@@ -51,6 +134,7 @@ public class RegularSearchActivity extends PlayerExceptionListenerActivity{
       String searchQuery = intent.getStringExtra(SearchManager.QUERY);
       searchQuery = searchQuery.trim();
       getIntent().putExtra(SearchManager.QUERY, searchQuery);
+      ((EditText)getSupportActionBar().getCustomView()).setText(searchQuery);
       getSupportLoaderManager().restartLoader(
         SearchFragment.LIB_SEARCH_LOADER_TAG, null, searchFrag);
     }
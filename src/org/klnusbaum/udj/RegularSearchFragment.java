@@ -36,6 +36,18 @@ public class RegularSearchFragment extends SearchFragment{
 
   }
 
+  /**
+   * Moves the current search over to the given query, see
+   * RegularSearchLoader.setQuery.
+   */
+  public void setQuery(String query){
+    Loader<MusicSearchLoader.MusicSearchResult> loader =
+      getLoaderManager().getLoader(LIB_SEARCH_LOADER_TAG);
+    if(loader != null){
+      ((RegularSearchLoader)loader).setQuery(query);
+    }
+  }
+
   public Loader<MusicSearchLoader.MusicSearchResult> getLoader(Account account){
     String searchQuery = getActivity().getIntent().getStringExtra(SearchManager.QUERY);
     return new RegularSearchLoader(getActivity(), searchQuery, account);
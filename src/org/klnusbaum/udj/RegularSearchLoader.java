@@ -22,7 +22,9 @@ package org.klnusbaum.udj;
 import android.content.Context;
 import android.accounts.Account;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.io.IOException;
 
 import org.json.JSONException;
@@ -38,7 +40,19 @@ import org.klnusbaum.udj.exceptions.KickedException;
 
 public class RegularSearchLoader extends MusicSearchLoader{
 
-  private String query;
+  /** The last set of results the server gave us and the query they were for. */
+  private static class QueryResults{
+    public final String query;
+    public final List<LibraryEntry> results;
+
+    public QueryResults(String query, List<LibraryEntry> results){
+      this.query = query;
+      this.results = results;
+    }
+  }
+
+  private volatile String query;
+  private volatile QueryResults lastServerResults;
 
   public RegularSearchLoader(
     Context context, String query, Account account)
@@ -47,16 +61,90 @@ public class RegularSearchLoader extends MusicSearchLoader{
     this.query = query;
   }
 
+  /**
+   * Switches this loader over to a new query, aborting the search for the
+   * old one if it's still running. If the new query just extends the one we
+   * last got server results for, those results are filtered down and shown
+   * right away while the server works on the real ones. Must be called from
+   * the main thread.
+   */
+  public void setQuery(String newQuery){
+    if(newQuery.equals(query)){
+      return;
+    }
+    query = newQuery;
+    QueryResults previous = lastServerResults;
+    if(isStarted() && previous != null && previous.results != null &&
+      lowerCase(newQuery).startsWith(lowerCase(previous.query)))
+    {
+      deliverResult(new MusicSearchResult(filter(previous.results, newQuery)));
+    }
+    restartSearch();
+  }
+
+  @Override
+  protected String getQuery(){
+    return query;
+  }
+
+  @Override
+  protected String getResource(String query, int limit){
+    if(query == null || query.equals("")){
+      return null;
+    }
+    return "search:" + limit + ":" + query;
+  }
+
   @Override
-  protected MusicSearchResult doSearch(String playerId, String authToken) throws
+  protected List<LibraryEntry> doSearch(
+    String playerId, String authToken, String query, int limit) throws
     JSONException, ParseException, IOException, AuthenticationException, PlayerInactiveException,
     NoLongerInPlayerException, KickedException
   {
-    if(query != null && query != ""){
-        List<LibraryEntry> list = 
-          ServerConnection.availableMusicQuery(query, playerId, authToken);
-        return new MusicSearchResult(list);
+    List<LibraryEntry> list = 
+      ServerConnection.availableMusicQuery(query, limit, playerId, authToken);
+    lastServerResults = new QueryResults(query, list);
+    return list;
+  }
+
+  @Override
+  protected boolean isPaged(){
+    return true;
+  }
+
+  /** Whatever the user is typing is what they're waiting on. */
+  @Override
+  protected Priority getLoadPriority(){
+    return Priority.USER_INITIATED;
+  }
+
+  @Override
+  protected List<LibraryEntry> getLocalResults(
+    LibraryIndex index, String playerId, String query)
+  {
+    return index.search(playerId, query);
+  }
+
+  /**
+   * Picks out the entries the server would also match for the given query,
+   * which it does by looking for the query anywhere in the title, artist or
+   * album.
+   */
+  private static List<LibraryEntry> filter(List<LibraryEntry> entries, String query){
+    String lowerQuery = lowerCase(query);
+    List<LibraryEntry> toReturn = new ArrayList<LibraryEntry>();
+    for(LibraryEntry entry: entries){
+      if(lowerCase(entry.getTitle()).contains(lowerQuery) ||
+        lowerCase(entry.getArtist()).contains(lowerQuery) ||
+        lowerCase(entry.getAlbum()).contains(lowerQuery))
+      {
+        toReturn.add(entry);
+      }
     }
-    return new MusicSearchResult(null, MusicSearchError.NO_SEARCH_ERROR);
+    return toReturn;
+  }
+
+  private static String lowerCase(String value){
+    return value.toLowerCase(Locale.US);
   }
 }
@@ -23,7 +23,9 @@ import android.accounts.Account;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
+import android.widget.AbsListView;
 import android.widget.ListView;
+import android.widget.Toast;
 import android.util.Log;
 
 import com.handmark.pulltorefresh.extras.listfragment.PullToRefreshListFragment;
@@ -33,16 +35,29 @@ import com.handmark.pulltorefresh.library.PullToRefreshListView;
 
 public abstract class SearchFragment extends PullToRefreshListFragment
   implements LoaderManager.LoaderCallbacks<MusicSearchLoader.MusicSearchResult>,
-  OnRefreshListener<ListView>
+  OnRefreshListener<ListView>, AbsListView.OnScrollListener
 {
   public static final int LIB_SEARCH_LOADER_TAG = 0;
   public static final String TAG ="SearchFragment";
+  /**
+   * Once the user scrolls to within this many rows of the end of the list
+   * we start fetching the next page of results.
+   */
+  private static final int LOAD_MORE_THRESHOLD = 15;
 
   /** Adapter used to help display the contents of the library. */
   private MusicSearchAdapter searchAdapter;
   private Account account;
+  /** Whether we've told the user this search has more results than we show. */
+  private boolean toldCapped = false;
 
 
+  @Override
+  public void setUserVisibleHint(boolean isVisibleToUser){
+    super.setUserVisibleHint(isVisibleToUser);
+    PriorityLoader.updatePriority(this, LIB_SEARCH_LOADER_TAG);
+  }
+
   @Override
   public void onActivityCreated(Bundle savedInstanceState){
     super.onActivityCreated(savedInstanceState);
@@ -53,6 +68,7 @@ public abstract class SearchFragment extends PullToRefreshListFragment
     searchAdapter = new MusicSearchAdapter(getActivity(), account);
     getPullToRefreshListView().getRefreshableView().setAdapter(searchAdapter);
     getPullToRefreshListView().setOnRefreshListener(this);
+    getPullToRefreshListView().setOnScrollListener(this);
     setListShown(false);
     getLoaderManager().initLoader(LIB_SEARCH_LOADER_TAG, null, this);
   }
@@ -62,7 +78,13 @@ public abstract class SearchFragment extends PullToRefreshListFragment
     int id, Bundle args)
   {
     if(id == LIB_SEARCH_LOADER_TAG){
-      return getLoader(account);
+      Loader<MusicSearchLoader.MusicSearchResult> loader = getLoader(account);
+      ((MusicSearchLoader)loader).setForceRefresh(
+        args != null && args.getBoolean(Constants.FORCE_REFRESH_EXTRA, false));
+      ((MusicSearchLoader)loader).setUserInitiated(
+        args != null && args.getBoolean(Constants.USER_REFRESH_EXTRA, false));
+      ((MusicSearchLoader)loader).setPriority(PriorityLoader.getPriority(this));
+      return loader;
     }
     return null;
   }
@@ -70,7 +92,27 @@ public abstract class SearchFragment extends PullToRefreshListFragment
   @Override
   public void onRefresh(PullToRefreshBase<ListView> listView){
     Log.i(TAG, "In on refresh for SearchFragment");
-    getLoaderManager().restartLoader(LIB_SEARCH_LOADER_TAG, null, this);
+    Bundle args = new Bundle();
+    args.putBoolean(Constants.FORCE_REFRESH_EXTRA, true);
+    args.putBoolean(Constants.USER_REFRESH_EXTRA, true);
+    getLoaderManager().restartLoader(LIB_SEARCH_LOADER_TAG, args, this);
+  }
+
+  public void onScroll(
+    AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount)
+  {
+    if(totalItemCount > 0 &&
+      firstVisibleItem + visibleItemCount >= totalItemCount - LOAD_MORE_THRESHOLD)
+    {
+      Loader<MusicSearchLoader.MusicSearchResult> loader =
+        getLoaderManager().getLoader(LIB_SEARCH_LOADER_TAG);
+      if(loader != null){
+        ((MusicSearchLoader)loader).loadMore();
+      }
+    }
+  }
+
+  public void onScrollStateChanged(AbsListView view, int scrollState){
   }
 
   public void onLoadFinished(
@@ -81,6 +123,11 @@ public abstract class SearchFragment extends PullToRefreshListFragment
     getPullToRefreshListView().onRefreshComplete();
     if(data.getError() == MusicSearchLoader.MusicSearchError.NO_ERROR){
       searchAdapter.updateList(data.getResults());
+      if(data.isCapped() && !toldCapped){
+        Toast.makeText(
+          getActivity(), R.string.search_results_capped, Toast.LENGTH_LONG).show();
+      }
+      toldCapped = data.isCapped();
     }
     else if(data.getError() ==
       MusicSearchLoader.MusicSearchError.PLAYER_INACTIVE_ERROR)
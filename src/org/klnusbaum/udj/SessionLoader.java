@@ -0,0 +1,103 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj;
+
+import android.accounts.Account;
+import android.content.Context;
+
+import org.klnusbaum.udj.network.PlayerSession;
+
+/**
+ * Base class for loaders that show something about the player we're in.
+ * They get their data through the PlayerSession, so they share its cache
+ * and whatever requests are already in flight, and they reload themselves
+ * whenever somebody else fetches a newer copy of what they're showing.
+ */
+public abstract class SessionLoader<D> extends PriorityLoader<D>
+  implements PlayerSession.Observer
+{
+  protected final Account account;
+  private final PlayerSession session;
+  private volatile boolean forceRefresh = false;
+  private volatile boolean userInitiated = false;
+  private volatile String lastResource;
+  private volatile long lastVersion;
+
+  public SessionLoader(Context context, Account account){
+    super(context);
+    this.account = account;
+    this.session = PlayerSession.get(context);
+  }
+
+  /**
+   * Makes the next load skip the cache and go to the server, for when the
+   * user has explicitly asked for fresh data or we're polling for it.
+   */
+  public void setForceRefresh(boolean forceRefresh){
+    this.forceRefresh = forceRefresh;
+  }
+
+  /**
+   * Marks the next load as one the user explicitly asked for, like a pull
+   * to refresh. Polls and reloads we start ourselves shouldn't set this, or
+   * they'd get ahead of whatever the user is actually waiting on.
+   */
+  public void setUserInitiated(boolean userInitiated){
+    this.userInitiated = userInitiated;
+  }
+
+  /** Loads the user explicitly asked for jump the queue. */
+  @Override
+  protected Priority getLoadPriority(){
+    return userInitiated ? Priority.USER_INITIATED : super.getLoadPriority();
+  }
+
+  protected <T> PlayerSession.Result<T> loadResource(
+    String resource, long maxAge, PlayerSession.Fetcher<T> fetcher)
+  {
+    boolean force = forceRefresh;
+    forceRefresh = false;
+    userInitiated = false;
+    PlayerSession.Result<T> result =
+      session.load(account, resource, maxAge, force, fetcher, this);
+    if(result.error == PlayerSession.Error.NO_ERROR){
+      lastResource = resource;
+      lastVersion = result.version;
+    }
+    return result;
+  }
+
+  public void onResourceUpdated(String resource, long version){
+    if(isStarted() && resource.equals(lastResource) && version > lastVersion){
+      onContentChanged();
+    }
+  }
+
+  @Override
+  protected void onStartLoading(){
+    session.registerObserver(this);
+    forceLoad();
+  }
+
+  @Override
+  protected void onReset(){
+    super.onReset();
+    session.unregisterObserver(this);
+  }
+}
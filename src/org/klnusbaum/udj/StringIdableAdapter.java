@@ -1,101 +1,78 @@
 package org.klnusbaum.udj;
 
+import org.klnusbaum.udj.containers.StableIdList;
 import org.klnusbaum.udj.containers.StringIdable;
 import android.widget.BaseAdapter;
 
 import java.util.List;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentHashMap;
 
 
 
 public abstract class StringIdableAdapter<T extends StringIdable> extends BaseAdapter{
-  private ConcurrentMap<String, Long> idMap;
-  private long currentAvailableMapId;
-  private List<T> itemList;
+  private final StableIdList<T> items;
 
   public StringIdableAdapter(List<T> items){
-    this.itemList = items;
-    this.currentAvailableMapId = 0;
-    idMap = new ConcurrentHashMap<String, Long>();
-    if(items != null){
-      for(StringIdable st: itemList){
-        idMap.put(st.getId(), currentAvailableMapId);
-        currentAvailableMapId++;
+    this.items = new StableIdList<T>(items, new StableIdList.ContentComparator<T>(){
+      public boolean isSameContent(T oldItem, T newItem){
+        return StringIdableAdapter.this.isSameContent(oldItem, newItem);
       }
-    }
+    });
   }
 
   public int getCount(){
-    if(itemList != null){
-      return itemList.size();
-    }
-    return 0;
+    return items.size();
   }
 
 
 
   public Object getItem(int position){
-    if(itemList != null){
-      return itemList.get(position);
-    }
-    return null;
+    return items.get(position);
   }
 
   public long getItemId(int position){
-    return idMap.get(itemList.get(position).getId());
+    return items.getItemId(position);
   }
 
   public void addItem(int position, T item){
-    if(!idMap.keySet().contains(item.getId())){
-        idMap.put(item.getId(), currentAvailableMapId);
-        currentAvailableMapId++;
-    }
-    itemList.add(position, item);
+    items.add(position, item);
     notifyDataSetChanged();
   }
 
   public synchronized void removeItem(int position){
-    idMap.remove(((StringIdable)getItem(position)).getId());
-    itemList.remove(position);
+    items.remove(position);
     notifyDataSetChanged();
   }
 
   public synchronized void removeItem(T toRemove){
-    itemList.remove(toRemove);
-    idMap.remove(toRemove.getId());
+    items.remove(toRemove);
     notifyDataSetChanged();
   }
 
   public boolean isEmpty(){
-    return itemList == null || itemList.isEmpty();
+    return items.isEmpty();
   }
 
-  private synchronized boolean listContainsId(String s){
-    for(StringIdable st: itemList){
-      if(s.equals(st.getId())){
-        return true;
-      }
-    }
-    return false;
+  @Override
+  public boolean hasStableIds(){
+    return true;
   }
 
+  /**
+   * Used by updateList to decide whether an item that's in the same position
+   * in both the old and new lists needs to be redrawn. Items are parsed
+   * afresh on every refresh, so this has to compare whatever the row shows
+   * rather than the objects themselves.
+   */
+  protected abstract boolean isSameContent(T oldItem, T newItem);
+
+  /**
+   * Swaps in a new list of items, keeping the row ids of any items that were
+   * already in the list so the ListView can tell which rows stayed put. If
+   * nothing actually changed the ListView isn't told to redraw at all.
+   */
   public synchronized void updateList(List<T> newItems){
-    for(T item: newItems){
-      if (!idMap.keySet().contains(item.getId())){
-        idMap.put(item.getId(), currentAvailableMapId);
-        currentAvailableMapId++;
-      }
+    if(items.update(newItems)){
+      notifyDataSetChanged();
     }
-    this.itemList = newItems;
-    /**
-     * This algorithm is n*m complexity, might be able to do better...
-     */
-    for(String s: idMap.keySet()){
-      if(!listContainsId(s)){
-        idMap.remove(s);
-      }
-    }
-    notifyDataSetChanged();
   }
 }
@@ -24,11 +24,14 @@ import android.net.NetworkInfo;
 import android.accounts.AccountManager;
 import android.accounts.Account;
 import android.content.Intent;
+import android.location.Location;
 import android.util.Log;
 
 public class Utils{
   private static final String TAG = "Utils";
 
+  private static final long LOCATION_SIGNIFICANTLY_NEWER = 2 * 60 * 1000; // ms
+
   public static boolean isNetworkAvailable(Context context){
     ConnectivityManager cm = ((ConnectivityManager)context.getSystemService(
       Context.CONNECTIVITY_SERVICE));
@@ -84,6 +87,7 @@ public class Utils{
   }
 
   public static void leavePlayer(AccountManager am, Account account){
+    PlayerPrefetcher.cancel();
     am.setUserData(account, Constants.LAST_PLAYER_ID_DATA, 
       String.valueOf(Constants.NO_PLAYER_ID));
     am.setUserData(account, Constants.PLAYER_STATE_DATA, 
@@ -117,4 +121,53 @@ public class Utils{
     }
   }
 
+  public static boolean isLibraryIndexEnabled(AccountManager am, Account account){
+    return Boolean.valueOf(am.getUserData(account, Constants.LIBRARY_INDEX_ENABLED_DATA));
+  }
+
+  public static void setLibraryIndexEnabled(
+    Context context, AccountManager am, Account account, boolean enabled)
+  {
+    am.setUserData(account, Constants.LIBRARY_INDEX_ENABLED_DATA, String.valueOf(enabled));
+    if(!enabled){
+      LibraryIndex.get(context).clear();
+    }
+  }
+
+  /**
+   * Whether a new location fix should replace the one we've got. Newer fixes
+   * win unless they're a good deal less accurate, and a fix that's much older
+   * than the current one never does.
+   */
+  public static boolean isBetterLocation(Location location, Location current){
+    if(current == null){
+      return true;
+    }
+
+    long timeDelta = location.getTime() - current.getTime();
+    if(timeDelta > LOCATION_SIGNIFICANTLY_NEWER){
+      return true;
+    }
+    else if(timeDelta < -LOCATION_SIGNIFICANTLY_NEWER){
+      return false;
+    }
+
+    float accuracyDelta = getAccuracy(location) - getAccuracy(current);
+    boolean isNewer = timeDelta > 0;
+    boolean isMoreAccurate = accuracyDelta < 0;
+    boolean isSameProvider = location.getProvider() == null ?
+      current.getProvider() == null : location.getProvider().equals(current.getProvider());
+    return isMoreAccurate ||
+      (isNewer && accuracyDelta <= 0) ||
+      (isNewer && accuracyDelta <= 200 && isSameProvider);
+  }
+
+  /**
+   * A fix without an accuracy reports 0, which would make it look perfect,
+   * so treat it as the least accurate there is instead.
+   */
+  private static float getAccuracy(Location location){
+    return location.hasAccuracy() ? location.getAccuracy() : Float.MAX_VALUE;
+  }
+
 }
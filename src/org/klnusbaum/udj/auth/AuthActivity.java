@@ -206,6 +206,7 @@ public class AuthActivity extends AccountAuthenticatorActivity{
         Log.i(TAG, "finishConfirmCredentials()");
         final Account account = new Account(mUsername, Constants.ACCOUNT_TYPE);
         mAccountManager.setPassword(account, mPassword);
+        AuthTokenCache.clear(account);
         final Intent intent = new Intent();
         intent.putExtra(AccountManager.KEY_BOOLEAN_RESULT, result);
         setAccountAuthenticatorResult(intent.getExtras());
@@ -231,6 +232,7 @@ public class AuthActivity extends AccountAuthenticatorActivity{
         } else {
             mAccountManager.setPassword(account, mPassword);
         }
+        AuthTokenCache.clear(account);
         mAccountManager.setUserData(account, Constants.USER_ID_DATA, 
           authResult.userId);
         mAccountManager.setUserData(account, Constants.LAST_PLAYER_ID_DATA, 
@@ -0,0 +1,264 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.auth;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.AuthenticatorException;
+import android.accounts.OperationCanceledException;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.auth.AuthenticationException;
+
+import org.klnusbaum.udj.Constants;
+
+/**
+ * Process wide cache of ticket hashes. Going through
+ * AccountManager.blockingGetAuthToken costs a binder call every time, and a
+ * full round trip to the server whenever the ticket has been invalidated.
+ * This keeps the current ticket for each account in memory and makes sure
+ * that when many requests need a new ticket at the same time, only one of
+ * them actually asks for it and the rest share the result.
+ */
+public class AuthTokenCache{
+  private static final String TAG = "AuthTokenCache";
+
+  /**
+   * A request that needs a ticket hash. It should deal with its own errors
+   * and only let an AuthenticationException escape, which is taken to mean
+   * the ticket is no longer valid.
+   */
+  public interface AuthenticatedCall<T>{
+    public T call(String authToken) throws AuthenticationException;
+  }
+
+  /**
+   * Where tickets actually come from. Normally that's the AccountManager,
+   * tests can supply their own.
+   */
+  interface TokenSource{
+    public String fetch() throws
+      IOException, AuthenticatorException, OperationCanceledException;
+
+    public void invalidate(String authToken);
+  }
+
+  private static class AccountTokenSource implements TokenSource{
+    private final AccountManager am;
+    private final Account account;
+
+    public AccountTokenSource(AccountManager am, Account account){
+      this.am = am;
+      this.account = account;
+    }
+
+    public String fetch() throws
+      IOException, AuthenticatorException, OperationCanceledException
+    {
+      return am.blockingGetAuthToken(account, "", true);
+    }
+
+    public void invalidate(String authToken){
+      Log.d(TAG, "Invalidating ticket for " + account.name);
+      am.invalidateAuthToken(Constants.ACCOUNT_TYPE, authToken);
+    }
+  }
+
+  /**
+   * A single request for a new ticket that any number of threads can wait
+   * on.
+   */
+  private static class Refresh{
+    private boolean done = false;
+    private String authToken;
+    private Exception error;
+
+    public synchronized void complete(String authToken, Exception error){
+      this.authToken = authToken;
+      this.error = error;
+      this.done = true;
+      notifyAll();
+    }
+
+    public synchronized String await() throws
+      IOException, AuthenticatorException, OperationCanceledException
+    {
+      while(!done){
+        try{
+          wait();
+        }
+        catch(InterruptedException e){
+          Thread.currentThread().interrupt();
+          throw new OperationCanceledException();
+        }
+      }
+      if(error instanceof IOException){
+        throw (IOException)error;
+      }
+      else if(error instanceof AuthenticatorException){
+        throw (AuthenticatorException)error;
+      }
+      else if(error instanceof OperationCanceledException){
+        throw (OperationCanceledException)error;
+      }
+      else if(error instanceof RuntimeException){
+        throw (RuntimeException)error;
+      }
+      return authToken;
+    }
+  }
+
+  private static final Map<String, String> authTokens = new HashMap<String, String>();
+  private static final Map<String, Refresh> refreshes = new HashMap<String, Refresh>();
+
+  private static int hitCount = 0;
+  private static int fetchCount = 0;
+  private static int invalidateCount = 0;
+
+  /**
+   * Runs the call with the account's current ticket. If the server rejects
+   * the ticket, it is invalidated and the call is made once more with a new
+   * one. A second AuthenticationException is passed on to the caller.
+   */
+  public static <T> T withToken(
+    AccountManager am, Account account, AuthenticatedCall<T> call) throws
+    IOException, AuthenticatorException, OperationCanceledException,
+    AuthenticationException
+  {
+    return withToken(account.name, new AccountTokenSource(am, account), call);
+  }
+
+  static <T> T withToken(String key, TokenSource source, AuthenticatedCall<T> call)
+    throws IOException, AuthenticatorException, OperationCanceledException,
+    AuthenticationException
+  {
+    String authToken = getAuthToken(key, source);
+    try{
+      return call.call(authToken);
+    }
+    catch(AuthenticationException e){
+      invalidate(key, source, authToken);
+      return call.call(getAuthToken(key, source));
+    }
+  }
+
+  /**
+   * Returns the current ticket hash for the account, only going to the
+   * AccountManager if we don't already have one. If another thread is already
+   * fetching a ticket for this account we wait for it instead of asking
+   * again.
+   */
+  public static String getAuthToken(AccountManager am, Account account) throws
+    IOException, AuthenticatorException, OperationCanceledException
+  {
+    return getAuthToken(account.name, new AccountTokenSource(am, account));
+  }
+
+  static String getAuthToken(String key, TokenSource source) throws
+    IOException, AuthenticatorException, OperationCanceledException
+  {
+    Refresh refresh;
+    boolean shouldFetch = false;
+    synchronized(AuthTokenCache.class){
+      String cached = authTokens.get(key);
+      if(cached != null){
+        hitCount++;
+        return cached;
+      }
+      refresh = refreshes.get(key);
+      if(refresh == null){
+        refresh = new Refresh();
+        refreshes.put(key, refresh);
+        shouldFetch = true;
+      }
+    }
+
+    if(shouldFetch){
+      String authToken = null;
+      Exception error = null;
+      try{
+        authToken = source.fetch();
+      }
+      catch(IOException e){
+        error = e;
+      }
+      catch(AuthenticatorException e){
+        error = e;
+      }
+      catch(OperationCanceledException e){
+        error = e;
+      }
+      catch(RuntimeException e){
+        error = e;
+      }
+      synchronized(AuthTokenCache.class){
+        fetchCount++;
+        refreshes.remove(key);
+        if(authToken != null){
+          authTokens.put(key, authToken);
+        }
+      }
+      refresh.complete(authToken, error);
+    }
+    return refresh.await();
+  }
+
+  /**
+   * Invalidates the given ticket, but only if it's still the one we have
+   * cached. When a burst of requests all fail with the same stale ticket, the
+   * first one to get here invalidates it and the rest simply pick up the new
+   * ticket on their retry. Clearing the account's credentials resets the
+   * AccountManager's tickets too, so there's nothing to invalidate if we no
+   * longer have one cached.
+   */
+  private static void invalidate(String key, TokenSource source, String authToken){
+    synchronized(AuthTokenCache.class){
+      if(!authToken.equals(authTokens.get(key))){
+        return;
+      }
+      authTokens.remove(key);
+      invalidateCount++;
+    }
+    source.invalidate(authToken);
+  }
+
+  /**
+   * Forgets any ticket we have for the account, used when its credentials
+   * change.
+   */
+  public static synchronized void clear(Account account){
+    authTokens.remove(account.name);
+  }
+
+  public static synchronized int getHitCount(){
+    return hitCount;
+  }
+
+  public static synchronized int getFetchCount(){
+    return fetchCount;
+  }
+
+  public static synchronized int getInvalidateCount(){
+    return invalidateCount;
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ * 
+ * This file is part of UDJ.
+ * 
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.containers;
+
+import org.json.JSONObject;
+import org.json.JSONException;
+
+import org.klnusbaum.udj.network.JSONStreamReader;
+
+import java.io.IOException;
+
+import java.util.List;
+
+/**
+ * Everything the server tells us when we ask for a player's active playlist.
+ * Parsing one of these doesn't touch anything Android specific, so it can be
+ * exercised on a plain JVM.
+ */
+public class ActivePlaylist{
+  public static final String STATE_PARAM = "state";
+  public static final String VOLUME_PARAM = "volume";
+  public static final String CURRENT_SONG_PARAM = "current_song";
+  public static final String ACTIVE_PLAYLIST_PARAM = "active_playlist";
+
+  public String playbackState;
+  public int volume;
+  /** The current song, if any, followed by the rest of the playlist. */
+  public List<ActivePlaylistEntry> entries;
+
+  public ActivePlaylist(
+    String playbackState,
+    int volume,
+    List<ActivePlaylistEntry> entries)
+  {
+    this.playbackState = playbackState;
+    this.volume = volume;
+    this.entries = entries;
+  }
+
+  public static ActivePlaylist valueOf(JSONObject jObj, String myUserId)
+    throws JSONException
+  {
+    ActivePlaylistEntry currentSong = ActivePlaylistEntry.valueOf(
+      jObj.getJSONObject(CURRENT_SONG_PARAM), myUserId).asCurrentSong();
+    List<ActivePlaylistEntry> entries = ActivePlaylistEntry.fromJSONArray(
+      jObj.getJSONArray(ACTIVE_PLAYLIST_PARAM), myUserId);
+    entries.add(0, currentSong);
+    return new ActivePlaylist(
+      jObj.getString(STATE_PARAM),
+      jObj.getInt(VOLUME_PARAM),
+      entries);
+  }
+
+  /** Streamed version of valueOf, reading the playlist as it arrives. */
+  public static ActivePlaylist valueOf(JSONStreamReader reader, String myUserId)
+    throws JSONException, IOException
+  {
+    String playbackState = null;
+    boolean hasVolume = false;
+    int volume = 0;
+    ActivePlaylistEntry currentSong = null;
+    List<ActivePlaylistEntry> entries = null;
+    reader.beginObject();
+    while(reader.hasNext()){
+      String name = reader.nextName();
+      if(name.equals(STATE_PARAM)){
+        playbackState = reader.nextString();
+      }
+      else if(name.equals(VOLUME_PARAM)){
+        volume = reader.nextInt();
+        hasVolume = true;
+      }
+      else if(name.equals(CURRENT_SONG_PARAM)){
+        currentSong = ActivePlaylistEntry.valueOf(reader, myUserId).asCurrentSong();
+      }
+      else if(name.equals(ACTIVE_PLAYLIST_PARAM)){
+        entries = ActivePlaylistEntry.fromJSONStream(reader, myUserId);
+      }
+      else{
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if(playbackState == null || !hasVolume || currentSong == null || entries == null){
+      throw new JSONException("Active playlist missing required fields");
+    }
+    entries.add(0, currentSong);
+    return new ActivePlaylist(playbackState, volume, entries);
+  }
+}
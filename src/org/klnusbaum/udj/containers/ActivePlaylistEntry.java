@@ -22,6 +22,10 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
+import org.klnusbaum.udj.network.JSONStreamReader;
+
+import java.io.IOException;
+
 import java.util.List;
 import java.util.ArrayList;
 
@@ -29,6 +33,15 @@ import java.util.ArrayList;
  * Note we're not keeping track of the time added for the time being.
  * We dont need it at the moment, it's non-trivial to program, and GergorianCalendars
  * take up extra memory.
+ *
+ * For the same reason we only keep how many people voted each way and how
+ * the current user voted, rather than a User for every voter. Those add up
+ * quickly with a big crowd and a long playlist.
+ *
+ * Entries are immutable. The same entry objects are kept in the last
+ * playlist snapshot and handed out again whenever the server says the
+ * playlist hasn't changed, so a local change has to be made on a copy, see
+ * withMyVote and asCurrentSong.
  */
 public class ActivePlaylistEntry implements StringIdable{
   public static final String SONG_PARAM = "song";
@@ -36,23 +49,41 @@ public class ActivePlaylistEntry implements StringIdable{
   public static final String DOWNVOTERS_PARAM = "downvoters";
   public static final String ADDER_PARAM = "adder";
 
-  private LibraryEntry song;
-  private List<User> upvoters;
-  private List<User> downvoters;
-  private User adder;
-  private boolean currentSong;
+  public static final int NO_VOTE = 0;
+  public static final int UPVOTE = 1;
+  public static final int DOWNVOTE = -1;
+
+  private final LibraryEntry song;
+  private final int upvoteCount;
+  private final int downvoteCount;
+  private final int myVote;
+  private final User adder;
+  private final boolean currentSong;
 
   public ActivePlaylistEntry(
     LibraryEntry song,
-    List<User> upvoters,
-    List<User> downvoters,
+    int upvoteCount,
+    int downvoteCount,
+    int myVote,
     User adder
+  ){
+    this(song, upvoteCount, downvoteCount, myVote, adder, false);
+  }
+
+  public ActivePlaylistEntry(
+    LibraryEntry song,
+    int upvoteCount,
+    int downvoteCount,
+    int myVote,
+    User adder,
+    boolean currentSong
   ){
     this.song = song;
-    this.upvoters = upvoters;
-    this.downvoters = downvoters;
+    this.upvoteCount = upvoteCount;
+    this.downvoteCount = downvoteCount;
+    this.myVote = myVote;
     this.adder = adder;
-    this.currentSong = false;
+    this.currentSong = currentSong;
   }
 
   public String getId(){
@@ -63,31 +94,45 @@ public class ActivePlaylistEntry implements StringIdable{
     return song;
   }
 
-  public List<User> getUpvoters(){
-    return upvoters;
-  }
-
-  public List<User> getDownvoters(){
-    return downvoters;
-  }
-
-  public void removeFromDownvoters(User toRemove){
-    downvoters.remove(toRemove);
+  public int getUpvoteCount(){
+    return upvoteCount;
   }
 
-  public void removeFromUpvoters(User toRemove){
-    upvoters.remove(toRemove);
+  public int getDownvoteCount(){
+    return downvoteCount;
   }
 
-  public void addToDownvoters(User toAdd){
-    downvoters.add(toAdd);
+  /**
+   * Returns UPVOTE, DOWNVOTE or NO_VOTE depending on how the current user
+   * voted on this entry.
+   */
+  public int getMyVote(){
+    return myVote;
   }
 
-  public void addToUpvoters(User toAdd){
-    upvoters.add(toAdd);
+  /**
+   * Returns a copy of this entry with the current user's vote changed to the
+   * given one, taking back whatever vote they had made before.
+   */
+  public ActivePlaylistEntry withMyVote(int vote){
+    int newUpvotes = upvoteCount;
+    int newDownvotes = downvoteCount;
+    if(myVote == UPVOTE){
+      newUpvotes--;
+    }
+    else if(myVote == DOWNVOTE){
+      newDownvotes--;
+    }
+    if(vote == UPVOTE){
+      newUpvotes++;
+    }
+    else if(vote == DOWNVOTE){
+      newDownvotes++;
+    }
+    return new ActivePlaylistEntry(
+      song, newUpvotes, newDownvotes, vote, adder, currentSong);
   }
 
-
   public User getAdder(){
     return adder;
   }
@@ -96,8 +141,10 @@ public class ActivePlaylistEntry implements StringIdable{
     return currentSong;
   }
 
-  public void setCurrentSong(boolean currentSong){
-    this.currentSong = currentSong;
+  /** Returns a copy of this entry marked as the current song. */
+  public ActivePlaylistEntry asCurrentSong(){
+    return new ActivePlaylistEntry(
+      song, upvoteCount, downvoteCount, myVote, adder, true);
   }
 
   public boolean equals(Object o){
@@ -105,24 +152,154 @@ public class ActivePlaylistEntry implements StringIdable{
     return casted != null && this.getSong().getId().equals(casted.getSong().getId());
   }
 
-  public static ActivePlaylistEntry valueOf(JSONObject jObj)
+  /**
+   * Unlike equals, which only looks at the song's id, checks that the song,
+   * the votes, who added it and whether it's playing are all the same.
+   */
+  public boolean hasSameContent(ActivePlaylistEntry other){
+    return song.hasSameContent(other.song) &&
+      upvoteCount == other.upvoteCount &&
+      downvoteCount == other.downvoteCount &&
+      myVote == other.myVote &&
+      currentSong == other.currentSong &&
+      LibraryEntry.isSame(adder, other.adder);
+  }
+
+  /**
+   * Parses an entry, working out how the user with the given id voted on it
+   * along the way. myUserId may be null if we don't know who the current
+   * user is.
+   */
+  public static ActivePlaylistEntry valueOf(JSONObject jObj, String myUserId)
     throws JSONException
   {
+    JSONArray upvoters = jObj.getJSONArray(UPVOTERS_PARAM);
+    JSONArray downvoters = jObj.getJSONArray(DOWNVOTERS_PARAM);
+    int myVote = NO_VOTE;
+    if(containsUser(upvoters, myUserId)){
+      myVote = UPVOTE;
+    }
+    else if(containsUser(downvoters, myUserId)){
+      myVote = DOWNVOTE;
+    }
     return new ActivePlaylistEntry(
       LibraryEntry.valueOf(jObj.getJSONObject(SONG_PARAM)),
-      User.fromJSONArray(jObj.getJSONArray(UPVOTERS_PARAM)),
-      User.fromJSONArray(jObj.getJSONArray(DOWNVOTERS_PARAM)),
+      upvoters.length(),
+      downvoters.length(),
+      myVote,
       User.valueOf(jObj.getJSONObject(ADDER_PARAM)));
   }
 
-  public static List<ActivePlaylistEntry> fromJSONArray(JSONArray array)
+  public static List<ActivePlaylistEntry> fromJSONArray(JSONArray array, String myUserId)
     throws JSONException
   {
     ArrayList<ActivePlaylistEntry> toReturn = new ArrayList<ActivePlaylistEntry>();
     for(int i=0; i<array.length(); i++){
-      toReturn.add(valueOf(array.getJSONObject(i)));
+      toReturn.add(valueOf(array.getJSONObject(i), myUserId));
     }
     return toReturn;
   }
-}
 
+  /**
+   * Streamed version of valueOf. Voters are only counted and checked
+   * against myUserId as they go by, so no User is ever built for them.
+   */
+  public static ActivePlaylistEntry valueOf(JSONStreamReader reader, String myUserId)
+    throws JSONException, IOException
+  {
+    LibraryEntry song = null;
+    User adder = null;
+    int upvoteCount = -1;
+    int downvoteCount = -1;
+    int myVote = NO_VOTE;
+    reader.beginObject();
+    while(reader.hasNext()){
+      String name = reader.nextName();
+      if(name.equals(SONG_PARAM)){
+        song = LibraryEntry.valueOf(reader);
+      }
+      else if(name.equals(ADDER_PARAM)){
+        adder = User.valueOf(reader);
+      }
+      else if(name.equals(UPVOTERS_PARAM)){
+        int[] counted = countVoters(reader, myUserId);
+        upvoteCount = counted[0];
+        if(counted[1] != 0){
+          myVote = UPVOTE;
+        }
+      }
+      else if(name.equals(DOWNVOTERS_PARAM)){
+        int[] counted = countVoters(reader, myUserId);
+        downvoteCount = counted[0];
+        if(counted[1] != 0 && myVote != UPVOTE){
+          myVote = DOWNVOTE;
+        }
+      }
+      else{
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if(song == null || adder == null || upvoteCount < 0 || downvoteCount < 0){
+      throw new JSONException("Playlist entry missing required fields");
+    }
+    return new ActivePlaylistEntry(song, upvoteCount, downvoteCount, myVote, adder);
+  }
+
+  public static List<ActivePlaylistEntry> fromJSONStream(
+    JSONStreamReader reader, String myUserId)
+    throws JSONException, IOException
+  {
+    ArrayList<ActivePlaylistEntry> toReturn = new ArrayList<ActivePlaylistEntry>();
+    reader.beginArray();
+    while(reader.hasNext()){
+      toReturn.add(valueOf(reader, myUserId));
+    }
+    reader.endArray();
+    return toReturn;
+  }
+
+  /**
+   * Reads an array of voters, returning how many there were and whether
+   * (non-zero) the user with the given id was one of them.
+   */
+  private static int[] countVoters(JSONStreamReader reader, String userId)
+    throws JSONException, IOException
+  {
+    int count = 0;
+    int found = 0;
+    reader.beginArray();
+    while(reader.hasNext()){
+      count++;
+      reader.beginObject();
+      while(reader.hasNext()){
+        if(reader.nextName().equals(User.ID_PARAM)){
+          String voterId = reader.nextString();
+          if(userId != null && userId.equals(voterId)){
+            found = 1;
+          }
+        }
+        else{
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    }
+    reader.endArray();
+    return new int[]{count, found};
+  }
+
+  private static boolean containsUser(JSONArray users, String userId)
+    throws JSONException
+  {
+    if(userId == null){
+      return false;
+    }
+    for(int i=0; i<users.length(); i++){
+      if(userId.equals(users.getJSONObject(i).getString(User.ID_PARAM))){
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.containers;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Canonicalizes values that show up over and over again in server payloads,
+ * like the artist and album of every song on an album or the same user
+ * voting on every song in the playlist. Both keys and values are only held
+ * weakly, so anything no longer referenced by a container can still be
+ * collected even when the value is its own key, and the pool never holds
+ * on to more than maxSize entries, dropping the least recently used first.
+ */
+public class InternPool<K, V>{
+
+  /**
+   * A key that doesn't keep its referent alive. Keys are equal while their
+   * referents are, and a key whose referent has been collected is only
+   * equal to itself, so it can still be found to be removed.
+   */
+  private static class WeakKey<K> extends WeakReference<K>{
+    private final int hash;
+
+    WeakKey(K key, ReferenceQueue<Object> queue){
+      super(key, queue);
+      this.hash = key.hashCode();
+    }
+
+    @Override
+    public int hashCode(){
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o){
+      if(o == this){
+        return true;
+      }
+      if(!(o instanceof WeakKey)){
+        return false;
+      }
+      Object key = get();
+      return key != null && key.equals(((WeakKey<?>)o).get());
+    }
+  }
+
+  private static class Entry<K, V> extends WeakReference<V>{
+    final WeakKey<K> key;
+
+    Entry(WeakKey<K> key, V value, ReferenceQueue<Object> queue){
+      super(value, queue);
+      this.key = key;
+    }
+  }
+
+  private final String name;
+  private final int maxSize;
+  /** Where both collected keys and collected values end up. */
+  private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+  private final LinkedHashMap<WeakKey<K>, Entry<K, V>> entries;
+
+  private int hitCount = 0;
+  private int missCount = 0;
+
+  public InternPool(String name, final int maxSize){
+    this.name = name;
+    this.maxSize = maxSize;
+    this.entries = new LinkedHashMap<WeakKey<K>, Entry<K, V>>(16, 0.75f, true){
+      protected boolean removeEldestEntry(Map.Entry<WeakKey<K>, Entry<K, V>> eldest){
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Returns the canonical instance for the given key. If the pool already
+   * has a live value for the key that isSameValue as the given one, that is
+   * returned and the given value can be thrown away. Otherwise the given
+   * value becomes the canonical one.
+   */
+  public synchronized V intern(K key, V value){
+    if(key == null || value == null){
+      return value;
+    }
+    purge();
+    Entry<K, V> entry = entries.get(new WeakKey<K>(key, null));
+    if(entry != null){
+      V existing = entry.get();
+      if(existing != null && isSameValue(existing, value)){
+        hitCount++;
+        return existing;
+      }
+    }
+    missCount++;
+    WeakKey<K> weakKey = new WeakKey<K>(key, queue);
+    entries.put(weakKey, new Entry<K, V>(weakKey, value, queue));
+    return value;
+  }
+
+  /**
+   * Whether a value already in the pool can stand in for a newly parsed one
+   * with the same key. By default values are considered the same whenever
+   * their keys are.
+   */
+  protected boolean isSameValue(V existing, V value){
+    return true;
+  }
+
+  /**
+   * Rough number of bytes the given value keeps alive, used when reporting
+   * how much the pool is retaining.
+   */
+  protected long sizeOf(V value){
+    return 0;
+  }
+
+  public synchronized int getHitCount(){
+    return hitCount;
+  }
+
+  public synchronized int getMissCount(){
+    return missCount;
+  }
+
+  public synchronized float getHitRatio(){
+    int total = hitCount + missCount;
+    return total == 0 ? 0 : (float)hitCount / total;
+  }
+
+  /** Number of values in the pool that haven't been collected yet. */
+  public synchronized int getSize(){
+    purge();
+    return entries.size();
+  }
+
+  /**
+   * Approximate number of bytes retained by the live values in the pool.
+   * This walks the whole pool, so it's meant for reporting only.
+   */
+  public synchronized long getRetainedSize(){
+    purge();
+    long size = 0;
+    for(Entry<K, V> entry: entries.values()){
+      V value = entry.get();
+      if(value != null){
+        size += sizeOf(value);
+      }
+    }
+    return size;
+  }
+
+  /** Empties the pool and starts counting hits and misses afresh. */
+  public synchronized void clear(){
+    entries.clear();
+    purge();
+    hitCount = 0;
+    missCount = 0;
+  }
+
+  public synchronized String toString(){
+    purge();
+    return name + "[hits=" + hitCount + ", misses=" + missCount +
+      ", size=" + entries.size() + "/" + maxSize +
+      ", retained=" + getRetainedSize() + "]";
+  }
+
+  private void purge(){
+    Reference<?> collected;
+    while((collected = queue.poll()) != null){
+      if(collected instanceof WeakKey){
+        entries.remove(collected);
+      }
+      else{
+        WeakKey<?> key = ((Entry<?, ?>)collected).key;
+        if(entries.get(key) == collected){
+          entries.remove(key);
+        }
+      }
+    }
+  }
+}
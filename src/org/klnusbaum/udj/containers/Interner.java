@@ -0,0 +1,97 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.containers;
+
+/**
+ * The interning pools shared by all of the container factories, so that a
+ * user or artist name that appears in many payloads is only kept in memory
+ * once.
+ */
+public class Interner{
+
+  private static final int MAX_STRINGS = 4096;
+  private static final int MAX_USERS = 1024;
+
+  /** Rough per object overhead of a String and its backing char array. */
+  private static final int STRING_OVERHEAD = 40;
+  private static final int USER_OVERHEAD = 32;
+
+  private static final InternPool<String, String> strings =
+    new InternPool<String, String>("Strings", MAX_STRINGS){
+      protected long sizeOf(String value){
+        return stringSize(value);
+      }
+    };
+
+  private static final InternPool<String, User> users =
+    new InternPool<String, User>("Users", MAX_USERS){
+      protected boolean isSameValue(User existing, User value){
+        return existing.getUsername().equals(value.getUsername()) &&
+          existing.getFirstName().equals(value.getFirstName()) &&
+          existing.getLastName().equals(value.getLastName());
+      }
+
+      protected long sizeOf(User value){
+        return USER_OVERHEAD + stringSize(value.getId()) +
+          stringSize(value.getUsername()) + stringSize(value.getFirstName()) +
+          stringSize(value.getLastName());
+      }
+    };
+
+  private Interner(){}
+
+  /**
+   * Returns the canonical copy of the given string. The string is its own
+   * key, which the pool only holds weakly, so it's dropped once nothing
+   * else is using it.
+   */
+  public static String intern(String value){
+    return strings.intern(value, value);
+  }
+
+  /**
+   * Returns the canonical user with the same id as the given one. If the
+   * user's details have changed since we last saw them, the given user
+   * replaces the old one.
+   */
+  public static User intern(User user){
+    return user == null ? null : users.intern(user.getId(), user);
+  }
+
+  public static InternPool<String, String> getStringPool(){
+    return strings;
+  }
+
+  public static InternPool<String, User> getUserPool(){
+    return users;
+  }
+
+  public static void clear(){
+    strings.clear();
+    users.clear();
+  }
+
+  public static String getStats(){
+    return strings.toString() + " " + users.toString();
+  }
+
+  private static long stringSize(String value){
+    return value == null ? 0 : STRING_OVERHEAD + 2 * value.length();
+  }
+}
@@ -22,6 +22,9 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
+import org.klnusbaum.udj.network.JSONStreamReader;
+
+import java.io.IOException;
 import java.util.ArrayList;
 
 
@@ -87,14 +90,31 @@ public class LibraryEntry implements StringIdable{
     return casted != null && casted.getId().equals(getId());
   }
 
+  /**
+   * Unlike equals, which only looks at the id, checks that everything about
+   * the two songs is the same.
+   */
+  public boolean hasSameContent(LibraryEntry other){
+    return getId().equals(other.getId()) &&
+      isSame(title, other.title) &&
+      isSame(artist, other.artist) &&
+      isSame(album, other.album) &&
+      duration == other.duration &&
+      isAdded == other.isAdded;
+  }
+
+  static boolean isSame(Object a, Object b){
+    return a == null ? b == null : a.equals(b);
+  }
+
   public static LibraryEntry valueOf(JSONObject jObj)
     throws JSONException 
   {
     return new LibraryEntry(
       jObj.getString(ID_PARAM), 
       jObj.getString(TITLE_PARAM),
-      jObj.getString(ARTIST_PARAM),
-      jObj.getString(ALBUM_PARAM),
+      Interner.intern(jObj.getString(ARTIST_PARAM)),
+      Interner.intern(jObj.getString(ALBUM_PARAM)),
       jObj.getInt(DURATION_PARAM));
   }
 
@@ -119,6 +139,84 @@ public class LibraryEntry implements StringIdable{
 
   }
 
+  public static LibraryEntry valueOf(JSONStreamReader reader)
+    throws JSONException, IOException
+  {
+    String libId = null;
+    String title = null;
+    String artist = null;
+    String album = null;
+    boolean hasDuration = false;
+    int duration = 0;
+    reader.beginObject();
+    while(reader.hasNext()){
+      String name = reader.nextName();
+      if(name.equals(ID_PARAM)){
+        libId = reader.nextString();
+      }
+      else if(name.equals(TITLE_PARAM)){
+        title = reader.nextString();
+      }
+      else if(name.equals(ARTIST_PARAM)){
+        artist = reader.nextString();
+      }
+      else if(name.equals(ALBUM_PARAM)){
+        album = reader.nextString();
+      }
+      else if(name.equals(DURATION_PARAM)){
+        duration = reader.nextInt();
+        hasDuration = true;
+      }
+      else{
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if(libId == null || title == null || artist == null || album == null || !hasDuration){
+      throw new JSONException("Library entry missing required fields");
+    }
+    return new LibraryEntry(
+      libId, title, Interner.intern(artist), Interner.intern(album), duration);
+  }
+
+  public static ArrayList<LibraryEntry> fromJSONStream(JSONStreamReader reader)
+    throws JSONException, IOException
+  {
+    ArrayList<LibraryEntry> toReturn = new ArrayList<LibraryEntry>();
+    reader.beginArray();
+    while(reader.hasNext()){
+      toReturn.add(valueOf(reader));
+    }
+    reader.endArray();
+    return toReturn;
+  }
+
+  public static ArrayList<LibraryEntry> fromRecentlyPlayedJSONStream(JSONStreamReader reader)
+    throws JSONException, IOException
+  {
+    ArrayList<LibraryEntry> toReturn = new ArrayList<LibraryEntry>();
+    reader.beginArray();
+    while(reader.hasNext()){
+      LibraryEntry song = null;
+      reader.beginObject();
+      while(reader.hasNext()){
+        if(reader.nextName().equals("song")){
+          song = valueOf(reader);
+        }
+        else{
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      if(song == null){
+        throw new JSONException("Recently played entry missing song");
+      }
+      toReturn.add(song);
+    }
+    reader.endArray();
+    return toReturn;
+  }
+
   public String toString(){
     return "Song name: " + getTitle();
   }
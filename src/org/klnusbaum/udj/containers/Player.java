@@ -24,6 +24,9 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
+import org.klnusbaum.udj.network.JSONStreamReader;
+
+import java.io.IOException;
 import java.util.List;
 
 import android.os.Bundle;
@@ -85,6 +88,20 @@ public class Player implements StringIdable{
     return hasPassword;
   }
 
+  /**
+   * Checks that everything we show about the two players is the same.
+   */
+  public boolean hasSameContent(Player other){
+    return playerId.equals(other.playerId) &&
+      LibraryEntry.isSame(name, other.name) &&
+      LibraryEntry.isSame(owner, other.owner) &&
+      (owner == null ||
+        LibraryEntry.isSame(owner.getUsername(), other.owner.getUsername())) &&
+      latitude == other.latitude &&
+      longitude == other.longitude &&
+      hasPassword == other.hasPassword;
+  }
+
   public static Player valueOf(JSONObject jObj)
     throws JSONException 
   {
@@ -109,6 +126,71 @@ public class Player implements StringIdable{
     return toReturn;
   }
 
+  public static Player valueOf(JSONStreamReader reader)
+    throws JSONException, IOException
+  {
+    String playerId = null;
+    String name = null;
+    User owner = null;
+    double latitude = -100.0;
+    double longitude = -100.0;
+    Boolean hasPassword = null;
+    reader.beginObject();
+    while(reader.hasNext()){
+      String fieldName = reader.nextName();
+      if(fieldName.equals(ID_PARAM)){
+        playerId = reader.nextString();
+      }
+      else if(fieldName.equals(NAME_PARAM)){
+        name = reader.nextString();
+      }
+      else if(fieldName.equals(OWNER_PARAM)){
+        owner = User.valueOf(reader);
+      }
+      else if(fieldName.equals(HAS_PASSWORD_PARAM)){
+        hasPassword = reader.nextBoolean();
+      }
+      else if(fieldName.equals(LOCATION_PARAM)
+        && reader.peek() == JSONStreamReader.Token.BEGIN_OBJECT)
+      {
+        reader.beginObject();
+        while(reader.hasNext()){
+          String locationField = reader.nextName();
+          if(locationField.equals(LATITUDE_PARAM)){
+            latitude = reader.nextDouble();
+          }
+          else if(locationField.equals(LONGITUDE_PARAM)){
+            longitude = reader.nextDouble();
+          }
+          else{
+            reader.skipValue();
+          }
+        }
+        reader.endObject();
+      }
+      else{
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if(playerId == null || name == null || owner == null || hasPassword == null){
+      throw new JSONException("Player missing required fields");
+    }
+    return new Player(playerId, name, owner, latitude, longitude, hasPassword);
+  }
+
+  public static ArrayList<Player> fromJSONStream(JSONStreamReader reader)
+    throws JSONException, IOException
+  {
+    ArrayList<Player> toReturn = new ArrayList<Player>();
+    reader.beginArray();
+    while(reader.hasNext()){
+      toReturn.add(Player.valueOf(reader));
+    }
+    reader.endArray();
+    return toReturn;
+  }
+
   public Bundle bundleUp(){
     Bundle toReturn = new Bundle();
     toReturn.putString(ID_PARAM, getId());
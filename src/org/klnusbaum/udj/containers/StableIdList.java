@@ -0,0 +1,144 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.containers;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A list of items that gives each item a row id which stays the same for as
+ * long as an item with that id is in the list, even when the whole list is
+ * swapped for a freshly parsed one. This is what lets a ListView with stable
+ * ids tell which rows stayed put across a refresh.
+ *
+ * Kept apart from StringIdableAdapter so the diffing can be tested and
+ * measured without Android.
+ */
+public class StableIdList<T extends StringIdable>{
+
+  /**
+   * Decides whether an item that's in the same position in both the old and
+   * new lists looks the same, i.e. whether its row needs to be redrawn.
+   */
+  public interface ContentComparator<T>{
+    public boolean isSameContent(T oldItem, T newItem);
+  }
+
+  private final ContentComparator<T> comparator;
+  private ConcurrentMap<String, Long> idMap;
+  private long currentAvailableMapId;
+  private List<T> itemList;
+
+  public StableIdList(List<T> items, ContentComparator<T> comparator){
+    this.comparator = comparator;
+    this.itemList = items;
+    this.currentAvailableMapId = 0;
+    idMap = new ConcurrentHashMap<String, Long>();
+    if(items != null){
+      for(StringIdable st: itemList){
+        idMap.put(st.getId(), currentAvailableMapId);
+        currentAvailableMapId++;
+      }
+    }
+  }
+
+  public int size(){
+    if(itemList != null){
+      return itemList.size();
+    }
+    return 0;
+  }
+
+  public boolean isEmpty(){
+    return itemList == null || itemList.isEmpty();
+  }
+
+  public T get(int position){
+    if(itemList != null){
+      return itemList.get(position);
+    }
+    return null;
+  }
+
+  public long getItemId(int position){
+    return idMap.get(itemList.get(position).getId());
+  }
+
+  public void add(int position, T item){
+    if(!idMap.keySet().contains(item.getId())){
+      idMap.put(item.getId(), currentAvailableMapId);
+      currentAvailableMapId++;
+    }
+    itemList.add(position, item);
+  }
+
+  public void remove(int position){
+    idMap.remove(get(position).getId());
+    itemList.remove(position);
+  }
+
+  public void remove(T toRemove){
+    itemList.remove(toRemove);
+    idMap.remove(toRemove.getId());
+  }
+
+  /**
+   * Swaps in a new list of items, keeping the row ids of any items that were
+   * already in the list. This is linear in the size of the old and new lists.
+   * Returns false if the new list has the same items in the same order with
+   * the same content, in which case nothing needs to be redrawn.
+   */
+  public boolean update(List<T> newItems){
+    ConcurrentMap<String, Long> newIdMap = new ConcurrentHashMap<String, Long>();
+    if(newItems != null){
+      for(T item: newItems){
+        Long id = idMap.get(item.getId());
+        if(id == null){
+          id = currentAvailableMapId;
+          currentAvailableMapId++;
+        }
+        newIdMap.put(item.getId(), id);
+      }
+    }
+    boolean changed = !isSameList(itemList, newItems);
+    this.idMap = newIdMap;
+    this.itemList = newItems;
+    return changed;
+  }
+
+  private boolean isSameList(List<T> oldItems, List<T> newItems){
+    if(oldItems == null || newItems == null){
+      return oldItems == newItems;
+    }
+    if(oldItems.size() != newItems.size()){
+      return false;
+    }
+    for(int i=0; i<oldItems.size(); ++i){
+      T oldItem = oldItems.get(i);
+      T newItem = newItems.get(i);
+      if(!oldItem.getId().equals(newItem.getId()) ||
+        !comparator.isSameContent(oldItem, newItem))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -22,6 +22,10 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
+import org.klnusbaum.udj.network.JSONStreamReader;
+
+import java.io.IOException;
+
 import java.util.List;
 import java.util.ArrayList;
 
@@ -75,11 +79,11 @@ public class User implements StringIdable{
   public static User valueOf(JSONObject jObj)
     throws JSONException
   {
-    return new User(
+    return Interner.intern(new User(
         jObj.getString(ID_PARAM),
         jObj.getString(USERNAME_PARAM),
         jObj.getString(FIRST_NAME_PARAM),
-        jObj.getString(LAST_NAME_PARAM));
+        jObj.getString(LAST_NAME_PARAM)));
   }
 
   public static List<User> fromJSONArray(JSONArray array)
@@ -92,6 +96,51 @@ public class User implements StringIdable{
     return toReturn;
   }
 
+  public static User valueOf(JSONStreamReader reader)
+    throws JSONException, IOException
+  {
+    String id = null;
+    String username = null;
+    String firstName = null;
+    String lastName = null;
+    reader.beginObject();
+    while(reader.hasNext()){
+      String name = reader.nextName();
+      if(name.equals(ID_PARAM)){
+        id = reader.nextString();
+      }
+      else if(name.equals(USERNAME_PARAM)){
+        username = reader.nextString();
+      }
+      else if(name.equals(FIRST_NAME_PARAM)){
+        firstName = reader.nextString();
+      }
+      else if(name.equals(LAST_NAME_PARAM)){
+        lastName = reader.nextString();
+      }
+      else{
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if(id == null || username == null || firstName == null || lastName == null){
+      throw new JSONException("User missing required fields");
+    }
+    return Interner.intern(new User(id, username, firstName, lastName));
+  }
+
+  public static List<User> fromJSONStream(JSONStreamReader reader)
+    throws JSONException, IOException
+  {
+    ArrayList<User> toReturn = new ArrayList<User>();
+    reader.beginArray();
+    while(reader.hasNext()){
+      toReturn.add(valueOf(reader));
+    }
+    reader.endArray();
+    return toReturn;
+  }
+
   public Bundle bundleUp(){
     Bundle toReturn = new Bundle();
     toReturn.putString(ID_PARAM, getId());
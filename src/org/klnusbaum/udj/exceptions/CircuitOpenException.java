@@ -0,0 +1,42 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ * 
+ * This file is part of UDJ.
+ * 
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request while the server is being given a
+ * break after failing too many requests in a row. Nothing was sent, so the
+ * request can be tried again once getRetryAt has passed.
+ */
+public class CircuitOpenException extends IOException{
+	public static final long serialVersionUID = 1;
+
+  private final long retryAt;
+
+  public CircuitOpenException(String message, long retryAt){
+    super(message);
+    this.retryAt = retryAt;
+  }
+
+  /** When requests will be let through again, in System.currentTimeMillis time. */
+  public long getRetryAt(){
+    return retryAt;
+  }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ * 
+ * This file is part of UDJ.
+ * 
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the server tells us a request was malformed or referred to
+ * something that doesn't exist. Unlike other IOExceptions, sending the same
+ * request again won't help.
+ */
+public class RequestRejectedException extends IOException{
+	public static final long serialVersionUID = 1;
+
+
+  public RequestRejectedException(){
+    super();
+  }
+
+  public RequestRejectedException(String message){
+    super(message);
+  }
+}
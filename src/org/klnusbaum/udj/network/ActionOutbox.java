@@ -0,0 +1,382 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import android.accounts.Account;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.klnusbaum.udj.Constants;
+
+/**
+ * Durable storage for the actions PlaylistSyncService has been asked to
+ * perform. Actions are written here as soon as they're received and are only
+ * removed once the server has accepted them or they've failed for good, so
+ * they survive flaky connections and the process being killed.
+ */
+public class ActionOutbox extends SQLiteOpenHelper{
+  private static final String TAG = "ActionOutbox";
+
+  private static final String DATABASE_NAME = "action_outbox.db";
+  private static final int DATABASE_VERSION = 2;
+
+  private static final String ACTIONS_TABLE = "actions";
+  private static final String ID_COLUMN = "_id";
+  private static final String ACCOUNT_COLUMN = "account";
+  private static final String PLAYER_ID_COLUMN = "player_id";
+  private static final String ACTION_COLUMN = "action";
+  private static final String DATA_COLUMN = "data";
+  private static final String LIB_ID_COLUMN = "lib_id";
+  private static final String VALUE_COLUMN = "value";
+  private static final String ATTEMPTS_COLUMN = "attempts";
+  private static final String NEXT_ATTEMPT_COLUMN = "next_attempt";
+  private static final String ENQUEUED_AT_COLUMN = "enqueued_at";
+  private static final String MUTATION_ID_COLUMN = "mutation_id";
+
+  private static final String[] ACTION_COLUMNS = new String[]{
+    ID_COLUMN,
+    ACCOUNT_COLUMN,
+    PLAYER_ID_COLUMN,
+    ACTION_COLUMN,
+    DATA_COLUMN,
+    LIB_ID_COLUMN,
+    VALUE_COLUMN,
+    ATTEMPTS_COLUMN,
+    NEXT_ATTEMPT_COLUMN,
+    ENQUEUED_AT_COLUMN,
+    MUTATION_ID_COLUMN
+  };
+
+  /** Backoff before the first retry, doubled on every attempt after that. */
+  private static final long BASE_BACKOFF = 2 * 1000;
+  private static final long MAX_BACKOFF = 10 * 60 * 1000;
+  /** Once an action has failed this many times we give up on it. */
+  public static final int MAX_ATTEMPTS = 10;
+
+  public static class Action{
+    public final long id;
+    public final String accountName;
+    public final String playerId;
+    public final String action;
+    public final Uri data;
+    public final String libId;
+    public final int value;
+    public final int attempts;
+    public final long nextAttempt;
+    public final long enqueuedAt;
+    /**
+     * The PlaylistOverlay mutation showing this action before the server
+     * has accepted it, or 0 if there isn't one.
+     */
+    public final long mutationId;
+
+    public Action(long id, String accountName, String playerId, String action,
+      Uri data, String libId, int value, int attempts, long nextAttempt,
+      long enqueuedAt, long mutationId)
+    {
+      this.id = id;
+      this.accountName = accountName;
+      this.playerId = playerId;
+      this.action = action;
+      this.data = data;
+      this.libId = libId;
+      this.value = value;
+      this.attempts = attempts;
+      this.nextAttempt = nextAttempt;
+      this.enqueuedAt = enqueuedAt;
+      this.mutationId = mutationId;
+    }
+
+    public Account getAccount(){
+      return new Account(accountName, Constants.ACCOUNT_TYPE);
+    }
+
+    public boolean isDue(long now){
+      return nextAttempt <= now;
+    }
+
+    public boolean isVote(){
+      return Intent.ACTION_INSERT.equals(action) && Constants.VOTES_URI.equals(data);
+    }
+
+    /**
+     * Actions that share a supersede key replace one another: only the most
+     * recent one needs to reach the server. Returns null for actions that
+     * must always be sent.
+     */
+    public String getSupersedeKey(){
+      if(Constants.ACTION_SET_VOLUME.equals(action)){
+        return "volume";
+      }
+      else if(Constants.ACTION_SET_PLAYBACK.equals(action)){
+        return "playback";
+      }
+      else if(Constants.ACTION_SET_CURRENT_SONG.equals(action)){
+        return "current";
+      }
+      else if(isVote()){
+        return "vote:" + libId;
+      }
+      return null;
+    }
+
+    /**
+     * Actions in the same lane are always sent in the order they were
+     * received, so everything touching a particular song lands in order.
+     */
+    public String getLaneKey(){
+      if(Constants.ACTION_SET_VOLUME.equals(action)){
+        return "volume";
+      }
+      else if(Constants.ACTION_SET_PLAYBACK.equals(action)){
+        return "playback";
+      }
+      return "song:" + libId;
+    }
+
+    /**
+     * Rebuilds an intent equivalent to the one that originally requested
+     * this action.
+     */
+    public Intent toIntent(Context context){
+      Intent intent = new Intent(action, data, context, PlaylistSyncService.class);
+      intent.putExtra(Constants.ACCOUNT_EXTRA, getAccount());
+      if(libId != null){
+        intent.putExtra(Constants.LIB_ID_EXTRA, libId);
+      }
+      if(isVote()){
+        intent.putExtra(Constants.VOTE_WEIGHT_EXTRA, value);
+      }
+      else if(Constants.ACTION_SET_VOLUME.equals(action)){
+        intent.putExtra(Constants.PLAYER_VOLUME_EXTRA, value);
+      }
+      else if(Constants.ACTION_SET_PLAYBACK.equals(action)){
+        intent.putExtra(Constants.PLAYBACK_STATE_EXTRA, value);
+      }
+      return intent;
+    }
+  }
+
+  private static ActionOutbox instance;
+
+  public static synchronized ActionOutbox get(Context context){
+    if(instance == null){
+      instance = new ActionOutbox(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private final Random random = new Random();
+
+  private ActionOutbox(Context context){
+    super(context, DATABASE_NAME, null, DATABASE_VERSION);
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db){
+    db.execSQL("CREATE TABLE " + ACTIONS_TABLE + "(" +
+      ID_COLUMN + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+      ACCOUNT_COLUMN + " TEXT NOT NULL, " +
+      PLAYER_ID_COLUMN + " TEXT NOT NULL, " +
+      ACTION_COLUMN + " TEXT NOT NULL, " +
+      DATA_COLUMN + " TEXT, " +
+      LIB_ID_COLUMN + " TEXT, " +
+      VALUE_COLUMN + " INTEGER, " +
+      ATTEMPTS_COLUMN + " INTEGER NOT NULL DEFAULT 0, " +
+      NEXT_ATTEMPT_COLUMN + " INTEGER NOT NULL, " +
+      ENQUEUED_AT_COLUMN + " INTEGER NOT NULL, " +
+      MUTATION_ID_COLUMN + " INTEGER NOT NULL DEFAULT 0);");
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion){
+    if(oldVersion == 1){
+      db.execSQL("ALTER TABLE " + ACTIONS_TABLE + " ADD COLUMN " +
+        MUTATION_ID_COLUMN + " INTEGER NOT NULL DEFAULT 0");
+      return;
+    }
+    db.execSQL("DROP TABLE IF EXISTS " + ACTIONS_TABLE);
+    onCreate(db);
+  }
+
+  /**
+   * Stores the action described by the given intent and returns its id, or
+   * -1 if it couldn't be stored.
+   */
+  public synchronized long add(
+    Intent intent, Account account, String playerId, long enqueuedAt)
+  {
+    if(account == null || playerId == null){
+      Log.e(TAG, "Can't store action " + intent.getAction() + " without a player");
+      return -1;
+    }
+    ContentValues values = new ContentValues();
+    values.put(ACCOUNT_COLUMN, account.name);
+    values.put(PLAYER_ID_COLUMN, playerId);
+    values.put(ACTION_COLUMN, intent.getAction());
+    if(intent.getData() != null){
+      values.put(DATA_COLUMN, intent.getData().toString());
+    }
+    values.put(LIB_ID_COLUMN, intent.getStringExtra(Constants.LIB_ID_EXTRA));
+    if(Constants.ACTION_SET_VOLUME.equals(intent.getAction())){
+      values.put(VALUE_COLUMN, intent.getIntExtra(Constants.PLAYER_VOLUME_EXTRA, 0));
+    }
+    else if(Constants.ACTION_SET_PLAYBACK.equals(intent.getAction())){
+      values.put(VALUE_COLUMN, intent.getIntExtra(Constants.PLAYBACK_STATE_EXTRA, 0));
+    }
+    else{
+      values.put(VALUE_COLUMN, intent.getIntExtra(Constants.VOTE_WEIGHT_EXTRA, 0));
+    }
+    values.put(NEXT_ATTEMPT_COLUMN, enqueuedAt);
+    values.put(ENQUEUED_AT_COLUMN, enqueuedAt);
+    values.put(MUTATION_ID_COLUMN, intent.getLongExtra(Constants.MUTATION_ID_EXTRA, 0));
+    try{
+      return getWritableDatabase().insertOrThrow(ACTIONS_TABLE, null, values);
+    }
+    catch(SQLException e){
+      Log.e(TAG, "Couldn't store action " + intent.getAction(), e);
+      return -1;
+    }
+  }
+
+  /**
+   * Returns every stored action in the order it was received.
+   */
+  public synchronized List<Action> getAll(){
+    List<Action> toReturn = new ArrayList<Action>();
+    Cursor cursor = null;
+    try{
+      cursor = getReadableDatabase().query(
+        ACTIONS_TABLE, ACTION_COLUMNS, null, null, null, null, ID_COLUMN);
+      while(cursor.moveToNext()){
+        toReturn.add(new Action(
+          cursor.getLong(0),
+          cursor.getString(1),
+          cursor.getString(2),
+          cursor.getString(3),
+          cursor.isNull(4) ? null : Uri.parse(cursor.getString(4)),
+          cursor.getString(5),
+          cursor.getInt(6),
+          cursor.getInt(7),
+          cursor.getLong(8),
+          cursor.getLong(9),
+          cursor.getLong(10)));
+      }
+    }
+    catch(SQLException e){
+      Log.e(TAG, "Couldn't read stored actions", e);
+    }
+    finally{
+      if(cursor != null){
+        cursor.close();
+      }
+    }
+    return toReturn;
+  }
+
+  public synchronized void remove(Action action){
+    try{
+      getWritableDatabase().delete(
+        ACTIONS_TABLE, ID_COLUMN + "=?", new String[]{String.valueOf(action.id)});
+    }
+    catch(SQLException e){
+      Log.e(TAG, "Couldn't remove action " + action.id, e);
+    }
+  }
+
+  /**
+   * Drops every action queued up for a player. Used once we know the player
+   * is gone or we're no longer allowed in it.
+   */
+  public synchronized void removePlayer(String playerId){
+    try{
+      getWritableDatabase().delete(
+        ACTIONS_TABLE, PLAYER_ID_COLUMN + "=?", new String[]{playerId});
+    }
+    catch(SQLException e){
+      Log.e(TAG, "Couldn't remove actions for player " + playerId, e);
+    }
+  }
+
+  /**
+   * Records a failed attempt and pushes the action's next attempt back using
+   * jittered exponential backoff. Returns the time of the next attempt.
+   */
+  public synchronized long scheduleRetry(Action action){
+    int attempts = action.attempts + 1;
+    long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(attempts - 1, 20));
+    long nextAttempt = System.currentTimeMillis() + backoff / 2 +
+      (long)(random.nextDouble() * (backoff / 2));
+    ContentValues values = new ContentValues();
+    values.put(ATTEMPTS_COLUMN, attempts);
+    values.put(NEXT_ATTEMPT_COLUMN, nextAttempt);
+    try{
+      getWritableDatabase().update(
+        ACTIONS_TABLE, values, ID_COLUMN + "=?", new String[]{String.valueOf(action.id)});
+    }
+    catch(SQLException e){
+      Log.e(TAG, "Couldn't reschedule action " + action.id, e);
+    }
+    return nextAttempt;
+  }
+
+  /**
+   * Pushes the action's next attempt back to the given time without counting
+   * it as an attempt, for when it was never sent in the first place.
+   */
+  public synchronized void deferUntil(Action action, long nextAttempt){
+    ContentValues values = new ContentValues();
+    values.put(NEXT_ATTEMPT_COLUMN,
+      Math.max(nextAttempt, System.currentTimeMillis() + BASE_BACKOFF));
+    try{
+      getWritableDatabase().update(
+        ACTIONS_TABLE, values, ID_COLUMN + "=?", new String[]{String.valueOf(action.id)});
+    }
+    catch(SQLException e){
+      Log.e(TAG, "Couldn't defer action " + action.id, e);
+    }
+  }
+
+  /**
+   * Makes every stored action eligible to be sent right away. Called when
+   * connectivity comes back, since whatever we were backing off from has
+   * most likely gone away.
+   */
+  public synchronized void makeAllDue(){
+    ContentValues values = new ContentValues();
+    values.put(NEXT_ATTEMPT_COLUMN, System.currentTimeMillis());
+    try{
+      getWritableDatabase().update(ACTIONS_TABLE, values, null, null);
+    }
+    catch(SQLException e){
+      Log.e(TAG, "Couldn't reset action backoff", e);
+    }
+  }
+}
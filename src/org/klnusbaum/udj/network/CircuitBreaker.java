@@ -0,0 +1,311 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import org.klnusbaum.udj.exceptions.CircuitOpenException;
+
+/**
+ * Stops us from hammering the server while it's struggling. There's one
+ * breaker per family of endpoints, using the same families as
+ * RequestBudget, so a slow library search doesn't stop the playlist from
+ * being polled.
+ *
+ * A breaker starts out closed and lets everything through. After
+ * FAILURE_THRESHOLD requests in a row fail with a network error or a 5xx
+ * (or immediately, if the server tells us when to come back with
+ * Retry-After) it opens, and requests fail straight away with a
+ * CircuitOpenException instead of being sent. Once the backoff is over it
+ * goes half open and lets a single request through to test the water. If
+ * that succeeds the breaker closes again, otherwise it reopens for twice as
+ * long. Backoffs are jittered so that every client in a busy venue doesn't
+ * come back at the same moment.
+ */
+public class CircuitBreaker{
+  private static final String TAG = "CircuitBreaker";
+
+  public enum State{
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  public interface Listener{
+    /** Called on the main thread whenever a breaker changes state. */
+    public void onStateChanged(CircuitBreaker breaker, State state);
+  }
+
+  /** Consecutive failures that open a closed breaker. */
+  public static final int FAILURE_THRESHOLD = 5;
+
+  private static final long BASE_BACKOFF = 5 * 1000; // ms
+  private static final long MAX_BACKOFF = 5 * 60 * 1000; // ms
+
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+  private static final String RETRY_AFTER_HEADER = "Retry-After";
+
+  private static final Map<String, CircuitBreaker> breakers =
+    new TreeMap<String, CircuitBreaker>();
+  private static final List<Listener> listeners = new ArrayList<Listener>();
+  private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private static final Random random = new Random();
+
+  public final String family;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures = 0;
+  /** How many times in a row we've opened without managing to close. */
+  private int trips = 0;
+  private long retryAt = 0;
+  private boolean trialInFlight = false;
+
+  private int tripCount = 0;
+  private int rejectedCount = 0;
+
+  private CircuitBreaker(String family){
+    this.family = family;
+  }
+
+  /** The breaker for the family of endpoints the request belongs to. */
+  public static CircuitBreaker forRequest(HttpUriRequest request){
+    final String family = RequestBudget.forRequest(request).name;
+    synchronized(breakers){
+      CircuitBreaker breaker = breakers.get(family);
+      if(breaker == null){
+        breaker = new CircuitBreaker(family);
+        breakers.put(family, breaker);
+      }
+      return breaker;
+    }
+  }
+
+  /**
+   * Throws if the request shouldn't be sent right now. Otherwise the request
+   * may go ahead, and its outcome must be reported with onResponse or
+   * onFailure.
+   */
+  public void checkAllowed(HttpUriRequest request) throws CircuitOpenException{
+    State changedTo = null;
+    synchronized(this){
+      if(state == State.OPEN && System.currentTimeMillis() >= retryAt){
+        state = changedTo = State.HALF_OPEN;
+      }
+      if(state == State.OPEN || (state == State.HALF_OPEN && trialInFlight)){
+        rejectedCount++;
+        throw new CircuitOpenException(
+          "Not sending " + request.getURI().getPath() + ", " + family + " breaker is open",
+          retryAt);
+      }
+      if(state == State.HALF_OPEN){
+        trialInFlight = true;
+      }
+    }
+    notifyListeners(changedTo);
+  }
+
+  /**
+   * Records the response to a request that was let through. A 5xx or 429
+   * counts as a failure, anything else means the server is coping fine.
+   */
+  public void onResponse(HttpResponse resp){
+    final int statusCode = resp.getStatusLine().getStatusCode();
+    if(statusCode >= 500 || statusCode == SC_TOO_MANY_REQUESTS){
+      recordFailure(getRetryAfter(resp));
+    }
+    else{
+      recordSuccess();
+    }
+  }
+
+  /** Records that a request which was let through failed to get a response. */
+  public void onFailure(){
+    recordFailure(0);
+  }
+
+  /**
+   * Records that a request was let through but given up on before it got
+   * anywhere, which tells us nothing about the server.
+   */
+  public synchronized void onAbandoned(){
+    trialInFlight = false;
+  }
+
+  public synchronized State getState(){
+    return state;
+  }
+
+  /** When an open breaker will next let a request through. */
+  public synchronized long getRetryAt(){
+    return retryAt;
+  }
+
+  public synchronized String toString(){
+    return "CircuitBreaker[" + family + ", state=" + state +
+      ", failures=" + consecutiveFailures + ", trips=" + tripCount +
+      ", rejected=" + rejectedCount +
+      (state == State.CLOSED ? "" :
+        ", retry in " + Math.max(0, retryAt - System.currentTimeMillis()) + "ms") + "]";
+  }
+
+  private void recordSuccess(){
+    State changedTo = null;
+    synchronized(this){
+      consecutiveFailures = 0;
+      trialInFlight = false;
+      if(state != State.CLOSED){
+        state = changedTo = State.CLOSED;
+        trips = 0;
+        retryAt = 0;
+      }
+    }
+    notifyListeners(changedTo);
+  }
+
+  /**
+   * @param retryAfter When the server asked us to come back, or 0 if it
+   * didn't say.
+   */
+  private void recordFailure(long retryAfter){
+    State changedTo = null;
+    synchronized(this){
+      consecutiveFailures++;
+      trialInFlight = false;
+      if(state == State.OPEN){
+        // A straggler that was sent before we opened. It doesn't tell us
+        // anything new, unless the server wants us to stay away for longer.
+        retryAt = Math.max(retryAt, retryAfter);
+      }
+      else if(state == State.HALF_OPEN || retryAfter > 0 ||
+        consecutiveFailures >= FAILURE_THRESHOLD)
+      {
+        long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(trips, 20));
+        long jittered = backoff / 2 + (long)(random.nextDouble() * (backoff / 2));
+        retryAt = Math.max(System.currentTimeMillis() + jittered, retryAfter);
+        trips++;
+        tripCount++;
+        state = changedTo = State.OPEN;
+        Log.w(TAG, family + " breaker open for " +
+          (retryAt - System.currentTimeMillis()) + "ms");
+      }
+    }
+    notifyListeners(changedTo);
+  }
+
+  /**
+   * Returns when the server asked us to retry, in System.currentTimeMillis
+   * time, or 0 if it didn't. Retry-After can be either a number of seconds
+   * or a date.
+   */
+  private static long getRetryAfter(HttpResponse resp){
+    if(!resp.containsHeader(RETRY_AFTER_HEADER)){
+      return 0;
+    }
+    final String value = resp.getFirstHeader(RETRY_AFTER_HEADER).getValue().trim();
+    try{
+      return System.currentTimeMillis() + Math.min(MAX_BACKOFF, Long.parseLong(value) * 1000);
+    }
+    catch(NumberFormatException e){
+      // Must be a date then.
+    }
+    try{
+      return Math.min(System.currentTimeMillis() + MAX_BACKOFF,
+        DateUtils.parseDate(value).getTime());
+    }
+    catch(DateParseException e){
+      Log.w(TAG, "Bad Retry-After " + value);
+      return 0;
+    }
+  }
+
+  public static void registerListener(Listener listener){
+    synchronized(listeners){
+      if(!listeners.contains(listener)){
+        listeners.add(listener);
+      }
+    }
+  }
+
+  public static void unregisterListener(Listener listener){
+    synchronized(listeners){
+      listeners.remove(listener);
+    }
+  }
+
+  /** The state of every breaker we've created, one per line. */
+  public static String getReport(){
+    final StringBuilder report = new StringBuilder();
+    synchronized(breakers){
+      for(CircuitBreaker breaker: breakers.values()){
+        report.append(breaker).append('\n');
+      }
+    }
+    return report.toString();
+  }
+
+  /**
+   * The latest time any open breaker will let requests through again, or 0
+   * if none are open.
+   */
+  public static long getLatestRetryAt(){
+    long latest = 0;
+    synchronized(breakers){
+      for(CircuitBreaker breaker: breakers.values()){
+        if(breaker.getState() != State.CLOSED){
+          latest = Math.max(latest, breaker.getRetryAt());
+        }
+      }
+    }
+    return latest;
+  }
+
+  private void notifyListeners(final State state){
+    if(state == null){
+      return;
+    }
+    Log.d(TAG, family + " breaker now " + state);
+    final List<Listener> toNotify;
+    synchronized(listeners){
+      toNotify = new ArrayList<Listener>(listeners);
+    }
+    if(toNotify.isEmpty()){
+      return;
+    }
+    mainHandler.post(new Runnable(){
+      public void run(){
+        for(Listener listener: toNotify){
+          listener.onStateChanged(CircuitBreaker.this, state);
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import java.util.Set;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * The two halves of a GET that only wants the body if it has changed since
+ * the copy tagged with the given ETag: asking for it, and recognising when
+ * the server says the copy we have is still good.
+ */
+class ConditionalGet{
+
+  static final String ETAG_HEADER = "ETag";
+  static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+
+  /** Asks the server to only send the body if it's no longer eTag. */
+  static void addIfNoneMatch(String eTag, Set<Header> headers){
+    if(eTag != null){
+      headers.add(new BasicHeader(IF_NONE_MATCH_HEADER, eTag));
+    }
+  }
+
+  /** Whether the server said what it has is still what's tagged eTag. */
+  static boolean isNotModified(String eTag, HttpResponse resp){
+    return eTag != null && resp.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED;
+  }
+}
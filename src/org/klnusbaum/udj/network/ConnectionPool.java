@@ -0,0 +1,330 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The connection manager behind ServerConnection's client. On top of what
+ * ThreadSafeClientConnManager already does, this keeps connections alive for
+ * a bounded amount of time, has a background thread close connections that
+ * have sat idle or expired, and counts how often connections (and with them
+ * TLS handshakes) are actually reused rather than set up from scratch.
+ */
+public class ConnectionPool extends ThreadSafeClientConnManager{
+  private static final String TAG = "ConnectionPool";
+
+  /**
+   * How long we keep a connection around when the server doesn't tell us.
+   * This is kept well under typical server side idle timeouts so we don't
+   * end up sending a request down a connection the server already closed.
+   */
+  public static final long DEFAULT_KEEP_ALIVE = 30 * 1000; // ms
+
+  /** Connections idle for longer than this are closed by the reaper. */
+  public static final long MAX_IDLE_TIME = 60 * 1000; // ms
+
+  private static final long REAP_INTERVAL = 15 * 1000; // ms
+
+  /**
+   * Decides how long a connection may be kept alive after a response,
+   * honouring the timeout in a Keep-Alive header when the server sends one.
+   */
+  public static class KeepAliveStrategy implements ConnectionKeepAliveStrategy{
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context){
+      HeaderElementIterator it = new BasicHeaderElementIterator(
+        response.headerIterator("Keep-Alive"));
+      while(it.hasNext()){
+        HeaderElement element = it.nextElement();
+        if(element.getValue() != null && element.getName().equalsIgnoreCase("timeout")){
+          try{
+            return Math.min(Long.parseLong(element.getValue()) * 1000, DEFAULT_KEEP_ALIVE);
+          }
+          catch(NumberFormatException e){
+            Log.w(TAG, "Bad Keep-Alive timeout " + element.getValue());
+          }
+        }
+      }
+      return DEFAULT_KEEP_ALIVE;
+    }
+  }
+
+  /**
+   * Wraps the real socket factory so we know when a brand new connection is
+   * made and when a TLS handshake completes on it. Connecting is done here
+   * step by step, the same way SSLSocketFactory does it, so that the time
+   * spent on each step can be handed to RequestMetrics.
+   */
+  private class CountingSocketFactory implements LayeredSocketFactory{
+    private final SSLSocketFactory wrapped;
+
+    private final HandshakeCompletedListener handshakeListener =
+      new HandshakeCompletedListener(){
+        public void handshakeCompleted(HandshakeCompletedEvent event){
+          synchronized(ConnectionPool.this){
+            handshakeCount++;
+          }
+        }
+      };
+
+    public CountingSocketFactory(SSLSocketFactory wrapped){
+      this.wrapped = wrapped;
+    }
+
+    public Socket createSocket() throws IOException{
+      return listen(wrapped.createSocket());
+    }
+
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+      throws IOException, UnknownHostException
+    {
+      return listen(wrapped.createSocket(socket, host, port, autoClose));
+    }
+
+    public Socket connectSocket(Socket sock, String host, int port,
+      InetAddress localAddress, int localPort, HttpParams params)
+      throws IOException, UnknownHostException, ConnectTimeoutException
+    {
+      final SSLSocket sslsock = (SSLSocket)(sock != null ? sock : createSocket());
+      if(localAddress != null || localPort > 0){
+        sslsock.bind(new InetSocketAddress(localAddress, Math.max(0, localPort)));
+      }
+
+      final long start = System.nanoTime();
+      final InetSocketAddress remoteAddress = new InetSocketAddress(host, port);
+      final long resolved = System.nanoTime();
+      try{
+        sslsock.connect(remoteAddress, HttpConnectionParams.getConnectionTimeout(params));
+      }
+      catch(SocketTimeoutException e){
+        throw new ConnectTimeoutException("Connect to " + remoteAddress + " timed out");
+      }
+      sslsock.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+      final long connected = System.nanoTime();
+      try{
+        sslsock.startHandshake();
+        wrapped.getHostnameVerifier().verify(host, sslsock);
+      }
+      catch(IOException e){
+        try{
+          sslsock.close();
+        }
+        catch(IOException closeException){
+          // We're already failing, nothing more to do.
+        }
+        throw e;
+      }
+      final long handshaken = System.nanoTime();
+
+      synchronized(ConnectionPool.this){
+        createdCount++;
+      }
+      RequestMetrics.connected(resolved - start, connected - resolved, handshaken - connected);
+      return sslsock;
+    }
+
+    public boolean isSecure(Socket sock){
+      return wrapped.isSecure(sock);
+    }
+
+    private Socket listen(Socket socket){
+      if(socket instanceof SSLSocket){
+        ((SSLSocket)socket).addHandshakeCompletedListener(handshakeListener);
+      }
+      return socket;
+    }
+  }
+
+  private final Thread reaper;
+
+  private int leaseCount = 0;
+  private int releaseCount = 0;
+  private int reusedCount = 0;
+  private int createdCount = 0;
+  private int handshakeCount = 0;
+
+  public ConnectionPool(HttpParams params, SchemeRegistry schemeReg){
+    super(params, schemeReg);
+    reaper = new Thread("ConnectionReaper"){
+      public void run(){
+        try{
+          while(!isInterrupted()){
+            sleep(REAP_INTERVAL);
+            closeExpiredConnections();
+            closeIdleConnections(MAX_IDLE_TIME, TimeUnit.MILLISECONDS);
+            if(Log.isLoggable(TAG, Log.DEBUG)){
+              Log.d(TAG, ConnectionPool.this.toString());
+            }
+          }
+        }
+        catch(InterruptedException e){
+          // We've been shut down.
+        }
+      }
+    };
+    reaper.setDaemon(true);
+    reaper.start();
+  }
+
+  /**
+   * Returns a socket factory that behaves exactly like the given one but
+   * feeds this pool's created and handshake counters. Register it in place
+   * of the factory it wraps.
+   */
+  public LayeredSocketFactory countingSocketFactory(SSLSocketFactory wrapped){
+    return new CountingSocketFactory(wrapped);
+  }
+
+  @Override
+  public ClientConnectionRequest requestConnection(HttpRoute route, Object state){
+    final ClientConnectionRequest request = super.requestConnection(route, state);
+    return new ClientConnectionRequest(){
+      public ManagedClientConnection getConnection(long timeout, TimeUnit tunit)
+        throws InterruptedException, ConnectionPoolTimeoutException
+      {
+        ManagedClientConnection conn = request.getConnection(timeout, tunit);
+        synchronized(ConnectionPool.this){
+          leaseCount++;
+          if(conn.isOpen()){
+            reusedCount++;
+          }
+        }
+        return conn;
+      }
+
+      public void abortRequest(){
+        request.abortRequest();
+      }
+    };
+  }
+
+  @Override
+  public void releaseConnection(
+    ManagedClientConnection conn, long validDuration, TimeUnit timeUnit)
+  {
+    synchronized(this){
+      releaseCount++;
+    }
+    super.releaseConnection(conn, validDuration, timeUnit);
+  }
+
+  @Override
+  public void shutdown(){
+    reaper.interrupt();
+    super.shutdown();
+  }
+
+  /** Number of connections currently handed out to requests. */
+  public synchronized int getLeasedCount(){
+    return Math.max(0, leaseCount - releaseCount);
+  }
+
+  /** Number of open connections sitting in the pool waiting to be reused. */
+  public int getAvailableCount(){
+    return Math.max(0, getConnectionsInPool() - getLeasedCount());
+  }
+
+  public synchronized int getCreatedCount(){
+    return createdCount;
+  }
+
+  public synchronized int getReusedCount(){
+    return reusedCount;
+  }
+
+  public synchronized int getHandshakeCount(){
+    return handshakeCount;
+  }
+
+  public String toString(){
+    final int available = getAvailableCount();
+    synchronized(this){
+      return "ConnectionPool[leased=" + Math.max(0, leaseCount - releaseCount) +
+        ", available=" + available + ", leases=" + leaseCount +
+        ", created=" + createdCount + ", reused=" + reusedCount +
+        ", handshakes=" + handshakeCount + "]";
+    }
+  }
+
+  /**
+   * Throws away whatever is left of the entity and hands its connection back
+   * to the pool. Meant for responses whose body we don't care about, like a
+   * 304. Never throws; if the rest of the body can't be read the connection
+   * is simply closed.
+   */
+  public static void consumeQuietly(HttpEntity entity){
+    if(entity == null){
+      return;
+    }
+    try{
+      entity.consumeContent();
+    }
+    catch(IOException e){
+      Log.w(TAG, "Couldn't consume response, closing connection", e);
+      abortQuietly(entity);
+    }
+  }
+
+  /**
+   * Closes the entity's connection without reading the rest of the body,
+   * used when reading it has already failed part way through.
+   */
+  public static void abortQuietly(HttpEntity entity){
+    if(entity instanceof ConnectionReleaseTrigger){
+      try{
+        ((ConnectionReleaseTrigger)entity).abortConnection();
+      }
+      catch(IOException e){
+        Log.w(TAG, "Couldn't abort connection", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import org.klnusbaum.udj.Constants;
+import org.klnusbaum.udj.Utils;
+
+/**
+ * Kicks PlaylistSyncService when the network comes back so anything waiting
+ * in the ActionOutbox gets sent without waiting out its backoff. This is only
+ * enabled while there's something in the outbox.
+ */
+public class ConnectivityReceiver extends BroadcastReceiver{
+  private static final String TAG = "ConnectivityReceiver";
+
+  public void onReceive(Context context, Intent intent){
+    if(Utils.isNetworkAvailable(context)){
+      Log.d(TAG, "Network available, retrying queued actions");
+      ActionOutbox.get(context).makeAllDue();
+      context.startService(new Intent(
+        Constants.ACTION_RETRY_ACTIONS, null, context, PlaylistSyncService.class));
+    }
+  }
+}
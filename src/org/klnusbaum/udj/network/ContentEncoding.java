@@ -0,0 +1,184 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Transparent gzip and deflate support for the http client. Playlists and
+ * library listings are very repetitive JSON and shrink several times over
+ * when compressed, so we ask the server to compress everything and
+ * decompress bodies as they're read. Since decompression happens on the fly
+ * the streaming parser never sees the compressed bytes, and nothing has to
+ * be buffered to do it.
+ */
+public class ContentEncoding{
+
+  private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+  private static final String GZIP = "gzip";
+  private static final String DEFLATE = "deflate";
+
+  /** Asks for a compressed response on every request. */
+  public static class RequestInterceptor implements HttpRequestInterceptor{
+    public void process(HttpRequest request, HttpContext context)
+      throws HttpException, IOException
+    {
+      if(!request.containsHeader(ACCEPT_ENCODING_HEADER)){
+        request.addHeader(ACCEPT_ENCODING_HEADER, GZIP + ", " + DEFLATE);
+      }
+    }
+  }
+
+  /** Swaps compressed response entities for decompressing ones. */
+  public static class ResponseInterceptor implements HttpResponseInterceptor{
+    public void process(HttpResponse response, HttpContext context)
+      throws HttpException, IOException
+    {
+      final HttpEntity entity = response.getEntity();
+      if(entity == null || entity.getContentEncoding() == null){
+        return;
+      }
+      for(HeaderElement codec: entity.getContentEncoding().getElements()){
+        if(codec.getName().equalsIgnoreCase(GZIP)){
+          response.setEntity(new DecompressingEntity(entity, GZIP));
+          return;
+        }
+        else if(codec.getName().equalsIgnoreCase(DEFLATE)){
+          response.setEntity(new DecompressingEntity(entity, DEFLATE));
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * An entity whose content is the decompressed content of the one it wraps.
+   * The compressed bytes are counted by RequestMetrics as they go by.
+   * Releasing or aborting it does the same to the wrapped entity's
+   * connection.
+   */
+  private static class DecompressingEntity extends HttpEntityWrapper
+    implements ConnectionReleaseTrigger
+  {
+    private final String encoding;
+
+    public DecompressingEntity(HttpEntity wrapped, String encoding){
+      super(wrapped);
+      this.encoding = encoding;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException{
+      final InputStream compressed =
+        RequestMetrics.meterCompressed(wrappedEntity.getContent());
+      if(encoding.equals(GZIP)){
+        return new GZIPInputStream(compressed);
+      }
+      return inflate(compressed);
+    }
+
+    @Override
+    public Header getContentEncoding(){
+      return null;
+    }
+
+    @Override
+    public long getContentLength(){
+      return -1;
+    }
+
+    public void releaseConnection() throws IOException{
+      if(wrappedEntity instanceof ConnectionReleaseTrigger){
+        ((ConnectionReleaseTrigger)wrappedEntity).releaseConnection();
+      }
+    }
+
+    public void abortConnection() throws IOException{
+      if(wrappedEntity instanceof ConnectionReleaseTrigger){
+        ((ConnectionReleaseTrigger)wrappedEntity).abortConnection();
+      }
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException{
+      final InputStream in = getContent();
+      try{
+        final byte[] buffer = new byte[4096];
+        int read;
+        while((read = in.read(buffer)) != -1){
+          out.write(buffer, 0, read);
+        }
+      }
+      finally{
+        in.close();
+      }
+    }
+  }
+
+  private ContentEncoding(){}
+
+  /**
+   * "deflate" is supposed to mean zlib wrapped data, but plenty of servers
+   * send raw deflate data instead. Look at the first two bytes to tell which
+   * one we got.
+   */
+  private static InputStream inflate(InputStream compressed) throws IOException{
+    final PushbackInputStream in = new PushbackInputStream(compressed, 2);
+    final int cmf = in.read();
+    final int flg = cmf == -1 ? -1 : in.read();
+    if(flg != -1){
+      in.unread(flg);
+    }
+    if(cmf != -1){
+      in.unread(cmf);
+    }
+    final boolean zlibWrapped = cmf != -1 && flg != -1 &&
+      (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+    final Inflater inflater = new Inflater(!zlibWrapped);
+    return new InflaterInputStream(in, inflater){
+      @Override
+      public void close() throws IOException{
+        try{
+          super.close();
+        }
+        finally{
+          inflater.end();
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,283 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * A get that's sent a second time if the first attempt hasn't got a response
+ * by the time 95% of requests to the same endpoint would have. Whichever
+ * attempt gets a response first is used and the other is aborted. The odd
+ * request that gets stuck behind a dropped packet or a busy server thread
+ * then costs us little more than a typical one, for the price of roughly one
+ * extra request in twenty.
+ *
+ * Nothing is hedged until we've seen enough requests to the endpoint to know
+ * what's slow for it.
+ *
+ * Each attempt is its own RequestMetrics sample. The hedge's is handed over
+ * to the caller's thread if it wins, so the body and parse times end up with
+ * the attempt they belong to, and the attempt that gets aborted for losing
+ * isn't counted as an error.
+ */
+class HedgedRequest{
+
+  /** Sends a single attempt at a request, as ServerConnection does. */
+  interface Sender{
+    HttpResponse send(HttpUriRequest request, RequestBudget budget) throws IOException;
+  }
+
+  /** Below this many samples the 95th percentile is mostly noise. */
+  private static final int MIN_SAMPLES = 20;
+
+  private static final long MIN_DELAY = 50; // ms
+
+  private static final int MAX_HEDGES = 2;
+
+  /**
+   * If there are already MAX_HEDGES hedges going, the network is probably
+   * just slow and sending more copies of requests won't help, so further
+   * ones are skipped.
+   */
+  private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+    0, MAX_HEDGES, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+
+  private final HttpGet primary;
+  private final HttpGet hedge;
+  private final RequestBudget budget;
+  private final RequestCanceller canceller;
+  private final Sender sender;
+
+  private boolean hedgeStarted = false;
+  private boolean hedgeFinished = false;
+  private HttpResponse hedgeResponse;
+  private RequestMetrics.Sample hedgeSample;
+  /** Set once the caller has its answer, after which the hedge is unwanted. */
+  private boolean done = false;
+
+  public HedgedRequest(
+    HttpGet primary, RequestBudget budget, RequestCanceller canceller, Sender sender)
+  {
+    this.primary = primary;
+    this.budget = budget;
+    this.canceller = canceller;
+    this.sender = sender;
+    hedge = new HttpGet(primary.getURI());
+    hedge.setHeaders(primary.getAllHeaders());
+    hedge.setParams(primary.getParams());
+  }
+
+  public HttpResponse execute() throws IOException{
+    final long delay = getHedgeDelay();
+    final ScheduledFuture<?> trigger = delay < 0 ? null : RequestBudget.schedule(
+      new Runnable(){
+        public void run(){
+          startHedge();
+        }
+      }, delay);
+
+    try{
+      HttpResponse response;
+      try{
+        response = attempt(primary);
+      }
+      catch(IOException e){
+        final HttpResponse fromHedge = awaitHedge();
+        if(fromHedge != null){
+          return fromHedge;
+        }
+        throw e;
+      }
+
+      HttpResponse fromHedge;
+      RequestMetrics.Sample fromHedgeSample;
+      synchronized(this){
+        fromHedge = hedgeResponse;
+        fromHedgeSample = hedgeSample;
+        done = true;
+      }
+      if(fromHedge != null){
+        // Both came in at once, and the hedge already claimed the win.
+        ConnectionPool.abortQuietly(response.getEntity());
+        RequestMetrics.attach(fromHedgeSample);
+        return fromHedge;
+      }
+      hedge.abort();
+      return response;
+    }
+    finally{
+      if(trigger != null){
+        trigger.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * How long to give the first attempt before hedging, or -1 if we don't know
+   * enough about the endpoint yet.
+   */
+  private long getHedgeDelay(){
+    final RequestMetrics.EndpointStats stats = RequestMetrics.getStats(
+      primary.getMethod() + " " + RequestMetrics.getEndpoint(primary.getURI()));
+    if(stats == null || stats.response.getCount() < MIN_SAMPLES){
+      return -1;
+    }
+    final long delay = Math.max(MIN_DELAY, stats.response.getPercentile(0.95));
+    return delay < budget.timeout ? delay : -1;
+  }
+
+  /**
+   * Sends one of the attempts, recording it with RequestMetrics as the
+   * calling thread's current request. If it fails because the other attempt
+   * won, or because the caller is no longer waiting for it, it was aborted
+   * on purpose and isn't counted as an error.
+   */
+  private HttpResponse attempt(HttpGet request) throws IOException{
+    RequestMetrics.begin(request.getMethod(), request.getURI());
+    try{
+      final HttpResponse response = sender.send(request, budget);
+      RequestMetrics.responseReceived(response.getStatusLine().getStatusCode());
+      return response;
+    }
+    catch(IOException e){
+      if(lost(request)){
+        RequestMetrics.abandoned();
+      }
+      else{
+        RequestMetrics.failed(e);
+      }
+      throw e;
+    }
+  }
+
+  private synchronized boolean lost(HttpGet request){
+    return request == primary ? hedgeResponse != null : done;
+  }
+
+  private void startHedge(){
+    synchronized(this){
+      if(done){
+        return;
+      }
+      hedgeStarted = true;
+    }
+    try{
+      executor.execute(new Runnable(){
+        public void run(){
+          runHedge();
+        }
+      });
+      RequestMetrics.hedged(primary.getMethod(), primary.getURI(), false);
+    }
+    catch(RejectedExecutionException e){
+      // Too many hedges in flight already.
+      synchronized(this){
+        hedgeStarted = false;
+        notifyAll();
+      }
+    }
+  }
+
+  private void runHedge(){
+    HttpResponse response = null;
+    try{
+      response = attempt(hedge);
+    }
+    catch(IOException e){
+      // Already recorded, and the caller gets the first attempt's error.
+    }
+    // This thread goes back to the pool, the caller takes the sample over
+    // if the hedge wins.
+    final RequestMetrics.Sample sample = RequestMetrics.detach();
+
+    boolean won = false;
+    synchronized(this){
+      if(response != null && !done){
+        hedgeResponse = response;
+        hedgeSample = sample;
+        won = true;
+      }
+      hedgeFinished = true;
+      notifyAll();
+    }
+    if(won){
+      RequestMetrics.hedged(primary.getMethod(), primary.getURI(), true);
+      primary.abort();
+    }
+    else if(response != null){
+      ConnectionPool.abortQuietly(response.getEntity());
+    }
+  }
+
+  /**
+   * Called once the first attempt has failed, which includes being aborted
+   * because the hedge won. Waits for the hedge, if there is one, and returns
+   * its response, or null if it failed too.
+   */
+  private HttpResponse awaitHedge(){
+    synchronized(this){
+      if(!hedgeStarted){
+        done = true;
+        return null;
+      }
+    }
+    try{
+      if(canceller != null){
+        // Cancelling the load should now abort the hedge instead.
+        canceller.attach(hedge);
+      }
+      synchronized(this){
+        while(hedgeStarted && !hedgeFinished){
+          wait();
+        }
+        done = true;
+        if(hedgeResponse != null){
+          RequestMetrics.attach(hedgeSample);
+        }
+        return hedgeResponse;
+      }
+    }
+    catch(InterruptedIOException e){
+      // The load was cancelled.
+    }
+    catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+    }
+    HttpResponse unwanted;
+    synchronized(this){
+      done = true;
+      unwanted = hedgeResponse;
+    }
+    hedge.abort();
+    if(unwanted != null){
+      ConnectionPool.abortQuietly(unwanted.getEntity());
+    }
+    return null;
+  }
+}
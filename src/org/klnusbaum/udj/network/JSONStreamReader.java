@@ -0,0 +1,433 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONException;
+
+/**
+ * A small pull parser for JSON which reads tokens directly off of a Reader.
+ * This lets us turn server responses into containers without first buffering
+ * the entire body into a String and then building an org.json tree out of it.
+ * android.util.JsonReader would do the job, but it isn't available until
+ * API 11 and we still support API 7.
+ */
+public class JSONStreamReader implements Closeable{
+
+  public enum Token{
+    BEGIN_ARRAY,
+    END_ARRAY,
+    BEGIN_OBJECT,
+    END_OBJECT,
+    NAME,
+    STRING,
+    NUMBER,
+    BOOLEAN,
+    NULL,
+    END_DOCUMENT
+  }
+
+  private static final int EMPTY_ARRAY = 0;
+  private static final int NONEMPTY_ARRAY = 1;
+  private static final int EMPTY_OBJECT = 2;
+  private static final int DANGLING_NAME = 3;
+  private static final int NONEMPTY_OBJECT = 4;
+  private static final int EMPTY_DOCUMENT = 5;
+  private static final int NONEMPTY_DOCUMENT = 6;
+
+  private final Reader in;
+  private final RequestCanceller canceller;
+  private final char[] buffer = new char[1024];
+  private int pos = 0;
+  private int limit = 0;
+
+  private int[] stack = new int[32];
+  private int stackSize = 0;
+
+  private Token peeked = null;
+  private String peekedValue = null;
+
+  public JSONStreamReader(Reader in){
+    this(in, null);
+  }
+
+  /**
+   * Creates a reader that stops with an InterruptedIOException as soon as
+   * the given canceller is cancelled. This is checked before every element,
+   * so a cancelled response stops being parsed straight away. The canceller
+   * may be null.
+   */
+  public JSONStreamReader(Reader in, RequestCanceller canceller){
+    this.in = in;
+    this.canceller = canceller;
+    push(EMPTY_DOCUMENT);
+  }
+
+  public void beginArray() throws IOException, JSONException{
+    expect(Token.BEGIN_ARRAY);
+    push(EMPTY_ARRAY);
+  }
+
+  public void endArray() throws IOException, JSONException{
+    expect(Token.END_ARRAY);
+    stackSize--;
+  }
+
+  public void beginObject() throws IOException, JSONException{
+    expect(Token.BEGIN_OBJECT);
+    push(EMPTY_OBJECT);
+  }
+
+  public void endObject() throws IOException, JSONException{
+    expect(Token.END_OBJECT);
+    stackSize--;
+  }
+
+  public boolean hasNext() throws IOException, JSONException{
+    if(canceller != null){
+      canceller.throwIfCanceled();
+    }
+    Token next = peek();
+    return next != Token.END_ARRAY && next != Token.END_OBJECT
+      && next != Token.END_DOCUMENT;
+  }
+
+  public String nextName() throws IOException, JSONException{
+    expect(Token.NAME);
+    return peekedValue;
+  }
+
+  public String nextString() throws IOException, JSONException{
+    Token next = peek();
+    if(next != Token.STRING && next != Token.NUMBER && next != Token.BOOLEAN){
+      throw syntaxError("Expected a string but was " + next);
+    }
+    peeked = null;
+    return peekedValue;
+  }
+
+  public int nextInt() throws IOException, JSONException{
+    String value = nextNumber();
+    try{
+      return Integer.parseInt(value);
+    }
+    catch(NumberFormatException e){
+      return (int)parseDouble(value);
+    }
+  }
+
+  public double nextDouble() throws IOException, JSONException{
+    return parseDouble(nextNumber());
+  }
+
+  public boolean nextBoolean() throws IOException, JSONException{
+    Token next = peek();
+    if(next != Token.BOOLEAN && next != Token.STRING){
+      throw syntaxError("Expected a boolean but was " + next);
+    }
+    peeked = null;
+    if(peekedValue.equalsIgnoreCase("true")){
+      return true;
+    }
+    else if(peekedValue.equalsIgnoreCase("false")){
+      return false;
+    }
+    throw syntaxError("Expected a boolean but was " + peekedValue);
+  }
+
+  public void nextNull() throws IOException, JSONException{
+    expect(Token.NULL);
+  }
+
+  /**
+   * Skips over the next value, including any nested arrays or objects.
+   */
+  public void skipValue() throws IOException, JSONException{
+    int depth = 0;
+    do{
+      switch(peek()){
+        case BEGIN_ARRAY:
+          beginArray();
+          depth++;
+          break;
+        case BEGIN_OBJECT:
+          beginObject();
+          depth++;
+          break;
+        case END_ARRAY:
+          endArray();
+          depth--;
+          break;
+        case END_OBJECT:
+          endObject();
+          depth--;
+          break;
+        case END_DOCUMENT:
+          throw syntaxError("Unexpected end of document");
+        default:
+          peeked = null;
+      }
+    } while(depth != 0);
+  }
+
+  public Token peek() throws IOException, JSONException{
+    if(peeked != null){
+      return peeked;
+    }
+
+    int c;
+    switch(stack[stackSize-1]){
+      case EMPTY_ARRAY:
+        stack[stackSize-1] = NONEMPTY_ARRAY;
+        c = nextNonWhitespace();
+        if(c == ']'){
+          return peeked = Token.END_ARRAY;
+        }
+        pos--;
+        break;
+      case NONEMPTY_ARRAY:
+        c = nextNonWhitespace();
+        if(c == ']'){
+          return peeked = Token.END_ARRAY;
+        }
+        else if(c != ','){
+          throw syntaxError("Expected ',' or ']'");
+        }
+        break;
+      case EMPTY_OBJECT:
+      case NONEMPTY_OBJECT:
+        boolean wasEmpty = stack[stackSize-1] == EMPTY_OBJECT;
+        stack[stackSize-1] = DANGLING_NAME;
+        c = nextNonWhitespace();
+        if(c == '}'){
+          return peeked = Token.END_OBJECT;
+        }
+        if(!wasEmpty){
+          if(c != ','){
+            throw syntaxError("Expected ',' or '}'");
+          }
+          c = nextNonWhitespace();
+        }
+        if(c != '"'){
+          throw syntaxError("Expected a name");
+        }
+        peekedValue = readString();
+        return peeked = Token.NAME;
+      case DANGLING_NAME:
+        stack[stackSize-1] = NONEMPTY_OBJECT;
+        c = nextNonWhitespace();
+        if(c != ':'){
+          throw syntaxError("Expected ':'");
+        }
+        break;
+      case EMPTY_DOCUMENT:
+        stack[stackSize-1] = NONEMPTY_DOCUMENT;
+        break;
+      case NONEMPTY_DOCUMENT:
+        if(skipWhitespace() == -1){
+          return peeked = Token.END_DOCUMENT;
+        }
+        throw syntaxError("Expected end of document");
+    }
+    return peekValue();
+  }
+
+  public void close() throws IOException{
+    peeked = null;
+    in.close();
+  }
+
+  private Token peekValue() throws IOException, JSONException{
+    int c = nextNonWhitespace();
+    switch(c){
+      case '{':
+        return peeked = Token.BEGIN_OBJECT;
+      case '[':
+        return peeked = Token.BEGIN_ARRAY;
+      case '"':
+        peekedValue = readString();
+        return peeked = Token.STRING;
+      default:
+        pos--;
+        peekedValue = readLiteral();
+        if(peekedValue.length() == 0){
+          throw syntaxError("Expected a value");
+        }
+        else if(peekedValue.equals("true") || peekedValue.equals("false")){
+          return peeked = Token.BOOLEAN;
+        }
+        else if(peekedValue.equals("null")){
+          return peeked = Token.NULL;
+        }
+        return peeked = Token.NUMBER;
+    }
+  }
+
+  private String nextNumber() throws IOException, JSONException{
+    Token next = peek();
+    if(next != Token.NUMBER && next != Token.STRING){
+      throw syntaxError("Expected a number but was " + next);
+    }
+    peeked = null;
+    return peekedValue;
+  }
+
+  private double parseDouble(String value) throws JSONException{
+    try{
+      return Double.parseDouble(value);
+    }
+    catch(NumberFormatException e){
+      throw syntaxError("Expected a number but was " + value);
+    }
+  }
+
+  private void expect(Token expected) throws IOException, JSONException{
+    Token next = peek();
+    if(next != expected){
+      throw syntaxError("Expected " + expected + " but was " + next);
+    }
+    peeked = null;
+  }
+
+  private void push(int scope){
+    if(stackSize == stack.length){
+      int[] newStack = new int[stackSize * 2];
+      System.arraycopy(stack, 0, newStack, 0, stackSize);
+      stack = newStack;
+    }
+    stack[stackSize++] = scope;
+  }
+
+  private boolean fillBuffer() throws IOException{
+    pos = 0;
+    limit = in.read(buffer, 0, buffer.length);
+    if(limit == -1){
+      limit = 0;
+      return false;
+    }
+    return true;
+  }
+
+  private int skipWhitespace() throws IOException{
+    while(pos < limit || fillBuffer()){
+      char c = buffer[pos++];
+      if(c != ' ' && c != '\t' && c != '\n' && c != '\r'){
+        return c;
+      }
+    }
+    return -1;
+  }
+
+  private int nextNonWhitespace() throws IOException, JSONException{
+    int c = skipWhitespace();
+    if(c == -1){
+      throw syntaxError("Unexpected end of input");
+    }
+    return c;
+  }
+
+  private String readString() throws IOException, JSONException{
+    StringBuilder builder = new StringBuilder();
+    while(true){
+      int start = pos;
+      while(pos < limit){
+        char c = buffer[pos++];
+        if(c == '"'){
+          builder.append(buffer, start, pos - start - 1);
+          return builder.toString();
+        }
+        else if(c == '\\'){
+          builder.append(buffer, start, pos - start - 1);
+          builder.append(readEscapeCharacter());
+          start = pos;
+        }
+      }
+      builder.append(buffer, start, pos - start);
+      if(!fillBuffer()){
+        throw syntaxError("Unterminated string");
+      }
+    }
+  }
+
+  private char readEscapeCharacter() throws IOException, JSONException{
+    if(pos == limit && !fillBuffer()){
+      throw syntaxError("Unterminated escape sequence");
+    }
+    char escaped = buffer[pos++];
+    switch(escaped){
+      case 'u':
+        int value = 0;
+        for(int i = 0; i < 4; ++i){
+          if(pos == limit && !fillBuffer()){
+            throw syntaxError("Unterminated escape sequence");
+          }
+          int digit = Character.digit(buffer[pos++], 16);
+          if(digit == -1){
+            throw syntaxError("Invalid unicode escape");
+          }
+          value = (value << 4) + digit;
+        }
+        return (char)value;
+      case 't':
+        return '\t';
+      case 'b':
+        return '\b';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 'f':
+        return '\f';
+      default:
+        return escaped;
+    }
+  }
+
+  private String readLiteral() throws IOException{
+    StringBuilder builder = new StringBuilder();
+    while(pos < limit || fillBuffer()){
+      char c = buffer[pos];
+      switch(c){
+        case ' ':
+        case '\t':
+        case '\n':
+        case '\r':
+        case ',':
+        case ':':
+        case '[':
+        case ']':
+        case '{':
+        case '}':
+        case '"':
+          return builder.toString();
+        default:
+          builder.append(c);
+          pos++;
+      }
+    }
+    return builder.toString();
+  }
+
+  private JSONException syntaxError(String message){
+    return new JSONException(message);
+  }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import android.location.Location;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.klnusbaum.udj.containers.Player;
+
+/**
+ * Process wide cache of the players found near a location. Locations are
+ * quantized into geohash cells of roughly 150m on a side, so every fix taken
+ * at the same venue maps onto the same entry, and reopening the player
+ * selector there can show the players straight away instead of waiting on
+ * the server.
+ *
+ * An entry is only used while it's younger than MAX_AGE and the location
+ * being looked up is within MOVEMENT_THRESHOLD of where it was fetched, so
+ * walking down the street, or sitting on the edge of a cell, still leads to
+ * a fresh search.
+ */
+public class NearbyPlayersCache{
+
+  /** Number of geohash characters in a cell key, about 153m x 153m. */
+  public static final int CELL_PRECISION = 7;
+
+  /** How long the players found near a location are trusted. */
+  public static final long MAX_AGE = 5 * 60 * 1000; // ms
+
+  /** How far we can move from where an entry was fetched before it's stale. */
+  public static final float MOVEMENT_THRESHOLD = 200; // m
+
+  private static final int MAX_ENTRIES = 16;
+
+  private static final String BASE_32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+  private static class Entry{
+    public final List<Player> players;
+    public final double latitude;
+    public final double longitude;
+    public final long fetchedAt;
+
+    public Entry(List<Player> players, double latitude, double longitude, long fetchedAt){
+      this.players = players;
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+
+  private static final LinkedHashMap<String, Entry> entries =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true){
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest){
+        return size() > MAX_ENTRIES;
+      }
+    };
+
+  private static int hitCount = 0;
+  private static int missCount = 0;
+
+  private NearbyPlayersCache(){}
+
+  /**
+   * Returns the players near the given location if we've got a fresh enough
+   * copy of them, otherwise null.
+   */
+  public static synchronized List<Player> get(Location location){
+    final String cell = getCell(location);
+    final Entry entry = entries.get(cell);
+    if(entry == null || SystemClock.elapsedRealtime() - entry.fetchedAt > MAX_AGE ||
+      distanceTo(location, entry.latitude, entry.longitude) > MOVEMENT_THRESHOLD)
+    {
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    return new ArrayList<Player>(entry.players);
+  }
+
+  public static synchronized void put(Location location, List<Player> players){
+    if(players == null){
+      return;
+    }
+    entries.put(getCell(location), new Entry(
+      new ArrayList<Player>(players),
+      location.getLatitude(),
+      location.getLongitude(),
+      SystemClock.elapsedRealtime()));
+  }
+
+  public static synchronized void clear(){
+    entries.clear();
+  }
+
+  public static synchronized int getHitCount(){
+    return hitCount;
+  }
+
+  public static synchronized int getMissCount(){
+    return missCount;
+  }
+
+  /** Returns the key of the geohash cell the location falls in. */
+  public static String getCell(Location location){
+    return encode(location.getLatitude(), location.getLongitude(), CELL_PRECISION);
+  }
+
+  /**
+   * Returns the latitude and longitude of the center of the given location's
+   * cell. Searching from here rather than the exact location means nearby
+   * fixes all produce the same request.
+   */
+  public static double[] getCellCenter(Location location){
+    return decodeCenter(getCell(location));
+  }
+
+  /** Encodes a latitude and longitude as a geohash of the given length. */
+  static String encode(double latitude, double longitude, int precision){
+    double minLat = -90, maxLat = 90;
+    double minLong = -180, maxLong = 180;
+    final StringBuilder hash = new StringBuilder(precision);
+    boolean isLong = true;
+    int bit = 0;
+    int ch = 0;
+    while(hash.length() < precision){
+      if(isLong){
+        double mid = (minLong + maxLong) / 2;
+        if(longitude >= mid){
+          ch |= 1 << (4 - bit);
+          minLong = mid;
+        }
+        else{
+          maxLong = mid;
+        }
+      }
+      else{
+        double mid = (minLat + maxLat) / 2;
+        if(latitude >= mid){
+          ch |= 1 << (4 - bit);
+          minLat = mid;
+        }
+        else{
+          maxLat = mid;
+        }
+      }
+      isLong = !isLong;
+      if(++bit == 5){
+        hash.append(BASE_32.charAt(ch));
+        bit = 0;
+        ch = 0;
+      }
+    }
+    return hash.toString();
+  }
+
+  /** Returns the latitude and longitude of the center of a geohash cell. */
+  static double[] decodeCenter(String hash){
+    double minLat = -90, maxLat = 90;
+    double minLong = -180, maxLong = 180;
+    boolean isLong = true;
+    for(int i = 0; i < hash.length(); i++){
+      int ch = BASE_32.indexOf(hash.charAt(i));
+      for(int bit = 4; bit >= 0; bit--){
+        boolean set = (ch & (1 << bit)) != 0;
+        if(isLong){
+          double mid = (minLong + maxLong) / 2;
+          if(set){
+            minLong = mid;
+          }
+          else{
+            maxLong = mid;
+          }
+        }
+        else{
+          double mid = (minLat + maxLat) / 2;
+          if(set){
+            minLat = mid;
+          }
+          else{
+            maxLat = mid;
+          }
+        }
+        isLong = !isLong;
+      }
+    }
+    return new double[]{(minLat + maxLat) / 2, (minLong + maxLong) / 2};
+  }
+
+  private static float distanceTo(Location location, double latitude, double longitude){
+    final float[] results = new float[1];
+    Location.distanceBetween(
+      location.getLatitude(), location.getLongitude(), latitude, longitude, results);
+    return results[0];
+  }
+}
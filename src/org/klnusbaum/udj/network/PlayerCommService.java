@@ -36,6 +36,8 @@ import org.apache.http.ParseException;
 import org.apache.http.auth.AuthenticationException;
 
 import org.klnusbaum.udj.Constants;
+import org.klnusbaum.udj.PlayerPrefetcher;
+import org.klnusbaum.udj.auth.AuthTokenCache;
 import org.klnusbaum.udj.Utils;
 import org.klnusbaum.udj.exceptions.PlayerInactiveException;
 import org.klnusbaum.udj.exceptions.PlayerPasswordException;
@@ -73,7 +75,7 @@ public class PlayerCommService extends IntentService{
     final Account account = 
       (Account)intent.getParcelableExtra(Constants.ACCOUNT_EXTRA);
     if(intent.getAction().equals(Intent.ACTION_INSERT)){
-      joinPlayer(intent, am, account, true);
+      joinPlayer(intent, am, account);
     }
     else{
       Log.d(TAG, "Unrecognized action of, it was " + 
@@ -82,97 +84,114 @@ public class PlayerCommService extends IntentService{
   }
 
 
-  private void joinPlayer(
-      Intent intent, AccountManager am, Account account, boolean attemptReauth)
-  {
+  private void joinPlayer(Intent intent, AccountManager am, Account account){
     if(!Utils.isNetworkAvailable(this)){
       doLoginFail(am, account, PlayerJoinError.NO_NETWORK_ERROR);
       return;
     }
 
     String userId = am.getUserData(account, Constants.USER_ID_DATA);
-    String playerId = intent.getStringExtra(Constants.PLAYER_ID_EXTRA);
+    final String playerId = intent.getStringExtra(Constants.PLAYER_ID_EXTRA);
     String ownerId = intent.getStringExtra(Constants.PLAYER_OWNER_ID_EXTRA);
     if(userId.equals(ownerId)){
       setLoggedInToPlayer(intent, am, account, playerId);
       return;
     }
 
-    String authToken;
-    String password = "";
-    boolean hasPassword = false;
+    final String password;
+    if(intent.hasExtra(Constants.PLAYER_PASSWORD_EXTRA)){
+      Log.d(TAG, "password given for player");
+      password = intent.getStringExtra(Constants.PLAYER_PASSWORD_EXTRA);
+    }
+    else{
+      Log.d(TAG, "No password given for player");
+      password = null;
+    }
+
+    PlayerJoinError error;
     //TODO hanle error if account isn't provided
     try{
       //TODO handle if player id isn't provided
-      authToken = am.blockingGetAuthToken(account, "", true);
-      if(intent.hasExtra(Constants.PLAYER_PASSWORD_EXTRA)){
-        Log.d(TAG, "password given for player");
-        hasPassword = true;
-        password = intent.getStringExtra(Constants.PLAYER_PASSWORD_EXTRA);
-      }
-      else{
-        Log.d(TAG, "No password given for player");
-      }
+      error = AuthTokenCache.withToken(am, account,
+        new AuthTokenCache.AuthenticatedCall<PlayerJoinError>(){
+          public PlayerJoinError call(String authToken) throws AuthenticationException{
+            return sendJoin(playerId, password, authToken);
+          }
+        });
     }
     catch(OperationCanceledException e){
       Log.e(TAG, "Operation canceled exception" );
-      doLoginFail(am, account, PlayerJoinError.AUTHENTICATION_ERROR);
-      return;
+      error = PlayerJoinError.AUTHENTICATION_ERROR;
     }
     catch(AuthenticatorException e){
       Log.e(TAG, "Authenticator exception" );
-      doLoginFail(am, account, PlayerJoinError.AUTHENTICATION_ERROR);
-      return;
+      error = PlayerJoinError.AUTHENTICATION_ERROR;
     }
     catch(IOException e){
       Log.e(TAG, "IO exception" );
-      doLoginFail(am, account, PlayerJoinError.AUTHENTICATION_ERROR);
-      return;
+      error = PlayerJoinError.AUTHENTICATION_ERROR;
+    }
+    catch(AuthenticationException e){
+      Log.e(TAG,
+        "Hard Authentication exception when joining player");
+      error = PlayerJoinError.AUTHENTICATION_ERROR;
     }
 
+    if(error == PlayerJoinError.NO_ERROR){
+      setLoggedInToPlayer(intent, am, account, playerId);
+    }
+    else{
+      doLoginFail(am, account, error);
+    }
+  }
+
+  /**
+   * Asks the server to let us join the player, using the password if there
+   * is one.
+   */
+  private PlayerJoinError sendJoin(String playerId, String password, String authToken)
+    throws AuthenticationException
+  {
     try{
-      if(!hasPassword){
+      if(password == null){
         ServerConnection.joinPlayer(playerId, authToken);
       }
       else{
         ServerConnection.joinPlayer(playerId, password, authToken);
       }
-      setLoggedInToPlayer(intent, am, account, playerId);
+      return PlayerJoinError.NO_ERROR;
     }
     catch(IOException e){
       Log.e(TAG, "IO exception when joining player");
       Log.e(TAG, e.getMessage());
-      doLoginFail(am, account, PlayerJoinError.SERVER_ERROR);
+      return PlayerJoinError.SERVER_ERROR;
     }
     catch(JSONException e){
       Log.e(TAG, 
           "JSON exception when joining player");
       Log.e(TAG, e.getMessage());
-      doLoginFail(am, account, PlayerJoinError.SERVER_ERROR);
-    }
-    catch(AuthenticationException e){
-      handleLoginAuthException(intent, am, account, authToken, attemptReauth);
+      return PlayerJoinError.SERVER_ERROR;
     }
     catch(PlayerInactiveException e){
       Log.e(TAG, "Player inactive Exception when joining player");
-      doLoginFail(am, account, PlayerJoinError.PLAYER_INACTIVE_ERROR);
+      return PlayerJoinError.PLAYER_INACTIVE_ERROR;
     } catch (ParseException e) {
       e.printStackTrace();
-      doLoginFail(am, account, PlayerJoinError.SERVER_ERROR);
+      return PlayerJoinError.SERVER_ERROR;
     } catch (PlayerPasswordException e) {
       Log.e(TAG, "Player Password Exception");
       e.printStackTrace();
-      doLoginFail(am, account, PlayerJoinError.PLAYER_PASSWORD_ERROR);
+      return PlayerJoinError.PLAYER_PASSWORD_ERROR;
     }
     catch(PlayerFullException e){
       Log.e(TAG, "Player Password Exception");
       e.printStackTrace();
-      doLoginFail(am, account, PlayerJoinError.PLAYER_FULL_ERROR);
+      return PlayerJoinError.PLAYER_FULL_ERROR;
     }
     catch(BannedException e){
       Log.e(TAG, "Player Password Exception");
       e.printStackTrace();
-      doLoginFail(am, account, PlayerJoinError.BANNED_ERROR);
+      return PlayerJoinError.BANNED_ERROR;
     }
   }
 
@@ -187,23 +206,7 @@ public class PlayerCommService extends IntentService{
     Log.d(TAG, "Sending joined player broadcast");
     Intent playerJoinedBroadcast = new Intent(Constants.JOINED_PLAYER_ACTION);
     sendBroadcast(playerJoinedBroadcast);
-  }
-
-  private void handleLoginAuthException(
-    Intent intent, AccountManager am, Account account, 
-    String authToken, boolean attemptReauth)
-  {
-    if(attemptReauth){
-      Log.d(TAG,
-        "Soft Authentication exception when joining player");
-      am.invalidateAuthToken(Constants.ACCOUNT_TYPE, authToken);
-      joinPlayer(intent, am, account, false);
-    }
-    else{
-      Log.e(TAG,
-        "Hard Authentication exception when joining player");
-      doLoginFail(am, account, PlayerJoinError.AUTHENTICATION_ERROR);
-    }
+    PlayerPrefetcher.prefetch(this, account, playerId);
   }
 
   private void doLoginFail(
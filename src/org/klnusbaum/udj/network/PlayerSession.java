@@ -0,0 +1,466 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.AuthenticatorException;
+import android.accounts.OperationCanceledException;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.http.ParseException;
+import org.apache.http.auth.AuthenticationException;
+
+import org.json.JSONException;
+
+import org.klnusbaum.udj.Constants;
+import org.klnusbaum.udj.auth.AuthTokenCache;
+import org.klnusbaum.udj.exceptions.CircuitOpenException;
+import org.klnusbaum.udj.exceptions.KickedException;
+import org.klnusbaum.udj.exceptions.NoLongerInPlayerException;
+import org.klnusbaum.udj.exceptions.PlayerInactiveException;
+
+/**
+ * Everything we've fetched about the player we're currently in. All of the
+ * player screen's loaders get their data through here, which means:
+ *
+ * - Results are kept for a while, so recreating a fragment or rotating the
+ *   screen doesn't mean fetching everything again.
+ * - If two loaders want the same thing at the same time, only one request
+ *   is made and both get its result.
+ * - Getting a ticket, retrying once with a new ticket and turning exceptions
+ *   into errors is done in one place.
+ * - Loaders can observe resources and find out when somebody else has
+ *   fetched a newer copy of what they're showing.
+ * - While the server is being given a break by its CircuitBreaker, whatever
+ *   copy we have is served, however old it is.
+ */
+public class PlayerSession{
+  private static final String TAG = "PlayerSession";
+
+  public enum Error{
+    NO_ERROR,
+    PLAYER_INACTIVE_ERROR,
+    SERVER_ERROR,
+    AUTHENTICATION_ERROR,
+    NO_LONGER_IN_PLAYER_ERROR,
+    KICKED_ERROR
+  }
+
+  /** Names of the resources the player screen's tabs show. */
+  public static final String PLAYLIST = "playlist";
+  public static final String ARTISTS = "artists";
+  public static final String RECENTLY_PLAYED = "recently_played";
+  public static final String RANDOM = "random";
+
+  /** How many results we keep around at once, mostly bounding searches. */
+  private static final int MAX_ENTRIES = 64;
+
+  public static class Result<T>{
+    public final T value;
+    public final Error error;
+    /** Increases every time the resource is fetched again. */
+    public final long version;
+    /** True if this came out of the cache rather than from the server. */
+    public final boolean fromCache;
+
+    public Result(T value, Error error, long version, boolean fromCache){
+      this.value = value;
+      this.error = error;
+      this.version = version;
+      this.fromCache = fromCache;
+    }
+  }
+
+  /**
+   * What fetch returns when the request was never sent because the server
+   * is being given a break, so the caller can fall back to a stale copy.
+   */
+  private static final Result<?> CIRCUIT_OPEN =
+    new Result<Object>(null, Error.SERVER_ERROR, 0, false);
+
+  /** Does the actual talking to the server for a resource. */
+  public interface Fetcher<T>{
+    public T fetch(String playerId, String authToken) throws
+      JSONException, ParseException, IOException, AuthenticationException,
+      PlayerInactiveException, NoLongerInPlayerException, KickedException;
+  }
+
+  public interface Observer{
+    /**
+     * Called on the main thread when a resource has been fetched by someone
+     * other than this observer.
+     */
+    public void onResourceUpdated(String resource, long version);
+  }
+
+  private static class Entry{
+    public final Object value;
+    public final long fetchedAt;
+    public final long version;
+
+    public Entry(Object value, long fetchedAt, long version){
+      this.value = value;
+      this.fetchedAt = fetchedAt;
+      this.version = version;
+    }
+  }
+
+  /**
+   * A fetch that's currently running, which anyone else wanting the same
+   * resource waits on instead of starting their own. It's created by the
+   * thread that does the fetching.
+   */
+  private static class Fetch{
+    private boolean done = false;
+    private boolean canceled = false;
+    private Result<?> result;
+    public final Set<Observer> requesters = new HashSet<Observer>();
+    private final int fetcherTid = Process.myTid();
+    private final int fetcherPriority = Process.getThreadPriority(fetcherTid);
+    private boolean boosted = false;
+
+    /**
+     * Called on the fetching thread once the fetch is over. Puts the thread
+     * back to the priority it started at if a waiter raised it.
+     */
+    public synchronized void complete(Result<?> result, boolean canceled){
+      this.result = result;
+      this.canceled = canceled;
+      this.done = true;
+      if(boosted){
+        Process.setThreadPriority(fetcherPriority);
+        boosted = false;
+      }
+      notifyAll();
+    }
+
+    /**
+     * A prefetch runs on the background pool, at a low thread priority. If
+     * the tab that's showing wants the same thing it waits on that fetch,
+     * and would be held up by everything else that's more important than
+     * the background pool. So the fetching thread is raised to the
+     * priority of the most important thread waiting on it until it's done.
+     */
+    public synchronized void boostFor(int waiterTid){
+      if(done){
+        return;
+      }
+      final int waiterPriority = Process.getThreadPriority(waiterTid);
+      // Lower values are more important.
+      if(waiterPriority < Process.getThreadPriority(fetcherTid)){
+        Process.setThreadPriority(fetcherTid, waiterPriority);
+        boosted = true;
+      }
+    }
+
+    /** Returns the result, or null if the fetch was canceled. */
+    public synchronized Result<?> await() throws InterruptedException{
+      while(!done){
+        wait();
+      }
+      return canceled ? null : result;
+    }
+  }
+
+  private static PlayerSession instance;
+
+  public static synchronized PlayerSession get(Context context){
+    if(instance == null){
+      instance = new PlayerSession(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private final Context context;
+  private final Handler mainHandler;
+  private final LinkedHashMap<String, Entry> entries;
+  private final Map<String, Fetch> fetches = new HashMap<String, Fetch>();
+  private final List<Observer> observers = new ArrayList<Observer>();
+  private long nextVersion = 1;
+
+  private long joinedAt = 0;
+  private final Set<String> readySinceJoin = new HashSet<String>();
+
+  private int hitCount = 0;
+  private int fetchCount = 0;
+  private int sharedCount = 0;
+
+  private PlayerSession(Context context){
+    this.context = context;
+    this.mainHandler = new Handler(Looper.getMainLooper());
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true){
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest){
+        return size() > MAX_ENTRIES;
+      }
+    };
+  }
+
+  /**
+   * Starts a new session for a player we just joined, dropping everything
+   * we had for the last one.
+   */
+  public synchronized void onJoined(String playerId){
+    entries.clear();
+    readySinceJoin.clear();
+    joinedAt = SystemClock.elapsedRealtime();
+    PlaylistOverlay.clear();
+  }
+
+  /**
+   * Returns the given resource for the player the account is currently in.
+   * If we fetched it less than maxAge milliseconds ago and forceRefresh isn't
+   * set, that copy is returned. Otherwise it's fetched, unless somebody is
+   * already fetching it, in which case we wait for and share their result.
+   *
+   * @param requester The observer asking, which won't be told about the
+   * update it caused. May be null.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> Result<T> load(Account account, String resource, long maxAge,
+    boolean forceRefresh, Fetcher<T> fetcher, Observer requester)
+  {
+    AccountManager am = AccountManager.get(context);
+    String playerId = am.getUserData(account, Constants.LAST_PLAYER_ID_DATA);
+    String key = playerId + "/" + resource;
+
+    while(true){
+      Fetch fetch;
+      boolean shouldFetch = false;
+      synchronized(this){
+        Entry cached = entries.get(key);
+        if(!forceRefresh && cached != null &&
+          SystemClock.elapsedRealtime() - cached.fetchedAt < maxAge)
+        {
+          hitCount++;
+          markReady(resource);
+          return new Result<T>((T)cached.value, Error.NO_ERROR, cached.version, true);
+        }
+        fetch = fetches.get(key);
+        if(fetch == null){
+          fetch = new Fetch();
+          fetches.put(key, fetch);
+          shouldFetch = true;
+        }
+        else{
+          sharedCount++;
+        }
+        if(requester != null){
+          fetch.requesters.add(requester);
+        }
+      }
+
+      if(shouldFetch){
+        return doFetch(am, account, playerId, resource, key, fetch, fetcher);
+      }
+
+      try{
+        fetch.boostFor(Process.myTid());
+        Result<?> shared = fetch.await();
+        if(shared != null){
+          return (Result<T>)shared;
+        }
+        // Whoever was fetching it gave up part way through, so try again
+        // ourselves.
+        forceRefresh = true;
+      }
+      catch(InterruptedException e){
+        Thread.currentThread().interrupt();
+        return new Result<T>(null, Error.SERVER_ERROR, 0, false);
+      }
+    }
+  }
+
+  public synchronized void invalidate(String resource){
+    List<String> toRemove = new ArrayList<String>();
+    for(String key: entries.keySet()){
+      if(key.endsWith("/" + resource)){
+        toRemove.add(key);
+      }
+    }
+    for(String key: toRemove){
+      entries.remove(key);
+    }
+  }
+
+  public synchronized void clear(){
+    entries.clear();
+  }
+
+  public synchronized void registerObserver(Observer observer){
+    if(!observers.contains(observer)){
+      observers.add(observer);
+    }
+  }
+
+  public synchronized void unregisterObserver(Observer observer){
+    observers.remove(observer);
+  }
+
+  public synchronized int getHitCount(){
+    return hitCount;
+  }
+
+  public synchronized int getFetchCount(){
+    return fetchCount;
+  }
+
+  public synchronized int getSharedCount(){
+    return sharedCount;
+  }
+
+  public synchronized String toString(){
+    return "PlayerSession[hits=" + hitCount + ", fetches=" + fetchCount +
+      ", shared=" + sharedCount + ", entries=" + entries.size() + "]";
+  }
+
+  private <T> Result<T> doFetch(AccountManager am, Account account, String playerId,
+    final String resource, String key, Fetch fetch, Fetcher<T> fetcher)
+  {
+    Result<T> fetched = null;
+    boolean canceled = false;
+    try{
+      fetched = fetch(am, account, playerId, fetcher);
+      canceled = fetched.error != Error.NO_ERROR && ServerConnection.isRequestCanceled();
+      if(fetched == CIRCUIT_OPEN){
+        fetched = getStale(key);
+      }
+    }
+    finally{
+      final Set<Observer> toNotify = new HashSet<Observer>();
+      synchronized(this){
+        fetches.remove(key);
+        fetchCount++;
+        if(fetched != null && fetched.error == Error.NO_ERROR && !fetched.fromCache){
+          long version = nextVersion++;
+          fetched = new Result<T>(fetched.value, Error.NO_ERROR, version, false);
+          if(fetched.value != null){
+            entries.put(key, new Entry(fetched.value, SystemClock.elapsedRealtime(), version));
+          }
+          markReady(resource);
+          toNotify.addAll(observers);
+          toNotify.removeAll(fetch.requesters);
+        }
+      }
+      fetch.complete(fetched, canceled || fetched == null);
+      if(!toNotify.isEmpty()){
+        final long version = fetched.version;
+        mainHandler.post(new Runnable(){
+          public void run(){
+            for(Observer observer: toNotify){
+              observer.onResourceUpdated(resource, version);
+            }
+          }
+        });
+      }
+    }
+    return fetched;
+  }
+
+  private <T> Result<T> fetch(AccountManager am, Account account,
+    final String playerId, final Fetcher<T> fetcher)
+  {
+    try{
+      return AuthTokenCache.withToken(am, account,
+        new AuthTokenCache.AuthenticatedCall<Result<T>>(){
+          @SuppressWarnings("unchecked")
+          public Result<T> call(String authToken) throws AuthenticationException{
+            try{
+              return new Result<T>(
+                fetcher.fetch(playerId, authToken), Error.NO_ERROR, 0, false);
+            }
+            catch(CircuitOpenException e){
+              return (Result<T>)CIRCUIT_OPEN;
+            }
+            catch(JSONException e){
+              return new Result<T>(null, Error.SERVER_ERROR, 0, false);
+            }
+            catch(ParseException e){
+              return new Result<T>(null, Error.SERVER_ERROR, 0, false);
+            }
+            catch(IOException e){
+              return new Result<T>(null, Error.SERVER_ERROR, 0, false);
+            }
+            catch(PlayerInactiveException e){
+              return new Result<T>(null, Error.PLAYER_INACTIVE_ERROR, 0, false);
+            }
+            catch(NoLongerInPlayerException e){
+              return new Result<T>(null, Error.NO_LONGER_IN_PLAYER_ERROR, 0, false);
+            }
+            catch(KickedException e){
+              return new Result<T>(null, Error.KICKED_ERROR, 0, false);
+            }
+          }
+        });
+    }
+    catch(IOException e){
+      //TODO this might actually be an auth error
+      return new Result<T>(null, Error.AUTHENTICATION_ERROR, 0, false);
+    }
+    catch(AuthenticatorException e){
+      return new Result<T>(null, Error.AUTHENTICATION_ERROR, 0, false);
+    }
+    catch(OperationCanceledException e){
+      return new Result<T>(null, Error.AUTHENTICATION_ERROR, 0, false);
+    }
+    catch(AuthenticationException e){
+      Log.d(TAG, "hard auth failure");
+      return new Result<T>(null, Error.AUTHENTICATION_ERROR, 0, false);
+    }
+  }
+
+  /**
+   * Returns whatever copy of the resource we have, no matter how old, or a
+   * server error if we don't have one.
+   */
+  @SuppressWarnings("unchecked")
+  private synchronized <T> Result<T> getStale(String key){
+    final Entry cached = entries.get(key);
+    if(cached == null){
+      return new Result<T>(null, Error.SERVER_ERROR, 0, false);
+    }
+    Log.d(TAG, "Serving stale " + key + " while the server recovers");
+    return new Result<T>((T)cached.value, Error.NO_ERROR, cached.version, true);
+  }
+
+  /**
+   * Logs how long after joining the player each resource first became
+   * available, our measure of how quickly the player screen is usable.
+   */
+  private void markReady(String resource){
+    if(joinedAt != 0 && readySinceJoin.add(resource)){
+      Log.d(TAG, resource + " interactive " +
+        (SystemClock.elapsedRealtime() - joinedAt) + "ms after join");
+    }
+  }
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.klnusbaum.udj.containers.ActivePlaylistEntry;
+import org.klnusbaum.udj.containers.LibraryEntry;
+import org.klnusbaum.udj.containers.User;
+
+/**
+ * Process wide record of the changes the user has made to the playlist that
+ * the server hasn't caught up with yet. Every vote, add, removal and change
+ * of the current song is recorded here under an id before its action is
+ * handed to PlaylistSyncService, and is applied on top of every playlist we
+ * get from the server. That way a poll that lands before the action has been
+ * sent doesn't undo what the user just did.
+ *
+ * Once the server accepts an action its change is acknowledged, and dropped
+ * as soon as we've got a playlist that was fetched after that, since the
+ * server's copy includes it from then on. If the action fails for good its
+ * change is rolled back and listeners are told, so they can let the user
+ * know.
+ *
+ * Nothing here is persisted. If the process dies the outbox still sends any
+ * actions that were waiting, the playlist just won't show them until the
+ * server does.
+ */
+public class PlaylistOverlay{
+
+  public enum Type{
+    VOTE,
+    ADD,
+    REMOVE,
+    SET_CURRENT
+  }
+
+  public static class Mutation{
+    public final long id;
+    public final Type type;
+    public final String libId;
+    /** The vote, for VOTE mutations. */
+    public final int vote;
+    /** The entry to show until the server has it, for ADD mutations. */
+    public final ActivePlaylistEntry added;
+    /** When the server accepted the change, in elapsedRealtime, or 0. */
+    private long ackedAt = 0;
+
+    private Mutation(long id, Type type, String libId, int vote, ActivePlaylistEntry added){
+      this.id = id;
+      this.type = type;
+      this.libId = libId;
+      this.vote = vote;
+      this.added = added;
+    }
+
+    public String toString(){
+      return "Mutation[" + id + ", " + type + " " + libId +
+        (ackedAt == 0 ? "" : ", acked") + "]";
+    }
+  }
+
+  public interface Listener{
+    /** Called on the main thread whenever a change is added or dropped. */
+    public void onOverlayChanged();
+
+    /** Called on the main thread when the server refused a change. */
+    public void onRolledBack(Mutation mutation);
+  }
+
+  private static final List<Mutation> mutations = new ArrayList<Mutation>();
+  private static final List<Listener> listeners = new ArrayList<Listener>();
+  private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  /**
+   * Ids end up in the outbox, which outlives the process, so they're started
+   * from the clock to keep a stale id from matching a new mutation.
+   */
+  private static long nextId = System.currentTimeMillis();
+
+  private PlaylistOverlay(){}
+
+  /** Records a vote and returns the id of the change. */
+  public static long vote(String libId, int vote){
+    synchronized(mutations){
+      // Only the latest vote on a song matters.
+      Iterator<Mutation> it = mutations.iterator();
+      while(it.hasNext()){
+        Mutation mutation = it.next();
+        if(mutation.type == Type.VOTE && mutation.libId.equals(libId)){
+          it.remove();
+        }
+      }
+    }
+    return record(Type.VOTE, libId, vote, null);
+  }
+
+  /** Records that the user added a song and returns the id of the change. */
+  public static long add(LibraryEntry song, User adder){
+    return record(Type.ADD, song.getId(), ActivePlaylistEntry.NO_VOTE,
+      new ActivePlaylistEntry(song, 0, 0, ActivePlaylistEntry.NO_VOTE, adder));
+  }
+
+  /** Records the removal of a song and returns the id of the change. */
+  public static long remove(String libId){
+    return record(Type.REMOVE, libId, ActivePlaylistEntry.NO_VOTE, null);
+  }
+
+  /** Records a change of the current song and returns the id of the change. */
+  public static long setCurrent(String libId){
+    return record(Type.SET_CURRENT, libId, ActivePlaylistEntry.NO_VOTE, null);
+  }
+
+  private static long record(Type type, String libId, int vote, ActivePlaylistEntry added){
+    final long id;
+    synchronized(mutations){
+      id = ++nextId;
+      mutations.add(new Mutation(id, type, libId, vote, added));
+    }
+    notifyChanged();
+    return id;
+  }
+
+  /** Marks a change as accepted by the server. */
+  public static void acknowledge(long id){
+    synchronized(mutations){
+      Mutation mutation = find(id);
+      if(mutation != null){
+        mutation.ackedAt = SystemClock.elapsedRealtime();
+      }
+    }
+  }
+
+  /**
+   * Drops a change the server refused, so the playlist goes back to what the
+   * server says, and lets listeners know.
+   */
+  public static void rollback(long id){
+    final Mutation mutation;
+    synchronized(mutations){
+      mutation = find(id);
+      if(mutation == null){
+        return;
+      }
+      mutations.remove(mutation);
+    }
+    final List<Listener> toNotify = getListeners();
+    mainHandler.post(new Runnable(){
+      public void run(){
+        for(Listener listener: toNotify){
+          listener.onRolledBack(mutation);
+          listener.onOverlayChanged();
+        }
+      }
+    });
+  }
+
+  /**
+   * Quietly drops a change whose action was never sent, because a later one
+   * replaced it or we've left the player.
+   */
+  public static void discard(long id){
+    synchronized(mutations){
+      Mutation mutation = find(id);
+      if(mutation == null){
+        return;
+      }
+      mutations.remove(mutation);
+    }
+    notifyChanged();
+  }
+
+  /** Drops every change, like when we join a different player. */
+  public static void clear(){
+    synchronized(mutations){
+      if(mutations.isEmpty()){
+        return;
+      }
+      mutations.clear();
+    }
+    notifyChanged();
+  }
+
+  /**
+   * Returns the playlist with every outstanding change applied to it. The
+   * snapshot itself is left alone.
+   *
+   * @param fetchedAt When the request for the snapshot was started, in
+   * elapsedRealtime. Changes the server accepted before then are already in
+   * it and are dropped.
+   */
+  public static List<ActivePlaylistEntry> apply(
+    List<ActivePlaylistEntry> snapshot, long fetchedAt)
+  {
+    if(snapshot == null){
+      return null;
+    }
+    final List<Mutation> toApply;
+    synchronized(mutations){
+      Iterator<Mutation> it = mutations.iterator();
+      while(it.hasNext()){
+        Mutation mutation = it.next();
+        if(mutation.ackedAt != 0 && mutation.ackedAt <= fetchedAt){
+          it.remove();
+        }
+      }
+      if(mutations.isEmpty()){
+        return snapshot;
+      }
+      toApply = new ArrayList<Mutation>(mutations);
+    }
+
+    final List<ActivePlaylistEntry> entries = new ArrayList<ActivePlaylistEntry>(snapshot);
+    for(Mutation mutation: toApply){
+      int index = indexOf(entries, mutation.libId);
+      switch(mutation.type){
+        case VOTE:
+          if(index != -1){
+            entries.set(index, entries.get(index).withMyVote(mutation.vote));
+          }
+          break;
+        case ADD:
+          if(index == -1){
+            entries.add(mutation.added);
+          }
+          break;
+        case REMOVE:
+          if(index != -1 && !entries.get(index).isCurrentSong()){
+            entries.remove(index);
+          }
+          break;
+        case SET_CURRENT:
+          if(index != -1 && !entries.get(index).isCurrentSong()){
+            ActivePlaylistEntry current = entries.remove(index).asCurrentSong();
+            if(!entries.isEmpty() && entries.get(0).isCurrentSong()){
+              entries.remove(0);
+            }
+            entries.add(0, current);
+          }
+          break;
+      }
+    }
+    return entries;
+  }
+
+  public static void registerListener(Listener listener){
+    synchronized(listeners){
+      if(!listeners.contains(listener)){
+        listeners.add(listener);
+      }
+    }
+  }
+
+  public static void unregisterListener(Listener listener){
+    synchronized(listeners){
+      listeners.remove(listener);
+    }
+  }
+
+  private static Mutation find(long id){
+    for(Mutation mutation: mutations){
+      if(mutation.id == id){
+        return mutation;
+      }
+    }
+    return null;
+  }
+
+  private static int indexOf(List<ActivePlaylistEntry> entries, String libId){
+    for(int i = 0; i < entries.size(); i++){
+      if(entries.get(i).getId().equals(libId)){
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static List<Listener> getListeners(){
+    synchronized(listeners){
+      return new ArrayList<Listener>(listeners);
+    }
+  }
+
+  private static void notifyChanged(){
+    final List<Listener> toNotify = getListeners();
+    if(toNotify.isEmpty()){
+      return;
+    }
+    mainHandler.post(new Runnable(){
+      public void run(){
+        for(Listener listener: toNotify){
+          listener.onOverlayChanged();
+        }
+      }
+    });
+  }
+}
@@ -20,6 +20,8 @@ package org.klnusbaum.udj.network;
 
 
 import android.content.Context;
+import android.content.ComponentName;
+import android.content.pm.PackageManager;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.OperationCanceledException;
@@ -27,6 +29,7 @@ import android.accounts.AuthenticatorException;
 import android.os.RemoteException;
 import android.content.OperationApplicationException;
 import android.util.Log;
+import android.app.AlarmManager;
 import android.app.IntentService;
 import android.app.PendingIntent;
 import android.content.Intent;
@@ -36,6 +39,19 @@ import android.graphics.drawable.BitmapDrawable;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.json.JSONObject;
 import org.json.JSONException;
@@ -44,10 +60,13 @@ import org.apache.http.auth.AuthenticationException;
 import org.apache.http.ParseException;
 
 import org.klnusbaum.udj.Constants;
+import org.klnusbaum.udj.auth.AuthTokenCache;
 import org.klnusbaum.udj.R;
+import org.klnusbaum.udj.exceptions.CircuitOpenException;
 import org.klnusbaum.udj.exceptions.NoLongerInPlayerException;
 import org.klnusbaum.udj.exceptions.PlayerInactiveException;
 import org.klnusbaum.udj.exceptions.KickedException;
+import org.klnusbaum.udj.exceptions.RequestRejectedException;
 import org.klnusbaum.udj.Utils;
 
 
@@ -61,61 +80,328 @@ public class PlaylistSyncService extends IntentService{
   private static final int SONG_SET_EXCEPTION_ID = 3;
   private static final int PLAYBACK_STATE_SET_EXCEPTION_ID = 4;
   private static final int PLAYER_VOLUME_SET_EXCEPTION_ID = 5;
+  private static final int VOTE_EXCEPTION_ID = 6;
 
   private static final String TAG = "PlaylistSyncService";
 
+  /** The most actions we'll have talking to the server at once. */
+  private static final int MAX_IN_FLIGHT = 4;
+
+  private enum ActionResult{
+    /** The server accepted the action. */
+    SUCCEEDED,
+    /** The action failed for a reason that might go away, try it again later. */
+    RETRY,
+    /**
+     * The action wasn't sent because the server is being given a break. Try
+     * it again once the break is over, without counting this as an attempt.
+     */
+    DEFERRED,
+    /** The action failed and trying it again won't help. */
+    FAILED,
+    /** The player is gone or we're no longer in it, drop everything for it. */
+    PLAYER_GONE
+  }
+
+  private static class PendingAction{
+    public final Intent intent;
+    public final long enqueuedAt;
+
+    public PendingAction(Intent intent){
+      this.intent = intent;
+      this.enqueuedAt = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Running totals describing how the action queue is behaving. These are
+   * logged after every batch.
+   */
+  private static class PipelineStats{
+    private int maxQueueDepth = 0;
+    private int batches = 0;
+    private int received = 0;
+    private int collapsed = 0;
+    private int completed = 0;
+    private int retried = 0;
+    private long totalLatency = 0;
+    private long maxLatency = 0;
+
+    public synchronized void recordQueueDepth(int depth){
+      maxQueueDepth = Math.max(maxQueueDepth, depth);
+    }
+
+    public synchronized void recordBatch(int size, int afterCoalescing){
+      batches++;
+      received += size;
+      collapsed += size - afterCoalescing;
+    }
+
+    public synchronized void recordRetry(){
+      retried++;
+    }
+
+    public synchronized void recordCompleted(long latency){
+      completed++;
+      totalLatency += latency;
+      maxLatency = Math.max(maxLatency, latency);
+    }
+
+    public synchronized String toString(){
+      return "PipelineStats[batches=" + batches + ", received=" + received +
+        ", collapsed=" + collapsed + ", completed=" + completed +
+        ", retried=" + retried + ", maxQueueDepth=" + maxQueueDepth +
+        ", avgLatency=" + (completed == 0 ? 0 : totalLatency / completed) + "ms" +
+        ", maxLatency=" + maxLatency + "ms]";
+    }
+  }
+
+  private static final PipelineStats stats = new PipelineStats();
+
+  private final List<PendingAction> pendingActions = new ArrayList<PendingAction>();
+  private ExecutorService actionExecutor;
+  private ActionOutbox outbox;
+
   public PlaylistSyncService(){
     super("PlaylistSyncService");
   }
 
+  @Override
+  public void onCreate(){
+    super.onCreate();
+    actionExecutor = Executors.newFixedThreadPool(MAX_IN_FLIGHT);
+    outbox = ActionOutbox.get(this);
+  }
+
+  @Override
+  public void onDestroy(){
+    super.onDestroy();
+    actionExecutor.shutdown();
+  }
+
+  /**
+   * Every action is put on our own pending queue as soon as it arrives. The
+   * IntentService still hands us each intent in onHandleIntent, but the first
+   * of those calls moves everything that's pending into the outbox and drains
+   * it, which lets us collapse superseded actions and run the rest in
+   * parallel.
+   */
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId){
+    if(intent != null && !Constants.ACTION_RETRY_ACTIONS.equals(intent.getAction())){
+      synchronized(pendingActions){
+        pendingActions.add(new PendingAction(intent));
+      }
+    }
+    return super.onStartCommand(intent, flags, startId);
+  }
+
   @Override
   public void onHandleIntent(Intent intent){
-    final Account account =
-      (Account)intent.getParcelableExtra(Constants.ACCOUNT_EXTRA);
-    String playerId = AccountManager.get(this).getUserData(
-      account, Constants.LAST_PLAYER_ID_DATA);
-    //TODO handle error if playerId is bad
-    if(intent.getAction().equals(Intent.ACTION_INSERT)){
-      if(intent.getData().equals(Constants.PLAYLIST_URI)){
-        String libId = intent.getStringExtra(Constants.LIB_ID_EXTRA);
-        addSongToPlaylist(account, playerId, libId, true, intent);
+    storePendingActions();
+
+    if(!Utils.isNetworkAvailable(this)){
+      Log.d(TAG, "No network available, waiting for connectivity to send actions");
+      scheduleNextAttempt();
+      return;
+    }
+
+    Collection<List<ActionOutbox.Action>> lanes = getDueLanes();
+    List<Future<?>> running = new ArrayList<Future<?>>(lanes.size());
+    for(final List<ActionOutbox.Action> lane: lanes){
+      running.add(actionExecutor.submit(new Runnable(){
+        public void run(){
+          runLane(lane);
+        }
+      }));
+    }
+    for(Future<?> lane: running){
+      try{
+        lane.get();
+      }
+      catch(InterruptedException e){
+        Log.e(TAG, "Interrupted while waiting for actions to finish");
+        Thread.currentThread().interrupt();
+        break;
+      }
+      catch(ExecutionException e){
+        Log.e(TAG, "Action failed unexpectedly", e.getCause());
+      }
+    }
+    if(!running.isEmpty()){
+      Log.d(TAG, stats.toString());
+    }
+    scheduleNextAttempt();
+  }
+
+  private void storePendingActions(){
+    List<PendingAction> toStore;
+    synchronized(pendingActions){
+      toStore = new ArrayList<PendingAction>(pendingActions);
+      pendingActions.clear();
+    }
+    AccountManager am = AccountManager.get(this);
+    for(PendingAction pending: toStore){
+      Account account =
+        (Account)pending.intent.getParcelableExtra(Constants.ACCOUNT_EXTRA);
+      String playerId = am.getUserData(account, Constants.LAST_PLAYER_ID_DATA);
+      if(outbox.add(pending.intent, account, playerId, pending.enqueuedAt) == -1){
+        PlaylistOverlay.rollback(
+          pending.intent.getLongExtra(Constants.MUTATION_ID_EXTRA, 0));
+        alertFailure(account, pending.intent);
+      }
+    }
+  }
+
+  /**
+   * Loads everything in the outbox, drops every action that is superseded by
+   * a later one (only the last volume, playback state, current song or vote
+   * on a particular song matters) and splits what's left into lanes. Actions
+   * within a lane run in the order they were received, lanes run in parallel.
+   * A lane whose first action is still backing off is held back entirely so
+   * later actions on the same song can't overtake it.
+   */
+  private Collection<List<ActionOutbox.Action>> getDueLanes(){
+    List<ActionOutbox.Action> stored = outbox.getAll();
+    stats.recordQueueDepth(stored.size());
+    AccountManager am = AccountManager.get(this);
+    Set<String> superseding = new HashSet<String>();
+    LinkedList<ActionOutbox.Action> kept = new LinkedList<ActionOutbox.Action>();
+    for(int i = stored.size()-1; i >= 0; --i){
+      ActionOutbox.Action action = stored.get(i);
+      String currentPlayerId =
+        am.getUserData(action.getAccount(), Constants.LAST_PLAYER_ID_DATA);
+      String key = action.getSupersedeKey();
+      if(!action.playerId.equals(currentPlayerId)
+        || (key != null && !superseding.add(key)))
+      {
+        outbox.remove(action);
+        PlaylistOverlay.discard(action.mutationId);
+        continue;
+      }
+      kept.addFirst(action);
+    }
+
+    Map<String, List<ActionOutbox.Action>> lanes =
+      new LinkedHashMap<String, List<ActionOutbox.Action>>();
+    for(ActionOutbox.Action action: kept){
+      String laneKey = action.getLaneKey();
+      List<ActionOutbox.Action> lane = lanes.get(laneKey);
+      if(lane == null){
+        lane = new ArrayList<ActionOutbox.Action>();
+        lanes.put(laneKey, lane);
+      }
+      lane.add(action);
+    }
+
+    long now = System.currentTimeMillis();
+    Iterator<List<ActionOutbox.Action>> it = lanes.values().iterator();
+    while(it.hasNext()){
+      if(!it.next().get(0).isDue(now)){
+        it.remove();
+      }
+    }
+    if(!lanes.isEmpty()){
+      stats.recordBatch(stored.size(), kept.size());
+    }
+    return lanes.values();
+  }
+
+  /**
+   * Sends each action in the lane in order. If one of them needs to be
+   * retried, it's rescheduled and the rest of the lane waits behind it.
+   */
+  private void runLane(List<ActionOutbox.Action> lane){
+    for(ActionOutbox.Action action: lane){
+      ActionResult result = dispatch(action);
+      if(result == ActionResult.DEFERRED){
+        outbox.deferUntil(action, CircuitBreaker.getLatestRetryAt());
+        Log.d(TAG, "Deferring " + action.action + " until the server recovers");
+        return;
+      }
+      else if(result == ActionResult.RETRY && action.attempts + 1 < ActionOutbox.MAX_ATTEMPTS){
+        long nextAttempt = outbox.scheduleRetry(action);
+        stats.recordRetry();
+        Log.d(TAG, "Retrying " + action.action + " in " +
+          (nextAttempt - System.currentTimeMillis()) + "ms");
+        return;
+      }
+      else if(result == ActionResult.PLAYER_GONE){
+        outbox.removePlayer(action.playerId);
+        PlaylistOverlay.clear();
+        return;
+      }
+
+      outbox.remove(action);
+      stats.recordCompleted(System.currentTimeMillis() - action.enqueuedAt);
+      if(result == ActionResult.SUCCEEDED){
+        PlaylistOverlay.acknowledge(action.mutationId);
+      }
+      else{
+        PlaylistOverlay.rollback(action.mutationId);
+        alertFailure(action);
+      }
+    }
+  }
+
+  /**
+   * Sets an alarm to wake us up when the next action is due and, while
+   * anything is still waiting to be sent, listens for connectivity changes
+   * so we can try again as soon as the network comes back.
+   */
+  private void scheduleNextAttempt(){
+    List<ActionOutbox.Action> remaining = outbox.getAll();
+    AlarmManager alarmManager = (AlarmManager)getSystemService(Context.ALARM_SERVICE);
+    PendingIntent retryIntent = PendingIntent.getService(
+      this,
+      0,
+      new Intent(Constants.ACTION_RETRY_ACTIONS, null, this, PlaylistSyncService.class),
+      PendingIntent.FLAG_UPDATE_CURRENT);
+    getPackageManager().setComponentEnabledSetting(
+      new ComponentName(this, ConnectivityReceiver.class),
+      remaining.isEmpty() ?
+        PackageManager.COMPONENT_ENABLED_STATE_DISABLED :
+        PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
+      PackageManager.DONT_KILL_APP);
+    if(remaining.isEmpty()){
+      alarmManager.cancel(retryIntent);
+      return;
+    }
+
+    long nextAttempt = Long.MAX_VALUE;
+    for(ActionOutbox.Action action: remaining){
+      nextAttempt = Math.min(nextAttempt, action.nextAttempt);
+    }
+    alarmManager.set(AlarmManager.RTC, nextAttempt, retryIntent);
+  }
+
+  private ActionResult dispatch(ActionOutbox.Action action){
+    if(action.action.equals(Intent.ACTION_INSERT)){
+      if(Constants.PLAYLIST_URI.equals(action.data)){
+        return addSongToPlaylist(action);
       }
-      else if(intent.getData().equals(Constants.VOTES_URI)){
-        //TODO handle if lib id is bad
-        String libId = intent.getStringExtra(Constants.LIB_ID_EXTRA);
-        //TODO handle if votetype is bad
-        int voteWeight = intent.getIntExtra(Constants.VOTE_WEIGHT_EXTRA,0); 
-        voteOnSong(account, playerId, libId, voteWeight, true);
+      else if(Constants.VOTES_URI.equals(action.data)){
+        return voteOnSong(action);
       }
-      //updateActivePlaylist(account, playerId, true); 
     }
-    /*else if(intent.getAction().equals(Intent.ACTION_VIEW)){
-      updateActivePlaylist(account, playerId, true); 
-    }*/
-    else if(intent.getAction().equals(Intent.ACTION_DELETE)){
+    else if(action.action.equals(Intent.ACTION_DELETE)){
       Log.d(TAG, "Handling delete");
-      if(intent.getData().equals(Constants.PLAYLIST_URI)){
-        Log.d(TAG, "In plalist syncservice, about to insert song into remove requests");
-        //TODO handle if Playlist id is bad.
-        String libId = intent.getStringExtra(Constants.LIB_ID_EXTRA);
-        removeSongFromPlaylist(account, playerId, libId, true, intent);
+      if(Constants.PLAYLIST_URI.equals(action.data)){
+        return removeSongFromPlaylist(action);
       }
-      //updateActivePlaylist(account, playerId, true);
     }
-    else if(intent.getAction().equals(Constants.ACTION_SET_CURRENT_SONG)){
+    else if(action.action.equals(Constants.ACTION_SET_CURRENT_SONG)){
       Log.d(TAG, "Handling setting current song");
-      String libId = intent.getStringExtra(Constants.LIB_ID_EXTRA);
-      setCurrentSong(account, playerId, libId, true, intent);
-      //updateActivePlaylist(account, playerId, true);
+      return setCurrentSong(action);
     }
-    else if(intent.getAction().equals(Constants.ACTION_SET_PLAYBACK)){
-      setPlaybackState(intent, account, playerId, true);
-      //updateActivePlaylist(account, playerId, true);
+    else if(action.action.equals(Constants.ACTION_SET_PLAYBACK)){
+      return setPlaybackState(action);
     }
-    else if(intent.getAction().equals(Constants.ACTION_SET_VOLUME)){
-      setPlayerVolume(intent, account, playerId, true);
-      //updateActivePlaylist(account, playerId, true);
+    else if(action.action.equals(Constants.ACTION_SET_VOLUME)){
+      return setPlayerVolume(action);
     }
+    Log.e(TAG, "Dropping unknown action " + action.action);
+    return ActionResult.FAILED;
   }
 
 /*  private void updateActivePlaylist(
@@ -185,358 +471,295 @@ public class PlaylistSyncService extends IntentService{
   }
   */
 
-  private void setCurrentSong(
-    Account account,
-    String playerId,
-    String libId,
-    boolean attemptReauth,
-    Intent originalIntent)
+  /**
+   * Makes a request for the action with its account's ticket, turning
+   * trouble getting a ticket, or a ticket the server still rejects after
+   * it's been refreshed, into the matching result.
+   */
+  private ActionResult sendAuthenticated(ActionOutbox.Action action,
+    String description, AuthTokenCache.AuthenticatedCall<ActionResult> call)
   {
-    String authToken = "";
-    AccountManager am = AccountManager.get(this);
     try{
-      authToken = am.blockingGetAuthToken(account, "", true);
+      return AuthTokenCache.withToken(
+        AccountManager.get(this), action.getAccount(), call);
     }
     catch(AuthenticatorException e){
-      alertSetSongException(account, originalIntent);
-      Log.e(TAG, "Authentication exception when setting song");
+      Log.e(TAG, "Authentication exception when " + description);
+      return ActionResult.FAILED;
     }
     catch(OperationCanceledException e){
-      alertSetSongException(account, originalIntent);
-      Log.e(TAG, "Op Canceled exception when setting song");
+      Log.e(TAG, "Op Canceled exception when " + description);
+      return ActionResult.FAILED;
     }
     catch(IOException e){
-      alertSetSongException(account, originalIntent);
-      Log.e(TAG, "IO exception when geting authtoken for setting song");
-      Log.e(TAG, e.getMessage());
-    }
-
-    try{
-      ServerConnection.setCurrentSong(playerId, libId, authToken);
-      Intent setCurrentComplete = new Intent(Constants.BROADCAST_SET_CURRENT_COMPLETE);
-      this.sendBroadcast(setCurrentComplete);
-    }
-    catch(IOException e){
-      alertSetSongException(account, originalIntent);
-      Log.e(TAG, "IO exception when setting song");
-      Log.e(TAG, e.getMessage());
+      Log.e(TAG, "IO exception when geting authtoken for " + description);
+      return ActionResult.RETRY;
     }
     catch(AuthenticationException e){
-      if(attemptReauth){
-        am.invalidateAuthToken(Constants.ACCOUNT_TYPE, authToken); 
-        addSongToPlaylist(account, playerId, libId, false, originalIntent);
-        Log.e(TAG, "Soft Authentication exception when setting song");
-      }
-      else{
-        alertSetSongException(account, originalIntent);
-        Log.e(TAG, "Hard Authentication exception when setting song");
-      }
-    }
-    catch(PlayerInactiveException e){
-      Log.e(TAG, "Event over exceptoin when setting song");
-      Utils.handleInactivePlayer(this, account);
-    } catch (NoLongerInPlayerException e) {
-      Utils.handleNoLongerInPlayer(this, account);
-    }
-    catch(KickedException e){
-      Utils.handleKickedFromPlayer(this, account);
+      Log.e(TAG, "Hard Authentication exception when " + description);
+      return ActionResult.FAILED;
     }
   }
 
-
-
-  private void addSongToPlaylist(
-    Account account,
-    String playerId,
-    String libId,
-    boolean attemptReauth,
-    Intent originalIntent)
-  {
-    String authToken = "";
-    AccountManager am = AccountManager.get(this);
-    try{
-      authToken = am.blockingGetAuthToken(account, "", true);
-    }
-    catch(AuthenticatorException e){
-      alertAddSongException(account, originalIntent);
-      Log.e(TAG, "Authentication exception when adding to playist");
-    }
-    catch(OperationCanceledException e){
-      alertAddSongException(account, originalIntent);
-      Log.e(TAG, "Op Canceled exception when adding to playist");
-    }
-    catch(IOException e){
-      alertAddSongException(account, originalIntent);
-      Log.e(TAG, "IO exception when geting authtoken for adding to playist");
-      Log.e(TAG, e.getMessage());
-    }
-
-    try{
-      ServerConnection.addSongToActivePlaylist(
-          playerId, libId, authToken);
-    }
-    catch(JSONException e){
-      alertAddSongException(account, originalIntent);
-      Log.e(TAG, "JSON exception when adding to playist");
-    }
-    catch(ParseException e){
-      alertAddSongException(account, originalIntent);
-      Log.e(TAG, "Parse exception when adding to playist");
-    }
-    catch(IOException e){
-      alertAddSongException(account, originalIntent);
-      Log.e(TAG, "IO exception when adding to playist");
-      Log.e(TAG, e.getMessage());
-    }
-    catch(AuthenticationException e){
-      if(attemptReauth){
-        am.invalidateAuthToken(Constants.ACCOUNT_TYPE, authToken); 
-        addSongToPlaylist(account, playerId, libId, false, originalIntent);
-        Log.e(TAG, "Soft Authentication exception when adding to playist");
-      }
-      else{
-        alertAddSongException(account, originalIntent);
-        Log.e(TAG, "Hard Authentication exception when adding to playist");
-      }
-    }
-    catch(PlayerInactiveException e){
-      Log.e(TAG, "Event over exceptoin when retreiving playlist");
-      Utils.handleInactivePlayer(this, account);
-    }
-    catch (NoLongerInPlayerException e) {
-      Utils.handleNoLongerInPlayer(this, account);
-    }
-    catch(KickedException e){
-      Utils.handleKickedFromPlayer(this, account);
-    }
-
-
+  private ActionResult setCurrentSong(final ActionOutbox.Action action){
+    return sendAuthenticated(action, "setting song",
+      new AuthTokenCache.AuthenticatedCall<ActionResult>(){
+        public ActionResult call(String authToken) throws AuthenticationException{
+          try{
+            ServerConnection.setCurrentSong(action.playerId, action.libId, authToken);
+            Intent setCurrentComplete = new Intent(Constants.BROADCAST_SET_CURRENT_COMPLETE);
+            sendBroadcast(setCurrentComplete);
+            return ActionResult.SUCCEEDED;
+          }
+          catch(RequestRejectedException e){
+            Log.e(TAG, "Server rejected request when setting song");
+            return ActionResult.FAILED;
+          }
+          catch(CircuitOpenException e){
+            return ActionResult.DEFERRED;
+          }
+          catch(IOException e){
+            Log.e(TAG, "IO exception when setting song");
+            return ActionResult.RETRY;
+          }
+          catch(PlayerInactiveException e){
+            Log.e(TAG, "Player inactive exception when setting song");
+            Utils.handleInactivePlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+          catch(NoLongerInPlayerException e){
+            Utils.handleNoLongerInPlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+          catch(KickedException e){
+            Utils.handleKickedFromPlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+        }
+      });
   }
 
-  private void removeSongFromPlaylist(
-      Account account, String playerId, String libId, boolean attemptReauth, Intent originalIntent)
-  {
-    String authToken = "";
-    AccountManager am = AccountManager.get(this);
-    try{
-      authToken = am.blockingGetAuthToken(account, "", true);
-    }
-    catch(AuthenticatorException e){
-      alertRemoveSongException(account, originalIntent);
-      Log.e(TAG, "Authentication exception when removing from playist");
-    }
-    catch(OperationCanceledException e){
-      alertRemoveSongException(account, originalIntent);
-      Log.e(TAG, "Op Canceled exception when removing from playist");
-    }
-    catch(IOException e){
-      alertRemoveSongException(account, originalIntent);
-      Log.e(TAG, "IO exception when removing from playist/getting authtoken");
-      Log.e(TAG, e.getMessage());
-    }
-
-    try{
-      Log.d(TAG, "Actually removing song");
-      ServerConnection.removeSongFromActivePlaylist(playerId, libId, authToken);
-      Intent removeSongComplete = new Intent(Constants.BROADCAST_REMOVE_SONG_COMPLETE);
-      this.sendBroadcast(removeSongComplete);
-    }
-    catch(ParseException e){
-      alertRemoveSongException(account, originalIntent);
-      Log.e(TAG, "Parse exception when removing from playist");
-    }
-    catch(IOException e){
-      alertRemoveSongException(account, originalIntent);
-      Log.e(TAG, "IO exception when removing from playist");
-      Log.e(TAG, e.getMessage());
-    }
-    catch(AuthenticationException e){
-      if(attemptReauth){
-        am.invalidateAuthToken(Constants.ACCOUNT_TYPE, authToken); 
-        removeSongFromPlaylist(account, playerId, libId, false, originalIntent);
-        Log.e(TAG, "Soft Authentication exception when removing from playist");
-      }
-      else{
-        alertRemoveSongException(account, originalIntent);
-        Log.e(TAG, "Hard Authentication exception when removing from playist");
-      }
-    }
-    catch(PlayerInactiveException e){
-      Log.e(TAG, "Event over exceptoin when removing from playlist");
-      Utils.handleInactivePlayer(this, account);
-    } catch (NoLongerInPlayerException e) {
-      Utils.handleNoLongerInPlayer(this, account);
-    }
-    catch(KickedException e){
-      Utils.handleKickedFromPlayer(this, account);
-    }
+  private ActionResult addSongToPlaylist(final ActionOutbox.Action action){
+    return sendAuthenticated(action, "adding to playist",
+      new AuthTokenCache.AuthenticatedCall<ActionResult>(){
+        public ActionResult call(String authToken) throws AuthenticationException{
+          try{
+            ServerConnection.addSongToActivePlaylist(
+                action.playerId, action.libId, authToken);
+            return ActionResult.SUCCEEDED;
+          }
+          catch(JSONException e){
+            Log.e(TAG, "JSON exception when adding to playist");
+            return ActionResult.FAILED;
+          }
+          catch(ParseException e){
+            Log.e(TAG, "Parse exception when adding to playist");
+            return ActionResult.FAILED;
+          }
+          catch(RequestRejectedException e){
+            Log.e(TAG, "Server rejected request when adding to playist");
+            return ActionResult.FAILED;
+          }
+          catch(CircuitOpenException e){
+            return ActionResult.DEFERRED;
+          }
+          catch(IOException e){
+            Log.e(TAG, "IO exception when adding to playist");
+            return ActionResult.RETRY;
+          }
+          catch(PlayerInactiveException e){
+            Log.e(TAG, "Player inactive exception when adding to playist");
+            Utils.handleInactivePlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+          catch(NoLongerInPlayerException e){
+            Utils.handleNoLongerInPlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+          catch(KickedException e){
+            Utils.handleKickedFromPlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+        }
+      });
   }
 
-  private void voteOnSong(Account account, String playerId, String libId, int voteWeight, boolean attemptReauth){
-    AccountManager am = AccountManager.get(this);
-    String authToken = "";
-    try{
-      authToken = am.blockingGetAuthToken(account, "", true);
-    }
-    catch(IOException e){
-      Log.e(TAG, "IO exception when voting on playist");
-    }
-    catch(AuthenticatorException e){
-      Log.e(TAG, "Authentication exception when voting playist");
-    }
-    catch(OperationCanceledException e){
-      Log.e(TAG, "Op Canceled exception when voting playist");
-    }
+  private ActionResult removeSongFromPlaylist(final ActionOutbox.Action action){
+    return sendAuthenticated(action, "removing from playist",
+      new AuthTokenCache.AuthenticatedCall<ActionResult>(){
+        public ActionResult call(String authToken) throws AuthenticationException{
+          try{
+            Log.d(TAG, "Actually removing song");
+            ServerConnection.removeSongFromActivePlaylist(action.playerId, action.libId, authToken);
+            Intent removeSongComplete = new Intent(Constants.BROADCAST_REMOVE_SONG_COMPLETE);
+            sendBroadcast(removeSongComplete);
+            return ActionResult.SUCCEEDED;
+          }
+          catch(RequestRejectedException e){
+            Log.e(TAG, "Server rejected request when removing from playist");
+            return ActionResult.FAILED;
+          }
+          catch(CircuitOpenException e){
+            return ActionResult.DEFERRED;
+          }
+          catch(IOException e){
+            Log.e(TAG, "IO exception when removing from playist");
+            return ActionResult.RETRY;
+          }
+          catch(PlayerInactiveException e){
+            Log.e(TAG, "Player inactive exception when removing from playist");
+            Utils.handleInactivePlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+          catch(NoLongerInPlayerException e){
+            Utils.handleNoLongerInPlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+          catch(KickedException e){
+            Utils.handleKickedFromPlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+        }
+      });
+  }
 
-    try{
-      ServerConnection.voteOnSong(playerId, libId, voteWeight, authToken);
-      Intent voteCompleteBroadcast = new Intent(Constants.BROADCAST_VOTE_COMPLETED);
-      this.sendBroadcast(voteCompleteBroadcast);
-    }
-    catch(ParseException e){
-      Log.e(TAG, "Parse exception when retreiving playist");
-    }
-    catch(IOException e){
-      Log.e(TAG, "IO exception when retreiving playist");
-    }
-    catch(AuthenticationException e){
-      if(attemptReauth){
-        Log.e(TAG, "Soft Authentication exception when retreiving playist");
-        am.invalidateAuthToken(Constants.ACCOUNT_TYPE, authToken); 
-        voteOnSong(account, playerId, libId, voteWeight, false);
-      }
-      else{
-        Log.e(TAG, "Hard Authentication exception when retreiving playist");
-      }
-    }
-    catch(PlayerInactiveException e){
-      Log.e(TAG, "Event over exception when retreiving playlist");
-      Utils.handleInactivePlayer(this, account);
-    } catch (NoLongerInPlayerException e) {
-      Utils.handleNoLongerInPlayer(this, account);
-    }
-    catch(KickedException e){
-      Utils.handleKickedFromPlayer(this, account);
-    }
+  private ActionResult voteOnSong(final ActionOutbox.Action action){
+    return sendAuthenticated(action, "voting on playist",
+      new AuthTokenCache.AuthenticatedCall<ActionResult>(){
+        public ActionResult call(String authToken) throws AuthenticationException{
+          try{
+            ServerConnection.voteOnSong(action.playerId, action.libId, action.value, authToken);
+            Intent voteCompleteBroadcast = new Intent(Constants.BROADCAST_VOTE_COMPLETED);
+            sendBroadcast(voteCompleteBroadcast);
+            return ActionResult.SUCCEEDED;
+          }
+          catch(RequestRejectedException e){
+            Log.e(TAG, "Server rejected request when voting on playist");
+            return ActionResult.FAILED;
+          }
+          catch(CircuitOpenException e){
+            return ActionResult.DEFERRED;
+          }
+          catch(IOException e){
+            Log.e(TAG, "IO exception when voting on playist");
+            return ActionResult.RETRY;
+          }
+          catch(PlayerInactiveException e){
+            Log.e(TAG, "Player inactive exception when voting on playist");
+            Utils.handleInactivePlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+          catch(NoLongerInPlayerException e){
+            Utils.handleNoLongerInPlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+          catch(KickedException e){
+            Utils.handleKickedFromPlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+        }
+      });
   }
 
-  private void setPlayerVolume(
-    Intent intent, Account account, String playerId, boolean attemptReauth)
-  {
-    AccountManager am = AccountManager.get(this);
-    int desiredVolume = intent.getIntExtra(Constants.PLAYER_VOLUME_EXTRA, 0);
-    Log.d(TAG, "proceeding to set volume of player to: " + String.valueOf(desiredVolume) + 
+  private ActionResult setPlayerVolume(final ActionOutbox.Action action){
+    Log.d(TAG, "proceeding to set volume of player to: " + String.valueOf(action.value) + 
         " on server");
-
-    String authToken = "";
-    try{
-      authToken = am.blockingGetAuthToken(account, "", true);  
-    }
-    catch(OperationCanceledException e){
-      //TODO do something here?
-      Log.e(TAG, "Operation canceled exception in set playback" );
-      return;
-    }
-    catch(AuthenticatorException e){
-      //TODO do something here?
-      Log.e(TAG, "Authenticator exception in set playback" );
-      return;
-    }
-    catch(IOException e){
-      //TODO do something here?
-      Log.e(TAG, "IO exception in set playback" );
-      return;
-    }
-
-    try{
-      ServerConnection.setPlayerVolume(playerId, desiredVolume, authToken);
-    }
-    catch(IOException e){
-      Log.e(TAG, "IO exception in set volume" );
-      alertSetVolumeException(account, intent);
-      return;
-    }
-    catch(AuthenticationException e){
-      if(attemptReauth){
-        Log.d(TAG, "Soft Authentication exception when setting volume");
-        am.invalidateAuthToken(Constants.ACCOUNT_TYPE, authToken);
-        setPlayerVolume(intent, account, playerId, false);
-      }
-      else{
-        Log.e(TAG, "Hard Authentication exception when setting volume");
-        //TODO do something here?
-      }
-    }
-    catch(PlayerInactiveException e){
-      Log.e(TAG, "Player inactive exception in set volume" );
-      Utils.handleInactivePlayer(this, account);
-      return;
-    }
-    catch(NoLongerInPlayerException e){
-      Utils.handleNoLongerInPlayer(this, account);
-      return;
-    }
-    catch(KickedException e){
-      Utils.handleKickedFromPlayer(this, account);
-    }
+    return sendAuthenticated(action, "setting volume",
+      new AuthTokenCache.AuthenticatedCall<ActionResult>(){
+        public ActionResult call(String authToken) throws AuthenticationException{
+          try{
+            ServerConnection.setPlayerVolume(action.playerId, action.value, authToken);
+            return ActionResult.SUCCEEDED;
+          }
+          catch(RequestRejectedException e){
+            Log.e(TAG, "Server rejected request when setting volume");
+            return ActionResult.FAILED;
+          }
+          catch(CircuitOpenException e){
+            return ActionResult.DEFERRED;
+          }
+          catch(IOException e){
+            Log.e(TAG, "IO exception when setting volume");
+            return ActionResult.RETRY;
+          }
+          catch(PlayerInactiveException e){
+            Log.e(TAG, "Player inactive exception when setting volume");
+            Utils.handleInactivePlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+          catch(NoLongerInPlayerException e){
+            Utils.handleNoLongerInPlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+          catch(KickedException e){
+            Utils.handleKickedFromPlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+        }
+      });
   }
 
+  private ActionResult setPlaybackState(final ActionOutbox.Action action){
+    return sendAuthenticated(action, "setting playback state",
+      new AuthTokenCache.AuthenticatedCall<ActionResult>(){
+        public ActionResult call(String authToken) throws AuthenticationException{
+          try{
+            ServerConnection.setPlaybackState(action.playerId, action.value, authToken);
+            return ActionResult.SUCCEEDED;
+          }
+          catch(RequestRejectedException e){
+            Log.e(TAG, "Server rejected request when setting playback state");
+            return ActionResult.FAILED;
+          }
+          catch(CircuitOpenException e){
+            return ActionResult.DEFERRED;
+          }
+          catch(IOException e){
+            Log.e(TAG, "IO exception when setting playback state");
+            return ActionResult.RETRY;
+          }
+          catch(PlayerInactiveException e){
+            Log.e(TAG, "Player inactive exception when setting playback state");
+            Utils.handleInactivePlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+          catch(NoLongerInPlayerException e){
+            Utils.handleNoLongerInPlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+          catch(KickedException e){
+            Utils.handleKickedFromPlayer(PlaylistSyncService.this, action.getAccount());
+            return ActionResult.PLAYER_GONE;
+          }
+        }
+      });
+  }
 
-  private void setPlaybackState(
-    Intent intent, Account account, String playerId, boolean attemptReauth)
-  {
-    AccountManager am = AccountManager.get(this);
-    String authToken = "";
-    try{
-      authToken = am.blockingGetAuthToken(account, "", true);  
-    }
-    catch(OperationCanceledException e){
-      //TODO do something here?
-      Log.e(TAG, "Operation canceled exception in set playback" );
-      return;
-    }
-    catch(AuthenticatorException e){
-      //TODO do something here?
-      Log.e(TAG, "Authenticator exception in set playback" );
-      return;
-    }
-    catch(IOException e){
-      //TODO do something here?
-      Log.e(TAG, "IO exception in set playback" );
-      return;
-    }
+  private void alertFailure(ActionOutbox.Action action){
+    alertFailure(action.getAccount(), action.toIntent(this));
+  }
 
-    int desiredPlaybackState = intent.getIntExtra(Constants.PLAYBACK_STATE_EXTRA, 0);
-    try{
-      ServerConnection.setPlaybackState(playerId, desiredPlaybackState, authToken);
+  private void alertFailure(Account account, Intent originalIntent){
+    String action = originalIntent.getAction();
+    if(Intent.ACTION_INSERT.equals(action) &&
+      Constants.VOTES_URI.equals(originalIntent.getData()))
+    {
+      alertVoteException(account, originalIntent);
     }
-    catch(IOException e){
-      Log.e(TAG, "IO exception in set playback" );
-      alertSetPlaybackException(account, intent);
-      return;
+    else if(Intent.ACTION_INSERT.equals(action)){
+      alertAddSongException(account, originalIntent);
     }
-    catch(AuthenticationException e){
-      if(attemptReauth){
-        Log.d(TAG, "Soft Authentication exception when setting playback state");
-        am.invalidateAuthToken(Constants.ACCOUNT_TYPE, authToken);
-        setPlaybackState(intent, account, playerId, false);
-      }
-      else{
-        Log.e(TAG, "Hard Authentication exception when setting playback state");
-        //TODO do something here?
-      }
+    else if(Intent.ACTION_DELETE.equals(action)){
+      alertRemoveSongException(account, originalIntent);
     }
-    catch(PlayerInactiveException e){
-      Log.e(TAG, "Player inactive exception in set playback" );
-      Utils.handleInactivePlayer(this, account);
-      return;
+    else if(Constants.ACTION_SET_CURRENT_SONG.equals(action)){
+      alertSetSongException(account, originalIntent);
     }
-    catch(NoLongerInPlayerException e){
-      Utils.handleNoLongerInPlayer(this, account);
-      return;
+    else if(Constants.ACTION_SET_PLAYBACK.equals(action)){
+      alertSetPlaybackException(account, originalIntent);
     }
-    catch(KickedException e){
-      Utils.handleKickedFromPlayer(this, account);
+    else if(Constants.ACTION_SET_VOLUME.equals(action)){
+      alertSetVolumeException(account, originalIntent);
     }
   }
 
@@ -582,6 +805,16 @@ public class PlaylistSyncService extends IntentService{
     );
   }
 
+  private void alertVoteException(Account account, Intent originalIntent){
+    alertException(
+      account,
+      originalIntent,
+      R.string.vote_failed_title,
+      R.string.vote_failed_content,
+      VOTE_EXCEPTION_ID
+    );
+  }
+
   private void alertSetSongException(Account account, Intent originalIntent){
     alertException(
       account,
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+/**
+ * How long to wait between polls of something the server can't push
+ * changes of to us. Polling starts out quick and backs off while nothing
+ * changes, snapping back to the quickest rate as soon as something does.
+ * Errors back off faster still, so a struggling server isn't hammered.
+ */
+public class PollInterval{
+
+  public static final long MIN_INTERVAL = 3 * 1000; // ms
+  public static final long MAX_INTERVAL = 60 * 1000; // ms
+
+  private long interval = MIN_INTERVAL;
+
+  /** How long to wait before the next poll, in milliseconds. */
+  public long get(){
+    return interval;
+  }
+
+  /** Goes back to polling as quickly as we can. */
+  public void reset(){
+    interval = MIN_INTERVAL;
+  }
+
+  /** The last poll found something had changed. */
+  public long changed(){
+    interval = MIN_INTERVAL;
+    return interval;
+  }
+
+  /** The last poll found nothing had changed. */
+  public long unchanged(){
+    return backOff(3, 2);
+  }
+
+  /** The last poll failed. */
+  public long failed(){
+    return backOff(2, 1);
+  }
+
+  private long backOff(long numerator, long denominator){
+    interval = Math.min(MAX_INTERVAL, interval * numerator / denominator);
+    return interval;
+  }
+
+  @Override
+  public String toString(){
+    return "PollInterval[" + interval + "ms]";
+  }
+}
@@ -20,6 +20,7 @@ package org.klnusbaum.udj.network;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import android.content.Context;
 import android.content.Intent;
@@ -33,6 +34,7 @@ import android.accounts.AccountManager;
 
 import org.klnusbaum.udj.Constants;
 //import org.klnusbaum.udj.UDJPlayerProvider;
+import org.klnusbaum.udj.containers.ActivePlaylist;
 import org.klnusbaum.udj.containers.ActivePlaylistEntry;
 import org.klnusbaum.udj.Utils;
 
@@ -45,6 +47,25 @@ public class RESTProcessor{
 
   public static final String TAG = "RESTProcessor";
 
+  /**
+   * The last active playlist we got from the server along with the ETag it
+   * came with. Used to avoid re-downloading and re-parsing a playlist that
+   * hasn't changed.
+   */
+  private static class PlaylistSnapshot{
+    public final String playerId;
+    public final String eTag;
+    public final List<ActivePlaylistEntry> entries;
+
+    public PlaylistSnapshot(String playerId, String eTag, List<ActivePlaylistEntry> entries){
+      this.playerId = playerId;
+      this.eTag = eTag;
+      this.entries = entries;
+    }
+  }
+
+  private static PlaylistSnapshot lastPlaylist = null;
+
   private static void checkVolume(Context context, AccountManager am, Account account, int volume){
     if(Utils.getPlayerVolume(am, account) != volume){
       am.setUserData(account, Constants.PLAYER_VOLUME_DATA, String.valueOf(volume));
@@ -71,21 +92,100 @@ public class RESTProcessor{
   }
 
   public static List<ActivePlaylistEntry> processActivePlaylist(
-    JSONObject activePlaylist,
+    ActivePlaylist parsed,
+    AccountManager am,
+    Account account,
+    Context context)
+  {
+    checkPlaybackState(context, am, account, parsed.playbackState);
+    checkVolume(context, am, account, parsed.volume);
+    return parsed.entries;
+  }
+
+  /**
+   * Returns the ETag of the last playlist we received for the given player,
+   * or null if we don't have one.
+   */
+  public static synchronized String getActivePlaylistETag(String playerId){
+    if(lastPlaylist != null && lastPlaylist.playerId.equals(playerId)){
+      return lastPlaylist.eTag;
+    }
+    return null;
+  }
+
+  /**
+   * Applies an active playlist update to the last snapshot we have for the
+   * given player. If the server reported the playlist as unchanged, the
+   * snapshot is handed back as is. Otherwise entries whose votes, adder and
+   * current song status haven't changed are carried over from the snapshot
+   * and only added, removed and changed entries come from the new payload.
+   *
+   * @return The new playlist, or null if the server said the playlist was
+   * unchanged but we have no snapshot to go with it. In that case the caller
+   * should do a full fetch.
+   */
+  public static synchronized List<ActivePlaylistEntry> processActivePlaylistUpdate(
+    String playerId,
+    ServerConnection.ActivePlaylistResult update,
     AccountManager am,
     Account account,
     Context context)
     throws JSONException
   {
-    checkPlaybackState(context, am, account, activePlaylist.getString("state"));
-    checkVolume(context, am, account, activePlaylist.getInt("volume"));
-    ActivePlaylistEntry currentSong = 
-      ActivePlaylistEntry.valueOf(activePlaylist.getJSONObject("current_song"));
-    currentSong.setCurrentSong(true);
-    List<ActivePlaylistEntry> playlist = ActivePlaylistEntry.fromJSONArray(
-      activePlaylist.getJSONArray("active_playlist"));
-    playlist.add(0, currentSong);
-    return playlist;
+    PlaylistSnapshot previous = null;
+    if(lastPlaylist != null && lastPlaylist.playerId.equals(playerId)){
+      previous = lastPlaylist;
+    }
+
+    if(update.notModified()){
+      if(previous == null || !update.eTag.equals(previous.eTag)){
+        return null;
+      }
+      return new ArrayList<ActivePlaylistEntry>(previous.entries);
+    }
+
+    List<ActivePlaylistEntry> playlist =
+      processActivePlaylist(update.activePlaylist, am, account, context);
+    if(previous != null){
+      playlist = applyChanges(previous.entries, playlist);
+    }
+    lastPlaylist = new PlaylistSnapshot(playerId, update.eTag, playlist);
+    return new ArrayList<ActivePlaylistEntry>(playlist);
+  }
+
+  private static List<ActivePlaylistEntry> applyChanges(
+    List<ActivePlaylistEntry> previous, List<ActivePlaylistEntry> updated)
+  {
+    HashMap<String, ActivePlaylistEntry> previousById =
+      new HashMap<String, ActivePlaylistEntry>();
+    for(ActivePlaylistEntry entry: previous){
+      previousById.put(entry.getId(), entry);
+    }
+
+    int changed = 0;
+    ArrayList<ActivePlaylistEntry> toReturn =
+      new ArrayList<ActivePlaylistEntry>(updated.size());
+    for(ActivePlaylistEntry entry: updated){
+      ActivePlaylistEntry old = previousById.remove(entry.getId());
+      if(old != null && hasSameState(old, entry)){
+        toReturn.add(old);
+      }
+      else{
+        toReturn.add(entry);
+        changed++;
+      }
+    }
+    Log.d(TAG, "Playlist update: " + changed + " added or changed, " +
+      previousById.size() + " removed");
+    return toReturn;
+  }
+
+  private static boolean hasSameState(ActivePlaylistEntry a, ActivePlaylistEntry b){
+    return a.isCurrentSong() == b.isCurrentSong()
+      && a.getAdder().equals(b.getAdder())
+      && a.getUpvoteCount() == b.getUpvoteCount()
+      && a.getDownvoteCount() == b.getDownvoteCount()
+      && a.getMyVote() == b.getMyVote();
   }
 
 }
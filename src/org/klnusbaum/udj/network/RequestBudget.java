@@ -0,0 +1,141 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * How long requests to a family of endpoints are allowed to take. The
+ * playlist is polled constantly and is small, so a request for it that's
+ * taking a long time is stuck and is better off given up on and retried by
+ * the next poll. Library searches can legitimately take the server a while.
+ *
+ * A budget bounds three things: connecting (including the TLS handshake),
+ * waiting for the response headers, start to finish, and waiting on any
+ * single read of the body.
+ */
+public class RequestBudget{
+
+  public static final RequestBudget PLAYLIST =
+    new RequestBudget("playlist", 5 * 1000, 8 * 1000, true);
+  public static final RequestBudget LIBRARY =
+    new RequestBudget("library", 10 * 1000, 20 * 1000, true);
+  public static final RequestBudget DEFAULT =
+    new RequestBudget("default", 15 * 1000, 30 * 1000, false);
+
+  /**
+   * A timer that aborts a request if it's still waiting on its response
+   * when the budget runs out.
+   */
+  public static class Deadline implements Runnable{
+    private final HttpUriRequest request;
+    private volatile boolean expired = false;
+    private ScheduledFuture<?> future;
+
+    private Deadline(HttpUriRequest request){
+      this.request = request;
+    }
+
+    public void run(){
+      expired = true;
+      request.abort();
+    }
+
+    public boolean hasExpired(){
+      return expired;
+    }
+
+    /** Stops the timer, once the response is in. */
+    public void cancel(){
+      future.cancel(false);
+    }
+  }
+
+  private static final ScheduledThreadPoolExecutor timer =
+    new ScheduledThreadPoolExecutor(1, new ThreadFactory(){
+      public Thread newThread(Runnable r){
+        Thread thread = new Thread(r, "RequestBudget");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  public final String name;
+  public final int connectTimeout; // ms
+  public final int timeout; // ms
+  /** Whether idempotent requests in this family may be hedged. */
+  public final boolean hedge;
+
+  private RequestBudget(String name, int connectTimeout, int timeout, boolean hedge){
+    this.name = name;
+    this.connectTimeout = connectTimeout;
+    this.timeout = timeout;
+    this.hedge = hedge;
+  }
+
+  public static RequestBudget forRequest(HttpUriRequest request){
+    final String path = request.getURI().getPath();
+    if(path.contains("/active_playlist")){
+      return PLAYLIST;
+    }
+    else if(path.contains("/available_music") || path.contains("/recently_played")){
+      return LIBRARY;
+    }
+    return DEFAULT;
+  }
+
+  /** Sets the request's connect and read timeouts to this budget's. */
+  public void apply(HttpUriRequest request){
+    final HttpParams params = request.getParams();
+    HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+    HttpConnectionParams.setSoTimeout(params, timeout);
+  }
+
+  /** Only gets can be safely sent twice. */
+  public boolean shouldHedge(HttpUriRequest request){
+    return hedge && request.getMethod().equals("GET");
+  }
+
+  /**
+   * Starts a timer that aborts the request if it hasn't got its response
+   * within this budget.
+   */
+  public Deadline startDeadline(HttpUriRequest request){
+    final Deadline deadline = new Deadline(request);
+    deadline.future = timer.schedule(deadline, timeout, TimeUnit.MILLISECONDS);
+    return deadline;
+  }
+
+  /** Runs a short task on the timer thread after the given delay. */
+  static ScheduledFuture<?> schedule(Runnable task, long delay){
+    return timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+  }
+
+  public String toString(){
+    return "RequestBudget[" + name + ", connect=" + connectTimeout +
+      "ms, timeout=" + timeout + "ms, hedge=" + hedge + "]";
+  }
+}
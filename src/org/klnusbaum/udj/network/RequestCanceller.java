@@ -0,0 +1,73 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import java.io.InterruptedIOException;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Lets one thread abort the requests another thread is making. A loader
+ * hands one of these to ServerConnection before it starts its requests, and
+ * cancelling it aborts whichever request is currently in flight, as well as
+ * any that would have been made after.
+ */
+public class RequestCanceller{
+
+  private volatile boolean canceled = false;
+  private HttpUriRequest current;
+
+  /**
+   * Records the request that's about to be executed. Throws if we've
+   * already been cancelled, so the request is never sent.
+   */
+  public synchronized void attach(HttpUriRequest request) throws InterruptedIOException{
+    throwIfCanceled();
+    current = request;
+  }
+
+  /**
+   * Throws if we've been cancelled. Called while parsing a response so a
+   * body nobody wants anymore isn't turned into objects.
+   */
+  public void throwIfCanceled() throws InterruptedIOException{
+    if(canceled){
+      throw new InterruptedIOException("Request canceled");
+    }
+  }
+
+  public void cancel(){
+    HttpUriRequest toAbort;
+    synchronized(this){
+      if(canceled){
+        return;
+      }
+      canceled = true;
+      toAbort = current;
+      current = null;
+    }
+    if(toAbort != null){
+      toAbort.abort();
+    }
+  }
+
+  public boolean isCanceled(){
+    return canceled;
+  }
+}
@@ -0,0 +1,533 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Where the time goes for each of the server's endpoints. Every request made
+ * through ServerConnection is broken down into the time spent resolving the
+ * host, connecting, doing the TLS handshake, waiting for the first byte of
+ * the response, downloading the body and parsing it, along with the size of
+ * the body and whatever went wrong. Each of these is kept in a histogram per
+ * endpoint, where an endpoint is the request's method and path with ids
+ * replaced by "*".
+ *
+ * Requests are tracked per thread, which works because httpclient opens
+ * connections and we read and parse responses on the thread that made the
+ * request. A hedged request's second attempt runs on a thread of its own, so
+ * HedgedRequest hands that attempt over to the caller's thread with detach
+ * and attach if it wins.
+ */
+public class RequestMetrics{
+  private static final String TAG = "RequestMetrics";
+
+  /**
+   * A histogram with power of two buckets, which is plenty to tell a 20ms
+   * request from a 2s one without keeping every sample around.
+   */
+  public static class Histogram{
+    private static final int BUCKETS = 32;
+
+    private final int[] buckets = new int[BUCKETS];
+    private int count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    public synchronized void record(long value){
+      value = Math.max(0, value);
+      buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))]++;
+      count++;
+      sum += value;
+      max = Math.max(max, value);
+    }
+
+    public synchronized int getCount(){
+      return count;
+    }
+
+    public synchronized long getMean(){
+      return count == 0 ? 0 : sum / count;
+    }
+
+    public synchronized long getMax(){
+      return max;
+    }
+
+    public synchronized long getSum(){
+      return sum;
+    }
+
+    /**
+     * Returns an upper bound on the given percentile (between 0 and 1), which
+     * is at most twice the real value.
+     */
+    public synchronized long getPercentile(double percentile){
+      int needed = (int)Math.ceil(count * percentile);
+      int seen = 0;
+      for(int i = 0; i < BUCKETS; i++){
+        seen += buckets[i];
+        if(seen >= needed && seen > 0){
+          return i == 0 ? 0 : Math.min(max, (1L << i) - 1);
+        }
+      }
+      return max;
+    }
+
+    public synchronized String toString(){
+      return "n=" + count + " mean=" + getMean() + " p50<=" + getPercentile(0.5) +
+        " p90<=" + getPercentile(0.9) + " p99<=" + getPercentile(0.99) + " max=" + max;
+    }
+  }
+
+  public static class EndpointStats{
+    public final String endpoint;
+    public final Histogram dns = new Histogram();
+    public final Histogram connect = new Histogram();
+    public final Histogram tls = new Histogram();
+    public final Histogram firstByte = new Histogram();
+    /** Time from sending a request to its headers arriving, per attempt. */
+    public final Histogram response = new Histogram();
+    /**
+     * Time callers actually waited for a response, which with hedging can be
+     * less than any single attempt took.
+     */
+    public final Histogram observed = new Histogram();
+    public final Histogram download = new Histogram();
+    public final Histogram parse = new Histogram();
+    public final Histogram bodyBytes = new Histogram();
+    /** Bytes actually received for the body, before decompression. */
+    public final Histogram wireBytes = new Histogram();
+    private final Map<String, Integer> errors = new TreeMap<String, Integer>();
+    private int requestCount = 0;
+    private int hedgeCount = 0;
+    private int hedgeWinCount = 0;
+
+    public EndpointStats(String endpoint){
+      this.endpoint = endpoint;
+    }
+
+    public synchronized int getRequestCount(){
+      return requestCount;
+    }
+
+    public synchronized int getHedgeCount(){
+      return hedgeCount;
+    }
+
+    public synchronized int getHedgeWinCount(){
+      return hedgeWinCount;
+    }
+
+    public synchronized Map<String, Integer> getErrors(){
+      return new TreeMap<String, Integer>(errors);
+    }
+
+    synchronized void recordRequest(){
+      requestCount++;
+    }
+
+    synchronized void recordHedge(boolean won){
+      if(won){
+        hedgeWinCount++;
+      }
+      else{
+        hedgeCount++;
+      }
+    }
+
+    synchronized void recordError(String errorClass){
+      Integer count = errors.get(errorClass);
+      errors.put(errorClass, count == null ? 1 : count + 1);
+    }
+
+    public String toString(){
+      return endpoint + " requests=" + getRequestCount() + " errors=" + getErrors() +
+        " hedges=" + getHedgeCount() + " hedge wins=" + getHedgeWinCount() +
+        "\n  dns ms:        " + dns +
+        "\n  connect ms:    " + connect +
+        "\n  tls ms:        " + tls +
+        "\n  first byte ms: " + firstByte +
+        "\n  response ms:   " + response +
+        "\n  observed ms:   " + observed +
+        "\n  download ms:   " + download +
+        "\n  parse ms:      " + parse +
+        "\n  body bytes:    " + bodyBytes +
+        "\n  wire bytes:    " + wireBytes +
+        "\n  compression:   " + getCompressionRatio();
+    }
+
+    /** Decompressed body bytes per byte received, 1 if nothing was compressed. */
+    public float getCompressionRatio(){
+      long wire = wireBytes.getSum();
+      return wire == 0 ? 1 : (float)bodyBytes.getSum() / wire;
+    }
+  }
+
+  /** A single attempt at a request as it makes its way through ServerConnection. */
+  static class Sample{
+    public final EndpointStats stats;
+    public final long start = System.nanoTime();
+    public long connectNanos = 0;
+    public long responseAt = 0;
+    public boolean compressed = false;
+    public long wireBytes = 0;
+
+    public Sample(EndpointStats stats){
+      this.stats = stats;
+    }
+  }
+
+  /**
+   * Counts the compressed bytes of a response body as they're read, before
+   * they're handed to the decompressor.
+   */
+  private static class CompressedInputStream extends FilterInputStream{
+    private final Sample sample;
+
+    public CompressedInputStream(InputStream in, Sample sample){
+      super(in);
+      this.sample = sample;
+      sample.compressed = true;
+    }
+
+    @Override
+    public int read() throws IOException{
+      int read = super.read();
+      if(read >= 0){
+        sample.wireBytes++;
+      }
+      return read;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException{
+      int read = super.read(buffer, offset, count);
+      if(read > 0){
+        sample.wireBytes += read;
+      }
+      return read;
+    }
+  }
+
+  /**
+   * Counts the bytes of a streamed response body and the time spent blocked
+   * reading them. Since the body is parsed as it's read, everything else
+   * between getting the response and closing the stream is parse time.
+   */
+  public static class MeteredInputStream extends FilterInputStream{
+    private final Sample sample;
+    private long bytes = 0;
+    private long readNanos = 0;
+    private boolean finished = false;
+
+    public MeteredInputStream(InputStream in){
+      super(in);
+      this.sample = current.get();
+    }
+
+    @Override
+    public int read() throws IOException{
+      long start = System.nanoTime();
+      int read = super.read();
+      readNanos += System.nanoTime() - start;
+      if(read >= 0){
+        bytes++;
+      }
+      return read;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException{
+      long start = System.nanoTime();
+      int read = super.read(buffer, offset, count);
+      readNanos += System.nanoTime() - start;
+      if(read > 0){
+        bytes += read;
+      }
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException{
+      try{
+        super.close();
+      }
+      finally{
+        if(!finished && sample != null){
+          finished = true;
+          recordBody(sample, bytes, readNanos);
+          long sinceResponse = System.nanoTime() - sample.responseAt;
+          sample.stats.parse.record(toMillis(sinceResponse - readNanos));
+          if(current.get() == sample){
+            current.remove();
+          }
+        }
+      }
+    }
+  }
+
+  /** Name of the file in the app's files directory the report is dumped to. */
+  public static final String DUMP_FILE = "request_metrics.txt";
+
+  private static final ThreadLocal<Sample> current = new ThreadLocal<Sample>();
+  private static final Map<String, EndpointStats> endpoints =
+    new TreeMap<String, EndpointStats>();
+
+  private RequestMetrics(){}
+
+  /** Starts tracking a request the calling thread is about to make. */
+  public static void begin(String method, URI uri){
+    final EndpointStats stats = getOrCreateStats(method, uri);
+    stats.recordRequest();
+    current.set(new Sample(stats));
+  }
+
+  /**
+   * Records that the current request had to open a new connection, and how
+   * long each step of doing so took.
+   */
+  public static void connected(long dnsNanos, long connectNanos, long tlsNanos){
+    final Sample sample = current.get();
+    if(sample == null){
+      return;
+    }
+    sample.connectNanos += dnsNanos + connectNanos + tlsNanos;
+    sample.stats.dns.record(toMillis(dnsNanos));
+    sample.stats.connect.record(toMillis(connectNanos));
+    sample.stats.tls.record(toMillis(tlsNanos));
+  }
+
+  /** Records that the response's headers have arrived. */
+  public static void responseReceived(int statusCode){
+    final Sample sample = current.get();
+    if(sample == null){
+      return;
+    }
+    sample.responseAt = System.nanoTime();
+    sample.stats.response.record(toMillis(sample.responseAt - sample.start));
+    sample.stats.firstByte.record(
+      toMillis(sample.responseAt - sample.start - sample.connectNanos));
+    if(statusCode >= 400){
+      sample.stats.recordError("HTTP " + statusCode);
+    }
+  }
+
+  /** Records that the current request failed outright. */
+  public static void failed(Exception e){
+    final Sample sample = current.get();
+    if(sample != null){
+      sample.stats.recordError(e.getClass().getSimpleName());
+      current.remove();
+    }
+  }
+
+  /**
+   * Records that the current request was given up on by us rather than
+   * failing, like the losing attempt of a hedged request, so it isn't
+   * counted as an error.
+   */
+  static void abandoned(){
+    current.remove();
+  }
+
+  /**
+   * Stops tracking the current request on the calling thread and returns
+   * it, or null if there isn't one, so it can be picked up on another thread
+   * with attach.
+   */
+  static Sample detach(){
+    final Sample sample = current.get();
+    current.remove();
+    return sample;
+  }
+
+  /**
+   * Makes the given request the calling thread's current one, so whatever is
+   * recorded about its body from here on goes to it.
+   */
+  static void attach(Sample sample){
+    if(sample == null){
+      current.remove();
+    }
+    else{
+      current.set(sample);
+    }
+  }
+
+  /** Records that the current request's body has been read in full. */
+  public static void bodyRead(long bytes, long downloadNanos){
+    final Sample sample = current.get();
+    if(sample != null){
+      recordBody(sample, bytes, downloadNanos);
+    }
+  }
+
+  /**
+   * Wraps the compressed content of the current request's body so the
+   * bytes actually received are counted as well as the decompressed ones.
+   */
+  public static InputStream meterCompressed(InputStream compressed){
+    final Sample sample = current.get();
+    return sample == null ? compressed : new CompressedInputStream(compressed, sample);
+  }
+
+  /** Records how long it took to parse the current request's body. */
+  public static void parsed(long parseNanos){
+    final Sample sample = current.get();
+    if(sample != null){
+      sample.stats.parse.record(toMillis(parseNanos));
+      current.remove();
+    }
+  }
+
+  /**
+   * Records how long the caller of a request waited for its response, all
+   * attempts included.
+   */
+  public static void observed(String method, URI uri, long nanos){
+    getOrCreateStats(method, uri).observed.record(toMillis(nanos));
+  }
+
+  /** Records that a request was hedged, or that its hedge won. */
+  public static void hedged(String method, URI uri, boolean won){
+    getOrCreateStats(method, uri).recordHedge(won);
+  }
+
+  public static EndpointStats getStats(String endpoint){
+    synchronized(endpoints){
+      return endpoints.get(endpoint);
+    }
+  }
+
+  public static void reset(){
+    synchronized(endpoints){
+      endpoints.clear();
+    }
+  }
+
+  public static String getReport(){
+    final StringBuilder report = new StringBuilder();
+    synchronized(endpoints){
+      for(EndpointStats stats: endpoints.values()){
+        report.append(stats).append('\n');
+      }
+    }
+    final ConnectionPool pool = ServerConnection.getConnectionPool();
+    if(pool != null){
+      report.append(pool).append('\n');
+    }
+    report.append(CircuitBreaker.getReport());
+    return report.toString();
+  }
+
+  /**
+   * Whether the report should be dumped to DUMP_FILE as the user leaves the
+   * player, turned on with "adb shell setprop log.tag.RequestMetrics DEBUG".
+   */
+  public static boolean isDumpEnabled(){
+    return Log.isLoggable(TAG, Log.DEBUG);
+  }
+
+  /**
+   * Writes the current report to the given file, replacing whatever was
+   * there, so it can be pulled off of a device for a closer look.
+   */
+  public static void dump(File file){
+    FileWriter writer = null;
+    try{
+      writer = new FileWriter(file);
+      writer.write(getReport());
+    }
+    catch(IOException e){
+      Log.e(TAG, "Couldn't dump request metrics to " + file, e);
+    }
+    finally{
+      if(writer != null){
+        try{
+          writer.close();
+        }
+        catch(IOException e){
+          Log.e(TAG, "Couldn't close request metrics dump", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Turns a uri into the name of its endpoint by dropping the API prefix
+   * and replacing player ids, library ids, coordinates and artist names
+   * with "*".
+   */
+  static String getEndpoint(URI uri){
+    final String[] segments = uri.getPath().split("/");
+    final StringBuilder endpoint = new StringBuilder();
+    String previous = "";
+    for(int i = 3; i < segments.length; i++){
+      String segment = segments[i];
+      if(isId(segment) || previous.equals("songs") || previous.equals("artists")){
+        segment = "*";
+      }
+      endpoint.append('/').append(segment);
+      previous = segments[i];
+    }
+    return endpoint.length() == 0 ? uri.getPath() : endpoint.toString();
+  }
+
+  private static boolean isId(String segment){
+    for(int i = 0; i < segment.length(); i++){
+      char c = segment.charAt(i);
+      if(Character.isDigit(c) || c == '.' || c == '-'){
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static EndpointStats getOrCreateStats(String method, URI uri){
+    final String endpoint = method + " " + getEndpoint(uri);
+    synchronized(endpoints){
+      EndpointStats stats = endpoints.get(endpoint);
+      if(stats == null){
+        stats = new EndpointStats(endpoint);
+        endpoints.put(endpoint, stats);
+      }
+      return stats;
+    }
+  }
+
+  private static void recordBody(Sample sample, long bytes, long downloadNanos){
+    sample.stats.bodyBytes.record(bytes);
+    sample.stats.wireBytes.record(sample.compressed ? sample.wireBytes : bytes);
+    sample.stats.download.record(toMillis(downloadNanos));
+  }
+
+  private static long toMillis(long nanos){
+    return nanos / 1000000;
+  }
+}
@@ -0,0 +1,592 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj.network;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * A small on-disk cache for GET responses. Each entry remembers the ETag and
+ * Last-Modified headers it was served with so it can be revalidated with a
+ * conditional GET, which saves downloading a body we already have. The
+ * cache is bounded by size and evicts the least recently used entries
+ * first.
+ *
+ * Entries are never served without asking the server first, except when the
+ * server is too busy to ask. How long a result can be reused without going
+ * to the server at all is up to PlayerSession, which keeps the parsed
+ * result in memory; having a second freshness lifetime here would just let
+ * the two add up.
+ *
+ * Bodies are never held in memory. A response is copied into the cache as
+ * it's read by the parser, see cacheWhileReading, and cached bodies are
+ * streamed straight back off of the disk.
+ */
+public class ResponseCache{
+  private static final String TAG = "ResponseCache";
+
+  /** Bumped whenever the on-disk entry format changes. */
+  private static final int ENTRY_VERSION = 2;
+
+  private static final String ETAG_HEADER = "ETag";
+  private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+  private static final String LAST_MODIFIED_HEADER = "Last-Modified";
+  private static final String IF_MODIFIED_SINCE_HEADER = "If-Modified-Since";
+  private static final String CACHE_CONTROL_HEADER = "Cache-Control";
+
+  /** Suffix of entries that are still being written. */
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /** Requests whose responses are worth keeping. */
+  private static final Pattern[] CACHEABLE_PATTERNS = new Pattern[]{
+    Pattern.compile(".*/available_music/artists"),
+    Pattern.compile(".*/available_music/artists/.*"),
+    Pattern.compile(".*/available_music"),
+    Pattern.compile(".*/recently_played")
+  };
+
+  public static class Entry{
+    public final String eTag;
+    public final String lastModified;
+    public final String charset;
+
+    public Entry(String eTag, String lastModified, String charset){
+      this.eTag = eTag;
+      this.lastModified = lastModified;
+      this.charset = charset;
+    }
+
+    public boolean canRevalidate(){
+      return eTag != null || lastModified != null;
+    }
+  }
+
+  private final File directory;
+  private final long maxSize;
+  private long size;
+
+  private int hitCount = 0;
+  private int missCount = 0;
+  private int revalidateCount = 0;
+  private int staleCount = 0;
+
+  public ResponseCache(File directory, long maxSize){
+    this.directory = directory;
+    this.maxSize = maxSize;
+    directory.mkdirs();
+    this.size = 0;
+    File[] files = directory.listFiles();
+    if(files != null){
+      for(File f: files){
+        if(isTempFile(f)){
+          // Left over from a write that never finished.
+          f.delete();
+        }
+        else{
+          size += f.length();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns what we know about the cached response for the given uri, or
+   * null if there isn't one. The body can then be read with openBody.
+   */
+  public synchronized Entry get(URI uri){
+    File entryFile = getFile(uri);
+    if(!entryFile.exists()){
+      return null;
+    }
+    DataInputStream in = null;
+    try{
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(entryFile)));
+      Entry entry = readHeader(in, uri);
+      if(entry == null){
+        remove(entryFile);
+        return null;
+      }
+      entryFile.setLastModified(System.currentTimeMillis());
+      return entry;
+    }
+    catch(IOException e){
+      Log.e(TAG, "Couldn't read cache entry for " + uri);
+      remove(entryFile);
+      return null;
+    }
+    finally{
+      closeQuietly(in);
+    }
+  }
+
+  /**
+   * Adds the headers that let the server answer a request for the given uri
+   * with a 304 if our copy of it is still good. Returns what we know about
+   * that copy, or null if we don't have one.
+   */
+  public Entry addValidators(URI uri, Collection<Header> headers){
+    final Entry cached = get(uri);
+    if(cached != null){
+      if(cached.eTag != null){
+        headers.add(new BasicHeader(IF_NONE_MATCH_HEADER, cached.eTag));
+      }
+      if(cached.lastModified != null){
+        headers.add(new BasicHeader(IF_MODIFIED_SINCE_HEADER, cached.lastModified));
+      }
+    }
+    return cached;
+  }
+
+  /**
+   * Whether the response is the server saying the given cached copy, as
+   * returned by addValidators, is still good.
+   */
+  public boolean isNotModified(Entry cached, HttpResponse resp){
+    return cached != null && cached.canRevalidate()
+      && resp.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED;
+  }
+
+  /**
+   * Opens the cached body for the given uri after the server confirmed it
+   * with a 304, or returns null if it's been evicted since we asked. The
+   * caller has to close the stream.
+   */
+  public InputStream openRevalidated(URI uri){
+    final InputStream body = openBody(uri);
+    if(body != null){
+      recordRevalidated();
+    }
+    return body;
+  }
+
+  /**
+   * Returns the body of a full response for the given uri, copied into the
+   * cache as it's read unless the server said not to store it. Counts as a
+   * miss.
+   *
+   * @param content The response's body, as it should be read.
+   * @param canceller The canceller for the request, may be null.
+   */
+  public InputStream storeWhileReading(
+    URI uri, HttpResponse resp, InputStream content, RequestCanceller canceller)
+  {
+    recordMiss();
+    if(isNoStore(resp)){
+      return content;
+    }
+    return cacheWhileReading(
+      uri,
+      new Entry(
+        getHeaderValue(resp, ETAG_HEADER),
+        getHeaderValue(resp, LAST_MODIFIED_HEADER),
+        EntityUtils.getContentCharSet(resp.getEntity())),
+      content,
+      canceller);
+  }
+
+  /**
+   * Opens the cached body for the given uri, or returns null if it's gone.
+   * Every body handed out this way counts as a hit. The caller has to close
+   * the stream.
+   */
+  public synchronized InputStream openBody(URI uri){
+    File entryFile = getFile(uri);
+    DataInputStream in = null;
+    try{
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(entryFile)));
+      if(readHeader(in, uri) == null){
+        closeQuietly(in);
+        return null;
+      }
+      hitCount++;
+      return in;
+    }
+    catch(IOException e){
+      Log.e(TAG, "Couldn't read cache entry for " + uri);
+      closeQuietly(in);
+      return null;
+    }
+  }
+
+  /**
+   * Returns a stream that reads through to the given body and copies it
+   * into the cache as it goes. The copy is only kept once all of the body
+   * has been read. When the stream is closed before then, whatever is left
+   * is read through unless the request has been cancelled, in which case
+   * the copy is thrown away, as it is if reading fails.
+   *
+   * @param canceller The canceller for the request, may be null.
+   */
+  public InputStream cacheWhileReading(
+    URI uri, Entry entry, InputStream body, RequestCanceller canceller)
+  {
+    File tempFile = null;
+    DataOutputStream out = null;
+    try{
+      tempFile = File.createTempFile(hashKey(uri.toString()), TEMP_SUFFIX, directory);
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      writeHeader(out, uri, entry);
+    }
+    catch(IOException e){
+      Log.e(TAG, "Couldn't start cache entry for " + uri);
+      closeQuietly(out);
+      if(tempFile != null){
+        tempFile.delete();
+      }
+      return body;
+    }
+    return new CachingInputStream(body, uri, tempFile, out, canceller);
+  }
+
+  /** Records that a cached entry was confirmed by the server with a 304. */
+  public synchronized void recordRevalidated(){
+    revalidateCount++;
+  }
+
+  /** Records that a cached entry was served without the server confirming it. */
+  public synchronized void recordStale(){
+    staleCount++;
+  }
+
+  /** Records a request that had to be served in full by the server. */
+  public synchronized void recordMiss(){
+    missCount++;
+  }
+
+  /**
+   * Whether responses for the given uri should be stored at all.
+   */
+  public boolean isCacheable(URI uri){
+    String path = uri.getPath();
+    for(Pattern pattern: CACHEABLE_PATTERNS){
+      if(pattern.matcher(path).matches()){
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public synchronized void clear(){
+    File[] files = directory.listFiles();
+    if(files != null){
+      for(File f: files){
+        f.delete();
+      }
+    }
+    size = 0;
+  }
+
+  /**
+   * How many times a stored body was served, whether the server confirmed
+   * it or was too busy to ask.
+   */
+  public synchronized int getHitCount(){
+    return hitCount;
+  }
+
+  public synchronized int getMissCount(){
+    return missCount;
+  }
+
+  public synchronized int getRevalidateCount(){
+    return revalidateCount;
+  }
+
+  public synchronized int getStaleCount(){
+    return staleCount;
+  }
+
+  public synchronized long getSize(){
+    return size;
+  }
+
+  public synchronized String toString(){
+    return "ResponseCache[hits=" + hitCount + ", misses=" + missCount +
+      ", revalidated=" + revalidateCount +
+      ", stale=" + staleCount + ", size=" + size + "/" + maxSize + "]";
+  }
+
+  private static boolean isNoStore(HttpResponse resp){
+    final String cacheControl = getHeaderValue(resp, CACHE_CONTROL_HEADER);
+    return cacheControl != null && cacheControl.contains("no-store");
+  }
+
+  private static String getHeaderValue(HttpResponse resp, String headerName){
+    final Header header = resp.getFirstHeader(headerName);
+    return header != null ? header.getValue() : null;
+  }
+
+  /** Moves a finished entry into place. */
+  private synchronized void commit(URI uri, File tempFile){
+    File entryFile = getFile(uri);
+    long oldLength = entryFile.length();
+    if(entryFile.exists() && !entryFile.delete()){
+      tempFile.delete();
+      return;
+    }
+    size -= oldLength;
+    if(!tempFile.renameTo(entryFile)){
+      Log.e(TAG, "Couldn't store cache entry for " + uri);
+      tempFile.delete();
+      return;
+    }
+    size += entryFile.length();
+    trimToSize();
+  }
+
+  /**
+   * Copies everything read through it into a temporary file, which becomes
+   * the cache entry for the uri once the end of the body is reached.
+   */
+  private class CachingInputStream extends FilterInputStream{
+    private final URI uri;
+    private final File tempFile;
+    private final RequestCanceller canceller;
+    private final byte[] single = new byte[1];
+    private DataOutputStream out;
+    private boolean complete = false;
+
+    public CachingInputStream(
+      InputStream in, URI uri, File tempFile, DataOutputStream out,
+      RequestCanceller canceller)
+    {
+      super(in);
+      this.uri = uri;
+      this.tempFile = tempFile;
+      this.out = out;
+      this.canceller = canceller;
+    }
+
+    @Override
+    public int read() throws IOException{
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException{
+      int read;
+      try{
+        read = in.read(buffer, offset, count);
+      }
+      catch(IOException e){
+        abort();
+        throw e;
+      }
+      if(read == -1){
+        complete = true;
+      }
+      else if(out != null){
+        try{
+          out.write(buffer, offset, read);
+        }
+        catch(IOException e){
+          Log.e(TAG, "Couldn't write cache entry for " + uri);
+          abort();
+        }
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException{
+      // Skipped bytes wouldn't make it into the copy.
+      byte[] skipped = new byte[(int)Math.min(count, 4096)];
+      int read = read(skipped, 0, skipped.length);
+      return read == -1 ? 0 : read;
+    }
+
+    @Override
+    public boolean markSupported(){
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException{
+      try{
+        if(out != null && !complete && (canceller == null || !canceller.isCanceled())){
+          byte[] rest = new byte[4096];
+          while(out != null && read(rest, 0, rest.length) != -1){
+            // Just copying the rest into the cache.
+          }
+        }
+      }
+      catch(IOException e){
+        // Already thrown away by read.
+      }
+      finally{
+        finish();
+        super.close();
+      }
+    }
+
+    private void finish(){
+      if(out == null){
+        return;
+      }
+      try{
+        out.close();
+        out = null;
+      }
+      catch(IOException e){
+        Log.e(TAG, "Couldn't write cache entry for " + uri);
+        abort();
+        return;
+      }
+      if(complete){
+        commit(uri, tempFile);
+      }
+      else{
+        tempFile.delete();
+      }
+    }
+
+    private void abort(){
+      closeQuietly(out);
+      out = null;
+      tempFile.delete();
+    }
+  }
+
+  private void trimToSize(){
+    if(size <= maxSize){
+      return;
+    }
+    File[] files = directory.listFiles();
+    if(files == null){
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>(){
+      public int compare(File a, File b){
+        long diff = a.lastModified() - b.lastModified();
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    });
+    for(int i=0; i<files.length && size > maxSize; ++i){
+      if(!isTempFile(files[i])){
+        remove(files[i]);
+      }
+    }
+  }
+
+  private void remove(File entryFile){
+    long length = entryFile.length();
+    if(entryFile.delete()){
+      size -= length;
+    }
+  }
+
+  private File getFile(URI uri){
+    return new File(directory, hashKey(uri.toString()));
+  }
+
+  private static boolean isTempFile(File f){
+    return f.getName().endsWith(TEMP_SUFFIX);
+  }
+
+  private static void writeHeader(DataOutputStream out, URI uri, Entry entry)
+    throws IOException
+  {
+    out.writeInt(ENTRY_VERSION);
+    out.writeUTF(uri.toString());
+    writeOptionalString(out, entry.eTag);
+    writeOptionalString(out, entry.lastModified);
+    writeOptionalString(out, entry.charset);
+  }
+
+  /**
+   * Reads the header of an entry, leaving the stream at the start of the
+   * body. Returns null if the entry is in an old format or belongs to a
+   * different uri.
+   */
+  private static Entry readHeader(DataInputStream in, URI uri) throws IOException{
+    if(in.readInt() != ENTRY_VERSION || !in.readUTF().equals(uri.toString())){
+      return null;
+    }
+    String eTag = readOptionalString(in);
+    String lastModified = readOptionalString(in);
+    String charset = readOptionalString(in);
+    return new Entry(eTag, lastModified, charset);
+  }
+
+  private static String hashKey(String key){
+    try{
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      byte[] hash = digest.digest(key.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder(hash.length * 2);
+      for(byte b: hash){
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+        hex.append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    }
+    catch(NoSuchAlgorithmException e){
+      return String.valueOf(key.hashCode());
+    }
+    catch(IOException e){
+      return String.valueOf(key.hashCode());
+    }
+  }
+
+  private static void writeOptionalString(DataOutputStream out, String value)
+    throws IOException
+  {
+    out.writeBoolean(value != null);
+    if(value != null){
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readOptionalString(DataInputStream in) throws IOException{
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void closeQuietly(Closeable toClose){
+    if(toClose != null){
+      try{
+        toClose.close();
+      }
+      catch(IOException e){
+      }
+    }
+  }
+}
@@ -20,12 +20,19 @@ package org.klnusbaum.udj.network;
 
 import android.util.Log;
 import android.location.Location;
+import android.content.Context;
 
 import java.util.List;
 import java.util.Set;
 import java.util.HashSet;
 import java.io.IOException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.BufferedReader;
 import java.util.ArrayList;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 
@@ -37,7 +44,7 @@ import org.apache.http.Header;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -48,24 +55,28 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.NameValuePair;
 import org.apache.http.ParseException;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.util.EntityUtils;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
 
 import org.klnusbaum.udj.Constants;
+import org.klnusbaum.udj.containers.ActivePlaylist;
 import org.klnusbaum.udj.containers.LibraryEntry;
 import org.klnusbaum.udj.containers.Player;
+import org.klnusbaum.udj.exceptions.CircuitOpenException;
 import org.klnusbaum.udj.exceptions.KickedException;
+import org.klnusbaum.udj.exceptions.RequestRejectedException;
 import org.klnusbaum.udj.exceptions.PlayerFullException;
 import org.klnusbaum.udj.exceptions.NoLongerInPlayerException;
 import org.klnusbaum.udj.exceptions.PlayerInactiveException;
@@ -115,28 +126,245 @@ public class ServerConnection{
   private static final String PLAYER_PASSWORD_HEADER = "X-Udj-Player-Password";
 
 
+  private static final long RESPONSE_CACHE_SIZE = 2 * 1024 * 1024; // bytes
+
+  /**
+   * Everything we talk to is on a single host, so this bounds both how many
+   * requests we can have going at once and how many connections we pool.
+   */
+  private static final int MAX_CONNECTIONS_PER_ROUTE = 6;
+
+  /**
+   * How long a request waits for a free connection when all of them are in
+   * use. Connect and read timeouts are set per request by RequestBudget; the
+   * client wide ones are just a fallback.
+   */
+  private static final long CONNECTION_POOL_TIMEOUT = 10 * 1000; // ms
+
+
   //private static final int REGISTRATION_TIMEOUT = 30 * 1000; // ms
 
 
   private static DefaultHttpClient httpClient;
+  private static ConnectionPool connectionPool;
+  private static ResponseCache responseCache;
+
+  /**
+   * The canceller for whatever the current thread is loading, if anything.
+   * See setRequestCanceller.
+   */
+  private static final ThreadLocal<RequestCanceller> requestCanceller =
+    new ThreadLocal<RequestCanceller>();
+
+  /**
+   * Sets up the on-disk response cache used for the library and recently
+   * played endpoints. Safe to call more than once.
+   */
+  public static synchronized void installResponseCache(Context context){
+    if(responseCache == null){
+      responseCache = new ResponseCache(
+        new File(context.getCacheDir(), "http"), RESPONSE_CACHE_SIZE);
+    }
+  }
 
-  public static DefaultHttpClient getHttpClient() throws IOException{
+  public static synchronized ResponseCache getResponseCache(){
+    return responseCache;
+  }
+
+  /**
+   * Whether the canceller set for the calling thread, if any, has been
+   * cancelled.
+   */
+  public static boolean isRequestCanceled(){
+    final RequestCanceller canceller = requestCanceller.get();
+    return canceller != null && canceller.isCanceled();
+  }
+
+  /**
+   * Makes every get performed on the calling thread abortable through the
+   * given canceller until it's cleared by passing null.
+   */
+  public static void setRequestCanceller(RequestCanceller canceller){
+    if(canceller == null){
+      requestCanceller.remove();
+    }
+    else{
+      requestCanceller.set(canceller);
+    }
+  }
+
+  public static synchronized DefaultHttpClient getHttpClient() throws IOException{
     if(httpClient == null){
-      SchemeRegistry schemeReg = new SchemeRegistry();
-      schemeReg.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), SERVER_PORT));
       BasicHttpParams params = new BasicHttpParams();
-      ConnManagerParams.setMaxTotalConnections(params, 100);
+      ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS_PER_ROUTE);
+      ConnManagerParams.setMaxConnectionsPerRoute(
+        params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+      // Mobile networks love to silently drop idle connections, so check a
+      // pooled connection is still usable before sending a request down it.
+      HttpConnectionParams.setStaleCheckingEnabled(params, true);
+      HttpConnectionParams.setConnectionTimeout(params, RequestBudget.DEFAULT.connectTimeout);
+      HttpConnectionParams.setSoTimeout(params, RequestBudget.DEFAULT.timeout);
+      ConnManagerParams.setTimeout(params, CONNECTION_POOL_TIMEOUT);
       HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
       HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
       HttpProtocolParams.setUseExpectContinue(params, true);
 
-      ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(
-        params, schemeReg);
-      httpClient = new DefaultHttpClient(cm, params);
+      SchemeRegistry schemeReg = new SchemeRegistry();
+      connectionPool = new ConnectionPool(params, schemeReg);
+      schemeReg.register(new Scheme("https",
+        connectionPool.countingSocketFactory(SSLSocketFactory.getSocketFactory()),
+        SERVER_PORT));
+      httpClient = new DefaultHttpClient(connectionPool, params);
+      httpClient.setKeepAliveStrategy(new ConnectionPool.KeepAliveStrategy());
+      httpClient.addRequestInterceptor(new ContentEncoding.RequestInterceptor());
+      httpClient.addResponseInterceptor(new ContentEncoding.ResponseInterceptor());
     }
     return httpClient;
   }
 
+  /**
+   * The pool behind the http client, or null if no request has been made
+   * yet.
+   */
+  public static synchronized ConnectionPool getConnectionPool(){
+    return connectionPool;
+  }
+
+  /**
+   * Whether whole request and response bodies should be logged. Logging big
+   * bodies is expensive, so this is off unless turned on with
+   * "adb shell setprop log.tag.ServerConnection VERBOSE".
+   */
+  private static boolean logBodies(){
+    return Log.isLoggable(TAG, Log.VERBOSE);
+  }
+
+  /**
+   * Executes the request within the budget for its endpoint, hedging it if
+   * the budget allows, and records it with RequestMetrics. Throws a
+   * CircuitOpenException without sending anything if the endpoint's
+   * CircuitBreaker is open.
+   */
+  private static HttpResponse execute(HttpUriRequest request) throws IOException{
+    final CircuitBreaker breaker = CircuitBreaker.forRequest(request);
+    breaker.checkAllowed(request);
+    final RequestBudget budget = RequestBudget.forRequest(request);
+    budget.apply(request);
+    final long start = System.nanoTime();
+    final HttpResponse resp;
+    try{
+      if(budget.shouldHedge(request) && request instanceof HttpGet){
+        resp = new HedgedRequest(
+          (HttpGet)request, budget, requestCanceller.get(), ATTEMPT_SENDER).execute();
+      }
+      else{
+        resp = executeAttempt(request, budget);
+      }
+    }
+    catch(IOException e){
+      if(isRequestCanceled()){
+        breaker.onAbandoned();
+      }
+      else{
+        breaker.onFailure();
+      }
+      throw e;
+    }
+    catch(RuntimeException e){
+      breaker.onAbandoned();
+      throw e;
+    }
+    breaker.onResponse(resp);
+    RequestMetrics.observed(request.getMethod(), request.getURI(), System.nanoTime() - start);
+    return resp;
+  }
+
+  /**
+   * Executes a single attempt at the request, aborting it if its response
+   * doesn't arrive within the budget, and records it with RequestMetrics.
+   */
+  static HttpResponse executeAttempt(HttpUriRequest request, RequestBudget budget)
+    throws IOException
+  {
+    RequestMetrics.begin(request.getMethod(), request.getURI());
+    try{
+      final HttpResponse resp = sendAttempt(request, budget);
+      RequestMetrics.responseReceived(resp.getStatusLine().getStatusCode());
+      return resp;
+    }
+    catch(IOException e){
+      RequestMetrics.failed(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Sends a single attempt at the request, aborting it if its response
+   * doesn't arrive within the budget. Recording it is up to the caller.
+   */
+  private static HttpResponse sendAttempt(HttpUriRequest request, RequestBudget budget)
+    throws IOException
+  {
+    final RequestBudget.Deadline deadline = budget.startDeadline(request);
+    try{
+      return getHttpClient().execute(request);
+    }
+    catch(IOException e){
+      if(deadline.hasExpired()){
+        throw new SocketTimeoutException(
+          "No response from " + request.getURI().getPath() + " within " + budget.timeout + "ms");
+      }
+      throw e;
+    }
+    finally{
+      deadline.cancel();
+    }
+  }
+
+  private static final HedgedRequest.Sender ATTEMPT_SENDER = new HedgedRequest.Sender(){
+    public HttpResponse send(HttpUriRequest request, RequestBudget budget)
+      throws IOException
+    {
+      return sendAttempt(request, budget);
+    }
+  };
+
+  /**
+   * Reads the whole body of the response as a String, making sure its
+   * connection goes back to the pool even if reading fails part way through.
+   */
+  private static String readResponse(HttpResponse resp) throws IOException{
+    final HttpEntity entity = resp.getEntity();
+    if(entity == null){
+      RequestMetrics.bodyRead(0, 0);
+      return "";
+    }
+    String charset = EntityUtils.getContentCharSet(entity);
+    if(charset == null){
+      charset = HTTP.DEFAULT_CONTENT_CHARSET;
+    }
+    final byte[] body = readBody(entity);
+    return new String(body, charset);
+  }
+
+  /**
+   * Reads the whole body of the entity, recording how long it took with
+   * RequestMetrics and aborting the connection if reading fails.
+   */
+  private static byte[] readBody(HttpEntity entity) throws IOException{
+    final long start = System.nanoTime();
+    try{
+      final byte[] body = EntityUtils.toByteArray(entity);
+      RequestMetrics.bodyRead(body.length, System.nanoTime() - start);
+      return body;
+    }
+    catch(IOException e){
+      RequestMetrics.failed(e);
+      ConnectionPool.abortQuietly(entity);
+      throw e;
+    }
+  }
+
 
   public static class AuthResult{
     public String ticketHash;
@@ -168,10 +396,12 @@ public class ServerConnection{
     final HttpPost post = new HttpPost(AUTH_URI);
     post.addHeader(entity.getContentType());
     post.setEntity(entity);
-    final HttpResponse resp = getHttpClient().execute(post);
+    final HttpResponse resp = execute(post);
     Log.d(TAG, "Auth Status code was " + resp.getStatusLine().getStatusCode());
-    final String response = EntityUtils.toString(resp.getEntity());
-    Log.d(TAG, "Auth Response was " + response);
+    final String response = readResponse(resp);
+    if(logBodies()){
+      Log.v(TAG, "Auth Response was " + response);
+    }
     if(resp.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_IMPLEMENTED){
       throw new APIVersionException();
     }
@@ -179,7 +409,9 @@ public class ServerConnection{
       throw new AuthenticationException();
     }
     else{
+      final long parseStart = System.nanoTime();
       JSONObject authResponse = new JSONObject(response);
+      RequestMetrics.parsed(System.nanoTime() - parseStart);
       return new AuthResult(
         authResponse.getString("ticket_hash"),
         authResponse.getString("user_id"));
@@ -197,9 +429,12 @@ public class ServerConnection{
     }
     else if(
       resp.getStatusLine().getStatusCode() == HttpStatus.SC_BAD_REQUEST || 
-      resp.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND || 
-      resp.getStatusLine().getStatusCode() >= 500)
+      resp.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND)
     {
+      Log.e(TAG, "Basic Response Error Check got an error code: " + resp.getStatusLine().getStatusCode());
+      throw new RequestRejectedException(response);
+    }
+    else if(resp.getStatusLine().getStatusCode() >= 500){
       //TODO this should just be "General server error"
       Log.e(TAG, "Basic Response Error Check got an error code: " + resp.getStatusLine().getStatusCode());
       throw new IOException(response);
@@ -245,20 +480,35 @@ public class ServerConnection{
 
   public static HttpResponse doGet(URI uri, String ticketHash)
     throws IOException
+  {
+    return doGet(uri, ticketHash, new HashSet<Header>());
+  }
+
+  public static HttpResponse doGet(URI uri, String ticketHash, Set<Header> headers)
+    throws IOException
   {
     Log.d(TAG, "Doing get with uri: " + uri);
     final HttpGet get = new HttpGet(uri);
     get.addHeader(TICKET_HASH_HEADER, ticketHash);
-    return getHttpClient().execute(get);
+    for(Header h: headers){
+      get.addHeader(h);
+    }
+    final RequestCanceller canceller = requestCanceller.get();
+    if(canceller != null){
+      canceller.attach(get);
+    }
+    return execute(get);
   }
 
   public static String doSimpleGet(URI uri, String ticketHash)
     throws AuthenticationException, IOException
   {
     final HttpResponse resp = doGet(uri, ticketHash);
-    final String response = EntityUtils.toString(resp.getEntity());
-    Log.d(TAG, "Simple get response: " + resp.getStatusLine().getStatusCode() +
+    final String response = readResponse(resp);
+    if(logBodies()){
+      Log.v(TAG, "Simple get response: " + resp.getStatusLine().getStatusCode() +
         "\"" + response +"\"");
+    }
     basicResponseErrorCheck(resp, response);
     return response;
   }
@@ -269,7 +519,7 @@ public class ServerConnection{
   {
     final HttpResponse resp = doGet(uri, ticketHash);
     Log.d(TAG, "Doing player related get");
-    final String response = EntityUtils.toString(resp.getEntity());
+    final String response = readResponse(resp);
     playerInactiveErrorCheck(resp);
     noLongerInPlayerErrorCheck(resp);
     kickedFromPlayerCheck(resp);
@@ -277,6 +527,166 @@ public class ServerConnection{
     return response;
   }
 
+  /**
+   * Performs a get and hands back a reader positioned at the start of the
+   * response body rather than buffering the whole body into a String. The
+   * caller is responsible for closing the returned reader.
+   */
+  public static JSONStreamReader doSimpleStreamGet(URI uri, String ticketHash)
+    throws AuthenticationException, IOException
+  {
+    final HttpResponse resp = doGet(uri, ticketHash);
+    if(!isSuccess(resp)){
+      final String response = readResponse(resp);
+      if(logBodies()){
+        Log.v(TAG, "Simple stream get response: " + resp.getStatusLine().getStatusCode() +
+            "\"" + response +"\"");
+      }
+      basicResponseErrorCheck(resp, response);
+      throw unexpectedResponse(resp);
+    }
+    return getStreamReader(resp.getEntity());
+  }
+
+  public static JSONStreamReader doPlayerRelatedStreamGet(URI uri, String ticketHash)
+    throws AuthenticationException, IOException, PlayerInactiveException, NoLongerInPlayerException,
+    KickedException
+  {
+    final HttpResponse resp = doGet(uri, ticketHash);
+    Log.d(TAG, "Doing player related stream get");
+    if(!isSuccess(resp)){
+      final String response = readResponse(resp);
+      playerInactiveErrorCheck(resp);
+      noLongerInPlayerErrorCheck(resp);
+      kickedFromPlayerCheck(resp);
+      basicResponseErrorCheck(resp, response);
+      throw unexpectedResponse(resp);
+    }
+    return getStreamReader(resp.getEntity());
+  }
+
+  /**
+   * Like doPlayerRelatedStreamGet, but goes through the response cache if one
+   * has been installed. Cached entries are revalidated with a conditional
+   * get, and new responses are copied into the cache as they're parsed.
+   */
+  public static JSONStreamReader doCachedPlayerRelatedStreamGet(URI uri, String ticketHash)
+    throws AuthenticationException, IOException, PlayerInactiveException, NoLongerInPlayerException,
+    KickedException
+  {
+    final ResponseCache cache = getResponseCache();
+    if(cache == null || !cache.isCacheable(uri)){
+      return doPlayerRelatedStreamGet(uri, ticketHash);
+    }
+
+    final HashSet<Header> headers = new HashSet<Header>();
+    final ResponseCache.Entry cached = cache.addValidators(uri, headers);
+
+    final HttpResponse resp;
+    try{
+      resp = doGet(uri, ticketHash, headers);
+    }
+    catch(CircuitOpenException e){
+      final InputStream body = cached != null ? cache.openBody(uri) : null;
+      if(body == null){
+        throw e;
+      }
+      // The server needs a break, and an old copy beats no copy.
+      Log.d(TAG, "Serving stale cached response for " + uri + " while the server recovers");
+      cache.recordStale();
+      return getStreamReader(body, cached.charset);
+    }
+    if(cache.isNotModified(cached, resp)){
+      ConnectionPool.consumeQuietly(resp.getEntity());
+      RequestMetrics.bodyRead(0, 0);
+      final InputStream body = cache.openRevalidated(uri);
+      if(body != null){
+        Log.d(TAG, "Response cache revalidated " + uri);
+        return getStreamReader(body, cached.charset);
+      }
+      // Evicted while we were asking, so ask again without the validators.
+      return doCachedPlayerRelatedStreamGet(uri, ticketHash);
+    }
+
+    if(!isSuccess(resp)){
+      final String response = readResponse(resp);
+      playerInactiveErrorCheck(resp);
+      noLongerInPlayerErrorCheck(resp);
+      kickedFromPlayerCheck(resp);
+      basicResponseErrorCheck(resp, response);
+      throw unexpectedResponse(resp);
+    }
+
+    final HttpEntity entity = resp.getEntity();
+    final InputStream content = cache.storeWhileReading(
+      uri, resp, openContent(entity), requestCanceller.get());
+    return getStreamReader(content, EntityUtils.getContentCharSet(entity));
+  }
+
+  private static String getHeaderValue(HttpResponse resp, String headerName){
+    final Header header = resp.getFirstHeader(headerName);
+    return header != null ? header.getValue() : null;
+  }
+
+  private static boolean isSuccess(HttpResponse resp){
+    int statusCode = resp.getStatusLine().getStatusCode();
+    return statusCode >= 200 && statusCode < 300 && resp.getEntity() != null;
+  }
+
+  private static IOException unexpectedResponse(HttpResponse resp){
+    return new IOException("Unexpected response code " + resp.getStatusLine().getStatusCode());
+  }
+
+  private static JSONStreamReader getStreamReader(HttpEntity entity)
+    throws IOException
+  {
+    return getStreamReader(openContent(entity), EntityUtils.getContentCharSet(entity));
+  }
+
+  /**
+   * Opens the body of a response for streaming, recording its size and how
+   * long it took to read with RequestMetrics.
+   */
+  private static InputStream openContent(final HttpEntity entity)
+    throws IOException
+  {
+    final RequestCanceller canceller = requestCanceller.get();
+    try{
+      InputStream content = new RequestMetrics.MeteredInputStream(entity.getContent());
+      if(canceller != null){
+        // Closing a response stream normally reads whatever is left of the
+        // body so the connection can be reused. If the request was cancelled
+        // there's no point downloading the rest, so just drop the connection.
+        content = new FilterInputStream(content){
+          @Override
+          public void close() throws IOException{
+            if(canceller.isCanceled()){
+              ConnectionPool.abortQuietly(entity);
+            }
+            else{
+              super.close();
+            }
+          }
+        };
+      }
+      return content;
+    }
+    catch(IOException e){
+      ConnectionPool.abortQuietly(entity);
+      throw e;
+    }
+  }
+
+  private static JSONStreamReader getStreamReader(InputStream content, String charset)
+    throws IOException
+  {
+    if(charset == null){
+      charset = HTTP.UTF_8;
+    }
+    return new JSONStreamReader(new BufferedReader(
+      new InputStreamReader(content, charset)), requestCanceller.get());
+  }
+
   public static HttpResponse doPut(URI uri, String ticketHash, String payload)
     throws IOException
   {
@@ -287,7 +697,9 @@ public class ServerConnection{
     throws IOException
   {
     Log.d(TAG, "Doing put to uri: " + uri);
-    Log.d(TAG, "Put payload is: "+ (payload != null ? payload : "no payload"));
+    if(logBodies()){
+      Log.v(TAG, "Put payload is: "+ (payload != null ? payload : "no payload"));
+    }
     final HttpPut put = new HttpPut(uri);
     put.addHeader(TICKET_HASH_HEADER, ticketHash);
     for(Header h: headers){
@@ -299,16 +711,18 @@ public class ServerConnection{
       put.addHeader(entity.getContentType());
       put.setEntity(entity);
     }
-    return getHttpClient().execute(put);
+    return execute(put);
   }
 
   public static String doSimplePut(URI uri, String ticketHash, String payload)
     throws AuthenticationException, IOException
   {
     final HttpResponse resp = doPut(uri, ticketHash, payload);
-    final String response = EntityUtils.toString(resp.getEntity());
-    Log.d(TAG, "Simple put response: " + resp.getStatusLine().getStatusCode() +
+    final String response = readResponse(resp);
+    if(logBodies()){
+      Log.v(TAG, "Simple put response: " + resp.getStatusLine().getStatusCode() +
         "\"" + response +"\"");
+    }
     basicResponseErrorCheck(resp, response);
     return response;
   }
@@ -319,8 +733,10 @@ public class ServerConnection{
     NoLongerInPlayerException, KickedException
   {
     final HttpResponse resp = doPut(uri, ticketHash, payload);
-    final String response = EntityUtils.toString(resp.getEntity());
-    Log.d(TAG, "Player related Put response: \"" + response +"\"");
+    final String response = readResponse(resp);
+    if(logBodies()){
+      Log.v(TAG, "Player related Put response: \"" + response +"\"");
+    }
     Log.d(TAG, "Player status code: \"" + resp.getStatusLine().getStatusCode());
     playerInactiveErrorCheck(resp);
     noLongerInPlayerErrorCheck(resp);
@@ -333,7 +749,9 @@ public class ServerConnection{
     throws AuthenticationException, IOException
   {
     Log.d(TAG, "Doing post to uri: " + uri);
-    Log.d(TAG, "Post payload is: "+ (payload != null ? payload : "no payload"));
+    if(logBodies()){
+      Log.v(TAG, "Post payload is: "+ (payload != null ? payload : "no payload"));
+    }
     final HttpPost post = new HttpPost(uri);
     if(payload != null){
       StringEntity entity = new StringEntity(payload);
@@ -343,16 +761,18 @@ public class ServerConnection{
       post.setEntity(entity);
     }
     post.addHeader(TICKET_HASH_HEADER, authToken);
-    return getHttpClient().execute(post);
+    return execute(post);
   }
 
   public static String doSimplePost(URI uri, String authToken, String payload, boolean isJSON)
     throws AuthenticationException, IOException
   {
     final HttpResponse resp = doPost(uri, authToken, payload, isJSON);
-    final String response = EntityUtils.toString(resp.getEntity());
-    Log.d(TAG, "Simple post response: " + resp.getStatusLine().getStatusCode() +
+    final String response = readResponse(resp);
+    if(logBodies()){
+      Log.v(TAG, "Simple post response: " + resp.getStatusLine().getStatusCode() +
         "\"" + response +"\"");
+    }
     basicResponseErrorCheck(resp, response);
     return response;
   }
@@ -363,9 +783,11 @@ public class ServerConnection{
     KickedException
   {
     final HttpResponse resp = doPost(uri, authToken, payload, isJSON);
-    final String response = EntityUtils.toString(resp.getEntity());
-    Log.d(TAG, "Player post response: " + resp.getStatusLine().getStatusCode() +
+    final String response = readResponse(resp);
+    if(logBodies()){
+      Log.v(TAG, "Player post response: " + resp.getStatusLine().getStatusCode() +
         "\"" + response +"\"");
+    }
     playerInactiveErrorCheck(resp);
     kickedFromPlayerCheck(resp);
     basicResponseErrorCheck(resp, response);
@@ -380,16 +802,18 @@ public class ServerConnection{
     Log.d(TAG, "Doing delete to uri: " + uri);
     final HttpDelete delete = new HttpDelete(uri);
     delete.addHeader(TICKET_HASH_HEADER, ticketHash);
-    return getHttpClient().execute(delete);
+    return execute(delete);
   }
 
   public static void doSimpleDelete(URI uri, String ticketHash)
     throws IOException, AuthenticationException
   {
     final HttpResponse resp = doDelete(uri, ticketHash);
-    final String response = EntityUtils.toString(resp.getEntity());
-    Log.d(TAG, "Delete response: " + resp.getStatusLine().getStatusCode() +
+    final String response = readResponse(resp);
+    if(logBodies()){
+      Log.v(TAG, "Delete response: " + resp.getStatusLine().getStatusCode() +
         "\"" + response +"\"");
+    }
     basicResponseErrorCheck(resp, response);
   }
 
@@ -398,9 +822,11 @@ public class ServerConnection{
     KickedException
   {
     final HttpResponse resp = doDelete(uri, ticketHash);
-    final String response = EntityUtils.toString(resp.getEntity());
-    Log.d(TAG, "Player related Delete response: " + resp.getStatusLine().getStatusCode() +
+    final String response = readResponse(resp);
+    if(logBodies()){
+      Log.v(TAG, "Player related Delete response: " + resp.getStatusLine().getStatusCode() +
         "\"" + response +"\"");
+    }
     playerInactiveErrorCheck(resp);
     noLongerInPlayerErrorCheck(resp);
     kickedFromPlayerCheck(resp);
@@ -414,12 +840,20 @@ public class ServerConnection{
   {
     if(location == null) return null;
     try{
+      // Search from the center of the location's cell so small movements
+      // don't turn into brand new requests.
+      final double[] center = NearbyPlayersCache.getCellCenter(location);
       URI playersQuery = new URI(
         NETWORK_PROTOCOL, null, SERVER_HOST, SERVER_PORT, 
-        "/udj/0_6/players/" + location.getLatitude() + "/" + location.getLongitude(),
+        "/udj/0_6/players/" + center[0] + "/" + center[1],
         null, null);
-      JSONArray players = new JSONArray(doSimpleGet(playersQuery, ticketHash));
-      return Player.fromJSONArray(players);
+      final JSONStreamReader reader = doSimpleStreamGet(playersQuery, ticketHash);
+      try{
+        return Player.fromJSONStream(reader);
+      }
+      finally{
+        reader.close();
+      }
     }
     catch(URISyntaxException e){
       return null;
@@ -437,8 +871,13 @@ public class ServerConnection{
         NETWORK_PROTOCOL, null, SERVER_HOST, SERVER_PORT, 
         "/udj/0_6/players",
         PARAM_PLAYER_NAME+"="+query, null);
-      JSONArray players = new JSONArray(doSimpleGet(playersQuery, ticketHash));
-      return Player.fromJSONArray(players);
+      final JSONStreamReader reader = doSimpleStreamGet(playersQuery, ticketHash);
+      try{
+        return Player.fromJSONStream(reader);
+      }
+      finally{
+        reader.close();
+      }
     }
     catch(URISyntaxException e){
       return null;
@@ -474,8 +913,10 @@ public class ServerConnection{
         headers.add(new BasicHeader(PLAYER_PASSWORD_HEADER, password));
         resp = doPut(uri, ticketHash, "", headers);
       }
-      final String response = EntityUtils.toString(resp.getEntity());
-      Log.d(TAG, "Player join Put response: \"" + response +"\"");
+      final String response = readResponse(resp);
+      if(logBodies()){
+        Log.v(TAG, "Player join Put response: \"" + response +"\"");
+      }
       playerInactiveErrorCheck(resp);
       if(
         resp.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED
@@ -505,7 +946,30 @@ public class ServerConnection{
     }
   }
 
-  public static JSONObject getActivePlaylist(String playerId, String authToken)
+  public static class ActivePlaylistResult{
+    /** The playlist sent by the server, or null if it hadn't changed. */
+    public ActivePlaylist activePlaylist;
+    public String eTag;
+
+    public ActivePlaylistResult(ActivePlaylist activePlaylist, String eTag){
+      this.activePlaylist = activePlaylist;
+      this.eTag = eTag;
+    }
+
+    public boolean notModified(){
+      return activePlaylist == null;
+    }
+  }
+
+  /**
+   * Fetches the active playlist, sending along the ETag of the last playlist
+   * we received (if any). When the server says nothing has changed, the
+   * returned result contains no playlist and no body has been downloaded.
+   * Otherwise the playlist is parsed as it's read, working out how the user
+   * with the given id voted along the way.
+   */
+  public static ActivePlaylistResult getActivePlaylist(
+    String playerId, String authToken, String eTag, String myUserId)
     throws JSONException, ParseException, IOException, AuthenticationException,
     PlayerInactiveException, NoLongerInPlayerException, KickedException
   {
@@ -514,7 +978,31 @@ public class ServerConnection{
         NETWORK_PROTOCOL, null, SERVER_HOST, SERVER_PORT, 
         "/udj/0_6/players/"+playerId+"/active_playlist",
         null, null);
-      return new JSONObject(doPlayerRelatedGet(uri, authToken));
+      final HashSet<Header> headers = new HashSet<Header>();
+      ConditionalGet.addIfNoneMatch(eTag, headers);
+      final HttpResponse resp = doGet(uri, authToken, headers);
+      if(ConditionalGet.isNotModified(eTag, resp)){
+        ConnectionPool.consumeQuietly(resp.getEntity());
+        RequestMetrics.bodyRead(0, 0);
+        Log.d(TAG, "Active playlist not modified");
+        return new ActivePlaylistResult(null, eTag);
+      }
+      if(!isSuccess(resp)){
+        final String response = readResponse(resp);
+        playerInactiveErrorCheck(resp);
+        noLongerInPlayerErrorCheck(resp);
+        kickedFromPlayerCheck(resp);
+        basicResponseErrorCheck(resp, response);
+        throw unexpectedResponse(resp);
+      }
+      final String newETag = getHeaderValue(resp, ConditionalGet.ETAG_HEADER);
+      final JSONStreamReader reader = getStreamReader(resp.getEntity());
+      try{
+        return new ActivePlaylistResult(ActivePlaylist.valueOf(reader, myUserId), newETag);
+      }
+      finally{
+        reader.close();
+      }
     }
     catch(URISyntaxException e){
       return null;
@@ -523,8 +1011,13 @@ public class ServerConnection{
   }
 
 
+  /**
+   * Searches the player's library, returning at most maxResults songs. The
+   * server has no notion of an offset, so callers wanting more results ask
+   * again with a larger maxResults.
+   */
   public static List<LibraryEntry> availableMusicQuery(
-    String query, String playerId, String authToken)
+    String query, int maxResults, String playerId, String authToken)
     throws JSONException, ParseException, IOException, AuthenticationException,
     PlayerInactiveException, NoLongerInPlayerException, KickedException
   {
@@ -532,9 +1025,14 @@ public class ServerConnection{
       URI uri = new URI(
         NETWORK_PROTOCOL, null, SERVER_HOST, SERVER_PORT,
         "/udj/0_6/players/"+playerId+"/available_music",
-        "query="+query, null);
-      JSONArray libEntries = new JSONArray(doPlayerRelatedGet(uri, authToken));
-      return LibraryEntry.fromJSONArray(libEntries);
+        "query="+query+"&max_results="+String.valueOf(maxResults), null);
+      final JSONStreamReader reader = doCachedPlayerRelatedStreamGet(uri, authToken);
+      try{
+        return LibraryEntry.fromJSONStream(reader);
+      }
+      finally{
+        reader.close();
+      }
     }
     catch(URISyntaxException e){
       //TODO inform caller that their query is bad 
@@ -551,8 +1049,13 @@ public class ServerConnection{
         NETWORK_PROTOCOL, null, SERVER_HOST, SERVER_PORT,
         "/udj/0_6/players/"+playerId+"/available_music/artists",
         null, null);
-      JSONArray artists = new JSONArray(doPlayerRelatedGet(uri, authToken));
-      return toStringList(artists);
+      final JSONStreamReader reader = doCachedPlayerRelatedStreamGet(uri, authToken);
+      try{
+        return toStringList(reader);
+      }
+      finally{
+        reader.close();
+      }
     }
     catch(URISyntaxException e){
       //TODO inform caller that their query is bad 
@@ -570,8 +1073,13 @@ public class ServerConnection{
         NETWORK_PROTOCOL, null, SERVER_HOST, SERVER_PORT,
         "/udj/0_6/players/"+playerId+"/available_music/artists/"+artistQuery,
         null, null);
-      JSONArray libEntries = new JSONArray(doPlayerRelatedGet(uri, authToken));
-      return LibraryEntry.fromJSONArray(libEntries);
+      final JSONStreamReader reader = doCachedPlayerRelatedStreamGet(uri, authToken);
+      try{
+        return LibraryEntry.fromJSONStream(reader);
+      }
+      finally{
+        reader.close();
+      }
     }
     catch(URISyntaxException e){
       //TODO inform caller that their query is bad 
@@ -589,8 +1097,13 @@ public class ServerConnection{
         NETWORK_PROTOCOL, null, SERVER_HOST, SERVER_PORT,
         "/udj/0_6/players/"+playerId+"/available_music/random_songs",
         "max_randoms="+String.valueOf(max), null);
-      JSONArray libEntries = new JSONArray(doPlayerRelatedGet(uri, authToken));
-      return LibraryEntry.fromJSONArray(libEntries);
+      final JSONStreamReader reader = doPlayerRelatedStreamGet(uri, authToken);
+      try{
+        return LibraryEntry.fromJSONStream(reader);
+      }
+      finally{
+        reader.close();
+      }
     }
     catch(URISyntaxException e){
       //TODO inform caller that their query is bad 
@@ -607,8 +1120,13 @@ public class ServerConnection{
         NETWORK_PROTOCOL, null, SERVER_HOST, SERVER_PORT,
         "/udj/0_6/players/"+playerId+"/recently_played",
         "max_songs="+String.valueOf(max), null);
-      JSONArray recentlyPlayedEntries = new JSONArray(doPlayerRelatedGet(uri, authToken));
-      return LibraryEntry.fromRecentlyPlayedJSONArray(recentlyPlayedEntries);
+      final JSONStreamReader reader = doCachedPlayerRelatedStreamGet(uri, authToken);
+      try{
+        return LibraryEntry.fromRecentlyPlayedJSONStream(reader);
+      }
+      finally{
+        reader.close();
+      }
     }
     catch(URISyntaxException e){
       //TODO inform caller that their query is bad 
@@ -743,13 +1261,15 @@ public class ServerConnection{
     }
   }
 
-  private static List<String> toStringList(final JSONArray array)
-    throws JSONException
+  private static List<String> toStringList(final JSONStreamReader reader)
+    throws JSONException, IOException
   {
-    ArrayList<String> toReturn = new ArrayList();
-    for(int i=0; i<array.length(); ++i){
-      toReturn.add(array.getString(i));
+    ArrayList<String> toReturn = new ArrayList<String>();
+    reader.beginArray();
+    while(reader.hasNext()){
+      toReturn.add(reader.nextString());
     }
+    reader.endArray();
     return toReturn;
   }
 }
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.klnusbaum.udj.containers.LibraryEntry;
+
+/**
+ * Measures how long LibraryIndex takes to answer searches against a 100,000
+ * song synthetic library. Timings are written to the log under this class's
+ * tag, e.g.
+ *
+ *   adb shell am instrument -w -e class org.klnusbaum.udj.LibraryIndexBenchmark \
+ *     org.klnusbaum.udj.tests/android.test.InstrumentationTestRunner
+ *   adb logcat -s LibraryIndexBenchmark
+ */
+@LargeTest
+public class LibraryIndexBenchmark extends AndroidTestCase{
+  private static final String TAG = "LibraryIndexBenchmark";
+
+  private static final int LIBRARY_SIZE = 100000;
+  private static final int BATCH_SIZE = 1000;
+  private static final int WARMUP_RUNS = 5;
+  private static final int TIMED_RUNS = 50;
+  private static final String PLAYER_ID = "benchmark";
+
+  private static final String[] WORDS = new String[]{
+    "love", "night", "heart", "blue", "river", "fire", "dream", "road",
+    "summer", "light", "dance", "home", "rain", "gold", "wild", "sky",
+    "street", "city", "moon", "star", "baby", "time", "soul", "train",
+    "ghost", "ocean", "paper", "glass", "thunder", "shadow", "echo", "silver"
+  };
+
+  private static final String[] QUERIES = new String[]{
+    "l", "lo", "love", "love ni", "blue river", "silver thunder",
+    "artist 12", "album 7", "zzz"
+  };
+
+  private LibraryIndex index;
+
+  @Override
+  protected void setUp() throws Exception{
+    super.setUp();
+    index = new LibraryIndex(getContext(), null, LIBRARY_SIZE);
+    Random random = new Random(42);
+    long start = System.nanoTime();
+    List<LibraryEntry> batch = new ArrayList<LibraryEntry>(BATCH_SIZE);
+    for(int i = 0; i < LIBRARY_SIZE; i++){
+      batch.add(new LibraryEntry(
+        String.valueOf(i),
+        randomWords(random, 1 + random.nextInt(4)),
+        "Artist " + random.nextInt(5000),
+        "Album " + random.nextInt(20000),
+        60 + random.nextInt(400)));
+      if(batch.size() == BATCH_SIZE){
+        index.addEntries(PLAYER_ID, batch);
+        batch.clear();
+      }
+    }
+    Log.i(TAG, "Indexed " + LIBRARY_SIZE + " songs in " +
+      (System.nanoTime() - start) / 1000000 + " ms");
+  }
+
+  @Override
+  protected void tearDown() throws Exception{
+    index.close();
+    super.tearDown();
+  }
+
+  public void testSearchLatency(){
+    for(String query: QUERIES){
+      for(int i = 0; i < WARMUP_RUNS; i++){
+        index.search(PLAYER_ID, query);
+      }
+      long[] times = new long[TIMED_RUNS];
+      int hits = 0;
+      for(int i = 0; i < TIMED_RUNS; i++){
+        long start = System.nanoTime();
+        List<LibraryEntry> results = index.search(PLAYER_ID, query);
+        times[i] = System.nanoTime() - start;
+        assertNotNull(results);
+        hits = results.size();
+      }
+      report("search \"" + query + "\"", hits, times);
+    }
+  }
+
+  public void testArtistLatency(){
+    for(String artist: new String[]{"Artist 12", "Artist 4999"}){
+      for(int i = 0; i < WARMUP_RUNS; i++){
+        index.getByArtist(PLAYER_ID, artist);
+      }
+      long[] times = new long[TIMED_RUNS];
+      int hits = 0;
+      for(int i = 0; i < TIMED_RUNS; i++){
+        long start = System.nanoTime();
+        List<LibraryEntry> results = index.getByArtist(PLAYER_ID, artist);
+        times[i] = System.nanoTime() - start;
+        assertNotNull(results);
+        hits = results.size();
+      }
+      report("artist \"" + artist + "\"", hits, times);
+    }
+  }
+
+  private static String randomWords(Random random, int count){
+    StringBuilder words = new StringBuilder();
+    for(int i = 0; i < count; i++){
+      if(i > 0){
+        words.append(' ');
+      }
+      words.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return words.toString();
+  }
+
+  private static void report(String name, int hits, long[] times){
+    Arrays.sort(times);
+    Log.i(TAG, name + ": " + hits + " hits, median " +
+      times[times.length / 2] / 1000 + " us, p90 " +
+      times[times.length * 9 / 10] / 1000 + " us, max " +
+      times[times.length - 1] / 1000 + " us");
+  }
+}
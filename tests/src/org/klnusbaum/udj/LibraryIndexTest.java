@@ -0,0 +1,108 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+import org.klnusbaum.udj.containers.LibraryEntry;
+
+public class LibraryIndexTest extends AndroidTestCase{
+
+  private LibraryIndex index;
+
+  @Override
+  protected void setUp() throws Exception{
+    super.setUp();
+    index = new LibraryIndex(getContext(), null, 3);
+    index.addEntries("player", Arrays.asList(
+      new LibraryEntry("1", "Hey Jude", "The Beatles", "Past Masters", 431),
+      new LibraryEntry("2", "Let It Be", "The Beatles", "Let It Be", 243),
+      new LibraryEntry("3", "Heroes", "David Bowie", "Heroes", 371)));
+    index.addEntries("other", Arrays.asList(
+      new LibraryEntry("1", "Hey Ya", "Outkast", "Speakerboxxx", 235)));
+  }
+
+  @Override
+  protected void tearDown() throws Exception{
+    index.close();
+    super.tearDown();
+  }
+
+  public void testSearchMatchesWordPrefixes(){
+    assertEquals(Arrays.asList("Heroes", "Hey Jude"), titles(index.search("player", "he")));
+    assertEquals(Arrays.asList("Hey Jude"), titles(index.search("player", "hey beat")));
+    assertEquals(Arrays.asList("Let It Be"), titles(index.search("player", "let it")));
+  }
+
+  public void testSearchMatchesAlbums(){
+    assertEquals(Arrays.asList("Hey Jude"), titles(index.search("player", "masters")));
+  }
+
+  public void testSearchIsPerPlayer(){
+    assertEquals(Arrays.asList("Hey Ya"), titles(index.search("other", "hey")));
+    assertEquals(0, index.search("unknown", "hey").size());
+  }
+
+  public void testQueryIsntFTSSyntax(){
+    assertEquals(Arrays.asList("Hey Jude"), titles(index.search("player", "\"hey\" -jude")));
+    assertNull(index.search("player", "*"));
+  }
+
+  public void testGetByArtist(){
+    assertEquals(Arrays.asList("Hey Jude", "Let It Be"),
+      titles(index.getByArtist("player", "The Beatles")));
+    assertEquals(0, index.getByArtist("player", "Beatles").size());
+  }
+
+  public void testAddingAgainUpdatesEntry(){
+    index.addEntries("player", Arrays.asList(
+      new LibraryEntry("3", "Heroes (Remastered)", "David Bowie", "Heroes", 371)));
+    assertEquals(Arrays.asList("Heroes (Remastered)"), titles(index.search("player", "remastered")));
+    assertEquals(Arrays.asList("Heroes (Remastered)"), titles(index.search("player", "bowie")));
+  }
+
+  public void testEvictsLeastRecentlySeen() throws Exception{
+    // Make sure the new entry is seen strictly later than the others.
+    Thread.sleep(5);
+    index.addEntries("player", Arrays.asList(
+      new LibraryEntry("4", "Hello", "Adele", "25", 295)));
+    List<String> remaining = titles(index.search("player", "he"));
+    assertEquals(3, remaining.size() + titles(index.search("player", "let")).size());
+    assertTrue(remaining.contains("Hello"));
+  }
+
+  public void testRemovePlayer(){
+    index.removePlayer("player");
+    assertEquals(0, index.search("player", "hey").size());
+    assertEquals(Arrays.asList("Hey Ya"), titles(index.search("other", "hey")));
+  }
+
+  private static List<String> titles(List<LibraryEntry> entries){
+    assertNotNull(entries);
+    List<String> titles = new ArrayList<String>(entries.size());
+    for(LibraryEntry entry: entries){
+      titles.add(entry.getTitle());
+    }
+    return titles;
+  }
+}
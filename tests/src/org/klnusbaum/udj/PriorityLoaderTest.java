@@ -0,0 +1,182 @@
+/**
+ * Copyright 2011 Kurtis L. Nusbaum
+ *
+ * This file is part of UDJ.
+ *
+ * UDJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UDJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UDJ.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.klnusbaum.udj;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.Loader;
+import android.test.AndroidTestCase;
+
+public class PriorityLoaderTest extends AndroidTestCase{
+
+  private static final long TIMEOUT = 5; // seconds
+
+  /** Names of loads in the order they started running. */
+  private final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+  private final List<CountDownLatch> blocked = new ArrayList<CountDownLatch>();
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  /**
+   * Stands in for one of the player screen's loaders. It doesn't go to the
+   * server, it just holds its thread until it's released.
+   */
+  private class TestLoader extends SessionLoader<String>{
+    private final String name;
+    private final CountDownLatch release;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    public TestLoader(Context context, String name, boolean slow){
+      super(context, null);
+      this.name = name;
+      this.release = new CountDownLatch(slow ? 1 : 0);
+      if(slow){
+        blocked.add(release);
+      }
+      registerListener(0, new Loader.OnLoadCompleteListener<String>(){
+        public void onLoadComplete(Loader<String> loader, String data){
+          done.countDown();
+        }
+      });
+    }
+
+    public String loadInBackground(){
+      started.add(name);
+      try{
+        release.await(TIMEOUT * 2, TimeUnit.SECONDS);
+      }
+      catch(InterruptedException e){
+        Thread.currentThread().interrupt();
+      }
+      return name;
+    }
+
+    public boolean awaitResult() throws InterruptedException{
+      return done.await(TIMEOUT, TimeUnit.SECONDS);
+    }
+  }
+
+  private TestLoader loader(String name, PriorityLoader.Priority priority, boolean slow){
+    TestLoader loader = new TestLoader(getContext(), name, slow);
+    loader.setPriority(priority);
+    return loader;
+  }
+
+  /** Loaders have to be driven from the main thread. */
+  private void runOnMainSync(final Runnable runnable) throws InterruptedException{
+    final CountDownLatch ran = new CountDownLatch(1);
+    mainHandler.post(new Runnable(){
+      public void run(){
+        runnable.run();
+        ran.countDown();
+      }
+    });
+    assertTrue(ran.await(TIMEOUT, TimeUnit.SECONDS));
+  }
+
+  private void forceLoad(final Loader<?>... loaders) throws InterruptedException{
+    runOnMainSync(new Runnable(){
+      public void run(){
+        for(Loader<?> loader: loaders){
+          loader.forceLoad();
+        }
+      }
+    });
+  }
+
+  private void awaitStarted(int count) throws InterruptedException{
+    long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+    while(started.size() < count && System.currentTimeMillis() < deadline){
+      Thread.sleep(10);
+    }
+    assertTrue(started.toString(), started.size() >= count);
+  }
+
+  @Override
+  protected void tearDown() throws Exception{
+    for(CountDownLatch release: blocked){
+      release.countDown();
+    }
+    super.tearDown();
+  }
+
+  public void testOnlyUserRefreshJumpsTheQueue(){
+    TestLoader poll = loader("poll", PriorityLoader.Priority.VISIBLE, false);
+    poll.setForceRefresh(true);
+    assertEquals(PriorityLoader.Priority.VISIBLE, poll.getLoadPriority());
+
+    TestLoader offscreen = loader("offscreen", PriorityLoader.Priority.BACKGROUND, false);
+    offscreen.setForceRefresh(true);
+    assertEquals(PriorityLoader.Priority.BACKGROUND, offscreen.getLoadPriority());
+
+    TestLoader refresh = loader("refresh", PriorityLoader.Priority.VISIBLE, false);
+    refresh.setForceRefresh(true);
+    refresh.setUserInitiated(true);
+    assertEquals(PriorityLoader.Priority.USER_INITIATED, refresh.getLoadPriority());
+  }
+
+  /**
+   * The artists for a tab that isn't showing can take the server a while to
+   * put together. The playlist tab shouldn't have to wait for them.
+   */
+  public void testPlaylistDoesntWaitBehindSlowArtists() throws Exception{
+    TestLoader artists = loader("artists", PriorityLoader.Priority.BACKGROUND, true);
+    TestLoader recent = loader("recent", PriorityLoader.Priority.BACKGROUND, true);
+    forceLoad(artists, recent);
+    awaitStarted(2);
+
+    TestLoader playlist = loader("playlist", PriorityLoader.Priority.VISIBLE, false);
+    playlist.setForceRefresh(true);
+    forceLoad(playlist);
+    assertTrue(playlist.awaitResult());
+    assertEquals(1, artists.done.getCount());
+  }
+
+  /** A playlist poll mustn't get ahead of a search the user just asked for. */
+  public void testPollDoesntJumpUserSearch() throws Exception{
+    List<TestLoader> busy = new ArrayList<TestLoader>();
+    for(int i = 0; i < 3; i++){
+      busy.add(loader("busy" + i, PriorityLoader.Priority.VISIBLE, true));
+    }
+    forceLoad(busy.toArray(new Loader<?>[busy.size()]));
+    awaitStarted(3);
+
+    TestLoader poll = loader("poll", PriorityLoader.Priority.VISIBLE, false);
+    poll.setForceRefresh(true);
+    TestLoader search = loader("search", PriorityLoader.Priority.VISIBLE, false);
+    search.setForceRefresh(true);
+    search.setUserInitiated(true);
+    forceLoad(poll, search);
+
+    blocked.get(0).countDown();
+    assertTrue(search.awaitResult());
+    for(CountDownLatch release: blocked){
+      release.countDown();
+    }
+    assertTrue(poll.awaitResult());
+    assertEquals("search", started.get(3));
+    assertEquals("poll", started.get(4));
+  }
+}